@@ -0,0 +1,172 @@
+/*
+ * $Id$
+ * $Revision$
+ * $Date$
+ * $Author$
+ *
+ * The DOMS project.
+ * Copyright (C) 2007-2010  The State and University Library
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package dk.statsbiblioteket.doms.surveillance.surveyor;
+
+import dk.statsbiblioteket.doms.domsutil.surveyable.Severity;
+import dk.statsbiblioteket.doms.domsutil.surveyable.Status;
+import dk.statsbiblioteket.doms.domsutil.surveyable.StatusMessage;
+import dk.statsbiblioteket.util.qa.QAInfo;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Generator of reproducible status messages for benchmarks.
+ *
+ * Messages are generated from a pool of distinct texts. The duplicate ratio
+ * decides the size of the pool: with ratio 0 all messages are distinct, with
+ * ratio 0.9 there are a tenth as many distinct texts as messages. Each text
+ * starts with a line resembling a log message, and is padded with words to
+ * the requested length, as stack traces pad real log messages.
+ */
+@QAInfo(author = "agent",
+        reviewers = "",
+        level = QAInfo.Level.NORMAL,
+        state = QAInfo.State.QA_NEEDED)
+final class BenchmarkMessages {
+    /** Words used for padding texts. */
+    private static final String[] WORDS = {
+            "at", "dk.statsbiblioteket.doms.central.CentralWebservice",
+            "java.lang.Thread.run(Thread.java:662)", "ObjectNotFound",
+            "Connection", "refused", "uuid:9f3c2b18-7a4e-4d2a-8c5f",
+            "org.fcrepo.server.storage.DefaultDOManager", "timeout",
+            "(Native Method)", "sun.reflect.GeneratedMethodAccessor"};
+
+    /** The earliest time of generated messages. */
+    private static final long START_TIME = 1300000000000L;
+
+    /** The texts of the pool. */
+    private final String[] texts;
+
+    /** The random source, seeded for reproducible messages. */
+    private final Random random;
+
+    /**
+     * Initialise a generator.
+     *
+     * @param seed Seed of the random source.
+     * @param distinctTexts Number of distinct texts in the pool. At least 1.
+     * @param length Approximate length of each text.
+     */
+    BenchmarkMessages(long seed, int distinctTexts, int length) {
+        random = new Random(seed);
+        texts = new String[Math.max(1, distinctTexts)];
+        for (int i = 0; i < texts.length; i++) {
+            texts[i] = createText(i, length);
+        }
+    }
+
+    /**
+     * Get the number of distinct texts for a number of messages with a
+     * given duplicate ratio.
+     *
+     * @param count The number of messages.
+     * @param duplicateRatio The fraction of messages repeating a text.
+     * @return The number of distinct texts. At least 1.
+     */
+    static int getDistinctTexts(int count, double duplicateRatio) {
+        return Math.max(1, (int) Math.round(count * (1.0 - duplicateRatio)));
+    }
+
+    /**
+     * Get a text of the pool.
+     *
+     * @param index The index of the text, modulo the size of the pool.
+     * @return The text.
+     */
+    String getText(int index) {
+        return texts[index % texts.length];
+    }
+
+    /**
+     * Create messages. Each text of the pool is used once before any text is
+     * repeated; repeated texts are chosen at random.
+     *
+     * @param count The number of messages.
+     * @param logMessages Whether to create log messages or realtime
+     * messages.
+     * @return The messages.
+     */
+    List<StatusMessage> createMessages(int count, boolean logMessages) {
+        List<StatusMessage> messages = new ArrayList<StatusMessage>(count);
+        for (int i = 0; i < count; i++) {
+            int index = i < texts.length ? i : random.nextInt(texts.length);
+            messages.add(createMessage(texts[index], logMessages));
+        }
+        return messages;
+    }
+
+    /**
+     * Create a message with a random severity and time.
+     *
+     * @param text The text of the message.
+     * @param logMessage Whether to create a log message or a realtime
+     * message.
+     * @return The message.
+     */
+    StatusMessage createMessage(String text, boolean logMessage) {
+        StatusMessage message = new StatusMessage();
+        message.setMessage(text);
+        message.setSeverity(Severity.values()[
+                random.nextInt(Severity.values().length)]);
+        message.setTime(START_TIME + random.nextInt(3600000));
+        message.setLogMessage(logMessage);
+        return message;
+    }
+
+    /**
+     * Create a status.
+     *
+     * @param name The name of the status.
+     * @param messages The messages of the status.
+     * @return The status.
+     */
+    static Status createStatus(String name, List<StatusMessage> messages) {
+        Status status = new Status();
+        status.setName(name);
+        status.getMessages().addAll(messages);
+        return status;
+    }
+
+    /**
+     * Create a text.
+     *
+     * @param index The index of the text, making it distinct.
+     * @param length The approximate length of the text.
+     * @return The text.
+     */
+    private String createText(int index, int length) {
+        StringBuilder text = new StringBuilder(length + 64);
+        text.append("Error in request ").append(index).append(": ");
+        while (text.length() < length) {
+            text.append(WORDS[random.nextInt(WORDS.length)]);
+            text.append(random.nextInt(4) == 0 ? "\n\t" : " ");
+        }
+        return text.toString();
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * $Id$
+ * $Revision$
+ * $Date$
+ * $Author$
+ *
+ * The DOMS project.
+ * Copyright (C) 2007-2010  The State and University Library
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package dk.statsbiblioteket.doms.surveillance.surveyor;
+
+import dk.statsbiblioteket.doms.domsutil.surveyable.StatusMessage;
+import dk.statsbiblioteket.util.qa.QAInfo;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks of condensing messages: adding status messages and condensed
+ * messages to a {@link CondensedStatus}, and updating a
+ * {@link CondensedStatusMessage}.
+ */
+@QAInfo(author = "agent",
+        reviewers = "",
+        level = QAInfo.Level.NORMAL,
+        state = QAInfo.State.QA_NEEDED)
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CondensedStatusBenchmark {
+    /** Number of messages added. */
+    @Param({"1000", "10000"})
+    public int messageCount;
+
+    /** Approximate length of each message. */
+    @Param({"100", "2000"})
+    public int messageLength;
+
+    /** Fraction of messages repeating the text of another message. */
+    @Param({"0.0", "0.5", "0.9"})
+    public double duplicateRatio;
+
+    /** The status messages to add. */
+    private StatusMessage[] messages;
+
+    /** The status messages to add, as condensed messages. */
+    private CondensedStatusMessage[] condensedMessages;
+
+    /**
+     * For each status message, a condensed message with the same text, to
+     * update with the status message.
+     */
+    private CondensedStatusMessage[] updatedMessages;
+
+    /** Generate the messages. */
+    @Setup
+    public void setUp() {
+        BenchmarkMessages generator = new BenchmarkMessages(
+                42L, BenchmarkMessages.getDistinctTexts(messageCount,
+                                                        duplicateRatio),
+                messageLength);
+        List<StatusMessage> list
+                = generator.createMessages(messageCount, true);
+        messages = list.toArray(new StatusMessage[list.size()]);
+        condensedMessages = new CondensedStatusMessage[messages.length];
+        updatedMessages = new CondensedStatusMessage[messages.length];
+        Map<String, CondensedStatusMessage> first
+                = new HashMap<String, CondensedStatusMessage>();
+        for (int i = 0; i < messages.length; i++) {
+            condensedMessages[i] = new CondensedStatusMessage(messages[i]);
+            CondensedStatusMessage message = first.get(
+                    messages[i].getMessage());
+            if (message == null) {
+                message = condensedMessages[i];
+                first.put(messages[i].getMessage(), message);
+            }
+            updatedMessages[i] = message;
+        }
+    }
+
+    /**
+     * Add all status messages to a new condensed status.
+     *
+     * @return The condensed status.
+     */
+    @Benchmark
+    public CondensedStatus addStatusMessages() {
+        CondensedStatus status = new CondensedStatus("benchmark");
+        for (StatusMessage message : messages) {
+            status.addMessage(message);
+        }
+        return status;
+    }
+
+    /**
+     * Add all condensed messages to a new condensed status.
+     *
+     * @return The condensed status.
+     */
+    @Benchmark
+    public CondensedStatus addCondensedMessages() {
+        CondensedStatus status = new CondensedStatus("benchmark");
+        for (CondensedStatusMessage message : condensedMessages) {
+            status.addMessage(message);
+        }
+        return status;
+    }
+
+    /**
+     * Update condensed messages with status messages of the same text.
+     *
+     * @param blackhole Consumer of the updated messages.
+     */
+    @Benchmark
+    public void updateWithStatusMessages(Blackhole blackhole) {
+        for (int i = 0; i < messages.length; i++) {
+            blackhole.consume(updatedMessages[i].withUpdate(messages[i]));
+        }
+    }
+
+    /**
+     * Update condensed messages with condensed messages of the same text.
+     *
+     * @param blackhole Consumer of the updated messages.
+     */
+    @Benchmark
+    public void updateWithCondensedMessages(Blackhole blackhole) {
+        for (int i = 0; i < messages.length; i++) {
+            blackhole.consume(
+                    updatedMessages[i].withUpdate(condensedMessages[i]));
+        }
+    }
+}
@@ -0,0 +1,200 @@
+/*
+ * $Id$
+ * $Revision$
+ * $Date$
+ * $Author$
+ *
+ * The DOMS project.
+ * Copyright (C) 2007-2010  The State and University Library
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package dk.statsbiblioteket.doms.surveillance.surveyor;
+
+import dk.statsbiblioteket.util.qa.QAInfo;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks of ignore rules: filtering messages with an
+ * {@link IgnoreMatcher}, building the matcher, and loading the rules with
+ * an {@link IgnoredMessageStore}.
+ *
+ * Most rules are exact rules, as made by "never show again"; a fifth are
+ * prefix rules, and the rest glob and regular expression rules. A tenth of
+ * the messages match an exact rule.
+ */
+@QAInfo(author = "agent",
+        reviewers = "",
+        level = QAInfo.Level.NORMAL,
+        state = QAInfo.State.QA_NEEDED)
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class IgnoreBenchmark {
+    /** Name of the application of the messages. */
+    private static final String APPLICATION = "application";
+
+    /** Number of messages filtered. */
+    private static final int MESSAGES = 1000;
+
+    /** Number of ignore rules. */
+    @Param({"10", "1000", "10000"})
+    public int ruleCount;
+
+    /** Approximate length of each message and exact rule. */
+    @Param({"100", "2000"})
+    public int messageLength;
+
+    /** The rules. */
+    private List<IgnoreRule> rules;
+
+    /** Matcher of the rules. */
+    private IgnoreMatcher matcher;
+
+    /** The messages to filter. */
+    private String[] messages;
+
+    /** File with the rules. */
+    private File file;
+
+    /**
+     * Generate the rules and messages, and write the rules to a file.
+     *
+     * @throws IOException On trouble creating the file.
+     */
+    @Setup
+    public void setUp() throws IOException {
+        BenchmarkMessages generator = new BenchmarkMessages(
+                7L, ruleCount + MESSAGES, messageLength);
+        rules = new ArrayList<IgnoreRule>();
+        for (int i = 0; i < ruleCount; i++) {
+            String application = i % 2 == 0
+                    ? APPLICATION : IgnoreRule.ALL_APPLICATIONS;
+            switch (i % 20) {
+                case 0:
+                    rules.add(new IgnoreRule(
+                            IgnoreRule.Type.GLOB, application,
+                            "Job " + i + " failed after * retries"));
+                    break;
+                case 1:
+                    rules.add(new IgnoreRule(
+                            IgnoreRule.Type.REGEX, application,
+                            "Timeout after \\d+ ms on host-" + i + "\\b.*"));
+                    break;
+                case 2:
+                case 3:
+                case 4:
+                case 5:
+                    rules.add(new IgnoreRule(
+                            IgnoreRule.Type.PREFIX, application,
+                            "Warning " + i + " in batch job"));
+                    break;
+                default:
+                    rules.add(new IgnoreRule(
+                            IgnoreRule.Type.EXACT, application,
+                            generator.getText(i)));
+                    break;
+            }
+        }
+        matcher = new IgnoreMatcher(rules);
+        messages = new String[MESSAGES];
+        for (int i = 0; i < MESSAGES; i++) {
+            int exactRule = (i / 10) % Math.max(1, ruleCount);
+            messages[i] = i % 10 == 0 && exactRule % 20 > 5
+                    ? generator.getText(exactRule)
+                    : generator.getText(ruleCount + i);
+        }
+
+        file = File.createTempFile("ignored", ".log");
+        file.delete();
+        IgnoredMessageStore store = new IgnoredMessageStore(file);
+        store.load();
+        for (IgnoreRule rule : rules) {
+            store.add(rule);
+        }
+        store.close();
+    }
+
+    /** Delete the file with the rules. */
+    @TearDown
+    public void tearDown() {
+        file.delete();
+    }
+
+    /**
+     * Filter the messages with the matcher.
+     *
+     * @return The number of ignored messages.
+     */
+    @Benchmark
+    public int matchMessages() {
+        int ignored = 0;
+        for (String message : messages) {
+            if (matcher.matches(APPLICATION, message)) {
+                ignored++;
+            }
+        }
+        return ignored;
+    }
+
+    /**
+     * Build a matcher of the rules, as done when a rule is added.
+     *
+     * @return The matcher.
+     */
+    @Benchmark
+    public IgnoreMatcher buildMatcher() {
+        return new IgnoreMatcher(rules);
+    }
+
+    /**
+     * Load the rules from the file, as done on startup.
+     *
+     * @return The rules.
+     */
+    @Benchmark
+    public Set<IgnoreRule> loadIgnoredFile() {
+        IgnoredMessageStore store = new IgnoredMessageStore(file);
+        try {
+            return store.load();
+        } finally {
+            store.close();
+        }
+    }
+}
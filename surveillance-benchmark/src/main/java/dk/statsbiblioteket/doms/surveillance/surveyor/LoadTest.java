@@ -0,0 +1,542 @@
+/*
+ * $Id$
+ * $Revision$
+ * $Date$
+ * $Author$
+ *
+ * The DOMS project.
+ * Copyright (C) 2007-2010  The State and University Library
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package dk.statsbiblioteket.doms.surveillance.surveyor;
+
+import dk.statsbiblioteket.util.qa.QAInfo;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.reflect.Field;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Load test of the surveyor against local stub status URLs.
+ *
+ * The load test starts a number of stub REST and SOAP status URLs on the
+ * local host, with configurable latency, failure rate, and volume and
+ * uniqueness of log messages. It then starts a surveyor polling them, serves
+ * its status with {@link StatusResource} over HTTP, and starts a number of
+ * reader threads fetching the status of all applications as fast as they
+ * can, as clients of the status API do. Throughput and latency of the
+ * readers and the size of the status are reported periodically; the
+ * surveyor metrics are printed when the test ends.
+ *
+ * Settings are given as arguments of the form <code>name=value</code>, with
+ * the names of the fields of {@link Settings}, e.g.
+ * <pre>
+ * java -cp benchmarks.jar \
+ *     dk.statsbiblioteket.doms.surveillance.surveyor.LoadTest \
+ *     rest=200 soap=20 messages=50 uniqueness=0.2 failureRate=0.05
+ * </pre>
+ */
+@QAInfo(author = "agent",
+        reviewers = "",
+        level = QAInfo.Level.NORMAL,
+        state = QAInfo.State.QA_NEEDED)
+public class LoadTest {
+    /** Number of reads failing with an error. */
+    private static final AtomicLong failedReads = new AtomicLong();
+
+    /** Settings of the load test. Times are in milliseconds. */
+    public static class Settings {
+        /** Number of stub REST status URLs. */
+        public int rest = 50;
+
+        /** Number of stub SOAP status URLs. */
+        public int soap = 0;
+
+        /** Number of new log messages returned by each query. */
+        public int messages = 20;
+
+        /** Fraction of log messages with texts never seen before. */
+        public double uniqueness = 0.1;
+
+        /** Length of the texts of log messages. */
+        public int messageLength = 120;
+
+        /** Minimum time each stub takes to answer a query. */
+        public long latency = 20L;
+
+        /** Random extra time, up to this, each stub takes to answer. */
+        public long latencyJitter = 80L;
+
+        /** Fraction of queries failing. */
+        public double failureRate = 0.0;
+
+        /** Number of reader threads fetching the status. */
+        public int readers = 4;
+
+        /** Pause of reader threads between fetches. */
+        public long readerPause = 0L;
+
+        /** Whether readers fetch the status as XML rather than JSON. */
+        public boolean xml = false;
+
+        /** Whether readers send the entity tag of their previous fetch, and
+         * get 304 Not Modified if the status is unchanged. */
+        public boolean conditional = false;
+
+        /** Initial and minimum poll interval of the surveyor. */
+        public long pollInterval = 2000L;
+
+        /** Maximum poll interval of the surveyor. */
+        public long maxPollInterval = 10000L;
+
+        /** Number of threads querying status URLs. */
+        public int pollThreads = 32;
+
+        /** Maximum number of log messages kept per application. */
+        public int maxMessagesPerApplication = 500;
+
+        /** Maximum number of log messages kept in total. */
+        public int maxMessages = 100000;
+
+        /** Duration of the test. */
+        public long duration = 60000L;
+
+        /** Interval between reports. */
+        public long reportInterval = 5000L;
+
+        /**
+         * Set a setting from an argument of the form
+         * <code>name=value</code>.
+         *
+         * @param argument The argument.
+         * @throws IllegalArgumentException If the argument is malformed or
+         * names no setting.
+         */
+        void set(String argument) {
+            int separator = argument.indexOf('=');
+            if (separator < 1) {
+                throw new IllegalArgumentException(
+                        "Expected name=value, got '" + argument + "'");
+            }
+            String name = argument.substring(0, separator);
+            String value = argument.substring(separator + 1);
+            try {
+                Field field = Settings.class.getField(name);
+                if (field.getType() == int.class) {
+                    field.setInt(this, Integer.parseInt(value));
+                } else if (field.getType() == long.class) {
+                    field.setLong(this, Long.parseLong(value));
+                } else if (field.getType() == boolean.class) {
+                    field.setBoolean(this, Boolean.parseBoolean(value));
+                } else {
+                    field.setDouble(this, Double.parseDouble(value));
+                }
+            } catch (NoSuchFieldException e) {
+                throw new IllegalArgumentException(
+                        "Unknown setting '" + name + "'", e);
+            } catch (IllegalAccessException e) {
+                throw new IllegalArgumentException(
+                        "Unknown setting '" + name + "'", e);
+            }
+        }
+
+        /**
+         * Get the settings as a readable string.
+         *
+         * @return The settings.
+         */
+        public String toString() {
+            StringBuilder result = new StringBuilder();
+            for (Field field : Settings.class.getFields()) {
+                try {
+                    if (result.length() > 0) {
+                        result.append(' ');
+                    }
+                    result.append(field.getName()).append('=')
+                            .append(field.get(this));
+                } catch (IllegalAccessException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+            return result.toString();
+        }
+    }
+
+    /**
+     * Latency histogram with buckets growing by a factor of about 1.19,
+     * giving percentiles within 19% of the true value. Thread safe and lock
+     * free.
+     */
+    static class LatencyRecorder {
+        /** Sub-buckets per power of two. */
+        private static final int SUB_BUCKETS = 4;
+
+        /** Counts of the buckets. */
+        private final AtomicLongArray counts
+                = new AtomicLongArray(64 * SUB_BUCKETS);
+
+        /**
+         * Record a latency.
+         *
+         * @param nanos The latency in nanoseconds.
+         */
+        void record(long nanos) {
+            counts.incrementAndGet(getBucket(Math.max(nanos, 1L)));
+        }
+
+        /**
+         * Get the number of recorded latencies.
+         *
+         * @return The count.
+         */
+        long getCount() {
+            long count = 0;
+            for (int i = 0; i < counts.length(); i++) {
+                count += counts.get(i);
+            }
+            return count;
+        }
+
+        /**
+         * Get a percentile of the recorded latencies.
+         *
+         * @param percentile The percentile, between 0 and 100.
+         * @return The upper bound of the bucket of the percentile in
+         * nanoseconds, or 0 if nothing is recorded.
+         */
+        long getPercentile(double percentile) {
+            long count = getCount();
+            long rank = (long) Math.ceil(count * percentile / 100.0);
+            long seen = 0;
+            for (int i = 0; i < counts.length(); i++) {
+                seen += counts.get(i);
+                if (seen > 0 && seen >= rank) {
+                    return getUpperBound(i);
+                }
+            }
+            return 0L;
+        }
+
+        /**
+         * Get the bucket of a latency.
+         *
+         * @param nanos The latency, positive.
+         * @return The bucket.
+         */
+        private static int getBucket(long nanos) {
+            int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+            int fraction = exponent < 2 ? 0
+                    : (int) ((nanos >>> (exponent - 2)) & (SUB_BUCKETS - 1));
+            return exponent * SUB_BUCKETS + fraction;
+        }
+
+        /**
+         * Get the largest latency in a bucket.
+         *
+         * @param bucket The bucket.
+         * @return The largest latency in nanoseconds.
+         */
+        private static long getUpperBound(int bucket) {
+            int exponent = bucket / SUB_BUCKETS;
+            int fraction = bucket % SUB_BUCKETS;
+            if (exponent < 2) {
+                return (2L << exponent) - 1;
+            }
+            return ((long) (SUB_BUCKETS + fraction + 1) << (exponent - 2))
+                    - 1;
+        }
+    }
+
+    /**
+     * Run the load test.
+     *
+     * @param args Settings, of the form <code>name=value</code>.
+     * @throws Exception On trouble starting the stubs or the surveyor.
+     */
+    public static void main(String[] args) throws Exception {
+        final Settings settings = new Settings();
+        for (String argument : args) {
+            settings.set(argument);
+        }
+        System.out.println("Settings: " + settings);
+
+        File directory = File.createTempFile("surveyor-loadtest", "");
+        if (!directory.delete() || !directory.mkdir()) {
+            throw new IOException("Unable to create '" + directory + "'");
+        }
+        StubRestServer restServer = new StubRestServer(settings.rest,
+                                                       settings);
+        try {
+            StubSoapServer soapServer = new StubSoapServer(settings.soap,
+                                                           settings);
+            try {
+                run(settings, getConfiguration(
+                        settings, restServer.getStatusUrls(),
+                        soapServer.getStatusUrls(), directory));
+            } finally {
+                soapServer.stop();
+            }
+        } finally {
+            restServer.stop();
+            for (File file : directory.listFiles()) {
+                file.delete();
+            }
+            directory.delete();
+        }
+    }
+
+    /**
+     * Run a surveyor, a server exposing its status, and the reader threads
+     * for the duration of the test, and report the results.
+     *
+     * The readers record latencies in the recorder of the current report
+     * interval, which the reporting thread replaces atomically. A latency
+     * recorded just as the recorder is replaced may be missed in the report
+     * of the interval, but is always recorded in the total.
+     *
+     * @param settings The load test settings.
+     * @param configuration The configuration of the surveyor.
+     * @throws InterruptedException If interrupted while waiting for the
+     * readers.
+     * @throws IOException On trouble starting the server or writing the
+     * surveyor metrics.
+     */
+    private static void run(final Settings settings,
+                            Properties configuration)
+            throws InterruptedException, IOException {
+        final WebServiceSurveyor surveyor
+                = new WebServiceSurveyor(configuration);
+        final LatencyRecorder total = new LatencyRecorder();
+        final AtomicReference<LatencyRecorder> window
+                = new AtomicReference<LatencyRecorder>(new LatencyRecorder());
+        final long end = System.currentTimeMillis() + settings.duration;
+        List<Thread> readers = new ArrayList<Thread>();
+        SurveyorRestServer server = null;
+        try {
+            server = new SurveyorRestServer(surveyor);
+            final URL statusUrl = new URL(server.getStatusUrl());
+            for (int i = 0; i < settings.readers; i++) {
+                Thread reader = new Thread(new Runnable() {
+                    public void run() {
+                        read(statusUrl, settings, end, total, window);
+                    }
+                }, "LoadTestReader-" + i);
+                reader.setDaemon(true);
+                reader.start();
+                readers.add(reader);
+            }
+
+            long start = System.currentTimeMillis();
+            long now = start;
+            while (now < end) {
+                Thread.sleep(Math.min(settings.reportInterval, end - now));
+                LatencyRecorder recorder
+                        = window.getAndSet(new LatencyRecorder());
+                long previous = now;
+                now = System.currentTimeMillis();
+                report((now - start) / 1000L, recorder, now - previous,
+                       surveyor.getStatusMap());
+            }
+            for (Thread reader : readers) {
+                reader.join();
+            }
+            System.out.println();
+            report(settings.duration / 1000L, total, settings.duration,
+                   surveyor.getStatusMap());
+            System.out.println("Failed reads: " + failedReads.get());
+            System.out.println();
+            Writer out = new OutputStreamWriter(System.out, "UTF-8");
+            surveyor.getMetrics().write(surveyor.getStatusSnapshot(), out);
+            out.flush();
+        } finally {
+            if (server != null) {
+                server.stop();
+            }
+            surveyor.close();
+        }
+    }
+
+    /**
+     * Get the surveyor configuration for the load test.
+     *
+     * @param settings The load test settings.
+     * @param restUrls The REST status URLs.
+     * @param soapUrls The SOAP status URLs.
+     * @param directory Directory for the files of the surveyor.
+     * @return The configuration.
+     */
+    private static Properties getConfiguration(Settings settings,
+                                               List<String> restUrls,
+                                               List<String> soapUrls,
+                                               File directory) {
+        Properties configuration = new Properties();
+        configuration.setProperty(
+                WebServiceSurveyor.REST_URLS_CONFIGURATION_PARAMETER,
+                join(restUrls));
+        configuration.setProperty(
+                WebServiceSurveyor.SOAP_URLS_CONFIGURATION_PARAMETER,
+                join(soapUrls));
+        configuration.setProperty(
+                WebServiceSurveyor.IGNOREFILE_CONFIGURATION_PARAMETER,
+                new File(directory, "ignored.txt").getPath());
+        configuration.setProperty(
+                WebServiceSurveyor.CHECKPOINTFILE_CONFIGURATION_PARAMETER,
+                new File(directory, "checkpoint.bin").getPath());
+        configuration.setProperty(
+                WebServiceSurveyor.POLLINTERVAL_CONFIGURATION_PARAMETER,
+                Long.toString(settings.pollInterval));
+        configuration.setProperty(
+                WebServiceSurveyor.MINPOLLINTERVAL_CONFIGURATION_PARAMETER,
+                Long.toString(settings.pollInterval));
+        configuration.setProperty(
+                WebServiceSurveyor.MAXPOLLINTERVAL_CONFIGURATION_PARAMETER,
+                Long.toString(settings.maxPollInterval));
+        configuration.setProperty(
+                WebServiceSurveyor.POLLTHREADS_CONFIGURATION_PARAMETER,
+                Integer.toString(settings.pollThreads));
+        configuration.setProperty(
+                WebServiceSurveyor
+                        .MAXCONNECTIONSPERHOST_CONFIGURATION_PARAMETER,
+                Integer.toString(settings.pollThreads));
+        configuration.setProperty(
+                WebServiceSurveyor
+                        .MAXMESSAGESPERAPPLICATION_CONFIGURATION_PARAMETER,
+                Integer.toString(settings.maxMessagesPerApplication));
+        configuration.setProperty(
+                WebServiceSurveyor.MAXMESSAGES_CONFIGURATION_PARAMETER,
+                Integer.toString(settings.maxMessages));
+        return configuration;
+    }
+
+    /**
+     * Join URLs with semicolons, as in the configuration of the surveyor.
+     *
+     * @param urls The URLs.
+     * @return The joined URLs.
+     */
+    private static String join(List<String> urls) {
+        StringBuilder result = new StringBuilder();
+        for (String url : urls) {
+            if (result.length() > 0) {
+                result.append(';');
+            }
+            result.append(url);
+        }
+        return result.toString();
+    }
+
+    /**
+     * Fetch the status of all applications repeatedly until the end of the
+     * test, recording the latency of each fetch, from sending the request
+     * until the whole response is read. Failed fetches are counted, not
+     * recorded.
+     *
+     * @param statusUrl The URL of the status of all applications.
+     * @param settings The load test settings.
+     * @param end The end time of the test.
+     * @param total Recorder of all latencies.
+     * @param window Holder of the recorder of the current report interval.
+     */
+    private static void read(URL statusUrl, Settings settings, long end,
+                             LatencyRecorder total,
+                             AtomicReference<LatencyRecorder> window) {
+        byte[] buffer = new byte[65536];
+        String tag = null;
+        while (System.currentTimeMillis() < end) {
+            long start = System.nanoTime();
+            try {
+                HttpURLConnection connection
+                        = (HttpURLConnection) statusUrl.openConnection();
+                connection.setRequestProperty(
+                        "Accept", settings.xml ? "application/xml"
+                        : "application/json");
+                if (settings.conditional && tag != null) {
+                    connection.setRequestProperty("If-None-Match", tag);
+                }
+                int code = connection.getResponseCode();
+                if (code == HttpURLConnection.HTTP_OK) {
+                    tag = connection.getHeaderField("ETag");
+                } else if (code != HttpURLConnection.HTTP_NOT_MODIFIED) {
+                    throw new IOException("Status " + code + " from '"
+                            + statusUrl + "'");
+                }
+                InputStream in = connection.getInputStream();
+                try {
+                    while (in.read(buffer) >= 0) {
+                        //Read the whole document
+                    }
+                } finally {
+                    in.close();
+                }
+                long nanos = System.nanoTime() - start;
+                total.record(nanos);
+                window.get().record(nanos);
+            } catch (IOException e) {
+                if (failedReads.getAndIncrement() == 0) {
+                    e.printStackTrace();
+                }
+            }
+            if (settings.readerPause > 0) {
+                try {
+                    Thread.sleep(settings.readerPause);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Print a report line.
+     *
+     * @param second Seconds since the start of the test.
+     * @param recorder The latencies of the period.
+     * @param period Length of the period in milliseconds.
+     * @param statusMap The current status map.
+     */
+    private static void report(long second, LatencyRecorder recorder,
+                               long period,
+                               Map<String, CondensedStatus> statusMap) {
+        int messages = 0;
+        for (CondensedStatus status : statusMap.values()) {
+            messages += status.getMessages().size();
+        }
+        System.out.println(String.format(
+                "%5ds reads/s %9.0f  p50 %8.3fms  p99 %8.3fms"
+                        + "  p99.9 %8.3fms  applications %5d  messages %7d",
+                second,
+                recorder.getCount() * 1000.0 / Math.max(period, 1L),
+                recorder.getPercentile(50.0) / 1e6,
+                recorder.getPercentile(99.0) / 1e6,
+                recorder.getPercentile(99.9) / 1e6,
+                statusMap.size(), messages));
+    }
+}
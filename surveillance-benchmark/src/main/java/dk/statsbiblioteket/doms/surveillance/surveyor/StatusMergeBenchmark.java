@@ -0,0 +1,193 @@
+/*
+ * $Id$
+ * $Revision$
+ * $Date$
+ * $Author$
+ *
+ * The DOMS project.
+ * Copyright (C) 2007-2010  The State and University Library
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package dk.statsbiblioteket.doms.surveillance.surveyor;
+
+import dk.statsbiblioteket.doms.domsutil.surveyable.Status;
+import dk.statsbiblioteket.doms.domsutil.surveyable.StatusMessage;
+import dk.statsbiblioteket.util.qa.QAInfo;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks of merging the results of a poll into the status map, as done
+ * by {@link WebServiceSurveyor} after each poll, with a large backlog of
+ * unhandled log messages.
+ *
+ * The old status map holds the backlog spread over the applications, and
+ * a realtime message for each application. The poll returns a status for
+ * each application, where the duplicate ratio decides how many of the
+ * polled log messages repeat a message already in the backlog.
+ */
+@QAInfo(author = "agent",
+        reviewers = "",
+        level = QAInfo.Level.NORMAL,
+        state = QAInfo.State.QA_NEEDED)
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StatusMergeBenchmark {
+    /** Number of applications. */
+    private static final int APPLICATIONS = 20;
+
+    /** Text of the realtime message of each application. */
+    private static final String REALTIME_TEXT = "Service is running";
+
+    /** Number of ignore rules, none of which match the messages. */
+    private static final int IGNORE_RULES = 100;
+
+    /** Number of unhandled log messages in the old status map. */
+    @Param({"1000", "20000"})
+    public int backlog;
+
+    /** Number of log messages returned by the poll. */
+    @Param({"100", "1000"})
+    public int messageCount;
+
+    /** Approximate length of each message. */
+    @Param({"100", "2000"})
+    public int messageLength;
+
+    /** Fraction of polled messages repeating a backlog message. */
+    @Param({"0.0", "0.9"})
+    public double duplicateRatio;
+
+    /** The old status map. */
+    private Map<String, CondensedStatus> oldStatusMap;
+
+    /** The statuses returned by the poll. */
+    private List<Status> statuses;
+
+    /** The ignore rules. */
+    private IgnoreMatcher ignoreMatcher;
+
+    /** Metrics, recording filtered and evicted messages. */
+    private SurveyorMetrics metrics;
+
+    /** Generate the old status map, the poll results and the rules. */
+    @Setup
+    public void setUp() {
+        int perApplication = Math.max(1, backlog / APPLICATIONS);
+        int polledPerApplication = Math.max(1, messageCount / APPLICATIONS);
+        int repeated = (int) Math.round(polledPerApplication * duplicateRatio);
+        oldStatusMap = new HashMap<String, CondensedStatus>();
+        statuses = new ArrayList<Status>();
+        for (int i = 0; i < APPLICATIONS; i++) {
+            String name = "application" + i;
+            BenchmarkMessages generator = new BenchmarkMessages(
+                    i, perApplication + polledPerApplication, messageLength);
+            CondensedStatus status = new CondensedStatus(name);
+            for (StatusMessage message
+                    : generator.createMessages(perApplication, true)) {
+                status.addMessage(message);
+            }
+            status.addMessage(generator.createMessage(REALTIME_TEXT, false));
+            oldStatusMap.put(name, status);
+
+            //The first texts of the pool are in the backlog, the rest are new
+            List<StatusMessage> polled = new ArrayList<StatusMessage>();
+            polled.add(generator.createMessage(REALTIME_TEXT, false));
+            for (int j = 0; j < polledPerApplication; j++) {
+                String text = j < repeated
+                        ? generator.getText(j % perApplication)
+                        : generator.getText(perApplication + j);
+                polled.add(generator.createMessage(text, true));
+            }
+            statuses.add(BenchmarkMessages.createStatus(name, polled));
+        }
+        List<IgnoreRule> rules = new ArrayList<IgnoreRule>();
+        for (int i = 0; i < IGNORE_RULES; i++) {
+            rules.add(new IgnoreRule(IgnoreRule.Type.PREFIX,
+                                     "application" + (i % APPLICATIONS),
+                                     "Warning " + i + " in batch job"));
+        }
+        ignoreMatcher = new IgnoreMatcher(rules);
+        metrics = new SurveyorMetrics();
+        oldStatusMap = Collections.unmodifiableMap(oldStatusMap);
+    }
+
+    /**
+     * Keep the log messages of the old status map, as when the ignore rules
+     * are unchanged.
+     *
+     * @return The merged status map.
+     */
+    @Benchmark
+    public Map<String, CondensedStatus> keepLogMessages() {
+        StatusMerge merge = new StatusMerge(ignoreMatcher, metrics);
+        merge.keepLogMessages(oldStatusMap, false);
+        return merge.getResult();
+    }
+
+    /**
+     * Keep the log messages of the old status map, filtering them by the
+     * ignore rules, as when the ignore rules have changed.
+     *
+     * @return The merged status map.
+     */
+    @Benchmark
+    public Map<String, CondensedStatus> keepFilteredLogMessages() {
+        StatusMerge merge = new StatusMerge(ignoreMatcher, metrics);
+        merge.keepLogMessages(oldStatusMap, true);
+        return merge.getResult();
+    }
+
+    /**
+     * Merge a whole poll: keep the log messages of the old status map, add
+     * the polled statuses, and evict log messages over the default limits.
+     *
+     * @return The merged status map.
+     */
+    @Benchmark
+    public Map<String, CondensedStatus> mergePoll() {
+        StatusMerge merge = new StatusMerge(ignoreMatcher, metrics);
+        merge.keepLogMessages(oldStatusMap, false);
+        for (Status status : statuses) {
+            merge.addStatus(status);
+        }
+        merge.limitLogMessages(1000, 20000);
+        return merge.getResult();
+    }
+}
@@ -0,0 +1,208 @@
+/*
+ * $Id$
+ * $Revision$
+ * $Date$
+ * $Author$
+ *
+ * The DOMS project.
+ * Copyright (C) 2007-2010  The State and University Library
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package dk.statsbiblioteket.doms.surveillance.surveyor;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import dk.statsbiblioteket.doms.domsutil.surveyable.Status;
+import dk.statsbiblioteket.util.qa.QAInfo;
+
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.JAXBElement;
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.Marshaller;
+import javax.xml.bind.annotation.XmlRootElement;
+import javax.xml.namespace.QName;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * An HTTP server with stub REST status URLs, used by the load test.
+ *
+ * The server has a status URL <code>/rest/N?date=T</code> for each stub,
+ * returning the status of the stub as XML with log messages newer than T,
+ * as the REST status URLs of surveyed services do. Failed queries are
+ * answered with status 500.
+ */
+@QAInfo(author = "agent",
+        reviewers = "",
+        level = QAInfo.Level.NORMAL,
+        state = QAInfo.State.QA_NEEDED)
+class StubRestServer {
+    /** Name of the status element, if the status class does not give it. */
+    private static final QName STATUS_QNAME = new QName(
+            "http://surveyable.domsutil.doms.statsbiblioteket.dk/", "status");
+
+    /** The HTTP server. */
+    private final HttpServer server;
+
+    /** Threads answering requests. */
+    private final ExecutorService executor;
+
+    /** Context for marshalling statuses. */
+    private final JAXBContext context;
+
+    /** The status URLs. */
+    private final List<String> statusUrls = new ArrayList<String>();
+
+    /**
+     * Start a server with the given number of stubs on a free local port.
+     *
+     * @param stubs The number of stubs.
+     * @param settings The load test settings.
+     * @throws IOException On trouble starting the server.
+     * @throws JAXBException On trouble initialising marshalling.
+     */
+    StubRestServer(int stubs, LoadTest.Settings settings)
+            throws IOException, JAXBException {
+        context = JAXBContext.newInstance(Status.class);
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0),
+                                   1024);
+        for (int i = 0; i < stubs; i++) {
+            StubStatusSource source = new StubStatusSource(
+                    "rest-stub-" + i, i, settings);
+            server.createContext("/rest/" + i, new StatusHandler(source));
+            statusUrls.add("http://127.0.0.1:" + server.getAddress().getPort()
+                    + "/rest/" + i + "?date={date}");
+        }
+        executor = Executors.newCachedThreadPool();
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    /**
+     * Get the status URLs, with <code>{date}</code> for the surveyor to
+     * replace.
+     *
+     * @return The status URLs.
+     */
+    List<String> getStatusUrls() {
+        return statusUrls;
+    }
+
+    /** Stop the server. */
+    void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    /**
+     * Marshal a status as XML.
+     *
+     * @param status The status.
+     * @return The XML.
+     * @throws JAXBException On trouble marshalling.
+     */
+    private byte[] marshal(Status status) throws JAXBException {
+        Object element = status;
+        if (!Status.class.isAnnotationPresent(XmlRootElement.class)) {
+            element = new JAXBElement<Status>(STATUS_QNAME, Status.class,
+                                              status);
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Marshaller marshaller = context.createMarshaller();
+        marshaller.setProperty(Marshaller.JAXB_ENCODING, "UTF-8");
+        marshaller.marshal(element, out);
+        return out.toByteArray();
+    }
+
+    /** Handler answering requests for the status URL of a stub. */
+    private class StatusHandler implements HttpHandler {
+        /** The status of the stub. */
+        private final StubStatusSource source;
+
+        /**
+         * Initialise a handler.
+         *
+         * @param source The status of the stub.
+         */
+        private StatusHandler(StubStatusSource source) {
+            this.source = source;
+        }
+
+        /**
+         * Answer a request with the status of the stub.
+         *
+         * @param exchange The request and response.
+         * @throws IOException On trouble writing the response.
+         */
+        public void handle(HttpExchange exchange) throws IOException {
+            try {
+                byte[] body;
+                int code;
+                try {
+                    body = marshal(source.getStatusSince(
+                            getDate(exchange.getRequestURI().getQuery())));
+                    code = 200;
+                    exchange.getResponseHeaders().set(
+                            "Content-Type", "application/xml");
+                } catch (RuntimeException e) {
+                    body = e.toString().getBytes("UTF-8");
+                    code = 500;
+                } catch (JAXBException e) {
+                    body = e.toString().getBytes("UTF-8");
+                    code = 500;
+                }
+                exchange.sendResponseHeaders(code, body.length);
+                OutputStream out = exchange.getResponseBody();
+                out.write(body);
+                out.close();
+            } finally {
+                exchange.close();
+            }
+        }
+
+        /**
+         * Get the date parameter of a query.
+         *
+         * @param query The query string, or null.
+         * @return The date, or 0 if not given.
+         */
+        private long getDate(String query) {
+            if (query != null) {
+                for (String parameter : query.split("&")) {
+                    if (parameter.startsWith("date=")) {
+                        try {
+                            return Long.parseLong(
+                                    parameter.substring("date=".length()));
+                        } catch (NumberFormatException e) {
+                            return 0L;
+                        }
+                    }
+                }
+            }
+            return 0L;
+        }
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ * $Id$
+ * $Revision$
+ * $Date$
+ * $Author$
+ *
+ * The DOMS project.
+ * Copyright (C) 2007-2010  The State and University Library
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package dk.statsbiblioteket.doms.surveillance.surveyor;
+
+import com.sun.net.httpserver.HttpServer;
+import dk.statsbiblioteket.doms.domsutil.surveyable.Status;
+import dk.statsbiblioteket.doms.domsutil.surveyable.Surveyable;
+import dk.statsbiblioteket.util.qa.QAInfo;
+
+import javax.jws.WebService;
+import javax.xml.ws.Endpoint;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * An HTTP server with stub SOAP status URLs, used by the load test.
+ *
+ * The server has a Surveyable SOAP endpoint <code>/soap/N</code> for each
+ * stub, publishing its WSDL at <code>/soap/N?wsdl</code>. Failed queries are
+ * answered with a SOAP fault.
+ */
+@QAInfo(author = "agent",
+        reviewers = "",
+        level = QAInfo.Level.NORMAL,
+        state = QAInfo.State.QA_NEEDED)
+class StubSoapServer {
+    /** Loggers of the JAX-WS server runtime, which log every failed query
+     * with a stack trace. Kept here, since loggers are only weakly
+     * referenced. */
+    private static final Logger[] JAXWS_LOGGERS = {
+            Logger.getLogger("com.sun.xml.ws.server"),
+            Logger.getLogger("com.sun.xml.internal.ws.server")};
+
+    static {
+        for (Logger logger : JAXWS_LOGGERS) {
+            logger.setLevel(Level.OFF);
+        }
+    }
+
+    /** The HTTP server. */
+    private final HttpServer server;
+
+    /** Threads answering requests. */
+    private final ExecutorService executor;
+
+    /** The published endpoints. */
+    private final List<Endpoint> endpoints = new ArrayList<Endpoint>();
+
+    /** The status URLs. */
+    private final List<String> statusUrls = new ArrayList<String>();
+
+    /**
+     * Start a server with the given number of stubs on a free local port.
+     *
+     * @param stubs The number of stubs.
+     * @param settings The load test settings.
+     * @throws IOException On trouble starting the server.
+     */
+    StubSoapServer(int stubs, LoadTest.Settings settings)
+            throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0),
+                                   1024);
+        for (int i = 0; i < stubs; i++) {
+            Endpoint endpoint = Endpoint.create(new SurveyableStub(
+                    new StubStatusSource("soap-stub-" + i, i, settings)));
+            endpoint.publish(server.createContext("/soap/" + i));
+            endpoints.add(endpoint);
+            statusUrls.add("http://127.0.0.1:" + server.getAddress().getPort()
+                    + "/soap/" + i + "?wsdl");
+        }
+        executor = Executors.newCachedThreadPool();
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    /**
+     * Get the status URLs.
+     *
+     * @return The status URLs.
+     */
+    List<String> getStatusUrls() {
+        return statusUrls;
+    }
+
+    /** Stop the server. */
+    void stop() {
+        for (Endpoint endpoint : endpoints) {
+            endpoint.stop();
+        }
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    /** Surveyable SOAP endpoint answering with the status of a stub. */
+    @WebService(
+            endpointInterface
+                    = "dk.statsbiblioteket.doms.domsutil.surveyable.Surveyable",
+            serviceName = "SurveyableService",
+            portName = "SurveyablePort",
+            targetNamespace
+                    = "http://surveyable.domsutil.doms.statsbiblioteket.dk/")
+    public static class SurveyableStub implements Surveyable {
+        /** The status of the stub. */
+        private final StubStatusSource source;
+
+        /**
+         * Initialise an endpoint.
+         *
+         * @param source The status of the stub.
+         */
+        SurveyableStub(StubStatusSource source) {
+            this.source = source;
+        }
+
+        /**
+         * Get the status with all log messages.
+         *
+         * @return The status.
+         */
+        public Status getStatus() {
+            return source.getStatusSince(0L);
+        }
+
+        /**
+         * Get the status with log messages newer than the given time.
+         *
+         * @param time Only log messages newer than this are returned.
+         * @return The status.
+         */
+        public Status getStatusSince(long time) {
+            return source.getStatusSince(time);
+        }
+    }
+}
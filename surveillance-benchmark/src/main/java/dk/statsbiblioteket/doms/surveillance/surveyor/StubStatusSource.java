@@ -0,0 +1,152 @@
+/*
+ * $Id$
+ * $Revision$
+ * $Date$
+ * $Author$
+ *
+ * The DOMS project.
+ * Copyright (C) 2007-2010  The State and University Library
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package dk.statsbiblioteket.doms.surveillance.surveyor;
+
+import dk.statsbiblioteket.doms.domsutil.surveyable.Severity;
+import dk.statsbiblioteket.doms.domsutil.surveyable.Status;
+import dk.statsbiblioteket.doms.domsutil.surveyable.StatusMessage;
+import dk.statsbiblioteket.util.qa.QAInfo;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The status of a stub surveyable service, used by the load test.
+ *
+ * Each query waits for the configured latency, fails with the configured
+ * probability, and otherwise returns a status with a realtime message and
+ * a number of new log messages. A fraction of the log messages have texts
+ * never used before; the rest repeat texts from a small pool, as recurring
+ * warnings do.
+ *
+ * This class is thread safe.
+ */
+@QAInfo(author = "agent",
+        reviewers = "",
+        level = QAInfo.Level.NORMAL,
+        state = QAInfo.State.QA_NEEDED)
+class StubStatusSource {
+    /** Number of texts in the pool of repeated texts. */
+    private static final int POOL_SIZE = 100;
+
+    /** Counter making unique texts unique across all stubs. */
+    private static final AtomicLong UNIQUE_COUNTER = new AtomicLong();
+
+    /** The name of the status. */
+    private final String name;
+
+    /** The load test settings. */
+    private final LoadTest.Settings settings;
+
+    /** Generator of texts and messages. */
+    private final BenchmarkMessages generator;
+
+    /** Random source for latency, failures and uniqueness. */
+    private final Random random = new Random();
+
+    /** Time of the newest message generated. */
+    private final AtomicLong clock = new AtomicLong();
+
+    /**
+     * Initialise a stub status.
+     *
+     * @param name The name of the status.
+     * @param seed Seed for the texts of the status.
+     * @param settings The load test settings.
+     */
+    StubStatusSource(String name, long seed, LoadTest.Settings settings) {
+        this.name = name;
+        this.settings = settings;
+        this.generator = new BenchmarkMessages(seed, POOL_SIZE,
+                                               settings.messageLength);
+    }
+
+    /**
+     * Get the status of the stub, with log messages newer than the given
+     * time.
+     *
+     * @param since Only log messages newer than this are returned.
+     * @return The status.
+     * @throws IllegalStateException If the query fails, as decided by the
+     * failure rate.
+     */
+    Status getStatusSince(long since) {
+        long latency = settings.latency;
+        if (settings.latencyJitter > 0) {
+            latency += (long) (random.nextDouble() * settings.latencyJitter);
+        }
+        if (latency > 0) {
+            try {
+                Thread.sleep(latency);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted", e);
+            }
+        }
+        if (random.nextDouble() < settings.failureRate) {
+            throw new IllegalStateException("Simulated failure of " + name);
+        }
+        Status status = new Status();
+        status.setName(name);
+        StatusMessage running = generator.createMessage(
+                "Service " + name + " is running", false);
+        running.setSeverity(Severity.GREEN);
+        running.setTime(System.currentTimeMillis());
+        status.getMessages().add(running);
+        for (int i = 0; i < settings.messages; i++) {
+            String text;
+            if (random.nextDouble() < settings.uniqueness) {
+                text = generator.getText(random.nextInt(POOL_SIZE))
+                        + " #" + UNIQUE_COUNTER.incrementAndGet();
+            } else {
+                text = generator.getText(random.nextInt(POOL_SIZE));
+            }
+            StatusMessage message = generator.createMessage(text, true);
+            message.setTime(nextTime(since));
+            status.getMessages().add(message);
+        }
+        return status;
+    }
+
+    /**
+     * Get a time for a new message: the current time, but always newer than
+     * the previous message and the given time.
+     *
+     * @param since The time the message must be newer than.
+     * @return The time.
+     */
+    private long nextTime(long since) {
+        long time;
+        long next;
+        do {
+            time = clock.get();
+            next = Math.max(Math.max(time, since) + 1,
+                            System.currentTimeMillis());
+        } while (!clock.compareAndSet(time, next));
+        return next;
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * $Id$
+ * $Revision$
+ * $Date$
+ * $Author$
+ *
+ * The DOMS project.
+ * Copyright (C) 2007-2010  The State and University Library
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package dk.statsbiblioteket.doms.surveillance.surveyor;
+
+import com.sun.jersey.api.container.httpserver.HttpServerFactory;
+import com.sun.jersey.api.core.DefaultResourceConfig;
+import com.sun.jersey.api.core.ResourceConfig;
+import com.sun.net.httpserver.HttpServer;
+import dk.statsbiblioteket.util.qa.QAInfo;
+
+import javax.ws.rs.Path;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * An HTTP server exposing the status of a surveyor with
+ * {@link StatusResource}, used by the load test.
+ *
+ * The resource is served by Jersey as in the web application, but from the
+ * HTTP server of the JDK, and for a given surveyor instead of the singleton
+ * of {@link SurveyorFactory}.
+ */
+@QAInfo(author = "agent",
+        reviewers = "",
+        level = QAInfo.Level.NORMAL,
+        state = QAInfo.State.QA_NEEDED)
+class SurveyorRestServer {
+    /** Logger of the HTTP server, which warns about every 304 response. */
+    private static final Logger HTTPSERVER_LOGGER
+            = Logger.getLogger("com.sun.net.httpserver");
+
+    static {
+        HTTPSERVER_LOGGER.setLevel(Level.SEVERE);
+    }
+
+    /** The HTTP server. */
+    private final HttpServer server;
+
+    /** Threads answering requests. */
+    private final ExecutorService executor;
+
+    /** The URL of the status of all applications. */
+    private final String statusUrl;
+
+    /**
+     * Start a server exposing the status of a surveyor on a free local port.
+     *
+     * @param surveyor The surveyor.
+     * @throws IOException On trouble starting the server.
+     */
+    SurveyorRestServer(Surveyor surveyor) throws IOException {
+        ResourceConfig resourceConfig = new DefaultResourceConfig();
+        resourceConfig.getSingletons().add(
+                new SurveyorStatusResource(surveyor));
+        server = HttpServerFactory.create("http://127.0.0.1:0/",
+                                          resourceConfig);
+        statusUrl = "http://127.0.0.1:" + server.getAddress().getPort()
+                + "/status";
+        executor = Executors.newCachedThreadPool();
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    /**
+     * Get the URL of the status of all applications.
+     *
+     * @return The status URL.
+     */
+    String getStatusUrl() {
+        return statusUrl;
+    }
+
+    /** Stop the server. */
+    void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    /** The status resource, exposing the status of a given surveyor. */
+    @Path("/status")
+    public static class SurveyorStatusResource extends StatusResource {
+        /** The surveyor. */
+        private final Surveyor surveyor;
+
+        /**
+         * Initialise a resource.
+         *
+         * @param surveyor The surveyor.
+         */
+        SurveyorStatusResource(Surveyor surveyor) {
+            this.surveyor = surveyor;
+        }
+
+        /**
+         * Get the surveyor whose status is exposed.
+         *
+         * @return The surveyor given to this resource.
+         */
+        @Override
+        Surveyor getSurveyor() {
+            return surveyor;
+        }
+    }
+}
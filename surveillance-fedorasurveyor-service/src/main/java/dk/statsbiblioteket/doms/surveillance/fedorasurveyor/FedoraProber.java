@@ -0,0 +1,592 @@
+/*
+ * $Id$
+ * $Revision$
+ * $Date$
+ * $Author$
+ *
+ * The DOMS project.
+ * Copyright (C) 2007-2010  The State and University Library
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package dk.statsbiblioteket.doms.surveillance.fedorasurveyor;
+
+import dk.statsbiblioteket.doms.domsutil.surveyable.Severity;
+import dk.statsbiblioteket.doms.domsutil.surveyable.Status;
+import dk.statsbiblioteket.doms.domsutil.surveyable.StatusMessage;
+import dk.statsbiblioteket.sbutil.webservices.configuration.ConfigCollection;
+import dk.statsbiblioteket.util.qa.QAInfo;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The background prober of Fedora, shared by all instances of
+ * {@link FedoraStatusService}.
+ *
+ * One or more Fedora repositories are surveyed. The Fedora URL parameter
+ * may give several URLs separated by semicolons; the user and password
+ * parameters then give either one value for all repositories, or one value
+ * per repository, also separated by semicolons. The status of all
+ * repositories is returned as one status; if there are several
+ * repositories, each message starts with the URL of its repository.
+ *
+ * Each repository is probed by three concurrent probes, described in
+ * {@link FedoraRepository}. The probes of all repositories run on one
+ * shared executor with a bounded number of threads, and all have the same
+ * deadline. Probes not started or not completed by the deadline are
+ * reported as RED.
+ *
+ * Fedora is probed by a background thread at a fixed interval, and the
+ * results are kept in a bounded history. Answering a status request never
+ * contacts Fedora, so the load on Fedora is independent of how many
+ * surveyors poll this service.
+ *
+ * If the newest result is older than the configured cache TTL, e.g. because
+ * probes are slow, a request triggers an immediate refresh in the
+ * background, and is answered with the stale result and a message saying
+ * it is stale. Refreshes are coalesced, and run on the prober thread, so at
+ * most one probe runs at a time.
+ * Requests arriving before the first probe has completed wait for it.
+ *
+ * There is only one prober in the web application, created on first use
+ * from the configuration, and stopped by {@link #shutdown()} when the web
+ * application is stopped.
+ */
+@QAInfo(author = "agent",
+        reviewers = "",
+        level = QAInfo.Level.NORMAL,
+        state = QAInfo.State.QA_NEEDED)
+class FedoraProber {
+    /** Logger for this class. */
+    private static Log log = LogFactory.getLog(FedoraProber.class);
+
+    /** The shared prober, or null if not created yet or shut down. */
+    private static FedoraProber instance;
+
+    /** Whether the shared prober has been shut down. */
+    private static boolean stopped;
+
+    /** Prefix for parameter names. */
+    private static final String PARAMETER_PACKAGENAME_PREFIX
+            = "dk.statsbiblioteket.doms.surveillance.fedorasurveyor";
+
+    /** Parameter name for Fedora URLs, separated by semicolons. */
+    private static final String FEDORA_URL_PARAMETER
+            = PARAMETER_PACKAGENAME_PREFIX + ".fedoraUrl";
+
+    /** Parameter name for Fedora user names, separated by semicolons. */
+    private static final String FEDORA_USER_PARAMETER
+            = PARAMETER_PACKAGENAME_PREFIX + ".fedoraUser";
+
+    /** Parameter name for Fedora passwords, separated by semicolons. */
+    private static final String FEDORA_PASSWORD_PARAMETER
+            = PARAMETER_PACKAGENAME_PREFIX + ".fedoraPassword";
+
+    /** Parameter name for timeout connecting to Fedora. */
+    private static final String CONNECT_TIMEOUT_PARAMETER
+            = PARAMETER_PACKAGENAME_PREFIX + ".connectTimeout";
+
+    /** Parameter name for timeout reading from Fedora. */
+    private static final String READ_TIMEOUT_PARAMETER
+            = PARAMETER_PACKAGENAME_PREFIX + ".readTimeout";
+
+    /** Default timeout connecting to Fedora, in milliseconds. */
+    private static final long DEFAULT_CONNECT_TIMEOUT = 5000L;
+
+    /** Default timeout reading from Fedora, in milliseconds. */
+    private static final long DEFAULT_READ_TIMEOUT = 30000L;
+
+    /** Parameter name for deadline of probes of a status check. */
+    private static final String PROBE_TIMEOUT_PARAMETER
+            = PARAMETER_PACKAGENAME_PREFIX + ".probeTimeout";
+
+    /** Parameter name for latency of a probe giving a YELLOW message. */
+    private static final String YELLOW_LATENCY_PARAMETER
+            = PARAMETER_PACKAGENAME_PREFIX + ".yellowLatency";
+
+    /** Parameter name for latency of a probe giving a RED message. */
+    private static final String RED_LATENCY_PARAMETER
+            = PARAMETER_PACKAGENAME_PREFIX + ".redLatency";
+
+    /** Parameter name for number of threads running probes. */
+    private static final String PROBE_THREADS_PARAMETER
+            = PARAMETER_PACKAGENAME_PREFIX + ".probeThreads";
+
+    /** Parameter name for time between probes. */
+    private static final String PROBE_INTERVAL_PARAMETER
+            = PARAMETER_PACKAGENAME_PREFIX + ".probeInterval";
+
+    /** Parameter name for number of probe results kept. */
+    private static final String HISTORY_SIZE_PARAMETER
+            = PARAMETER_PACKAGENAME_PREFIX + ".historySize";
+
+    /** Parameter name for age of a probe result before it is stale. */
+    private static final String CACHE_TTL_PARAMETER
+            = PARAMETER_PACKAGENAME_PREFIX + ".cacheTtl";
+
+    /** Default age of a probe result before it is stale, in
+     * milliseconds. */
+    private static final long DEFAULT_CACHE_TTL = 60000L;
+
+    /** Default time between probes, in milliseconds. */
+    private static final long DEFAULT_PROBE_INTERVAL = 30000L;
+
+    /** Default number of probe results kept. */
+    private static final long DEFAULT_HISTORY_SIZE = 100L;
+
+    /** Default deadline of probes, in milliseconds. */
+    private static final long DEFAULT_PROBE_TIMEOUT = 30000L;
+
+    /** Default latency giving a YELLOW message, in milliseconds. */
+    private static final long DEFAULT_YELLOW_LATENCY = 1000L;
+
+    /** Default latency giving a RED message, in milliseconds. */
+    private static final long DEFAULT_RED_LATENCY = 5000L;
+
+    /** Default number of threads running probes. */
+    private static final long DEFAULT_PROBE_THREADS = 16L;
+
+    /** The surveyed repositories. */
+    private final List<FedoraRepository> repositories;
+
+    /** Read parameter for time between probes, in milliseconds. */
+    private final long probeInterval;
+
+    /** Read parameter for deadline of probes, in milliseconds. */
+    private final long probeTimeout;
+
+    /** Read parameter for age of a probe result before it is stale, in
+     * milliseconds. */
+    private final long cacheTtl;
+
+    /** Whether a refresh of a stale result is queued. Only one refresh is
+     * queued at a time. */
+    private final AtomicBoolean refreshQueued = new AtomicBoolean();
+
+    /** History of probe results, newest last. */
+    private final ProbeHistory history;
+
+    /** Executor running the background probes. Probes never overlap. */
+    private final ScheduledExecutorService prober
+            = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "FedoraProber");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    /**
+     * Executor running the probes of all repositories. The number of threads
+     * is bounded by configuration; idle threads are discarded.
+     */
+    private final ExecutorService probeExecutor;
+
+    /**
+     * Initialise the prober by reading the parameters. Probing is started
+     * by {@link #start()}.
+     *
+     * @param configuration The configuration.
+     */
+    private FedoraProber(Properties configuration) {
+        log.trace("Enter FedoraProber(Properties)");
+        String fedoraUrl = configuration.getProperty(FEDORA_URL_PARAMETER);
+        log.info("Setting parameter fedoraUrl to '" + fedoraUrl + "'");
+        String fedoraUser = configuration.getProperty(FEDORA_USER_PARAMETER);
+        log.info("Setting parameter fedoraUser to '" + fedoraUser + "'");
+        String fedoraPassword = configuration.getProperty(
+                FEDORA_PASSWORD_PARAMETER);
+        log.info("Setting parameter fedoraPassword to '" + fedoraPassword
+                + "'");
+        long connectTimeout = readPositiveNumber(configuration,
+                                                 CONNECT_TIMEOUT_PARAMETER,
+                                                 DEFAULT_CONNECT_TIMEOUT);
+        log.info("Setting parameter connectTimeout to '" + connectTimeout
+                + "'");
+        long readTimeout = readPositiveNumber(configuration,
+                                              READ_TIMEOUT_PARAMETER,
+                                              DEFAULT_READ_TIMEOUT);
+        log.info("Setting parameter readTimeout to '" + readTimeout + "'");
+        probeTimeout = readPositiveNumber(configuration,
+                                          PROBE_TIMEOUT_PARAMETER,
+                                          DEFAULT_PROBE_TIMEOUT);
+        log.info("Setting parameter probeTimeout to '" + probeTimeout + "'");
+        long yellowLatency = readPositiveNumber(configuration,
+                                                YELLOW_LATENCY_PARAMETER,
+                                                DEFAULT_YELLOW_LATENCY);
+        log.info("Setting parameter yellowLatency to '" + yellowLatency
+                + "'");
+        long redLatency = readPositiveNumber(configuration,
+                                             RED_LATENCY_PARAMETER,
+                                             DEFAULT_RED_LATENCY);
+        log.info("Setting parameter redLatency to '" + redLatency + "'");
+        long probeThreads = readPositiveNumber(configuration,
+                                               PROBE_THREADS_PARAMETER,
+                                               DEFAULT_PROBE_THREADS);
+        log.info("Setting parameter probeThreads to '" + probeThreads + "'");
+        probeInterval = readPositiveNumber(configuration,
+                                           PROBE_INTERVAL_PARAMETER,
+                                           DEFAULT_PROBE_INTERVAL);
+        log.info("Setting parameter probeInterval to '" + probeInterval
+                + "'");
+        cacheTtl = readPositiveNumber(configuration, CACHE_TTL_PARAMETER,
+                                      DEFAULT_CACHE_TTL);
+        log.info("Setting parameter cacheTtl to '" + cacheTtl + "'");
+        long historySize = readPositiveNumber(configuration,
+                                              HISTORY_SIZE_PARAMETER,
+                                              DEFAULT_HISTORY_SIZE);
+        log.info("Setting parameter historySize to '" + historySize + "'");
+        history = new ProbeHistory((int) Math.min(historySize,
+                                                  Integer.MAX_VALUE));
+
+        List<String> urls = split(fedoraUrl);
+        List<String> users = split(fedoraUser);
+        List<String> passwords = split(fedoraPassword);
+        if (urls.isEmpty()) {
+            urls.add(fedoraUrl);
+        }
+        if ((users.size() > 1 && users.size() != urls.size())
+                || (passwords.size() > 1
+                && passwords.size() != urls.size())) {
+            log.warn("Number of Fedora users or passwords does not match "
+                    + "number of Fedora URLs. Using the last value for the "
+                    + "remaining repositories.");
+        }
+        List<FedoraRepository> repositoryList
+                = new ArrayList<FedoraRepository>();
+        for (int i = 0; i < urls.size(); i++) {
+            repositoryList.add(new FedoraRepository(
+                    urls.get(i), get(users, i), get(passwords, i),
+                    connectTimeout, readTimeout, yellowLatency, redLatency,
+                    urls.size() > 1 ? "Fedora '" + urls.get(i) + "': " : ""));
+        }
+        repositories = Collections.unmodifiableList(repositoryList);
+
+        int threads = (int) Math.min(probeThreads, Integer.MAX_VALUE);
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(
+                threads, threads, 60L, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            private final AtomicInteger threadNumber = new AtomicInteger();
+
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "FedoraProbe-"
+                        + threadNumber.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        executor.allowCoreThreadTimeOut(true);
+        probeExecutor = executor;
+    }
+
+    /**
+     * Get the shared prober, creating it from the configuration and starting
+     * probing in the background if this is the first call. The first probe
+     * is started immediately.
+     *
+     * @return The shared prober.
+     * @throws IllegalStateException If the prober has been shut down.
+     */
+    static synchronized FedoraProber getInstance() {
+        log.trace("Enter getInstance()");
+        if (stopped) {
+            throw new IllegalStateException("Fedora prober is shut down");
+        }
+        if (instance == null) {
+            instance = new FedoraProber(ConfigCollection.getProperties());
+            instance.start();
+        }
+        return instance;
+    }
+
+    /**
+     * Stop the shared prober, if it was created. After this, no prober will
+     * be created.
+     */
+    static synchronized void shutdown() {
+        log.trace("Enter shutdown()");
+        stopped = true;
+        if (instance != null) {
+            instance.close();
+            instance = null;
+        }
+    }
+
+    /** Start probing Fedora at a fixed interval, the first time at once. */
+    private void start() {
+        prober.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                probe();
+            }
+        }, 0L, probeInterval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stop the background probing and the threads running probes. A running
+     * probe is interrupted.
+     */
+    private void close() {
+        log.info("Stopping the Fedora prober");
+        prober.shutdownNow();
+        probeExecutor.shutdownNow();
+    }
+
+    /**
+     * Split a configuration value into trimmed, non-empty values separated
+     * by semicolons.
+     *
+     * @param value The configuration value, or null.
+     * @return The values. Never null.
+     */
+    private static List<String> split(String value) {
+        List<String> values = new ArrayList<String>();
+        if (value != null) {
+            for (String part : value.split(";")) {
+                if (part.trim().length() > 0) {
+                    values.add(part.trim());
+                }
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Get the value for a repository from a list of configured values.
+     *
+     * @param values The values.
+     * @param index The index of the repository.
+     * @return The value at the index, the last value if there are fewer
+     * values, or null if there are none.
+     */
+    private static String get(List<String> values, int index) {
+        if (values.isEmpty()) {
+            return null;
+        }
+        return values.get(Math.min(index, values.size() - 1));
+    }
+
+    /**
+     * Read a configuration value giving a positive number.
+     *
+     * @param configuration The configuration.
+     * @param parameterName The name of the parameter.
+     * @param defaultValue The value to use if the parameter is not set or
+     * not a positive number.
+     * @return The configured value, or the default value.
+     */
+    private static long readPositiveNumber(Properties configuration,
+                                           String parameterName,
+                                           long defaultValue) {
+        String value = configuration.getProperty(parameterName);
+        if (value == null || value.trim().equals("")) {
+            return defaultValue;
+        }
+        try {
+            long number = Long.parseLong(value.trim());
+            if (number > 0) {
+                return number;
+            }
+        } catch (NumberFormatException e) {
+            // Fall through to warning below
+        }
+        log.warn("Configuration for '" + parameterName + "' value '" + value
+                + "' is not a positive number. Falling back to default.");
+        return defaultValue;
+    }
+
+    /**
+     * Returns the current status of Fedora, as {@link #getStatus(String)},
+     * followed by copies of the non-GREEN messages of earlier probes newer
+     * than the given time, marked as log messages.
+     *
+     * @param applicationName The name of the returned status.
+     * @param time Only probes after this time are included.
+     * @return A status of Fedora.
+     */
+    Status getStatusSince(String applicationName, long time) {
+        log.trace("Enter getStatusSince(" + applicationName + ", " + time
+                + ")");
+        Status status = getStatus(applicationName);
+        ProbeHistory.Entry latest = history.getLatest();
+        for (ProbeHistory.Entry entry : history.getSince(time)) {
+            if (entry == latest) {
+                continue;
+            }
+            for (StatusMessage message : entry.getMessages()) {
+                if (message.getSeverity() != Severity.GREEN) {
+                    status.getMessages().add(copyMessage(message, true));
+                }
+            }
+        }
+        return status;
+    }
+
+    /**
+     * Returns the current status of Fedora, as found by the newest
+     * background probe. If Fedora has not been probed yet, this waits for
+     * the first probe, at most the probe timeout. If the newest result is
+     * stale, a refresh is triggered, and a message with a fixed text saying
+     * the result is stale is added, so the message is the same on every
+     * request. If Fedora has still not been probed, a status
+     * reporting this is generated.
+     *
+     * @param applicationName The name of the returned status.
+     * @return A realtime status of Fedora.
+     */
+    Status getStatus(String applicationName) {
+        log.trace("Enter getStatus(" + applicationName + ")");
+        Status status = new Status();
+        status.setName(applicationName);
+        ProbeHistory.Entry latest = history.getLatest();
+        if (latest == null) {
+            try {
+                latest = history.awaitLatest(probeTimeout);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (latest == null) {
+            status.getMessages().add(FedoraRepository.createMessage(
+                    "Fedora has not been probed yet", Severity.YELLOW));
+            return status;
+        }
+        for (StatusMessage message : latest.getMessages()) {
+            status.getMessages().add(copyMessage(message, false));
+        }
+        long age = System.currentTimeMillis() - latest.getTime();
+        if (age > cacheTtl) {
+            refresh();
+            status.getMessages().add(FedoraRepository.createMessage(
+                    "Status of Fedora is older than " + cacheTtl
+                            + " ms, refreshing", Severity.YELLOW));
+        }
+        return status;
+    }
+
+    /**
+     * Trigger an immediate probe in the background, unless one is already
+     * queued. The queued probe is skipped if another probe has made the
+     * result fresh before it runs.
+     */
+    private void refresh() {
+        if (!refreshQueued.compareAndSet(false, true)) {
+            return;
+        }
+        log.debug("Refreshing stale status of Fedora");
+        prober.execute(new Runnable() {
+            public void run() {
+                refreshQueued.set(false);
+                ProbeHistory.Entry latest = history.getLatest();
+                if (latest == null || System.currentTimeMillis()
+                        - latest.getTime() > cacheTtl) {
+                    probe();
+                }
+            }
+        });
+    }
+
+    /**
+     * Probe Fedora, and add the result to the history. On trouble
+     * communicating with Fedora, a result reporting this is generated.
+     *
+     * This method acts as fault barrier for communication with Fedora.
+     * It is only called by the prober thread, so probes never overlap.
+     */
+    private void probe() {
+        log.trace("Enter probe()");
+        List<StatusMessage> list;
+
+        try {
+            list = getFedoraStatus();
+        } catch (Exception e) {
+            for (FedoraRepository repository : repositories) {
+                repository.resetClient();
+            }
+            list = new ArrayList<StatusMessage>();
+            list.add(FedoraRepository.createMessage(
+                    "Unable to communicate with Fedora: "
+                            + e.getClass().getName() + ": " + e.getMessage(),
+                    Severity.RED));
+        }
+        history.add(new ProbeHistory.Entry(System.currentTimeMillis(), list));
+    }
+
+    /**
+     * Probe all repositories concurrently, waiting at most the probe
+     * timeout for all probes.
+     *
+     * @return The status messages of the probes of all repositories.
+     * @throws Exception On trouble running the probes.
+     */
+    private List<StatusMessage> getFedoraStatus() throws Exception {
+        log.trace("Enter getFedoraStatus()");
+        List<FedoraRepository.Probe> probes
+                = new ArrayList<FedoraRepository.Probe>();
+        List<Integer> offsets = new ArrayList<Integer>();
+        for (FedoraRepository repository : repositories) {
+            offsets.add(probes.size());
+            probes.addAll(repository.createProbes());
+        }
+        offsets.add(probes.size());
+
+        List<Future<String>> futures = probeExecutor.invokeAll(
+                probes, probeTimeout, TimeUnit.MILLISECONDS);
+        List<StatusMessage> messages = new ArrayList<StatusMessage>();
+        for (int i = 0; i < repositories.size(); i++) {
+            int from = offsets.get(i);
+            int to = offsets.get(i + 1);
+            messages.addAll(repositories.get(i).getProbeResults(
+                    probes.subList(from, to), futures.subList(from, to),
+                    probeTimeout));
+        }
+        return messages;
+    }
+
+    /**
+     * Copy a status message, so the messages in the history are never
+     * exposed to callers.
+     *
+     * @param message The message to copy.
+     * @param logMessage Whether the copy is a log message.
+     * @return The copy.
+     */
+    private static StatusMessage copyMessage(StatusMessage message,
+                                             boolean logMessage) {
+        StatusMessage statusMessage = new StatusMessage();
+        statusMessage.setMessage(message.getMessage());
+        statusMessage.setSeverity(message.getSeverity());
+        statusMessage.setTime(message.getTime());
+        statusMessage.setLogMessage(logMessage);
+        return statusMessage;
+    }
+}
@@ -0,0 +1,499 @@
+/*
+ * $Id$
+ * $Revision$
+ * $Date$
+ * $Author$
+ *
+ * The DOMS project.
+ * Copyright (C) 2007-2010  The State and University Library
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package dk.statsbiblioteket.doms.surveillance.fedorasurveyor;
+
+import dk.statsbiblioteket.doms.domsutil.surveyable.Severity;
+import dk.statsbiblioteket.doms.domsutil.surveyable.StatusMessage;
+import dk.statsbiblioteket.util.qa.QAInfo;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.fcrepo.client.FedoraClient;
+import org.fcrepo.server.access.FedoraAPIA;
+import org.fcrepo.server.types.gen.RepositoryInfo;
+
+import javax.xml.ws.BindingProvider;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A Fedora repository surveyed by the Fedora status service.
+ *
+ * The Fedora client and its API-A port are created on first use and kept
+ * between probes, so HTTP connections to Fedora are kept alive and reused.
+ * They are thread safe, and are only rebuilt after a probe fails.
+ *
+ * The repository is probed by three probes, run concurrently by the
+ * service: describeRepository, getObjectProfile of the content model
+ * object, and a request to the sample search URL. Each probe gives its own
+ * status message. A probe answering slower than the latency thresholds is
+ * reported as YELLOW or RED, and a probe failing or not answering within
+ * the probe timeout is reported as RED. The texts of the messages only
+ * depend on the outcome of the probe, not the measured latency, so the
+ * surveyor sees the same message as long as the outcome is the same; the
+ * latency is logged at debug level.
+ */
+@QAInfo(author = "agent",
+        reviewers = "",
+        level = QAInfo.Level.NORMAL,
+        state = QAInfo.State.QA_NEEDED)
+class FedoraRepository {
+    /** Logger for this class. */
+    private static Log log = LogFactory.getLog(FedoraRepository.class);
+
+    /** PID of the object fetched by the object profile probe. */
+    private static final String PROBE_PID = "fedora-system:ContentModel-3.0";
+
+    /** JAX-WS RI request context property for connect timeout. */
+    private static final String SOAP_CONNECT_TIMEOUT_PROPERTY
+            = "com.sun.xml.ws.connect.timeout";
+
+    /** JAX-WS RI request context property for read timeout. */
+    private static final String SOAP_REQUEST_TIMEOUT_PROPERTY
+            = "com.sun.xml.ws.request.timeout";
+
+    /** JDK internal JAX-WS request context property for connect timeout. */
+    private static final String SOAP_INTERNAL_CONNECT_TIMEOUT_PROPERTY
+            = "com.sun.xml.internal.ws.connect.timeout";
+
+    /** JDK internal JAX-WS request context property for read timeout. */
+    private static final String SOAP_INTERNAL_REQUEST_TIMEOUT_PROPERTY
+            = "com.sun.xml.internal.ws.request.timeout";
+
+    /** The Fedora URL. */
+    private final String fedoraUrl;
+
+    /** The Fedora user. */
+    private final String fedoraUser;
+
+    /** The Fedora password. */
+    private final String fedoraPassword;
+
+    /** Timeout connecting to Fedora, in milliseconds. */
+    private final long connectTimeout;
+
+    /** Timeout reading from Fedora, in milliseconds. */
+    private final long readTimeout;
+
+    /** Latency giving a YELLOW message, in milliseconds. */
+    private final long yellowLatency;
+
+    /** Latency giving a RED message, in milliseconds. */
+    private final long redLatency;
+
+    /** Prefix of the status messages, identifying the repository. */
+    private final String messagePrefix;
+
+    /**
+     * The sample search URL of the repository. Initially the default for
+     * the Fedora URL, updated from the repository description, so the
+     * search probe does not need to wait for describeRepository.
+     */
+    private volatile String sampleSearchUrl;
+
+    /** The Fedora client, or null if not created yet. Guarded by this. */
+    private FedoraClient fedoraClient;
+
+    /** The API-A port of the client, or null if not created yet. Guarded by
+     * this. */
+    private FedoraAPIA apia;
+
+    /**
+     * Initialise a repository.
+     *
+     * @param fedoraUrl The Fedora URL.
+     * @param fedoraUser The Fedora user.
+     * @param fedoraPassword The Fedora password.
+     * @param connectTimeout Timeout connecting to Fedora, in milliseconds.
+     * @param readTimeout Timeout reading from Fedora, in milliseconds.
+     * @param yellowLatency Latency giving a YELLOW message, in milliseconds.
+     * @param redLatency Latency giving a RED message, in milliseconds.
+     * @param messagePrefix Prefix of the status messages, identifying the
+     * repository. May be empty.
+     */
+    FedoraRepository(String fedoraUrl, String fedoraUser,
+                     String fedoraPassword, long connectTimeout,
+                     long readTimeout, long yellowLatency, long redLatency,
+                     String messagePrefix) {
+        this.fedoraUrl = fedoraUrl;
+        this.fedoraUser = fedoraUser;
+        this.fedoraPassword = fedoraPassword;
+        this.connectTimeout = connectTimeout;
+        this.readTimeout = readTimeout;
+        this.yellowLatency = yellowLatency;
+        this.redLatency = redLatency;
+        this.messagePrefix = messagePrefix;
+        this.sampleSearchUrl = fedoraUrl + "/search";
+    }
+
+    /**
+     * Get the Fedora URL.
+     *
+     * @return The Fedora URL.
+     */
+    String getFedoraUrl() {
+        return fedoraUrl;
+    }
+
+    /**
+     * Create the probes of this repository.
+     *
+     * @return The probes, to be run concurrently.
+     */
+    List<Probe> createProbes() {
+        List<Probe> probes = new ArrayList<Probe>();
+        probes.add(new Probe("describeRepository") {
+            protected String probe() throws Exception {
+                RepositoryInfo description = getAPIA().describeRepository();
+                if (description.getSampleSearchURL() != null) {
+                    sampleSearchUrl = description.getSampleSearchURL();
+                }
+                return descriptionToStatus(description);
+            }
+        });
+        probes.add(new Probe("getObjectProfile(" + PROBE_PID + ")") {
+            protected String probe() throws Exception {
+                getAPIA().getObjectProfile(PROBE_PID, null);
+                return null;
+            }
+        });
+        final String searchUrl = sampleSearchUrl;
+        probes.add(new Probe("SampleSearchURL '" + searchUrl + "'") {
+            protected String probe() throws Exception {
+                return requestUrl(searchUrl);
+            }
+        });
+        return probes;
+    }
+
+    /**
+     * Get the status messages for probes of this repository that have
+     * completed or been cancelled. If any probe failed, the Fedora client
+     * is discarded.
+     *
+     * @param probes The probes, as created by {@link #createProbes()}.
+     * @param futures The results of the probes, in the same order.
+     * @param probeTimeout The deadline the probes were run with, in
+     * milliseconds.
+     * @return A status message for each probe, the one for
+     * describeRepository containing everything from the description.
+     */
+    List<StatusMessage> getProbeResults(List<Probe> probes,
+                                        List<Future<String>> futures,
+                                        long probeTimeout) {
+        List<StatusMessage> messages = new ArrayList<StatusMessage>();
+        boolean failed = false;
+        for (int i = 0; i < probes.size(); i++) {
+            messages.add(getProbeResult(probes.get(i), futures.get(i),
+                                        probeTimeout));
+            if (!probes.get(i).isSucceeded()) {
+                failed = true;
+            }
+        }
+        if (failed) {
+            resetClient();
+        }
+        return messages;
+    }
+
+    /**
+     * Get the status message for a probe that has completed or been
+     * cancelled.
+     *
+     * @param probe The probe.
+     * @param future The result of the probe.
+     * @param probeTimeout The deadline the probe was run with, in
+     * milliseconds.
+     * @return A status message with the result of the probe.
+     */
+    private StatusMessage getProbeResult(Probe probe, Future<String> future,
+                                         long probeTimeout) {
+        if (future.isCancelled()) {
+            log.debug("Fedora probe " + probe.getName() + " of '"
+                    + fedoraUrl + "' did not answer within " + probeTimeout
+                    + " ms");
+            return createMessage(messagePrefix
+                    + "Unable to communicate with Fedora: "
+                    + probe.getName() + " did not answer within "
+                    + probeTimeout + " ms", Severity.RED);
+        }
+        try {
+            String result = future.get();
+            long latency = probe.getElapsed();
+            log.debug("Fedora probe " + probe.getName() + " of '"
+                    + fedoraUrl + "' answered in " + latency + " ms");
+            Severity severity;
+            String outcome;
+            if (latency >= redLatency) {
+                severity = Severity.RED;
+                outcome = " slower than " + redLatency + " ms";
+            } else if (latency >= yellowLatency) {
+                severity = Severity.YELLOW;
+                outcome = " slower than " + yellowLatency + " ms";
+            } else {
+                severity = Severity.GREEN;
+                outcome = " answered";
+            }
+            return createMessage(messagePrefix + probe.getName() + outcome
+                    + (result == null ? "" : "<br />\n" + result), severity);
+        } catch (InterruptedException e) {
+            // Cannot happen, the future is done
+            Thread.currentThread().interrupt();
+            return createMessage(messagePrefix
+                    + "Unable to communicate with Fedora: "
+                    + probe.getName() + ": " + e, Severity.RED);
+        } catch (ExecutionException e) {
+            log.debug("Fedora probe " + probe.getName() + " of '"
+                    + fedoraUrl + "' failed after " + probe.getElapsed()
+                    + " ms", e.getCause());
+            return createMessage(messagePrefix
+                    + "Unable to communicate with Fedora: "
+                    + probe.getName() + " failed: "
+                    + e.getCause().getClass().getName() + ": "
+                    + e.getCause().getMessage(), Severity.RED);
+        }
+    }
+
+    /**
+     * Request a URL, and read the response, so the connection can be
+     * reused.
+     *
+     * @param url The URL.
+     * @return A text with the HTTP response code.
+     * @throws IOException On trouble requesting the URL, or if the response
+     * is a server error.
+     */
+    private String requestUrl(String url) throws IOException {
+        URLConnection connection = new URL(url).openConnection();
+        connection.setConnectTimeout((int) connectTimeout);
+        connection.setReadTimeout((int) readTimeout);
+        int responseCode = -1;
+        if (connection instanceof HttpURLConnection) {
+            responseCode = ((HttpURLConnection) connection).getResponseCode();
+            if (responseCode >= 500) {
+                throw new IOException("Server returned HTTP response code "
+                        + responseCode + " for URL '" + url + "'");
+            }
+        }
+        InputStream in = connection.getInputStream();
+        try {
+            byte[] buffer = new byte[4096];
+            while (in.read(buffer) != -1) {
+                // Drain the response, so the connection can be reused
+            }
+        } finally {
+            in.close();
+        }
+        return "HTTP response code " + responseCode;
+    }
+
+    /**
+     * Get the API-A port of the Fedora client, creating the client and the
+     * port with the configured timeouts if they do not exist.
+     *
+     * @return The API-A port.
+     * @throws Exception On trouble creating the client or port.
+     */
+    private synchronized FedoraAPIA getAPIA() throws Exception {
+        if (apia == null) {
+            log.debug("Creating Fedora client for '" + fedoraUrl + "'");
+            fedoraClient = new FedoraClient(fedoraUrl, fedoraUser,
+                                            fedoraPassword);
+            FedoraAPIA port = fedoraClient.getAPIA();
+            if (port instanceof BindingProvider) {
+                Map<String, Object> requestContext
+                        = ((BindingProvider) port).getRequestContext();
+                requestContext.put(SOAP_CONNECT_TIMEOUT_PROPERTY,
+                                   (int) connectTimeout);
+                requestContext.put(SOAP_REQUEST_TIMEOUT_PROPERTY,
+                                   (int) readTimeout);
+                requestContext.put(SOAP_INTERNAL_CONNECT_TIMEOUT_PROPERTY,
+                                   (int) connectTimeout);
+                requestContext.put(SOAP_INTERNAL_REQUEST_TIMEOUT_PROPERTY,
+                                   (int) readTimeout);
+            }
+            apia = port;
+        }
+        return apia;
+    }
+
+    /**
+     * Discard the Fedora client and its port, so they are rebuilt on the
+     * next probe. Called when a probe fails, since the client may be in a
+     * bad state.
+     */
+    synchronized void resetClient() {
+        log.debug("Discarding Fedora client for '" + fedoraUrl + "'");
+        fedoraClient = null;
+        apia = null;
+    }
+
+    /**
+     * Create a realtime status message with the current time.
+     *
+     * @param text The text of the message.
+     * @param severity The severity of the message.
+     * @return The status message.
+     */
+    static StatusMessage createMessage(String text, Severity severity) {
+        StatusMessage statusMessage = new StatusMessage();
+        statusMessage.setMessage(text);
+        statusMessage.setSeverity(severity);
+        statusMessage.setTime(System.currentTimeMillis());
+        statusMessage.setLogMessage(false);
+        return statusMessage;
+    }
+
+    /**
+     * Converts a repository description to a string.
+     *
+     * @param description The repository description. Should never be null.
+     * @return A string with all information from the repository description.
+     * This is formatted in HTML.
+     * @throws IllegalArgumentException On null parameter
+     */
+    private String descriptionToStatus(RepositoryInfo description) {
+        log.trace("Enter descriptionToStatus(...)");
+        if (description == null) {
+            throw new IllegalArgumentException(
+                    "Parameter 'RepositoryInfo description'"
+                            + " should not be null");
+        }
+        return "AdminEmailList: '"
+                + Arrays.toString(description.getAdminEmailList().getItem().toArray()) + "'<br />\n"
+                + "DefaultExportFormat: '"
+                + description.getDefaultExportFormat() + "'<br />\n"
+                + "OAINamespace: '"
+                + description.getOAINamespace() + "'<br />\n"
+                + "RepositoryBaseURL: '"
+                + description.getRepositoryBaseURL() + "'<br />\n"
+                + "RepositoryName: '"
+                + description.getRepositoryName() + "'<br />\n"
+                + "RepositoryPIDNamespace: '"
+                + description.getRepositoryPIDNamespace() + "'<br />\n"
+                + "RepositoryVersion: '"
+                + description.getRepositoryVersion() + "'<br />\n"
+                + "RetainPIDs: '"
+                + Arrays.toString(description.getRetainPIDs().getItem().toArray()) + "'<br />\n"
+                + "SampleAccessURL: '"
+                + description.getSampleAccessURL() + "'<br />\n"
+                + "SampleOAIIdentifier: '"
+                + description.getSampleOAIIdentifier() + "'<br />\n"
+                + "SampleOAIURL: '"
+                + description.getSampleOAIURL() + "'<br />\n"
+                + "SamplePID: '"
+                + description.getSamplePID() + "'<br />\n"
+                + "SampleSearchURL: '" 
+                + description.getSampleSearchURL() + "'";
+    }
+
+    /**
+     * A probe of Fedora, measuring its own latency.
+     */
+    abstract static class Probe implements Callable<String> {
+        /** The name of the probe, used in status messages. */
+        private final String name;
+
+        /** Time taken by the probe in milliseconds, or -1 if not done. */
+        private volatile long elapsed = -1L;
+
+        /** Whether the probe completed successfully. */
+        private volatile boolean succeeded;
+
+        /**
+         * Initialise a probe.
+         *
+         * @param name The name of the probe.
+         */
+        Probe(String name) {
+            this.name = name;
+        }
+
+        /**
+         * Run the probe, measuring the latency.
+         *
+         * @return A description of the result, or null.
+         * @throws Exception On trouble running the probe.
+         */
+        public String call() throws Exception {
+            long startTime = System.nanoTime();
+            try {
+                String result = probe();
+                succeeded = true;
+                return result;
+            } finally {
+                elapsed = TimeUnit.NANOSECONDS.toMillis(
+                        System.nanoTime() - startTime);
+            }
+        }
+
+        /**
+         * Communicate with Fedora.
+         *
+         * @return A description of the result, or null.
+         * @throws Exception On trouble communicating with Fedora.
+         */
+        protected abstract String probe() throws Exception;
+
+        /**
+         * Get the name of the probe.
+         *
+         * @return The name.
+         */
+        String getName() {
+            return name;
+        }
+
+        /**
+         * Get whether the probe completed successfully.
+         *
+         * @return True if the probe completed without exception.
+         */
+        boolean isSucceeded() {
+            return succeeded;
+        }
+
+        /**
+         * Get the time taken by the probe.
+         *
+         * @return The time in milliseconds, or -1 if the probe is not done.
+         */
+        long getElapsed() {
+            return elapsed;
+        }
+    }
+}
@@ -24,27 +24,23 @@
  * specific language governing permissions and limitations
  * under the License.
  */
-
 package dk.statsbiblioteket.doms.surveillance.fedorasurveyor;
 
 import dk.statsbiblioteket.doms.domsutil.surveyable.Severity;
 import dk.statsbiblioteket.doms.domsutil.surveyable.Status;
-import dk.statsbiblioteket.doms.domsutil.surveyable.StatusMessage;
 import dk.statsbiblioteket.doms.domsutil.surveyable.Surveyable;
 import dk.statsbiblioteket.sbutil.webservices.configuration.ConfigCollection;
 import dk.statsbiblioteket.util.qa.QAInfo;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
-import org.fcrepo.client.FedoraClient;
-import org.fcrepo.server.types.gen.RepositoryInfo;
-
-import java.net.URL;
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.List;
-import java.util.Properties;
 
-/** Class that exposes fedora status as surveyable. */
+/**
+ * Class that exposes fedora status as surveyable.
+ *
+ * Fedora is probed in the background by one {@link FedoraProber} shared by
+ * all instances of this class, and status requests are answered from its
+ * results. See {@link FedoraProber} for how Fedora is probed.
+ */
 @QAInfo(author = "kfc",
         reviewers = "jrg",
         comment = "Needs review on diff from revision 265",
@@ -57,166 +53,69 @@ public class FedoraStatusService implements Surveyable {
     /** Logger for this class. */
     private static Log log = LogFactory.getLog(FedoraStatusService.class);
 
-    /** Prefix for parameter names. */
-    private static final String PARAMETER_PACKAGENAME_PREFIX
-            = "dk.statsbiblioteket.doms.surveillance.fedorasurveyor";
-
-    /** Parameter name for Fedora URL. */
-    private static final String FEDORA_URL_PARAMETER
-            = PARAMETER_PACKAGENAME_PREFIX + ".fedoraUrl";
-
-    /** Parameter name for Fedora user name. */
-    private static final String FEDORA_USER_PARAMETER
-            = PARAMETER_PACKAGENAME_PREFIX + ".fedoraUser";
-
-    /** Parameter name for Fedora password. */
-    private static final String FEDORA_PASSWORD_PARAMETER
-            = PARAMETER_PACKAGENAME_PREFIX + ".fedoraPassword";
-
-    /** Read parameter for Fedora URL. */
-    private final String fedoraUrl;
-
-    /** Read parameter for Fedora user. */
-    private final String fedoraUser;
-
-    /** Read parameter for Fedora password. */
-    private final String fedoraPassword;
-
-
-
     /**
-     * Initialise the surveyable by reading the parameters.
+     * Initialise the surveyable by reading the parameters. Probing Fedora
+     * is started by the shared prober if it is not already running.
      */
     public FedoraStatusService() {
         log.trace("Enter FedoraStatusService()");
-        Properties configuration = ConfigCollection.getProperties();
-
-        fedoraUrl = configuration.getProperty(FEDORA_URL_PARAMETER);
-        log.info("Setting parameter fedoraUrl to '" + fedoraUrl + "'");
-        fedoraUser = configuration.getProperty(FEDORA_USER_PARAMETER);
-        log.info("Setting parameter fedoraUser to '" + fedoraUser + "'");
-        fedoraPassword = configuration.getProperty(FEDORA_PASSWORD_PARAMETER);
-        log.info("Setting parameter fedoraPassword to '" + fedoraPassword
-                + "'");
         APPLICATION_NAME = ConfigCollection
                 .getProperties()
                 .getProperty(
                 "dk.statsbiblioteket.doms.surveillance.logappender.LoggerName",
                 "Fedora");
+        try {
+            FedoraProber.getInstance();
+        } catch (IllegalStateException e) {
+            log.warn("Fedora prober is not running", e);
+        }
     }
 
     /**
-     * Behaves exactly like getStatus().
+     * Returns the current status of Fedora, as {@link #getStatus()},
+     * followed by the non-GREEN results of earlier background probes newer
+     * than the given time, as log messages.
      *
-     * @param time Ignored.
-     * @return A realtime status of Fedora.
+     * @param time Only probes after this time are included.
+     * @return A status of Fedora.
      * @see #getStatus
      */
     public Status getStatusSince(long time) {
         log.trace("Enter getStatusSince(" + time + ")");
-        return getStatus();
+        try {
+            return FedoraProber.getInstance().getStatusSince(APPLICATION_NAME,
+                                                             time);
+        } catch (IllegalStateException e) {
+            return getStoppedStatus();
+        }
     }
 
     /**
-     * Returns the current status of Fedora. On trouble communicating with
-     * Fedora, a status reporting this is generated.
-     *
-     * This method acts as fault barrier for communication with Fedora.
+     * Returns the current status of Fedora, as found by the newest
+     * background probe of the shared prober.
      *
      * @return A realtime status of Fedora.
      */
     public Status getStatus() {
         log.trace("Enter getStatus()");
-        List<StatusMessage> list = new ArrayList<StatusMessage>();
-        StatusMessage statusMessage;
-
         try {
-            statusMessage = getFedoraStatus();
-        } catch (Exception e) {
-            statusMessage = new StatusMessage();
-            statusMessage.setMessage("Unable to communicate with Fedora: "
-                            + e.getClass().getName() + ": " + e.getMessage());
-            statusMessage.setSeverity(Severity.RED);
-            statusMessage.setTime(System.currentTimeMillis());
-            statusMessage.setLogMessage(false);
+            return FedoraProber.getInstance().getStatus(APPLICATION_NAME);
+        } catch (IllegalStateException e) {
+            return getStoppedStatus();
         }
-        list.add(statusMessage);
-
-        Status status = new Status();
-        status.setName(APPLICATION_NAME);
-        status.getMessages().addAll(list);
-        return status;
-    }
-
-    /**
-     * Try to communicate with Fedora using the SOAP API and FedoraClient.
-     * This method will call describeRepository, and try to get the object
-     * with Sample PID and connect to the Sample Search URL.
-     *
-     * @return A status containing everything from DescribeRepository.
-     *
-     * @throws Exception On any trouble communicating with Fedora.
-     */
-    private StatusMessage getFedoraStatus() throws Exception {
-        log.trace("Enter getFedoraStatus()");
-        FedoraClient fedoraClient = new FedoraClient(fedoraUrl, fedoraUser,
-                                                     fedoraPassword);
-        RepositoryInfo description = fedoraClient.getAPIA()
-                .describeRepository();
-
-        fedoraClient.getAPIA()
-                .getObjectProfile("fedora-system:ContentModel-3.0", null);
-        //Done in order to provoke exception on trouble
-        new URL(description.getSampleSearchURL()).openConnection();
-        StatusMessage statusMessage = new StatusMessage();
-        statusMessage.setMessage(descriptionToStatus(description));
-        statusMessage.setSeverity(Severity.GREEN);
-        statusMessage.setTime(System.currentTimeMillis());
-        statusMessage.setLogMessage(false);
-        return statusMessage;
     }
 
     /**
-     * Converts a repository description to a string.
+     * Generate a status saying that Fedora is not probed, because the web
+     * application is stopping.
      *
-     * @param description The repository description. Should never be null.
-     * @return A string with all information from the repository description.
-     * This is formatted in HTML.
-     * @throws IllegalArgumentException On null parameter
+     * @return A status reporting that the prober is stopped.
      */
-    private String descriptionToStatus(RepositoryInfo description) {
-        log.trace("Enter descriptionToStatus(...)");
-        if (description == null) {
-            throw new IllegalArgumentException(
-                    "Parameter 'RepositoryInfo description'"
-                            + " should not be null");
-        }
-        return "AdminEmailList: '"
-                + Arrays.toString(description.getAdminEmailList().getItem().toArray()) + "'<br />\n"
-                + "DefaultExportFormat: '"
-                + description.getDefaultExportFormat() + "'<br />\n"
-                + "OAINamespace: '"
-                + description.getOAINamespace() + "'<br />\n"
-                + "RepositoryBaseURL: '"
-                + description.getRepositoryBaseURL() + "'<br />\n"
-                + "RepositoryName: '"
-                + description.getRepositoryName() + "'<br />\n"
-                + "RepositoryPIDNamespace: '"
-                + description.getRepositoryPIDNamespace() + "'<br />\n"
-                + "RepositoryVersion: '"
-                + description.getRepositoryVersion() + "'<br />\n"
-                + "RetainPIDs: '"
-                + Arrays.toString(description.getRetainPIDs().getItem().toArray()) + "'<br />\n"
-                + "SampleAccessURL: '"
-                + description.getSampleAccessURL() + "'<br />\n"
-                + "SampleOAIIdentifier: '"
-                + description.getSampleOAIIdentifier() + "'<br />\n"
-                + "SampleOAIURL: '"
-                + description.getSampleOAIURL() + "'<br />\n"
-                + "SamplePID: '"
-                + description.getSamplePID() + "'<br />\n"
-                + "SampleSearchURL: '" 
-                + description.getSampleSearchURL() + "'";
+    private Status getStoppedStatus() {
+        Status status = new Status();
+        status.setName(APPLICATION_NAME);
+        status.getMessages().add(FedoraRepository.createMessage(
+                "Fedora surveyor is stopped", Severity.YELLOW));
+        return status;
     }
-
-}
\ No newline at end of file
+}
@@ -0,0 +1,172 @@
+/*
+ * $Id$
+ * $Revision$
+ * $Date$
+ * $Author$
+ *
+ * The DOMS project.
+ * Copyright (C) 2007-2010  The State and University Library
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package dk.statsbiblioteket.doms.surveillance.fedorasurveyor;
+
+import dk.statsbiblioteket.doms.domsutil.surveyable.StatusMessage;
+import dk.statsbiblioteket.util.qa.QAInfo;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A bounded history of probe results, kept in a ring buffer. When the
+ * buffer is full, adding a result overwrites the oldest one.
+ *
+ * This class is thread safe.
+ */
+@QAInfo(author = "agent",
+        reviewers = "",
+        level = QAInfo.Level.NORMAL,
+        state = QAInfo.State.QA_NEEDED)
+class ProbeHistory {
+    /** The result of probing Fedora once. Instances are immutable. */
+    static class Entry {
+        /** The time the probe completed. */
+        private final long time;
+
+        /** The status messages of the probe. */
+        private final List<StatusMessage> messages;
+
+        /**
+         * Initialise a probe result. The messages must not be modified after
+         * this.
+         *
+         * @param time The time the probe completed.
+         * @param messages The status messages of the probe.
+         */
+        Entry(long time, List<StatusMessage> messages) {
+            this.time = time;
+            this.messages = Collections.unmodifiableList(messages);
+        }
+
+        /**
+         * Get the time the probe completed.
+         *
+         * @return The time.
+         */
+        long getTime() {
+            return time;
+        }
+
+        /**
+         * Get the status messages of the probe.
+         *
+         * @return The messages. Never null. The messages must not be
+         * modified.
+         */
+        List<StatusMessage> getMessages() {
+            return messages;
+        }
+    }
+
+    /** The ring buffer. */
+    private final Entry[] entries;
+
+    /** Index of the next entry to write. */
+    private int next;
+
+    /** Number of entries in the buffer. */
+    private int size;
+
+    /**
+     * Initialise an empty history.
+     *
+     * @param capacity The maximum number of results kept.
+     * @throws IllegalArgumentException If capacity is not positive.
+     */
+    ProbeHistory(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException(
+                    "Capacity must be positive, was " + capacity);
+        }
+        entries = new Entry[capacity];
+    }
+
+    /**
+     * Add a probe result, overwriting the oldest if the history is full.
+     *
+     * @param entry The probe result.
+     */
+    synchronized void add(Entry entry) {
+        entries[next] = entry;
+        next = (next + 1) % entries.length;
+        if (size < entries.length) {
+            size++;
+        }
+        notifyAll();
+    }
+
+    /**
+     * Get the newest probe result.
+     *
+     * @return The newest result, or null if the history is empty.
+     */
+    synchronized Entry getLatest() {
+        if (size == 0) {
+            return null;
+        }
+        return entries[(next - 1 + entries.length) % entries.length];
+    }
+
+    /**
+     * Get the newest probe result, waiting for the first result if the
+     * history is empty.
+     *
+     * @param timeout Maximum time to wait, in milliseconds.
+     * @return The newest result, or null if the history is still empty
+     * after waiting.
+     * @throws InterruptedException If interrupted while waiting.
+     */
+    synchronized Entry awaitLatest(long timeout) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+        long remaining = timeout;
+        while (size == 0 && remaining > 0) {
+            wait(remaining);
+            remaining = deadline - System.currentTimeMillis();
+        }
+        return getLatest();
+    }
+
+    /**
+     * Get the probe results newer than the given time.
+     *
+     * @param time Only results completed after this time are returned.
+     * @return The results, oldest first. Never null.
+     */
+    synchronized List<Entry> getSince(long time) {
+        List<Entry> result = new ArrayList<Entry>();
+        for (int i = size; i > 0; i--) {
+            Entry entry = entries[(next - i + entries.length)
+                    % entries.length];
+            if (entry.getTime() > time) {
+                result.add(entry);
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ * $Id$
+ * $Revision$
+ * $Date$
+ * $Author$
+ *
+ * The DOMS project.
+ * Copyright (C) 2007-2010  The State and University Library
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package dk.statsbiblioteket.doms.surveillance.surveyor;
+
+import dk.statsbiblioteket.util.qa.QAInfo;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.core.CacheControl;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.List;
+
+/**
+ * REST resource exposing the changes to the surveyor state since a given
+ * sequence number, for mirroring the state incrementally. The format is
+ * described in {@link StatusDocumentWriter}.
+ *
+ * <code>changes?since=N&amp;epoch=E</code> returns the changes after
+ * sequence number N, where N and E are the sequence number and epoch from
+ * the status document or from the last changes read. At most
+ * {@link #MAX_CHANGES} changes are returned at a time; the sequence number
+ * of the response is the one to continue from.
+ *
+ * If the changes are no longer retained, the epoch is not the current one,
+ * or no sequence number is given, the response has <code>resync</code> set
+ * and no changes, and the client must read the whole status again.
+ *
+ * With <code>wait=T</code>, the request waits up to T milliseconds (at most
+ * {@link #MAX_WAIT}) for changes if there are none yet.
+ */
+@QAInfo(author = "agent",
+        reviewers = "",
+        level = QAInfo.Level.NORMAL,
+        state = QAInfo.State.QA_NEEDED)
+@Path("/changes")
+public class ChangesResource {
+    /** Maximum number of changes returned by one request. */
+    public static final int MAX_CHANGES = 1000;
+
+    /** Maximum milliseconds a request waits for changes. */
+    public static final long MAX_WAIT = 60000L;
+
+    /** Logger for this class. */
+    private static Log log = LogFactory.getLog(ChangesResource.class);
+
+    /** Cache control forbidding caching of responses. */
+    private static final CacheControl NO_CACHE = new CacheControl();
+
+    static {
+        NO_CACHE.setNoCache(true);
+        NO_CACHE.setNoStore(true);
+    }
+
+    /**
+     * Get changes as JSON.
+     *
+     * @param since Sequence number of the last change seen, or null.
+     * @param epoch Epoch the sequence number is from, or null.
+     * @param wait Milliseconds to wait for changes, or null.
+     * @return The response.
+     * @throws InterruptedException If interrupted while waiting.
+     */
+    @GET
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response getChangesAsJson(@QueryParam("since") Long since,
+                                     @QueryParam("epoch") Long epoch,
+                                     @QueryParam("wait") Long wait)
+            throws InterruptedException {
+        log.trace("Enter getChangesAsJson(" + since + ", " + epoch + ", "
+                + wait + ")");
+        return getChanges(since, epoch, wait, true);
+    }
+
+    /**
+     * Get changes as XML.
+     *
+     * @param since Sequence number of the last change seen, or null.
+     * @param epoch Epoch the sequence number is from, or null.
+     * @param wait Milliseconds to wait for changes, or null.
+     * @return The response.
+     * @throws InterruptedException If interrupted while waiting.
+     */
+    @GET
+    @Produces({MediaType.APPLICATION_XML, MediaType.TEXT_XML})
+    public Response getChangesAsXml(@QueryParam("since") Long since,
+                                    @QueryParam("epoch") Long epoch,
+                                    @QueryParam("wait") Long wait)
+            throws InterruptedException {
+        log.trace("Enter getChangesAsXml(" + since + ", " + epoch + ", "
+                + wait + ")");
+        return getChanges(since, epoch, wait, false);
+    }
+
+    /**
+     * Get changes.
+     *
+     * @param since Sequence number of the last change seen, or null.
+     * @param epoch Epoch the sequence number is from, or null.
+     * @param wait Milliseconds to wait for changes, or null.
+     * @param json True for JSON, false for XML.
+     * @return The response.
+     * @throws InterruptedException If interrupted while waiting.
+     */
+    private Response getChanges(Long since, Long epoch, Long wait,
+                                boolean json) throws InterruptedException {
+        StatusChangeLog changeLog
+                = SurveyorFactory.getSurveyor().getChangeLog();
+        List<StatusChange> changes = null;
+        long sequence;
+        if (since != null && (epoch == null
+                || epoch == changeLog.getEpoch())) {
+            if (wait != null && wait > 0) {
+                changes = changeLog.awaitChangesSince(
+                        since, Math.min(wait, MAX_WAIT));
+            } else {
+                changes = changeLog.getChangesSince(since);
+            }
+        }
+        if (changes == null) {
+            sequence = changeLog.getLatestSequence();
+        } else if (changes.isEmpty()) {
+            sequence = since;
+        } else {
+            if (changes.size() > MAX_CHANGES) {
+                changes = changes.subList(0, MAX_CHANGES);
+            }
+            sequence = changes.get(changes.size() - 1).getSequence();
+        }
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            Writer out = new OutputStreamWriter(bytes, "UTF-8");
+            if (json) {
+                StatusDocumentWriter.writeJson(changeLog, sequence, changes,
+                                               out);
+            } else {
+                StatusDocumentWriter.writeXml(changeLog, sequence, changes,
+                                              out);
+            }
+            out.close();
+            return Response.ok(bytes.toByteArray(),
+                               json ? MediaType.APPLICATION_JSON_TYPE
+                                       : MediaType.APPLICATION_XML_TYPE)
+                    .cacheControl(NO_CACHE).build();
+        } catch (IOException e) {
+            //Cannot happen when writing to memory
+            throw new Error("Unable to write to memory", e);
+        }
+    }
+}
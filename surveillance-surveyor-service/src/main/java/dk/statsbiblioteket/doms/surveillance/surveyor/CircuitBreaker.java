@@ -0,0 +1,187 @@
+/*
+ * $Id$
+ * $Revision$
+ * $Date$
+ * $Author$
+ *
+ * The DOMS project.
+ * Copyright (C) 2007-2010  The State and University Library
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package dk.statsbiblioteket.doms.surveillance.surveyor;
+
+import dk.statsbiblioteket.util.qa.QAInfo;
+
+import java.util.Random;
+
+/**
+ * A circuit breaker for a single surveyed endpoint.
+ *
+ * The circuit starts closed, and queries are allowed. After a number of
+ * consecutive failed queries, the circuit opens, and queries are refused
+ * until a backoff period has passed. Then the circuit is half open, and a
+ * single probe query is allowed. If the probe succeeds, the circuit closes;
+ * if it fails, the circuit opens again with twice the backoff, up to a
+ * maximum. Each backoff is randomly shortened by up to half, so endpoints
+ * failing together are not all probed at the same time.
+ *
+ * This class is thread safe.
+ */
+@QAInfo(author = "agent",
+        reviewers = "",
+        level = QAInfo.Level.NORMAL,
+        state = QAInfo.State.QA_NEEDED)
+public class CircuitBreaker {
+    /** The states of a circuit breaker. */
+    public enum State {
+        /** Queries are allowed. */
+        CLOSED,
+        /** Queries are refused until the retry time. */
+        OPEN,
+        /** A single probe query is allowed. */
+        HALF_OPEN
+    }
+
+    /** Source of jitter for backoff periods. */
+    private static final Random RANDOM = new Random();
+
+    /** Number of consecutive failures that opens the circuit. */
+    private final int failureThreshold;
+
+    /** Milliseconds of the first backoff. */
+    private final long initialBackoff;
+
+    /** Maximum milliseconds of a backoff. */
+    private final long maxBackoff;
+
+    /** The current state. */
+    private State state = State.CLOSED;
+
+    /** Number of consecutive failures. */
+    private int failures;
+
+    /** Milliseconds of the current backoff, before jitter. */
+    private long backoff;
+
+    /** Time when the open circuit allows a probe. */
+    private long retryTime;
+
+    /**
+     * Initialise a closed circuit breaker.
+     *
+     * @param failureThreshold Number of consecutive failures that opens the
+     * circuit. Must be positive.
+     * @param initialBackoff Milliseconds of the first backoff. Must be
+     * positive.
+     * @param maxBackoff Maximum milliseconds of a backoff. If less than the
+     * initial backoff, the initial backoff is used.
+     */
+    public CircuitBreaker(int failureThreshold, long initialBackoff,
+                          long maxBackoff) {
+        if (failureThreshold < 1 || initialBackoff < 1) {
+            throw new IllegalArgumentException(
+                    "Failure threshold and backoff must be positive, was "
+                            + failureThreshold + " and " + initialBackoff);
+        }
+        this.failureThreshold = failureThreshold;
+        this.initialBackoff = initialBackoff;
+        this.maxBackoff = Math.max(initialBackoff, maxBackoff);
+    }
+
+    /**
+     * Check whether a query is allowed. If the circuit is open and the
+     * retry time has passed, the circuit becomes half open, and this call
+     * allows the probe query. The result of an allowed query must be
+     * reported with {@link #recordSuccess()} or {@link #recordFailure(long)}.
+     *
+     * @param now The current time.
+     * @return Whether a query is allowed.
+     */
+    public synchronized boolean allowRequest(long now) {
+        switch (state) {
+            case CLOSED:
+                return true;
+            case OPEN:
+                if (now >= retryTime) {
+                    state = State.HALF_OPEN;
+                    return true;
+                }
+                return false;
+            default:
+                //A probe is already in progress
+                return false;
+        }
+    }
+
+    /**
+     * Record a successful query. This closes the circuit.
+     */
+    public synchronized void recordSuccess() {
+        state = State.CLOSED;
+        failures = 0;
+        backoff = 0;
+    }
+
+    /**
+     * Record a failed query. This opens the circuit if the failure threshold
+     * is reached, or if the query was the probe of a half open circuit.
+     *
+     * @param now The current time.
+     */
+    public synchronized void recordFailure(long now) {
+        failures++;
+        if (state == State.HALF_OPEN) {
+            backoff = Math.min(maxBackoff, backoff * 2);
+        } else if (state == State.CLOSED && failures >= failureThreshold) {
+            backoff = initialBackoff;
+        } else {
+            return;
+        }
+        state = State.OPEN;
+        long half = backoff / 2;
+        retryTime = now + backoff - (long) (RANDOM.nextDouble() * half);
+    }
+
+    /**
+     * Get the current state.
+     *
+     * @return The state.
+     */
+    public synchronized State getState() {
+        return state;
+    }
+
+    /**
+     * Get the number of consecutive failures.
+     *
+     * @return The number of failures since the last success.
+     */
+    public synchronized int getFailures() {
+        return failures;
+    }
+
+    /**
+     * Get the time when an open circuit allows a probe.
+     *
+     * @return The retry time. Only meaningful if the circuit is open.
+     */
+    public synchronized long getRetryTime() {
+        return retryTime;
+    }
+}
@@ -27,27 +27,76 @@
 
 package dk.statsbiblioteket.doms.surveillance.surveyor;
 
+import dk.statsbiblioteket.doms.domsutil.surveyable.Severity;
 import dk.statsbiblioteket.doms.domsutil.surveyable.StatusMessage;
 import dk.statsbiblioteket.util.qa.QAInfo;
 
+import java.util.AbstractCollection;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.NoSuchElementException;
 
 /** A data structure for a surveyed application. This data structure contains
  * messages in a condensed form, where each textually identical message is
- * treated as one entry.
+ * treated as one entry. Messages are indexed by their interned message key.
+ *
+ * Realtime messages and log messages are kept apart. Realtime messages are
+ * replaced on each poll, while log messages are kept until handled, so
+ * copies of a condensed status share the log messages until either copy
+ * changes them.
+ *
+ * This data structure is not thread safe. Status maps published by a
+ * surveyor are snapshots: a published condensed status is never modified,
+ * instead a modified copy is published.
  */
 @QAInfo(author = "kfc",
         reviewers = "jrg",
         level = QAInfo.Level.NORMAL,
         state = QAInfo.State.QA_OK)
 public class CondensedStatus {
+    /** Textual message of the entry summarizing evicted log messages. */
+    public static final String EVICTED_MESSAGE
+            = "Log messages evicted because the limit on number of messages"
+            + " was reached";
+
+    /** Key of the entry summarizing evicted log messages. */
+    private static final MessageKey EVICTED_KEY
+            = MessageKey.intern(EVICTED_MESSAGE);
+
     /** Name of what is being surveyed. */
-    private String name;
+    private final String name;
 
-    /** Map of messages, mapping from message to more info about message. */
-    private Map<String, CondensedStatusMessage> messages;
+    /**
+     * Map of realtime messages, mapping from message to more info about
+     * message.
+     */
+    private Map<MessageKey, CondensedStatusMessage> realtimeMessages;
+
+    /**
+     * Map of log messages, mapping from message to more info about message.
+     */
+    private Map<MessageKey, CondensedStatusMessage> logMessages;
+
+    /** Whether the realtime message map is shared with a copy. */
+    private boolean realtimeMessagesShared;
+
+    /** Whether the log message map is shared with a copy. */
+    private boolean logMessagesShared;
+
+    /** Unmodifiable view of all messages, realtime messages first. */
+    private final Collection<CondensedStatusMessage> messages
+            = new AbstractCollection<CondensedStatusMessage>() {
+        public Iterator<CondensedStatusMessage> iterator() {
+            return new MessageIterator();
+        }
+
+        public int size() {
+            return realtimeMessages.size() + logMessages.size();
+        }
+    };
 
     /**
      * Initialise the status.
@@ -56,16 +105,38 @@ public class CondensedStatus {
      */
     public CondensedStatus(String name) {
         this.name = name;
-        this.messages = new LinkedHashMap<String, CondensedStatusMessage>();
+        this.realtimeMessages
+                = new LinkedHashMap<MessageKey, CondensedStatusMessage>();
+        this.logMessages
+                = new LinkedHashMap<MessageKey, CondensedStatusMessage>();
+    }
+
+    /**
+     * Initialise the status as a copy of another status. Since condensed
+     * status messages are immutable, they are shared with the copied status.
+     * The messages are only copied when either status is changed, so copying
+     * is cheap.
+     *
+     * @param status The status to copy.
+     */
+    public CondensedStatus(CondensedStatus status) {
+        this.name = status.name;
+        this.realtimeMessages = status.realtimeMessages;
+        this.logMessages = status.logMessages;
+        this.realtimeMessagesShared = true;
+        this.logMessagesShared = true;
+        status.realtimeMessagesShared = true;
+        status.logMessagesShared = true;
     }
 
     /**
-     * Get a list of status messages.
+     * Get a list of status messages. Realtime messages are listed before log
+     * messages.
      *
-     * @return A list of status messages.
+     * @return An unmodifiable list of status messages.
      */
     public Collection<CondensedStatusMessage> getMessages() {
-        return messages.values();
+        return messages;
     }
 
     /**
@@ -77,27 +148,105 @@ public class CondensedStatus {
         return name;
     }
 
+    /**
+     * Returns whether this status contains any realtime messages.
+     *
+     * @return Whether this status contains any realtime messages.
+     */
+    public boolean hasRealtimeMessages() {
+        return !realtimeMessages.isEmpty();
+    }
+
+    /**
+     * Get the most severe severity of the messages in this status.
+     *
+     * @return The most severe severity, or GREEN if there are no messages.
+     */
+    public Severity getSeverity() {
+        Severity severity = Severity.GREEN;
+        for (CondensedStatusMessage message : messages) {
+            severity = CondensedStatusMessage.maxSeverity(
+                    severity, message.getSeverity());
+        }
+        return severity;
+    }
+
+    /**
+     * Get the number of log messages in this status.
+     *
+     * @return The number of log messages.
+     */
+    public int getLogMessageCount() {
+        return logMessages.size();
+    }
+
+    /**
+     * Evict log messages until at most the given number of log messages are
+     * left. GREEN and YELLOW log messages are evicted before RED ones, and
+     * within each group the oldest messages are evicted first. Evicted
+     * messages are summarized in one log message with the text
+     * {@link #EVICTED_MESSAGE}, the number of evicted messages and the
+     * greatest evicted severity. The summary counts as one of the remaining
+     * log messages, and is never evicted itself.
+     *
+     * @param maxLogMessages The maximum number of log messages to keep. At
+     * least one message (the summary) is always kept.
+     * @param time The time to give the summary message.
+     * @return The number of messages evicted.
+     */
+    public int evictLogMessages(int maxLogMessages, long time) {
+        int excess = logMessages.size() - Math.max(maxLogMessages, 1);
+        if (excess <= 0) {
+            return 0;
+        }
+        if (!logMessages.containsKey(EVICTED_KEY)) {
+            // Make room for the summary
+            excess++;
+        }
+        Map<MessageKey, CondensedStatusMessage> messages
+                = modifiableLogMessages();
+        Severity evictedSeverity = Severity.GREEN;
+        int evicted = 0;
+        for (boolean evictRed : new boolean[]{false, true}) {
+            Iterator<CondensedStatusMessage> iterator
+                    = messages.values().iterator();
+            while (evicted < excess && iterator.hasNext()) {
+                CondensedStatusMessage message = iterator.next();
+                if (!EVICTED_KEY.equals(message.getKey())
+                        && evictRed == (message.getSeverity()
+                        == Severity.RED)) {
+                    iterator.remove();
+                    evictedSeverity = CondensedStatusMessage.maxSeverity(
+                            evictedSeverity, message.getSeverity());
+                    evicted++;
+                }
+            }
+        }
+        if (evicted > 0) {
+            addMessage(new CondensedStatusMessage(EVICTED_KEY, evictedSeverity,
+                                                  time, time, true, evicted));
+        }
+        return evicted;
+    }
+
     /**
      * Add a status message to this condensed status. If a condensed status
      * message with the same textual content already exists, it will be updated
      * with information from the status message. Otherwise, a new condensed
      * status message will be added. See the references for how a condensed
      * status message relates to the given status message.
-     * Note that data isn't necessarily copied, so any changes to the internal
-     * structure of the parameter may affect this datastructure and vice versa.
      *
      * @param message The message to add. Should never be null.
      * @see CondensedStatusMessage#CondensedStatusMessage(StatusMessage)
-     * @see CondensedStatusMessage#update(StatusMessage)
+     * @see CondensedStatusMessage#withUpdate(StatusMessage)
      */
     public void addMessage(StatusMessage message) {
-        if (messages.containsKey(message.getMessage())) {
-            CondensedStatusMessage oldMessage = messages.get(
-                    message.getMessage());
-            oldMessage.update(message);
+        MessageKey key = MessageKey.intern(message.getMessage());
+        CondensedStatusMessage oldMessage = getMessage(key);
+        if (oldMessage != null) {
+            putMessage(oldMessage, oldMessage.withUpdate(key, message));
         } else {
-            messages.put(message.getMessage(), new CondensedStatusMessage(
-                    message));
+            putMessage(null, new CondensedStatusMessage(key, message));
         }
     }
 
@@ -107,19 +256,16 @@ public class CondensedStatus {
      * updated with information from the status message. Otherwise, this
      * condensed status will be added. See the reference for how a condensed
      * status is updated.
-     * Note that data isn't necessarily copied, so any changes to the internal
-     * structure of the parameter may affect this datastructure and vice versa.
      *
      * @param message The message to add. Should never be null.
-     * @see CondensedStatusMessage#update(CondensedStatusMessage)
+     * @see CondensedStatusMessage#withUpdate(CondensedStatusMessage)
      */
     public void addMessage(CondensedStatusMessage message) {
-        if (messages.containsKey(message.getMessage())) {
-            CondensedStatusMessage oldMessage = messages.get(
-                    message.getMessage());
-            oldMessage.update(message);
+        CondensedStatusMessage oldMessage = getMessage(message.getKey());
+        if (oldMessage != null) {
+            putMessage(oldMessage, oldMessage.withUpdate(message));
         } else {
-            messages.put(message.getMessage(), message);
+            putMessage(null, message);
         }
     }
 
@@ -133,9 +279,147 @@ public class CondensedStatus {
      * @param message The textual content of the message to remove.
      */
     public void removeLogMessage(String message) {
-        if ((messages.get(message) != null)
-                && messages.get(message).isLogMessage()) {
-            messages.remove(message);
+        removeLogMessage(new MessageKey(message));
+    }
+
+    /**
+     * Remove condensed log status messages with the given message key.
+     *
+     * @param key The key of the message to remove.
+     * @see #removeLogMessage(String)
+     */
+    public void removeLogMessage(MessageKey key) {
+        if (logMessages.containsKey(key)) {
+            modifiableLogMessages().remove(key);
+        }
+    }
+
+    /**
+     * Remove all realtime messages. Used when the realtime status is about to
+     * be replaced with a new one.
+     */
+    public void removeRealtimeMessages() {
+        if (!realtimeMessages.isEmpty()) {
+            realtimeMessages
+                    = new LinkedHashMap<MessageKey, CondensedStatusMessage>();
+            realtimeMessagesShared = false;
+        }
+    }
+
+    /**
+     * Get the realtime messages of this status.
+     *
+     * @return Unmodifiable view of the realtime messages.
+     */
+    Collection<CondensedStatusMessage> getRealtimeMessages() {
+        return Collections.unmodifiableCollection(realtimeMessages.values());
+    }
+
+    /**
+     * Whether this status shares its log messages with another status, so
+     * the log messages of the two are known to be equal.
+     *
+     * @param status The other status.
+     * @return Whether the two statuses share the map of log messages.
+     */
+    boolean sharesLogMessages(CondensedStatus status) {
+        return logMessages == status.logMessages;
+    }
+
+    /**
+     * Get the condensed status message with the given message key.
+     *
+     * @param key The message key.
+     * @return The condensed status message, or null if none.
+     */
+    CondensedStatusMessage getMessage(MessageKey key) {
+        CondensedStatusMessage result = realtimeMessages.get(key);
+        if (result == null) {
+            result = logMessages.get(key);
+        }
+        return result;
+    }
+
+    /**
+     * Put a condensed status message in the map it belongs to, replacing an
+     * old message with the same textual content. A log message that has been
+     * updated to a realtime message is moved to the realtime messages.
+     *
+     * @param oldMessage The message replaced, or null if none.
+     * @param newMessage The new message.
+     */
+    private void putMessage(CondensedStatusMessage oldMessage,
+                            CondensedStatusMessage newMessage) {
+        if (oldMessage != null && oldMessage.isLogMessage()
+                && !newMessage.isLogMessage()) {
+            modifiableLogMessages().remove(oldMessage.getKey());
+        }
+        if (newMessage.isLogMessage()) {
+            modifiableLogMessages().put(newMessage.getKey(), newMessage);
+        } else {
+            modifiableRealtimeMessages().put(newMessage.getKey(), newMessage);
+        }
+    }
+
+    /**
+     * Get the map of log messages for modification, copying it first if it
+     * is shared.
+     *
+     * @return The map of log messages, not shared with any other status.
+     */
+    private Map<MessageKey, CondensedStatusMessage> modifiableLogMessages() {
+        if (logMessagesShared) {
+            logMessages = new LinkedHashMap<MessageKey, CondensedStatusMessage>(
+                    logMessages);
+            logMessagesShared = false;
+        }
+        return logMessages;
+    }
+
+    /**
+     * Get the map of realtime messages for modification, copying it first if
+     * it is shared.
+     *
+     * @return The map of realtime messages, not shared with any other status.
+     */
+    private Map<MessageKey, CondensedStatusMessage>
+            modifiableRealtimeMessages() {
+        if (realtimeMessagesShared) {
+            realtimeMessages
+                    = new LinkedHashMap<MessageKey, CondensedStatusMessage>(
+                    realtimeMessages);
+            realtimeMessagesShared = false;
+        }
+        return realtimeMessages;
+    }
+
+    /** Read-only iterator over realtime messages followed by log messages. */
+    private class MessageIterator implements Iterator<CondensedStatusMessage> {
+        /** Iterator over realtime messages. */
+        private final Iterator<CondensedStatusMessage> realtimeIterator
+                = realtimeMessages.values().iterator();
+
+        /** Iterator over log messages. */
+        private final Iterator<CondensedStatusMessage> logIterator
+                = logMessages.values().iterator();
+
+        public boolean hasNext() {
+            return realtimeIterator.hasNext() || logIterator.hasNext();
+        }
+
+        public CondensedStatusMessage next() {
+            if (realtimeIterator.hasNext()) {
+                return realtimeIterator.next();
+            }
+            if (logIterator.hasNext()) {
+                return logIterator.next();
+            }
+            throw new NoSuchElementException();
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException(
+                    "Messages cannot be removed through the iterator");
         }
     }
 }
@@ -32,40 +32,54 @@ import dk.statsbiblioteket.doms.domsutil.surveyable.StatusMessage;
 import dk.statsbiblioteket.util.qa.QAInfo;
 
 /** A datastructure for status messages. This datastructure condenses status
- * messages with the same textual message to one summary entry. */
+ * messages with the same textual message to one summary entry.
+ * Instances are immutable; updating a condensed status message produces a
+ * new instance. */
 @QAInfo(author = "kfc",
         reviewers = "jrg",
         level = QAInfo.Level.NORMAL,
         state = QAInfo.State.QA_OK)
 public class CondensedStatusMessage {
-    /** The textual message. */
-    private String message;
+    /** The key of the message, containing the textual message. */
+    private final MessageKey key;
 
     /** The severity of the message. */
-    private Severity severity;
+    private final Severity severity;
 
     /** The first time this message occured. */
-    private long firstTime;
+    private final long firstTime;
 
     /** The last time this message occured. */
-    private long lastTime;
+    private final long lastTime;
 
     /** Whether this is a log message or a realtime status. */
-    private boolean logMessage;
+    private final boolean logMessage;
 
     /** The number of times this message was produced. */
-    private int number;
+    private final int number;
 
     /**
      * Initialise this condensed status message from a single status message.
      * This will set the message, severity and logMessage values to the same
      * as the status message; firstdate and lastdate to the date of the status
-     * message and number to 1.
+     * message and number to 1. The textual message is interned.
      *
      * @param statusMessage The status message to initialise with.
+     * @see MessageKey#intern(String)
      */
     public CondensedStatusMessage(StatusMessage statusMessage) {
-        this.message = statusMessage.getMessage();
+        this(MessageKey.intern(statusMessage.getMessage()), statusMessage);
+    }
+
+    /**
+     * Initialise this condensed status message from a single status message
+     * and the key of its textual message.
+     *
+     * @param key The key of the textual message of the status message.
+     * @param statusMessage The status message to initialise with.
+     */
+    CondensedStatusMessage(MessageKey key, StatusMessage statusMessage) {
+        this.key = key;
         this.severity = statusMessage.getSeverity();
         this.firstTime = statusMessage.getTime();
         this.lastTime = statusMessage.getTime();
@@ -73,13 +87,43 @@ public class CondensedStatusMessage {
         this.logMessage = statusMessage.isLogMessage();
     }
 
+    /**
+     * Initialise this condensed status message with the given values.
+     *
+     * @param key The key of the textual message.
+     * @param severity The severity.
+     * @param firstTime The earliest time of the message.
+     * @param lastTime The latest time of the message.
+     * @param logMessage Whether this is a log message.
+     * @param number The number of times the message was generated.
+     */
+    CondensedStatusMessage(MessageKey key, Severity severity,
+                           long firstTime, long lastTime,
+                           boolean logMessage, int number) {
+        this.key = key;
+        this.severity = severity;
+        this.firstTime = firstTime;
+        this.lastTime = lastTime;
+        this.logMessage = logMessage;
+        this.number = number;
+    }
+
     /**
      * Get the text for the status message.
      *
      * @return The message. Never null.
      */
     public String getMessage() {
-        return message;
+        return key.getText();
+    }
+
+    /**
+     * Get the key of the textual message.
+     *
+     * @return The key. Never null.
+     */
+    public MessageKey getKey() {
+        return key;
     }
 
     /**
@@ -129,9 +173,10 @@ public class CondensedStatusMessage {
     }
 
     /**
-     * Update the condensed status message with information from a new status
-     * message. The new status message MUST have the same textual message as
-     * the current textual message. The following will be updated:
+     * Get the condensed status message updated with information from a new
+     * status message. The new status message MUST have the same textual
+     * message as the current textual message. This condensed status message
+     * is not changed. In the returned message, the following will be updated:
      * <ul>
      * <li>The firstdate and lastdate are updated from the given message
      * <li>The severity is updated to the greatest severity
@@ -142,39 +187,69 @@ public class CondensedStatusMessage {
      * </ul>
      *
      * @param statusMessage The message to update with.
+     * @return A new condensed status message with the updated information.
      * @throws IllegalArgumentException if statusMessage is null or the
      *                                  message is different.
      */
-    public void update(StatusMessage statusMessage) {
-        if (message == null || !message.equals(statusMessage.getMessage())) {
+    public CondensedStatusMessage withUpdate(StatusMessage statusMessage) {
+        if (statusMessage == null
+                || !key.getText().equals(statusMessage.getMessage())) {
             throw new IllegalArgumentException(
                     "Can only update a condensed status message, with a status "
                             + "message containing the same textual message. "
-                            + "Condensed status message: '" + message + "', "
+                            + "Condensed status message: '" + key + "', "
                             + "New status message: '"
-                            + statusMessage.getMessage() + "'");
+                            + (statusMessage == null ? null
+                            : statusMessage.getMessage()) + "'");
         }
-        if (firstTime > statusMessage.getTime()) {
-            firstTime = statusMessage.getTime();
-        }
-        if (lastTime < statusMessage.getTime()) {
-            lastTime = statusMessage.getTime();
-        }
-        if (severity.ordinal() < statusMessage.getSeverity().ordinal()) {
-            severity = statusMessage.getSeverity();
-        }
-        logMessage &= statusMessage.isLogMessage();
-        if (logMessage) {
-            ++number;
-        } else {
-            number = 1;
+        return merge(statusMessage);
+    }
+
+    /**
+     * Get the condensed status message updated with information from a new
+     * status message, given the key of the textual message of the new status
+     * message. Comparing keys is cheaper than comparing the textual messages.
+     *
+     * @param statusKey The key of the textual message of the status message.
+     * @param statusMessage The message to update with.
+     * @return A new condensed status message with the updated information.
+     * @throws IllegalArgumentException if the key is different.
+     * @see #withUpdate(StatusMessage)
+     */
+    CondensedStatusMessage withUpdate(MessageKey statusKey,
+                                      StatusMessage statusMessage) {
+        if (!key.equals(statusKey)) {
+            throw new IllegalArgumentException(
+                    "Can only update a condensed status message, with a status "
+                            + "message containing the same textual message. "
+                            + "Condensed status message: '" + key + "', "
+                            + "New status message: '" + statusKey + "'");
         }
+        return merge(statusMessage);
     }
 
     /**
-     * Update the condensed status message with information from another
+     * Get the condensed status message updated with information from a new
+     * status message, assuming the textual message is the same.
+     *
+     * @param statusMessage The message to update with.
+     * @return A new condensed status message with the updated information.
+     */
+    private CondensedStatusMessage merge(StatusMessage statusMessage) {
+        return new CondensedStatusMessage(
+                key,
+                maxSeverity(severity, statusMessage.getSeverity()),
+                Math.min(firstTime, statusMessage.getTime()),
+                Math.max(lastTime, statusMessage.getTime()),
+                logMessage && statusMessage.isLogMessage(),
+                logMessage && statusMessage.isLogMessage() ? number + 1 : 1);
+    }
+
+    /**
+     * Get the condensed status message updated with information from another
      * condensed status message. The new status message MUST have the same
-     * textual message as the current textual message. The following will be
+     * textual message as the current textual message. This condensed status
+     * message is not changed. In the returned message, the following will be
      * updated:
      * <ul>
      * <li>The firstdate and lastdate are updated from the given message
@@ -186,32 +261,43 @@ public class CondensedStatusMessage {
      * </ul>
      *
      * @param statusMessage The message to update with.
+     * @return A new condensed status message with the updated information.
      * @throws IllegalArgumentException if statusMessage is null or the
      *                                  message is different.
      */
-    public void update(CondensedStatusMessage statusMessage) {
-        if (message == null || !message.equals(statusMessage.getMessage())) {
+    public CondensedStatusMessage withUpdate(
+            CondensedStatusMessage statusMessage) {
+        if (statusMessage == null || !key.equals(statusMessage.getKey())) {
             throw new IllegalArgumentException(
                     "Can only update a condensed status message, with a status "
                             + "message containing the same textual message. "
-                            + "Condensed status message: '" + message + "', "
+                            + "Condensed status message: '" + key + "', "
                             + "New status message: '"
-                            + statusMessage.getMessage() + "'");
-        }
-        if (firstTime > statusMessage.getFirstTime()) {
-            firstTime = statusMessage.getFirstTime();
-        }
-        if (lastTime < statusMessage.getLastTime()) {
-            lastTime = statusMessage.getLastTime();
-        }
-        if (severity.ordinal() < statusMessage.getSeverity().ordinal()) {
-            severity = statusMessage.getSeverity();
+                            + (statusMessage == null ? null
+                            : statusMessage.getMessage()) + "'");
         }
-        logMessage &= statusMessage.isLogMessage();
-        if (logMessage) {
-            number += statusMessage.getNumber();
-        } else {
-            number = 1;
+        return new CondensedStatusMessage(
+                key,
+                maxSeverity(severity, statusMessage.getSeverity()),
+                Math.min(firstTime, statusMessage.getFirstTime()),
+                Math.max(lastTime, statusMessage.getLastTime()),
+                logMessage && statusMessage.isLogMessage(),
+                logMessage && statusMessage.isLogMessage()
+                        ? number + statusMessage.getNumber() : 1);
+    }
+
+    /**
+     * Get the greatest (most severe) of two severities.
+     *
+     * @param severity1 One severity.
+     * @param severity2 Another severity.
+     * @return The most severe of the two.
+     */
+    static Severity maxSeverity(Severity severity1,
+                                        Severity severity2) {
+        if (severity1.ordinal() < severity2.ordinal()) {
+            return severity2;
         }
+        return severity1;
     }
 }
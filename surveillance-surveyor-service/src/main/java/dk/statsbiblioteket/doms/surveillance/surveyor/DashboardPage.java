@@ -0,0 +1,483 @@
+/*
+ * $Id$
+ * $Revision$
+ * $Date$
+ * $Author$
+ *
+ * The DOMS project.
+ * Copyright (C) 2007-2010  The State and University Library
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package dk.statsbiblioteket.doms.surveillance.surveyor;
+
+import dk.statsbiblioteket.doms.domsutil.surveyable.Severity;
+import dk.statsbiblioteket.util.qa.QAInfo;
+
+import javax.servlet.http.HttpServletRequest;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * One page of the status dashboard.
+ *
+ * The page shows a header for every application, with the number of
+ * messages of each severity, and one page of the messages matching the
+ * severity filter. Messages are paged across applications in order of
+ * application name. Messages of collapsed applications are not shown.
+ *
+ * The page is given by the request parameters
+ * <code>severity</code> (least severe severity shown, default GREEN),
+ * <code>page</code> (page number from 1, default 1),
+ * <code>pageSize</code> (messages per page, default
+ * {@link #DEFAULT_PAGE_SIZE}, at most {@link #MAX_PAGE_SIZE}) and
+ * <code>collapsed</code> (name of a collapsed application, may be repeated).
+ *
+ * Messages are identified on the page by {@link #getId}, so the full text
+ * of a long message is not needed in the page.
+ */
+@QAInfo(author = "agent",
+        reviewers = "",
+        level = QAInfo.Level.NORMAL,
+        state = QAInfo.State.QA_NEEDED)
+public class DashboardPage {
+    /** Default number of messages per page. */
+    public static final int DEFAULT_PAGE_SIZE = 100;
+
+    /** Maximum number of messages per page. */
+    public static final int MAX_PAGE_SIZE = 1000;
+
+    /** Maximum number of characters in a message preview. */
+    public static final int PREVIEW_LENGTH = 200;
+
+    /** The least severe severity shown. */
+    private final Severity severity;
+
+    /** The page number, from 0. */
+    private final int page;
+
+    /** The number of messages per page. */
+    private final int pageSize;
+
+    /** Names of collapsed applications. */
+    private final Set<String> collapsed;
+
+    /** The applications, in order of name. */
+    private final List<Application> applications
+            = new ArrayList<Application>();
+
+    /** The number of messages matching the filter, on all pages. */
+    private int messageCount;
+
+    /** An application on the page. */
+    public static class Application {
+        /** The status of the application. */
+        private final CondensedStatus status;
+
+        /** Number of messages of each severity, by ordinal. */
+        private final int[] counts = new int[Severity.values().length];
+
+        /** The messages of the application on this page. */
+        private final List<CondensedStatusMessage> messages
+                = new ArrayList<CondensedStatusMessage>();
+
+        /**
+         * Initialise an application.
+         *
+         * @param status The status of the application.
+         */
+        private Application(CondensedStatus status) {
+            this.status = status;
+        }
+
+        /**
+         * Get the status of the application.
+         *
+         * @return The status.
+         */
+        public CondensedStatus getStatus() {
+            return status;
+        }
+
+        /**
+         * Get the number of messages of a severity.
+         *
+         * @param severity The severity.
+         * @return The number of messages of that severity.
+         */
+        public int getCount(Severity severity) {
+            return counts[severity.ordinal()];
+        }
+
+        /**
+         * Get the messages of the application on this page.
+         *
+         * @return The messages. Empty if collapsed or on other pages.
+         */
+        public List<CondensedStatusMessage> getMessages() {
+            return messages;
+        }
+    }
+
+    /**
+     * Select the page given by the request parameters from a status map.
+     *
+     * @param request The request with the page parameters.
+     * @param statusMap The status map.
+     */
+    public DashboardPage(HttpServletRequest request,
+                         Map<String, CondensedStatus> statusMap) {
+        Severity severity = Severity.GREEN;
+        try {
+            String value = request.getParameter("severity");
+            if (value != null) {
+                severity = Severity.valueOf(value);
+            }
+        } catch (IllegalArgumentException e) {
+            //Unknown severity, show all
+        }
+        this.severity = severity;
+        this.pageSize = Math.min(MAX_PAGE_SIZE, readNumber(
+                request, "pageSize", DEFAULT_PAGE_SIZE));
+        String[] collapsedValues = request.getParameterValues("collapsed");
+        this.collapsed = collapsedValues == null
+                ? Collections.<String>emptySet()
+                : new HashSet<String>(Arrays.asList(collapsedValues));
+
+        //Count messages
+        Map<String, CondensedStatus> sorted
+                = new TreeMap<String, CondensedStatus>(statusMap);
+        for (CondensedStatus status : sorted.values()) {
+            Application application = new Application(status);
+            boolean shown = !collapsed.contains(status.getName());
+            for (CondensedStatusMessage message : status.getMessages()) {
+                application.counts[message.getSeverity().ordinal()]++;
+                if (shown && isShown(message.getSeverity())) {
+                    messageCount++;
+                }
+            }
+            applications.add(application);
+        }
+
+        //Select the messages on the page, showing the last page if the
+        //requested page no longer exists
+        this.page = Math.min(readNumber(request, "page", 1),
+                             getPageCount()) - 1;
+        int start = page * pageSize;
+        int index = 0;
+        for (Application application : applications) {
+            if (index >= start + pageSize) {
+                break;
+            }
+            if (collapsed.contains(application.status.getName())) {
+                continue;
+            }
+            for (CondensedStatusMessage message
+                    : application.status.getMessages()) {
+                if (isShown(message.getSeverity())) {
+                    if (index >= start && index < start + pageSize) {
+                        application.messages.add(message);
+                    }
+                    index++;
+                }
+            }
+        }
+    }
+
+    /**
+     * Get the applications on the page.
+     *
+     * @return The applications, in order of name.
+     */
+    public List<Application> getApplications() {
+        return applications;
+    }
+
+    /**
+     * Get the least severe severity shown.
+     *
+     * @return The severity.
+     */
+    public Severity getSeverity() {
+        return severity;
+    }
+
+    /**
+     * Get the page number.
+     *
+     * @return The page number, from 0.
+     */
+    public int getPage() {
+        return page;
+    }
+
+    /**
+     * Get the number of pages.
+     *
+     * @return The number of pages, at least 1.
+     */
+    public int getPageCount() {
+        return Math.max(1, (messageCount + pageSize - 1) / pageSize);
+    }
+
+    /**
+     * Get the number of messages matching the filter on all pages.
+     *
+     * @return The number of messages.
+     */
+    public int getMessageCount() {
+        return messageCount;
+    }
+
+    /**
+     * Whether an application is collapsed.
+     *
+     * @param applicationName The application name.
+     * @return Whether the application is collapsed.
+     */
+    public boolean isCollapsed(String applicationName) {
+        return collapsed.contains(applicationName);
+    }
+
+    /**
+     * Get the query string for another page.
+     *
+     * @param page The page number, from 0.
+     * @return The query string, starting with '?'.
+     */
+    public String getPageQuery(int page) {
+        return getQuery(severity, page, collapsed);
+    }
+
+    /**
+     * Get the query string for the first page with another severity filter.
+     *
+     * @param severity The least severe severity to show.
+     * @return The query string, starting with '?'.
+     */
+    public String getSeverityQuery(Severity severity) {
+        return getQuery(severity, 0, collapsed);
+    }
+
+    /**
+     * Get the query string for this page with an application collapsed or
+     * expanded.
+     *
+     * @param applicationName The application to collapse or expand.
+     * @return The query string, starting with '?'.
+     */
+    public String getToggleQuery(String applicationName) {
+        Set<String> toggled = new HashSet<String>(collapsed);
+        if (!toggled.remove(applicationName)) {
+            toggled.add(applicationName);
+        }
+        return getQuery(severity, page, toggled);
+    }
+
+    /**
+     * Get the id of a message, used to refer to it from the page.
+     *
+     * @param message The message.
+     * @return The id, the message hash as hexadecimal.
+     */
+    public static String getId(CondensedStatusMessage message) {
+        return Long.toHexString(message.getKey().getHash());
+    }
+
+    /**
+     * Get the path of the full text of a message in the status API.
+     *
+     * @param applicationName The application name.
+     * @param message The message.
+     * @return The path, relative to the context path.
+     * @see StatusResource#getMessage(String, String)
+     */
+    public static String getMessagePath(String applicationName,
+                                        CondensedStatusMessage message) {
+        return "/api/status/" + encode(applicationName).replace("+", "%20")
+                + "/messages/" + getId(message);
+    }
+
+    /**
+     * Find a message in a status by its id.
+     *
+     * @param status The status, or null.
+     * @param id The id, as returned by {@link #getId}.
+     * @return The message, or null if not found.
+     */
+    public static CondensedStatusMessage findMessage(CondensedStatus status,
+                                                     String id) {
+        if (status != null && id != null) {
+            for (CondensedStatusMessage message : status.getMessages()) {
+                if (getId(message).equals(id)) {
+                    return message;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Whether a message is shortened in the preview.
+     *
+     * @param message The message.
+     * @return Whether the message is longer than the preview.
+     */
+    public static boolean isTruncated(CondensedStatusMessage message) {
+        String text = message.getMessage();
+        return text.length() > PREVIEW_LENGTH || text.indexOf('\n') >= 0;
+    }
+
+    /**
+     * Get a preview of a message: its first line, at most
+     * {@link #PREVIEW_LENGTH} characters, escaped as HTML.
+     *
+     * @param message The message.
+     * @return The escaped preview.
+     */
+    public static String getPreview(CondensedStatusMessage message) {
+        String text = message.getMessage();
+        int end = Math.min(text.length(), PREVIEW_LENGTH);
+        int newline = text.indexOf('\n');
+        if (newline >= 0 && newline < end) {
+            end = newline;
+        }
+        return escape(text.substring(0, end));
+    }
+
+    /**
+     * Escape a string for HTML text and attribute values.
+     *
+     * @param string The string.
+     * @return The escaped string.
+     */
+    public static String escape(String string) {
+        StringBuilder result = null;
+        for (int i = 0; i < string.length(); i++) {
+            String replacement;
+            switch (string.charAt(i)) {
+                case '<':
+                    replacement = "&lt;";
+                    break;
+                case '>':
+                    replacement = "&gt;";
+                    break;
+                case '&':
+                    replacement = "&amp;";
+                    break;
+                case '"':
+                    replacement = "&quot;";
+                    break;
+                case '\'':
+                    replacement = "&#39;";
+                    break;
+                default:
+                    if (result != null) {
+                        result.append(string.charAt(i));
+                    }
+                    continue;
+            }
+            if (result == null) {
+                result = new StringBuilder(string.length() + 16);
+                result.append(string, 0, i);
+            }
+            result.append(replacement);
+        }
+        return result == null ? string : result.toString();
+    }
+
+    /**
+     * URL encode a string as UTF-8.
+     *
+     * @param string The string.
+     * @return The encoded string.
+     */
+    public static String encode(String string) {
+        try {
+            return URLEncoder.encode(string, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            //UTF-8 must be supported as per spec.
+            throw new Error("UTF-8 unsupported by JVM", e);
+        }
+    }
+
+    /**
+     * Whether messages of a severity are shown.
+     *
+     * @param messageSeverity The severity of a message.
+     * @return Whether it is at least as severe as the filter.
+     */
+    private boolean isShown(Severity messageSeverity) {
+        return CondensedStatusMessage.maxSeverity(messageSeverity, severity)
+                == messageSeverity;
+    }
+
+    /**
+     * Build a query string.
+     *
+     * @param severity The severity filter.
+     * @param page The page number, from 0.
+     * @param collapsed The collapsed applications.
+     * @return The query string, starting with '?'.
+     */
+    private String getQuery(Severity severity, int page,
+                            Set<String> collapsed) {
+        StringBuilder query = new StringBuilder("?severity=");
+        query.append(severity);
+        query.append("&page=").append(page + 1);
+        if (pageSize != DEFAULT_PAGE_SIZE) {
+            query.append("&pageSize=").append(pageSize);
+        }
+        for (String name : collapsed) {
+            query.append("&collapsed=").append(encode(name));
+        }
+        return query.toString();
+    }
+
+    /**
+     * Read a positive number request parameter.
+     *
+     * @param request The request.
+     * @param name The parameter name.
+     * @param defaultValue The value if missing or not a positive number.
+     * @return The value.
+     */
+    private static int readNumber(HttpServletRequest request, String name,
+                                  int defaultValue) {
+        String value = request.getParameter(name);
+        if (value != null) {
+            try {
+                int number = Integer.parseInt(value.trim());
+                if (number > 0) {
+                    return number;
+                }
+            } catch (NumberFormatException e) {
+                //Fall back to default
+            }
+        }
+        return defaultValue;
+    }
+}
@@ -0,0 +1,367 @@
+/*
+ * $Id$
+ * $Revision$
+ * $Date$
+ * $Author$
+ *
+ * The DOMS project.
+ * Copyright (C) 2007-2010  The State and University Library
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package dk.statsbiblioteket.doms.surveillance.surveyor;
+
+import dk.statsbiblioteket.util.qa.QAInfo;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * A set of ignore rules compiled for fast matching of many messages.
+ *
+ * Exact rules are looked up in hash sets. For all other rules, the longest
+ * literal string any matching message must contain is added to an
+ * Aho-Corasick automaton. A message is scanned once by the automaton, and
+ * only the rules whose literal was found are evaluated. Prefix rules are
+ * checked with a string comparison, glob and regular expression rules with
+ * their compiled pattern. Rules without a usable literal are evaluated for
+ * every message of their application.
+ *
+ * Instances are immutable and thread safe.
+ */
+@QAInfo(author = "agent",
+        reviewers = "",
+        level = QAInfo.Level.NORMAL,
+        state = QAInfo.State.QA_NEEDED)
+public final class IgnoreMatcher {
+    /** A matcher with no rules. */
+    public static final IgnoreMatcher EMPTY
+            = new IgnoreMatcher(Collections.<IgnoreRule>emptyList());
+
+    /** Literals shorter than this are not used for filtering. */
+    private static final int MIN_LITERAL_LENGTH = 3;
+
+    /** Patterns of exact rules, by application name. */
+    private final Map<String, Set<String>> exact
+            = new HashMap<String, Set<String>>();
+
+    /** Non-exact rules; indexes are used by the automaton. */
+    private final IgnoreRule[] rules;
+
+    /** Rules that are evaluated for every message, by application name. */
+    private final Map<String, int[]> unfiltered
+            = new HashMap<String, int[]>();
+
+    /** Names of applications with any rules, or null if global rules exist. */
+    private final Set<String> applications;
+
+    /** Automaton transitions: sorted characters of each state. */
+    private final char[][] labels;
+
+    /** Automaton transitions: target states matching {@link #labels}. */
+    private final int[][] targets;
+
+    /** Automaton failure state of each state. */
+    private final int[] failures;
+
+    /** Rules whose literal ends in each state, including by failure. */
+    private final int[][] outputs;
+
+    /**
+     * Compile a set of rules.
+     *
+     * @param ignoreRules The rules. Should never be null.
+     */
+    public IgnoreMatcher(Collection<IgnoreRule> ignoreRules) {
+        boolean global = false;
+        Set<String> names = new HashSet<String>();
+        List<IgnoreRule> others = new ArrayList<IgnoreRule>();
+        for (IgnoreRule rule : ignoreRules) {
+            global |= rule.isGlobal();
+            names.add(rule.getApplicationName());
+            if (rule.getType() == IgnoreRule.Type.EXACT) {
+                Set<String> patterns = exact.get(rule.getApplicationName());
+                if (patterns == null) {
+                    patterns = new HashSet<String>();
+                    exact.put(rule.getApplicationName(), patterns);
+                }
+                patterns.add(rule.getPattern());
+            } else {
+                others.add(rule);
+            }
+        }
+        applications = global ? null : names;
+        rules = others.toArray(new IgnoreRule[others.size()]);
+
+        //Build trie of the longest literal of each rule
+        List<TreeMap<Character, Integer>> trie
+                = new ArrayList<TreeMap<Character, Integer>>();
+        List<List<Integer>> ruleOutputs = new ArrayList<List<Integer>>();
+        trie.add(new TreeMap<Character, Integer>());
+        ruleOutputs.add(new ArrayList<Integer>());
+        Map<String, List<Integer>> unfilteredLists
+                = new HashMap<String, List<Integer>>();
+        for (int i = 0; i < rules.length; i++) {
+            String literal = longest(rules[i].getRequiredLiterals());
+            if (literal.length() < MIN_LITERAL_LENGTH) {
+                List<Integer> list = unfilteredLists.get(
+                        rules[i].getApplicationName());
+                if (list == null) {
+                    list = new ArrayList<Integer>();
+                    unfilteredLists.put(rules[i].getApplicationName(), list);
+                }
+                list.add(i);
+                continue;
+            }
+            int state = 0;
+            for (int j = 0; j < literal.length(); j++) {
+                Integer next = trie.get(state).get(literal.charAt(j));
+                if (next == null) {
+                    next = trie.size();
+                    trie.add(new TreeMap<Character, Integer>());
+                    ruleOutputs.add(new ArrayList<Integer>());
+                    trie.get(state).put(literal.charAt(j), next);
+                }
+                state = next;
+            }
+            ruleOutputs.get(state).add(i);
+        }
+        for (Map.Entry<String, List<Integer>> entry
+                : unfilteredLists.entrySet()) {
+            unfiltered.put(entry.getKey(), toArray(entry.getValue()));
+        }
+
+        //Freeze trie into arrays
+        int size = trie.size();
+        labels = new char[size][];
+        targets = new int[size][];
+        for (int state = 0; state < size; state++) {
+            TreeMap<Character, Integer> transitions = trie.get(state);
+            labels[state] = new char[transitions.size()];
+            targets[state] = new int[transitions.size()];
+            int k = 0;
+            for (Map.Entry<Character, Integer> transition
+                    : transitions.entrySet()) {
+                labels[state][k] = transition.getKey();
+                targets[state][k] = transition.getValue();
+                k++;
+            }
+        }
+
+        //Compute failure states and outputs breadth first
+        failures = new int[size];
+        outputs = new int[size][];
+        outputs[0] = toArray(ruleOutputs.get(0));
+        LinkedList<Integer> queue = new LinkedList<Integer>();
+        for (int target : targets[0]) {
+            failures[target] = 0;
+            outputs[target] = toArray(ruleOutputs.get(target));
+            queue.add(target);
+        }
+        while (!queue.isEmpty()) {
+            int state = queue.removeFirst();
+            for (int k = 0; k < labels[state].length; k++) {
+                char c = labels[state][k];
+                int target = targets[state][k];
+                int failure = failures[state];
+                while (failure != 0 && next(failure, c) < 0) {
+                    failure = failures[failure];
+                }
+                int next = next(failure, c);
+                failures[target] = next < 0 ? 0 : next;
+                outputs[target] = concat(toArray(ruleOutputs.get(target)),
+                                         outputs[failures[target]]);
+                queue.add(target);
+            }
+        }
+    }
+
+    /**
+     * Whether there are no rules.
+     *
+     * @return True if the matcher never matches anything.
+     */
+    public boolean isEmpty() {
+        return applications != null && applications.isEmpty();
+    }
+
+    /**
+     * Whether any rules may apply to an application.
+     *
+     * @param applicationName The application name.
+     * @return False if no rules apply to the application.
+     */
+    public boolean appliesTo(String applicationName) {
+        return applications == null
+                || applications.contains(applicationName);
+    }
+
+    /**
+     * Check whether a message from an application should be ignored.
+     *
+     * @param applicationName The application name.
+     * @param message The message.
+     * @return Whether any rule for the application or for all applications
+     * matches the message.
+     */
+    public boolean matches(String applicationName, String message) {
+        if (!appliesTo(applicationName)) {
+            return false;
+        }
+        if (containsExact(applicationName, message)
+                || containsExact(IgnoreRule.ALL_APPLICATIONS, message)) {
+            return true;
+        }
+        if (matchesAny(unfiltered.get(applicationName), message)
+                || matchesAny(unfiltered.get(IgnoreRule.ALL_APPLICATIONS),
+                              message)) {
+            return true;
+        }
+        if (rules.length == 0) {
+            return false;
+        }
+        //Scan message, and evaluate rules with a literal found
+        BitSet evaluated = null;
+        int state = 0;
+        for (int i = 0; i < message.length(); i++) {
+            char c = message.charAt(i);
+            int next = next(state, c);
+            while (next < 0 && state != 0) {
+                state = failures[state];
+                next = next(state, c);
+            }
+            state = next < 0 ? 0 : next;
+            for (int rule : outputs[state]) {
+                IgnoreRule ignoreRule = rules[rule];
+                if (!ignoreRule.isGlobal() && !ignoreRule.getApplicationName()
+                        .equals(applicationName)) {
+                    continue;
+                }
+                if (evaluated == null) {
+                    evaluated = new BitSet(rules.length);
+                } else if (evaluated.get(rule)) {
+                    continue;
+                }
+                evaluated.set(rule);
+                if (ignoreRule.matches(message)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Check whether an exact rule for an application matches a message.
+     *
+     * @param applicationName The application name.
+     * @param message The message.
+     * @return Whether an exact rule matches.
+     */
+    private boolean containsExact(String applicationName, String message) {
+        Set<String> patterns = exact.get(applicationName);
+        return patterns != null && patterns.contains(message);
+    }
+
+    /**
+     * Check whether any of the given rules matches a message.
+     *
+     * @param indexes Indexes of the rules, or null.
+     * @param message The message.
+     * @return Whether any rule matches.
+     */
+    private boolean matchesAny(int[] indexes, String message) {
+        if (indexes != null) {
+            for (int rule : indexes) {
+                if (rules[rule].matches(message)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Get the automaton transition from a state on a character.
+     *
+     * @param state The state.
+     * @param c The character.
+     * @return The target state, or -1 if there is no transition.
+     */
+    private int next(int state, char c) {
+        int k = Arrays.binarySearch(labels[state], c);
+        return k < 0 ? -1 : targets[state][k];
+    }
+
+    /**
+     * Find the longest of some strings.
+     *
+     * @param strings The strings.
+     * @return The longest string, or the empty string if none.
+     */
+    private static String longest(String[] strings) {
+        String longest = "";
+        for (String string : strings) {
+            if (string.length() > longest.length()) {
+                longest = string;
+            }
+        }
+        return longest;
+    }
+
+    /**
+     * Convert a list of integers to an array.
+     *
+     * @param list The list.
+     * @return The array.
+     */
+    private static int[] toArray(List<Integer> list) {
+        int[] array = new int[list.size()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = list.get(i);
+        }
+        return array;
+    }
+
+    /**
+     * Concatenate two arrays.
+     *
+     * @param first The first array.
+     * @param second The second array.
+     * @return The concatenation.
+     */
+    private static int[] concat(int[] first, int[] second) {
+        if (second.length == 0) {
+            return first;
+        }
+        int[] result = new int[first.length + second.length];
+        System.arraycopy(first, 0, result, 0, first.length);
+        System.arraycopy(second, 0, result, first.length, second.length);
+        return result;
+    }
+}
@@ -0,0 +1,497 @@
+/*
+ * $Id$
+ * $Revision$
+ * $Date$
+ * $Author$
+ *
+ * The DOMS project.
+ * Copyright (C) 2007-2010  The State and University Library
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package dk.statsbiblioteket.doms.surveillance.surveyor;
+
+import dk.statsbiblioteket.util.qa.QAInfo;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.regex.Pattern;
+
+/**
+ * A rule for which log messages to ignore.
+ *
+ * A rule applies to the messages of one application, or to all applications
+ * if the application name is {@link #ALL_APPLICATIONS}. A rule matches the
+ * entire message, according to its type:
+ * <ul>
+ * <li>{@link Type#EXACT} matches a message equal to the pattern.</li>
+ * <li>{@link Type#PREFIX} matches a message starting with the pattern.</li>
+ * <li>{@link Type#GLOB} matches a message matching the pattern, where
+ * <code>*</code> matches any sequence of characters, including newlines, and
+ * <code>?</code> matches any single character.</li>
+ * <li>{@link Type#REGEX} matches a message matching the pattern as a Java
+ * regular expression, compiled with {@link Pattern#DOTALL} like globs, so
+ * <code>.</code> also matches newlines in multi-line messages.</li>
+ * </ul>
+ *
+ * Matching a regular expression may take at most
+ * {@link #MATCH_STEPS_PER_CHARACTER} reads of characters per character of
+ * the message, so a pattern with catastrophic backtracking cannot stall
+ * polling. A match that runs longer is given up, and the message is not
+ * ignored.
+ *
+ * Instances are immutable and thread safe.
+ */
+@QAInfo(author = "agent",
+        reviewers = "",
+        level = QAInfo.Level.NORMAL,
+        state = QAInfo.State.QA_NEEDED)
+public final class IgnoreRule {
+    /** The application name of rules applying to all applications. */
+    public static final String ALL_APPLICATIONS = "*";
+
+    /**
+     * Characters read by a regular expression match, per character of the
+     * message (plus 100), before the match is given up.
+     */
+    public static final int MATCH_STEPS_PER_CHARACTER = 100;
+
+    /**
+     * Unrelated messages that a rule must not all match, as rules like
+     * <code>?*</code> or <code>.+</code> matching everything do.
+     */
+    private static final String[] PROBE_MESSAGES
+            = {"x", "\n", "0 Probe message\n\tat surveyor"};
+
+    /** Logger for this class. */
+    private static Log log = LogFactory.getLog(IgnoreRule.class);
+
+    /** The types of rules. */
+    public enum Type {
+        /** Match messages equal to the pattern. */
+        EXACT,
+        /** Match messages starting with the pattern. */
+        PREFIX,
+        /** Match messages matching the pattern with * and ? wildcards. */
+        GLOB,
+        /** Match messages matching the pattern as regular expression. */
+        REGEX
+    }
+
+    /** The type of the rule. */
+    private final Type type;
+
+    /** The application name, or {@link #ALL_APPLICATIONS}. */
+    private final String applicationName;
+
+    /** The pattern. */
+    private final String pattern;
+
+    /**
+     * The compiled pattern of glob and regular expression rules. Null for
+     * other rules.
+     */
+    private final Pattern compiledPattern;
+
+    /** Whether a match of the rule has been given up and logged. */
+    private final AtomicBoolean matchGivenUp = new AtomicBoolean();
+
+    /**
+     * Initialise a rule.
+     *
+     * @param type The type of the rule. Should never be null.
+     * @param applicationName The name of the application the rule applies to,
+     * or {@link #ALL_APPLICATIONS}. Should never be null.
+     * @param pattern The pattern. Should never be null.
+     * @throws IllegalArgumentException on null parameters, or if the pattern
+     * of a regular expression rule is not a valid regular expression.
+     */
+    public IgnoreRule(Type type, String applicationName, String pattern) {
+        if (type == null) {
+            throw new IllegalArgumentException(
+                    "Parameter 'Type type' should not be null");
+        }
+        if (applicationName == null) {
+            throw new IllegalArgumentException(
+                    "Parameter 'String applicationName' should not be null");
+        }
+        if (pattern == null) {
+            throw new IllegalArgumentException(
+                    "Parameter 'String pattern' should not be null");
+        }
+        this.type = type;
+        this.applicationName = applicationName;
+        this.pattern = pattern;
+        switch (type) {
+            case GLOB:
+                this.compiledPattern = Pattern.compile(globToRegex(pattern),
+                                                       Pattern.DOTALL);
+                break;
+            case REGEX:
+                this.compiledPattern = Pattern.compile(pattern,
+                                                       Pattern.DOTALL);
+                break;
+            default:
+                this.compiledPattern = null;
+        }
+    }
+
+    /**
+     * Get the type of the rule.
+     *
+     * @return The type.
+     */
+    public Type getType() {
+        return type;
+    }
+
+    /**
+     * Get the name of the application the rule applies to.
+     *
+     * @return The application name, or {@link #ALL_APPLICATIONS}.
+     */
+    public String getApplicationName() {
+        return applicationName;
+    }
+
+    /**
+     * Whether the rule applies to all applications.
+     *
+     * @return True if the application name is {@link #ALL_APPLICATIONS}.
+     */
+    public boolean isGlobal() {
+        return ALL_APPLICATIONS.equals(applicationName);
+    }
+
+    /**
+     * Get the pattern of the rule.
+     *
+     * @return The pattern.
+     */
+    public String getPattern() {
+        return pattern;
+    }
+
+    /**
+     * Check whether the rule matches a message. The application name is not
+     * checked.
+     *
+     * @param message The message.
+     * @return Whether the message matches the pattern. False if matching a
+     * regular expression was given up.
+     */
+    public boolean matches(String message) {
+        switch (type) {
+            case EXACT:
+                return pattern.equals(message);
+            case PREFIX:
+                return message.startsWith(pattern);
+            case GLOB:
+                return compiledPattern.matcher(message).matches();
+            default:
+                try {
+                    return compiledPattern.matcher(
+                            new BoundedCharSequence(message)).matches();
+                } catch (MatchGivenUpException e) {
+                    if (!matchGivenUp.getAndSet(true)) {
+                        log.warn("Gave up matching ignore rule '" + this
+                                + "' after " + e.getMessage()
+                                + " steps. Messages are not matched by this"
+                                + " rule when it takes this long.");
+                    }
+                    return false;
+                }
+        }
+    }
+
+    /**
+     * Whether the rule is too broad to be added: it matches the empty
+     * message, or a few unrelated messages that only a rule matching
+     * everything would all match, like the globs <code>*</code> and
+     * <code>?*</code> or the regular expression <code>.+</code>.
+     *
+     * @return True if the rule would hide every message.
+     */
+    public boolean isTooBroad() {
+        if (matches("")) {
+            return true;
+        }
+        for (String probe : PROBE_MESSAGES) {
+            if (!matches(probe)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Get the literal strings that any message matching the rule must
+     * contain. The matcher uses these to avoid evaluating rules that cannot
+     * match.
+     *
+     * @return The required literal strings. May be empty.
+     */
+    String[] getRequiredLiterals() {
+        switch (type) {
+            case EXACT:
+            case PREFIX:
+                return new String[]{pattern};
+            case GLOB:
+                return pattern.split("[*?]+");
+            default:
+                return regexRequiredLiterals(pattern);
+        }
+    }
+
+    /**
+     * Convert a glob to a regular expression.
+     *
+     * @param glob The glob, with * and ? wildcards.
+     * @return The equivalent regular expression.
+     */
+    private static String globToRegex(String glob) {
+        StringBuilder regex = new StringBuilder();
+        int start = 0;
+        for (int i = 0; i < glob.length(); i++) {
+            char c = glob.charAt(i);
+            if (c == '*' || c == '?') {
+                if (i > start) {
+                    regex.append(Pattern.quote(glob.substring(start, i)));
+                }
+                regex.append(c == '*' ? ".*" : ".");
+                start = i + 1;
+            }
+        }
+        if (start < glob.length()) {
+            regex.append(Pattern.quote(glob.substring(start)));
+        }
+        return regex.toString();
+    }
+
+    /**
+     * Find literal strings that any match of a regular expression must
+     * contain. This is conservative: only plain characters outside groups
+     * and character classes, and not followed by an optional quantifier, are
+     * used, and no literals are found for expressions with alternatives or
+     * embedded flags.
+     *
+     * @param regex The regular expression.
+     * @return The required literal strings. May be empty.
+     */
+    private static String[] regexRequiredLiterals(String regex) {
+        if (regex.indexOf('|') >= 0 || regex.contains("\\Q")
+                || regex.contains("(?")) {
+            return new String[0];
+        }
+        List<String> literals = new ArrayList<String>();
+        StringBuilder current = new StringBuilder();
+        int depth = 0;
+        int i = 0;
+        while (i < regex.length()) {
+            char c = regex.charAt(i++);
+            char literal = 0;
+            if (c == '\\' && i < regex.length()) {
+                char escaped = regex.charAt(i++);
+                if (!Character.isLetterOrDigit(escaped)) {
+                    literal = escaped;
+                } else {
+                    i = skipEscape(regex, escaped, i);
+                }
+            } else if (c == '[') {
+                //Skip character class, where ] first is literal
+                if (i < regex.length() && regex.charAt(i) == '^') {
+                    i++;
+                }
+                if (i < regex.length() && regex.charAt(i) == ']') {
+                    i++;
+                }
+                int nesting = 1;
+                while (i < regex.length() && nesting > 0) {
+                    char d = regex.charAt(i++);
+                    if (d == '\\') {
+                        i++;
+                    } else if (d == '[') {
+                        nesting++;
+                    } else if (d == ']') {
+                        nesting--;
+                    }
+                }
+            } else if (c == '{') {
+                //Skip quantifier like {2,3}
+                i = regex.indexOf('}', i) + 1;
+            } else if (c == '(') {
+                depth++;
+            } else if (c == ')') {
+                depth--;
+            } else if (".^$+*?}".indexOf(c) < 0) {
+                literal = c;
+            }
+            if (i <= 0) {
+                //Unterminated braces, give up
+                return new String[0];
+            }
+            boolean optional = i < regex.length()
+                    && "?*{".indexOf(regex.charAt(i)) >= 0;
+            if (depth == 0 && literal != 0 && !optional) {
+                current.append(literal);
+            } else if (current.length() > 0) {
+                literals.add(current.toString());
+                current.setLength(0);
+            }
+        }
+        if (current.length() > 0) {
+            literals.add(current.toString());
+        }
+        return literals.toArray(new String[literals.size()]);
+    }
+
+    /**
+     * Skip the rest of an escape in a regular expression, so the characters
+     * following e.g. <code>\x41</code>, <code>\u0041</code>,
+     * <code>\0101</code>, <code>\cA</code>, <code>\p{Alpha}</code>,
+     * <code>\k&lt;name&gt;</code> or the back reference <code>\12</code>
+     * are not taken as literals.
+     *
+     * @param regex The regular expression.
+     * @param escaped The letter or digit following the backslash.
+     * @param i The index after that letter or digit.
+     * @return The index after the escape, or 0 if it is unterminated.
+     */
+    private static int skipEscape(String regex, char escaped, int i) {
+        if (i < regex.length() && regex.charAt(i) == '{'
+                && "xpPN".indexOf(escaped) >= 0) {
+            return regex.indexOf('}', i) + 1;
+        }
+        int end = i;
+        switch (escaped) {
+            case 'x':
+                end = i + 2;
+                break;
+            case 'u':
+                end = i + 4;
+                break;
+            case 'c':
+            case 'p':
+            case 'P':
+                end = i + 1;
+                break;
+            case 'k':
+                return regex.indexOf('>', i) + 1;
+            case '0':
+                while (end < regex.length() && end < i + 3
+                        && regex.charAt(end) >= '0'
+                        && regex.charAt(end) <= '7') {
+                    end++;
+                }
+                break;
+            default:
+                while (Character.isDigit(escaped) && end < regex.length()
+                        && Character.isDigit(regex.charAt(end))) {
+                    end++;
+                }
+        }
+        return Math.min(end, regex.length());
+    }
+
+    /** Thrown when a match reads too many characters. */
+    private static final class MatchGivenUpException
+            extends RuntimeException {
+        /**
+         * Initialise the exception.
+         *
+         * @param steps The number of characters read.
+         */
+        private MatchGivenUpException(long steps) {
+            super(Long.toString(steps));
+        }
+    }
+
+    /**
+     * A message that counts the characters read from it by a match, and
+     * gives up the match when it has read too many.
+     */
+    private static final class BoundedCharSequence implements CharSequence {
+        /** The message. */
+        private final String message;
+
+        /** The number of characters that may be read. */
+        private final long maxSteps;
+
+        /** The number of characters read. */
+        private long steps;
+
+        /**
+         * Initialise the sequence.
+         *
+         * @param message The message.
+         */
+        private BoundedCharSequence(String message) {
+            this.message = message;
+            this.maxSteps = (long) MATCH_STEPS_PER_CHARACTER
+                    * (message.length() + 100);
+        }
+
+        public char charAt(int index) {
+            if (++steps > maxSteps) {
+                throw new MatchGivenUpException(steps);
+            }
+            return message.charAt(index);
+        }
+
+        public int length() {
+            return message.length();
+        }
+
+        public CharSequence subSequence(int start, int end) {
+            return message.subSequence(start, end);
+        }
+
+        @Override
+        public String toString() {
+            return message;
+        }
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof IgnoreRule)) {
+            return false;
+        }
+        IgnoreRule other = (IgnoreRule) o;
+        return type == other.type
+                && applicationName.equals(other.applicationName)
+                && pattern.equals(other.pattern);
+    }
+
+    @Override
+    public int hashCode() {
+        return (type.hashCode() * 31 + applicationName.hashCode()) * 31
+                + pattern.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return type + " " + applicationName + " " + pattern;
+    }
+}
@@ -0,0 +1,709 @@
+/*
+ * $Id$
+ * $Revision$
+ * $Date$
+ * $Author$
+ *
+ * The DOMS project.
+ * Copyright (C) 2007-2010  The State and University Library
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package dk.statsbiblioteket.doms.surveillance.surveyor;
+
+import dk.statsbiblioteket.util.qa.QAInfo;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Persistent store of ignore rules.
+ *
+ * The store is an append-only log file. The file starts with a magic header,
+ * followed by records of the form
+ * <code>length (int), CRC32 of payload (int), payload</code>
+ * where the payload is
+ * <code>type (byte), application name length (int), application name
+ * (UTF-8), pattern length (int), pattern (UTF-8)</code>.
+ * The type is the type of the {@link IgnoreRule}: 1 for exact messages,
+ * 2 for prefixes, 3 for globs and 4 for regular expressions. A record with
+ * the high bit of the type set (0x81 to 0x84) is a tombstone, removing the
+ * rule from the store.
+ *
+ * On load the file is memory mapped and read in one pass. A record with a
+ * wrong checksum or running past the end of the file (as left by a crash
+ * while writing) ends the log, and the file is truncated to the last good
+ * record, through a separate channel once the mapped file is closed. A file
+ * without the magic header is read as the old line-based format
+ * <code>applicationname;message</code> with newlines written as \n, in the
+ * default character set of the platform as it was written, and converted to
+ * the new format.
+ *
+ * New rules and tombstones are written by a background thread. Rules added
+ * or removed while a write is in progress are written together in one write
+ * and one sync (group commit). Rules already in the store are not written
+ * again, and rules not in it are not removed. A change is only in the store
+ * once it has been synced; if writing fails, the partial write is cut off,
+ * and the changes are written again later. Changes made after the store is
+ * closed are written synchronously.
+ *
+ * When the file contains many duplicate rules, tombstones and removed rules,
+ * it is compacted by writing the rules in the store to a new file and
+ * renaming it over the old one.
+ *
+ * This class is thread safe.
+ */
+@QAInfo(author = "agent",
+        reviewers = "",
+        level = QAInfo.Level.NORMAL,
+        state = QAInfo.State.QA_NEEDED)
+public class IgnoredMessageStore implements Closeable {
+    /** Magic header identifying the file format. */
+    private static final byte[] MAGIC
+            = {'D', 'O', 'M', 'S', 'I', 'G', 'N', '1'};
+
+    /** Record types, indexed by ordinal of the rule type. */
+    private static final byte[] RECORD_TYPES = {1, 2, 3, 4};
+
+    /** Bit set in the record type of tombstones. */
+    private static final int TOMBSTONE_BIT = 0x80;
+
+    /** Size of record header: length and checksum. */
+    private static final int RECORD_HEADER_SIZE = 8;
+
+    /** Minimum number of superfluous records before compacting. */
+    static final int COMPACT_MIN_DUPLICATES = 1000;
+
+    /** Milliseconds before retrying a failed write. */
+    private static final long RETRY_DELAY = 10000L;
+
+    /** The character set used for strings. */
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /** Logger for this class. */
+    private static Log log = LogFactory.getLog(IgnoredMessageStore.class);
+
+    /** The file backing the store. */
+    private final File file;
+
+    /** The rules in the store, in the order they were added. */
+    private final Set<IgnoreRule> entries = new LinkedHashSet<IgnoreRule>();
+
+    /**
+     * Number of records in the file, including duplicates, tombstones and
+     * removed rules.
+     */
+    private int fileRecords;
+
+    /** Channel for appending to the file. Null until loaded. */
+    private FileChannel channel;
+
+    /** Whether the store is closed. The file is then kept closed. */
+    private boolean closed;
+
+    /** Changes made, but not yet written. Guarded by itself. */
+    private final List<Change> pending = new ArrayList<Change>();
+
+    /** Whether a write of pending rules is scheduled. Guarded by pending. */
+    private boolean writeScheduled;
+
+    /** Executor for writing pending rules in the background. */
+    private final ScheduledExecutorService writer
+            = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable,
+                                               "IgnoredMessageWriter");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    /**
+     * Initialise the store. Nothing is read until {@link #load()} is called.
+     *
+     * @param file The file backing the store.
+     */
+    public IgnoredMessageStore(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Get the file backing the store.
+     *
+     * @return The file.
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Read the ignore rules from the file, and open it for appending.
+     * On trouble reading the file, the rules read until then are kept.
+     *
+     * @return The ignore rules, in the order they were added. The set is a
+     * copy, and may be modified by the caller.
+     */
+    public synchronized Set<IgnoreRule> load() {
+        log.trace("Enter load()");
+        entries.clear();
+        fileRecords = 0;
+        closeChannel();
+        boolean rewrite = false;
+        try {
+            if (file.isFile() && file.length() > 0) {
+                if (hasMagic()) {
+                    long goodLength = readLog();
+                    if (goodLength < file.length()) {
+                        log.warn("Bad record at offset " + goodLength
+                                + " in file of ignored messages '" + file
+                                + "'. Truncating file.");
+                        truncate(goodLength);
+                    }
+                } else {
+                    log.info("Converting file of ignored messages '" + file
+                            + "' from old format");
+                    readLegacy();
+                    rewrite = true;
+                }
+            }
+            if (rewrite || shouldCompact()) {
+                compact();
+            } else {
+                openChannel();
+            }
+        } catch (IOException e) {
+            log.warn("Unable to read file of ignored messages '" + file
+                    + "'. Ignoring rest of file.", e);
+        }
+        log.info("Read " + entries.size() + " ignore rules from '"
+                + file + "'");
+        return new LinkedHashSet<IgnoreRule>(entries);
+    }
+
+    /**
+     * Add an ignore rule to the store. The rule is written in the
+     * background; this method does not wait for it. If the store is closed,
+     * the rule is written before this method returns.
+     *
+     * @param rule The rule.
+     */
+    public void add(IgnoreRule rule) {
+        log.trace("Enter add('" + rule + "')");
+        enqueue(new Change(rule, false));
+    }
+
+    /**
+     * Remove an ignore rule from the store, by writing a tombstone. The
+     * tombstone is written in the background; this method does not wait for
+     * it. If the store is closed, the tombstone is written before this
+     * method returns.
+     *
+     * @param rule The rule.
+     */
+    public void remove(IgnoreRule rule) {
+        log.trace("Enter remove('" + rule + "')");
+        enqueue(new Change(rule, true));
+    }
+
+    /**
+     * Queue a change for writing, and schedule a write. If the store is
+     * closed, the change is written synchronously.
+     *
+     * @param change The change.
+     */
+    private void enqueue(Change change) {
+        boolean scheduled;
+        synchronized (pending) {
+            pending.add(change);
+            scheduled = writeScheduled || scheduleFlush(0L);
+        }
+        if (!scheduled) {
+            log.debug("Store of ignored messages '" + file + "' is closed."
+                    + " Writing change synchronously.");
+            flush();
+        }
+    }
+
+    /**
+     * Write all pending changes to the file, and sync it. The changes are
+     * only made to the store once synced. On trouble writing, what was
+     * written is cut off the file, and the changes are put back to be
+     * written again later. Compacts the file if it contains many
+     * superfluous records.
+     */
+    public synchronized void flush() {
+        List<Change> batch;
+        synchronized (pending) {
+            batch = new ArrayList<Change>(pending);
+            pending.clear();
+            writeScheduled = false;
+        }
+        Set<IgnoreRule> newEntries = new LinkedHashSet<IgnoreRule>(entries);
+        List<Change> changes = new ArrayList<Change>();
+        for (Change change : batch) {
+            if (change.removed ? newEntries.remove(change.rule)
+                    : newEntries.add(change.rule)) {
+                changes.add(change);
+            }
+        }
+        if (changes.isEmpty()) {
+            return;
+        }
+        ByteBuffer[] buffers = new ByteBuffer[changes.size()];
+        int index = 0;
+        for (Change change : changes) {
+            buffers[index++] = ByteBuffer.wrap(
+                    encodeRecord(change.rule, change.removed));
+        }
+        long start = -1L;
+        try {
+            if (channel == null) {
+                openChannel();
+            }
+            start = channel.position();
+            while (buffers[buffers.length - 1].hasRemaining()) {
+                channel.write(buffers);
+            }
+            channel.force(false);
+        } catch (IOException e) {
+            log.warn("Unable to write ignore rules to file of ignored"
+                    + " messages '" + file + "'. Retrying in " + RETRY_DELAY
+                    + " ms.", e);
+            discardWrite(start);
+            synchronized (pending) {
+                pending.addAll(0, changes);
+                if (!writeScheduled && !scheduleFlush(RETRY_DELAY)) {
+                    log.warn("Store of ignored messages '" + file
+                            + "' is closed. " + pending.size()
+                            + " changes are written on next change.");
+                }
+            }
+            return;
+        }
+        entries.clear();
+        entries.addAll(newEntries);
+        fileRecords += changes.size();
+        log.debug("Wrote " + changes.size() + " ignore rule changes to '"
+                + file + "'");
+        if (shouldCompact()) {
+            try {
+                compact();
+            } catch (IOException e) {
+                log.warn("Unable to compact file of ignored messages '"
+                        + file + "'", e);
+            }
+        }
+        if (closed) {
+            closeChannel();
+        }
+    }
+
+    /**
+     * Schedule a write of the pending rules in the background. Must be
+     * called while holding the lock of the pending rules.
+     *
+     * @param delay Milliseconds to wait before writing.
+     * @return Whether the write was scheduled. False if the store is closed.
+     */
+    private boolean scheduleFlush(long delay) {
+        try {
+            writer.schedule(new Runnable() {
+                public void run() {
+                    flush();
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+            writeScheduled = true;
+            return true;
+        } catch (RejectedExecutionException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Cut off a failed write from the end of the file, so a partly written
+     * record is not followed by the records written on retry. The file is
+     * reopened on the next write.
+     *
+     * @param start The position the write started at, or -1 if nothing was
+     * written.
+     */
+    private void discardWrite(long start) {
+        if (channel == null) {
+            return;
+        }
+        if (start >= 0) {
+            try {
+                channel.truncate(start);
+            } catch (IOException e) {
+                log.warn("Unable to cut off failed write from file of"
+                        + " ignored messages '" + file + "'", e);
+            }
+        }
+        closeChannel();
+    }
+
+    /**
+     * Rewrite the file with only the rules in the store. The new file is
+     * written next to the old one, synced, and renamed over it.
+     *
+     * @throws IOException On trouble writing the file.
+     */
+    public synchronized void compact() throws IOException {
+        log.info("Compacting file of ignored messages '" + file + "'");
+        File temporary = new File(file.getPath() + ".tmp");
+        FileOutputStream fileStream = new FileOutputStream(temporary);
+        try {
+            OutputStream out = new BufferedOutputStream(fileStream);
+            out.write(MAGIC);
+            for (IgnoreRule rule : entries) {
+                out.write(encodeRecord(rule, false));
+            }
+            out.flush();
+            fileStream.getFD().sync();
+        } finally {
+            fileStream.close();
+        }
+        closeChannel();
+        if (!temporary.renameTo(file)) {
+            // Some platforms cannot rename over an existing file
+            if (!file.delete() || !temporary.renameTo(file)) {
+                throw new IOException("Unable to rename '" + temporary
+                        + "' to '" + file + "'");
+            }
+        }
+        fileRecords = entries.size();
+        openChannel();
+    }
+
+    /**
+     * Write pending changes, and close the file. Changes made after this are
+     * written synchronously, opening and closing the file for each change.
+     */
+    public void close() {
+        writer.shutdown();
+        synchronized (this) {
+            closed = true;
+            flush();
+            closeChannel();
+        }
+    }
+
+    /**
+     * Whether the file has enough superfluous records to be compacted:
+     * duplicates, tombstones and removed rules.
+     *
+     * @return True if there are at least as many superfluous records as
+     * rules in the store, and a minimum number of superfluous records.
+     */
+    private boolean shouldCompact() {
+        int duplicates = fileRecords - entries.size();
+        return duplicates >= COMPACT_MIN_DUPLICATES
+                && duplicates >= entries.size();
+    }
+
+    /**
+     * Check whether the file starts with the magic header.
+     *
+     * @return Whether the file starts with the magic header.
+     * @throws IOException On trouble reading the file.
+     */
+    private boolean hasMagic() throws IOException {
+        byte[] header = new byte[MAGIC.length];
+        FileInputStream in = new FileInputStream(file);
+        try {
+            int read = 0;
+            while (read < header.length) {
+                int count = in.read(header, read, header.length - read);
+                if (count < 0) {
+                    return false;
+                }
+                read += count;
+            }
+        } finally {
+            in.close();
+        }
+        return Arrays.equals(header, MAGIC);
+    }
+
+    /**
+     * Read all records from the memory mapped file, until the end of the file
+     * or the first bad record. The file is opened read-only, and is not
+     * modified while mapped.
+     *
+     * @return The length of the file up to the end of the last good record.
+     * @throws IOException On trouble reading the file.
+     */
+    private long readLog() throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            FileChannel readChannel = randomAccessFile.getChannel();
+            long size = readChannel.size();
+            MappedByteBuffer buffer = readChannel.map(
+                    FileChannel.MapMode.READ_ONLY, 0, size);
+            buffer.position(MAGIC.length);
+            int goodPosition = buffer.position();
+            while (buffer.remaining() >= RECORD_HEADER_SIZE) {
+                int length = buffer.getInt();
+                int checksum = buffer.getInt();
+                if (length <= 0 || length > buffer.remaining()) {
+                    break;
+                }
+                ByteBuffer payload = buffer.slice();
+                payload.limit(length);
+                buffer.position(buffer.position() + length);
+                if (checksum(payload.duplicate()) != checksum) {
+                    break;
+                }
+                if (!decodePayload(payload)) {
+                    break;
+                }
+                fileRecords++;
+                goodPosition = buffer.position();
+            }
+            return goodPosition;
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+
+    /**
+     * Truncate the file, through a channel that has not been mapped.
+     *
+     * @param length The new length of the file.
+     * @throws IOException On trouble truncating the file.
+     */
+    private void truncate(long length) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        try {
+            randomAccessFile.getChannel().truncate(length);
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+
+    /**
+     * Read the old line-based format <code>applicationname;message</code>,
+     * where newlines in messages are written as \n. The old format was
+     * written in the default character set of the platform.
+     *
+     * @throws IOException On trouble reading the file.
+     */
+    private void readLegacy() throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new FileInputStream(file), Charset.defaultCharset()));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.trim().isEmpty()) {
+                    continue;
+                }
+                int separator = line.indexOf(';');
+                if (separator > 0) {
+                    String applicationName = line.substring(0, separator);
+                    String message = line.substring(separator + 1)
+                            .replaceAll("\\\\n", "\n");
+                    fileRecords++;
+                    entries.add(new IgnoreRule(IgnoreRule.Type.EXACT,
+                                               applicationName, message));
+                } else {
+                    log.warn("Read malformed line '" + line + "' from file '"
+                            + file + "'");
+                }
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Open the file for appending, writing the magic header if the file is
+     * empty.
+     *
+     * @throws IOException On trouble opening the file.
+     */
+    private void openChannel() throws IOException {
+        channel = new RandomAccessFile(file, "rw").getChannel();
+        if (channel.size() == 0) {
+            channel.write(ByteBuffer.wrap(MAGIC));
+        }
+        channel.position(channel.size());
+    }
+
+    /** Close the file for appending, if open. */
+    private void closeChannel() {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                log.debug("Unable to close file of ignored messages", e);
+            }
+            channel = null;
+        }
+    }
+
+    /**
+     * Decode a record payload, and add its rule to the rules in the store,
+     * or remove it for a tombstone. Records of unknown type or with invalid
+     * patterns are skipped.
+     *
+     * @param payload The payload.
+     * @return Whether the payload was well-formed.
+     */
+    private boolean decodePayload(ByteBuffer payload) {
+        if (payload.remaining() < 1) {
+            return false;
+        }
+        byte type = payload.get();
+        boolean tombstone = (type & TOMBSTONE_BIT) != 0;
+        type = (byte) (type & ~TOMBSTONE_BIT);
+        String applicationName = decodeString(payload);
+        String pattern = decodeString(payload);
+        if (applicationName == null || pattern == null) {
+            return false;
+        }
+        for (IgnoreRule.Type ruleType : IgnoreRule.Type.values()) {
+            if (RECORD_TYPES[ruleType.ordinal()] == type) {
+                try {
+                    IgnoreRule rule = new IgnoreRule(ruleType,
+                                                     applicationName,
+                                                     pattern);
+                    if (tombstone) {
+                        entries.remove(rule);
+                    } else {
+                        entries.add(rule);
+                    }
+                } catch (IllegalArgumentException e) {
+                    log.warn("Invalid ignore rule '" + pattern
+                            + "' in file of ignored messages '" + file
+                            + "'", e);
+                }
+                return true;
+            }
+        }
+        log.warn("Unknown record type " + type
+                + " in file of ignored messages '" + file + "'");
+        return true;
+    }
+
+    /**
+     * Decode a length-prefixed UTF-8 string.
+     *
+     * @param buffer The buffer to read from.
+     * @return The string, or null if the buffer does not contain a
+     * well-formed string.
+     */
+    private static String decodeString(ByteBuffer buffer) {
+        if (buffer.remaining() < 4) {
+            return null;
+        }
+        int length = buffer.getInt();
+        if (length < 0 || length > buffer.remaining()) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, UTF8);
+    }
+
+    /**
+     * Encode a rule as a record, including length and checksum.
+     *
+     * @param rule The rule.
+     * @param tombstone Whether to encode a tombstone removing the rule.
+     * @return The encoded record.
+     */
+    private static byte[] encodeRecord(IgnoreRule rule, boolean tombstone) {
+        byte type = RECORD_TYPES[rule.getType().ordinal()];
+        if (tombstone) {
+            type = (byte) (type | TOMBSTONE_BIT);
+        }
+        byte[] applicationBytes = rule.getApplicationName().getBytes(UTF8);
+        byte[] patternBytes = rule.getPattern().getBytes(UTF8);
+        int length = 1 + 4 + applicationBytes.length + 4 + patternBytes.length;
+        ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE + length);
+        record.putInt(length);
+        record.putInt(0);
+        record.put(type);
+        record.putInt(applicationBytes.length);
+        record.put(applicationBytes);
+        record.putInt(patternBytes.length);
+        record.put(patternBytes);
+        record.position(RECORD_HEADER_SIZE);
+        record.putInt(4, checksum(record.slice()));
+        return record.array();
+    }
+
+    /**
+     * Compute the CRC32 checksum of the remaining bytes of a buffer.
+     *
+     * @param buffer The buffer.
+     * @return The checksum.
+     */
+    private static int checksum(ByteBuffer buffer) {
+        CRC32 crc = new CRC32();
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        crc.update(bytes);
+        return (int) crc.getValue();
+    }
+
+    /** A change to the store, waiting to be written. */
+    private static final class Change {
+        /** The rule added or removed. */
+        private final IgnoreRule rule;
+
+        /** Whether the rule is removed. */
+        private final boolean removed;
+
+        /**
+         * Initialise a change.
+         *
+         * @param rule The rule added or removed.
+         * @param removed Whether the rule is removed.
+         */
+        private Change(IgnoreRule rule, boolean removed) {
+            this.rule = rule;
+            this.removed = removed;
+        }
+    }
+}
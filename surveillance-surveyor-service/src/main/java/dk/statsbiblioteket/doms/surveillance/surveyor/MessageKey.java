@@ -0,0 +1,197 @@
+/*
+ * $Id$
+ * $Revision$
+ * $Date$
+ * $Author$
+ *
+ * The DOMS project.
+ * Copyright (C) 2007-2010  The State and University Library
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package dk.statsbiblioteket.doms.surveillance.surveyor;
+
+import dk.statsbiblioteket.util.qa.QAInfo;
+
+import java.lang.ref.WeakReference;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * The key of a condensed status message: the textual message with a
+ * precomputed 64 bit hash. Keys compare by hash before comparing text, so
+ * lookups of different messages rarely need to compare the text.
+ *
+ * Keys can be interned with {@link #intern(String)}, so identical messages
+ * from any application share one key and one copy of the text, and keys
+ * compare by reference in the common case. Interned keys no longer in use are
+ * garbage collected. The pool is split in stripes by hash, each with its own
+ * lock, so threads interning different messages rarely wait for each other.
+ *
+ * Instances are immutable and thread safe.
+ */
+@QAInfo(author = "agent",
+        reviewers = "",
+        level = QAInfo.Level.NORMAL,
+        state = QAInfo.State.QA_NEEDED)
+public final class MessageKey {
+    /** Number of hash bits selecting a stripe of the pool. */
+    private static final int POOL_STRIPE_BITS = 6;
+
+    /**
+     * Pool of interned keys, in stripes selected by the high bits of the
+     * hash. Each stripe maps from key to weak reference to itself, and is
+     * guarded by itself.
+     */
+    private static final Map<MessageKey, WeakReference<MessageKey>>[] POOL
+            = createPool();
+
+    /** FNV-1a 64 bit offset basis. */
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+
+    /** FNV-1a 64 bit prime. */
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    /** The textual message. */
+    private final String text;
+
+    /** The 64 bit hash of the text. */
+    private final long hash;
+
+    /**
+     * Initialise a key for a textual message. The key is not interned.
+     *
+     * @param text The textual message. Should never be null.
+     * @throws IllegalArgumentException on null text.
+     */
+    public MessageKey(String text) {
+        if (text == null) {
+            throw new IllegalArgumentException(
+                    "Parameter 'String text' should not be null");
+        }
+        this.text = text;
+        this.hash = hash(text);
+    }
+
+    /**
+     * Get the interned key for a textual message. All calls with equal text
+     * return the same key, as long as the key is in use.
+     *
+     * @param text The textual message. Should never be null.
+     * @return The interned key. Never null.
+     * @throws IllegalArgumentException on null text.
+     */
+    public static MessageKey intern(String text) {
+        MessageKey key = new MessageKey(text);
+        Map<MessageKey, WeakReference<MessageKey>> stripe
+                = POOL[(int) (key.hash >>> (64 - POOL_STRIPE_BITS))];
+        synchronized (stripe) {
+            WeakReference<MessageKey> reference = stripe.get(key);
+            MessageKey interned = (reference == null) ? null : reference.get();
+            if (interned == null) {
+                stripe.put(key, new WeakReference<MessageKey>(key));
+                interned = key;
+            }
+            return interned;
+        }
+    }
+
+    /**
+     * Create the stripes of the pool of interned keys.
+     *
+     * @return The empty stripes.
+     */
+    @SuppressWarnings("unchecked")
+    private static Map<MessageKey, WeakReference<MessageKey>>[] createPool() {
+        Map<MessageKey, WeakReference<MessageKey>>[] pool
+                = new Map[1 << POOL_STRIPE_BITS];
+        for (int i = 0; i < pool.length; i++) {
+            pool[i] = new WeakHashMap<MessageKey, WeakReference<MessageKey>>();
+        }
+        return pool;
+    }
+
+    /**
+     * Get the textual message.
+     *
+     * @return The textual message. Never null.
+     */
+    public String getText() {
+        return text;
+    }
+
+    /**
+     * Get the 64 bit hash of the textual message.
+     *
+     * @return The hash.
+     */
+    public long getHash() {
+        return hash;
+    }
+
+    /**
+     * Keys are equal if they have the same textual message.
+     *
+     * @param o The object to compare with.
+     * @return Whether the object is a key with the same textual message.
+     */
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof MessageKey)) {
+            return false;
+        }
+        MessageKey other = (MessageKey) o;
+        return hash == other.hash && text.equals(other.text);
+    }
+
+    @Override
+    public int hashCode() {
+        return (int) (hash ^ (hash >>> 32));
+    }
+
+    @Override
+    public String toString() {
+        return text;
+    }
+
+    /**
+     * Compute a 64 bit hash of a text. This is FNV-1a over the characters,
+     * followed by the MurmurHash3 finalizer to spread the bits.
+     *
+     * @param text The text.
+     * @return The hash.
+     */
+    private static long hash(String text) {
+        long h = FNV_OFFSET_BASIS;
+        int length = text.length();
+        for (int i = 0; i < length; i++) {
+            h ^= text.charAt(i);
+            h *= FNV_PRIME;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
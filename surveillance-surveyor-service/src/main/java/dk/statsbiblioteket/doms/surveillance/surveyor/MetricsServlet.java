@@ -0,0 +1,73 @@
+/*
+ * $Id$
+ * $Revision$
+ * $Date$
+ * $Author$
+ *
+ * The DOMS project.
+ * Copyright (C) 2007-2010  The State and University Library
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package dk.statsbiblioteket.doms.surveillance.surveyor;
+
+import dk.statsbiblioteket.util.qa.QAInfo;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.StringWriter;
+
+/**
+ * Servlet exposing the metrics of the surveyor in the Prometheus text
+ * exposition format, see {@link SurveyorMetrics}.
+ */
+@QAInfo(author = "agent",
+        reviewers = "",
+        level = QAInfo.Level.NORMAL,
+        state = QAInfo.State.QA_NEEDED)
+public class MetricsServlet extends HttpServlet {
+    /** Content type of the Prometheus text exposition format. */
+    private static final String CONTENT_TYPE = "text/plain; version=0.0.4";
+
+    /** Logger for this class. */
+    private static Log log = LogFactory.getLog(MetricsServlet.class);
+
+    /**
+     * Write the current metrics.
+     *
+     * @param request The request.
+     * @param response The response.
+     * @throws IOException On trouble writing the response.
+     */
+    @Override
+    protected void doGet(HttpServletRequest request,
+                         HttpServletResponse response) throws IOException {
+        log.trace("Enter doGet()");
+        Surveyor surveyor = SurveyorFactory.getSurveyor();
+        StringWriter metrics = new StringWriter();
+        surveyor.getMetrics().write(surveyor.getStatusSnapshot(), metrics);
+        response.setContentType(CONTENT_TYPE);
+        response.setCharacterEncoding("UTF-8");
+        response.setHeader("Cache-Control", "no-cache");
+        response.getWriter().write(metrics.toString());
+    }
+}
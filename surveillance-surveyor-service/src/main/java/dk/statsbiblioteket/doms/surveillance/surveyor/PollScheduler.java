@@ -0,0 +1,218 @@
+/*
+ * $Id$
+ * $Revision$
+ * $Date$
+ * $Author$
+ *
+ * The DOMS project.
+ * Copyright (C) 2007-2010  The State and University Library
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package dk.statsbiblioteket.doms.surveillance.surveyor;
+
+import dk.statsbiblioteket.doms.domsutil.surveyable.Severity;
+import dk.statsbiblioteket.util.qa.QAInfo;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Schedule of queries of status URLs, giving each status URL its own poll
+ * interval.
+ *
+ * A new status URL is due immediately, and starts with the initial
+ * interval. After each query, the interval is halved if the status URL
+ * reported RED or new log messages, and increased by half if it reported
+ * only GREEN and no new log messages. Otherwise it is unchanged. The
+ * interval is always kept between the minimum and the maximum interval.
+ *
+ * This class is not thread safe. The surveyor using it guards it with its
+ * own lock.
+ */
+@QAInfo(author = "agent",
+        reviewers = "",
+        level = QAInfo.Level.NORMAL,
+        state = QAInfo.State.QA_NEEDED)
+public class PollScheduler {
+    /**
+     * Milliseconds a status URL may be queried before it is due, so status
+     * URLs due at nearly the same time are queried in the same poll.
+     */
+    public static final long GRANULARITY = 1000L;
+
+    /** The schedule of a single status URL. */
+    private static class Entry {
+        /** Current interval in milliseconds. */
+        private long interval;
+
+        /** Time when the status URL is due. */
+        private long nextPollTime;
+    }
+
+    /** The schedule of each status URL. */
+    private final Map<String, Entry> entries = new HashMap<String, Entry>();
+
+    /** Interval of new status URLs. */
+    private long initialInterval;
+
+    /** Minimum interval. */
+    private long minInterval;
+
+    /** Maximum interval. */
+    private long maxInterval;
+
+    /**
+     * Initialise an empty schedule.
+     *
+     * @param initialInterval Milliseconds between queries of a new status
+     * URL.
+     * @param minInterval Minimum milliseconds between queries.
+     * @param maxInterval Maximum milliseconds between queries.
+     */
+    public PollScheduler(long initialInterval, long minInterval,
+                         long maxInterval) {
+        setIntervals(initialInterval, minInterval, maxInterval);
+    }
+
+    /**
+     * Set the intervals. Current intervals are moved within the new bounds.
+     * If the minimum is greater than the maximum, the maximum is used for
+     * both.
+     *
+     * @param initialInterval Milliseconds between queries of a new status
+     * URL.
+     * @param minInterval Minimum milliseconds between queries.
+     * @param maxInterval Maximum milliseconds between queries.
+     */
+    public void setIntervals(long initialInterval, long minInterval,
+                             long maxInterval) {
+        this.maxInterval = maxInterval;
+        this.minInterval = Math.min(minInterval, maxInterval);
+        this.initialInterval = bound(initialInterval);
+        for (Entry entry : entries.values()) {
+            entry.interval = bound(entry.interval);
+        }
+    }
+
+    /**
+     * Keep only the schedules of the given status URLs.
+     *
+     * @param statusUrls The status URLs to keep.
+     */
+    public void retainAll(Collection<String> statusUrls) {
+        entries.keySet().retainAll(statusUrls);
+    }
+
+    /**
+     * Check whether a status URL is due to be queried.
+     *
+     * @param statusUrl The status URL.
+     * @param now The current time.
+     * @return Whether the status URL is due within the granularity. Always
+     * true for status URLs not yet queried.
+     */
+    public boolean isDue(String statusUrl, long now) {
+        Entry entry = entries.get(statusUrl);
+        return entry == null || entry.nextPollTime <= now + GRANULARITY;
+    }
+
+    /**
+     * Record a query of a status URL, and schedule the next query.
+     *
+     * @param statusUrl The status URL.
+     * @param now The time of the query.
+     * @param severity The greatest severity reported.
+     * @param newMessages Whether new log messages were reported.
+     */
+    public void recordQuery(String statusUrl, long now, Severity severity,
+                            boolean newMessages) {
+        Entry entry = getEntry(statusUrl);
+        if (severity == Severity.RED || newMessages) {
+            entry.interval = bound(entry.interval / 2);
+        } else if (severity == Severity.GREEN) {
+            entry.interval = bound(entry.interval + entry.interval / 2);
+        }
+        entry.nextPollTime = now + entry.interval;
+    }
+
+    /**
+     * Postpone the next query of a status URL, without changing its
+     * interval.
+     *
+     * @param statusUrl The status URL.
+     * @param time The time when the status URL is due.
+     */
+    public void postpone(String statusUrl, long time) {
+        Entry entry = getEntry(statusUrl);
+        entry.nextPollTime = Math.max(entry.nextPollTime, time);
+    }
+
+    /**
+     * Get the current interval of a status URL.
+     *
+     * @param statusUrl The status URL.
+     * @return The interval in milliseconds.
+     */
+    public long getInterval(String statusUrl) {
+        Entry entry = entries.get(statusUrl);
+        return entry == null ? initialInterval : entry.interval;
+    }
+
+    /**
+     * Get the time when the next status URL is due.
+     *
+     * @param now The current time.
+     * @return The earliest due time of the known status URLs, or now plus
+     * the initial interval if none are known.
+     */
+    public long getNextPollTime(long now) {
+        long next = Long.MAX_VALUE;
+        for (Entry entry : entries.values()) {
+            next = Math.min(next, entry.nextPollTime);
+        }
+        return next == Long.MAX_VALUE ? now + initialInterval : next;
+    }
+
+    /**
+     * Get the schedule of a status URL, creating it if necessary.
+     *
+     * @param statusUrl The status URL.
+     * @return The schedule.
+     */
+    private Entry getEntry(String statusUrl) {
+        Entry entry = entries.get(statusUrl);
+        if (entry == null) {
+            entry = new Entry();
+            entry.interval = initialInterval;
+            entries.put(statusUrl, entry);
+        }
+        return entry;
+    }
+
+    /**
+     * Keep an interval within the minimum and maximum interval.
+     *
+     * @param interval The interval.
+     * @return The bounded interval.
+     */
+    private long bound(long interval) {
+        return Math.max(minInterval, Math.min(maxInterval, interval));
+    }
+}
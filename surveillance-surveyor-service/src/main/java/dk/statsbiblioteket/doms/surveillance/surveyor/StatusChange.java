@@ -0,0 +1,311 @@
+/*
+ * $Id$
+ * $Revision$
+ * $Date$
+ * $Author$
+ *
+ * The DOMS project.
+ * Copyright (C) 2007-2010  The State and University Library
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package dk.statsbiblioteket.doms.surveillance.surveyor;
+
+import dk.statsbiblioteket.util.qa.QAInfo;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A change to the state of the surveyor: a change to the status of an
+ * application, as found by comparing two published status maps, or an
+ * added or removed ignore rule.
+ *
+ * Realtime messages are replaced on every poll, and services stamp them
+ * with the current time, so a realtime message that only got new times is
+ * not a change; otherwise every poll would fill the bounded change log with
+ * such entries. The times of realtime messages are only found in the status
+ * document. A log message that occurred again is reported as updated.
+ *
+ * Instances are immutable and thread safe.
+ */
+@QAInfo(author = "agent",
+        reviewers = "",
+        level = QAInfo.Level.NORMAL,
+        state = QAInfo.State.QA_NEEDED)
+public final class StatusChange {
+    /** The types of change. */
+    public enum Type {
+        /** A message appeared. */
+        ADDED,
+        /** A message was updated, without becoming more severe. */
+        UPDATED,
+        /** A message became more severe. */
+        ESCALATED,
+        /** A message was handled, ignored, evicted or disappeared. */
+        REMOVED,
+        /** An ignore rule was added. */
+        IGNORE_RULE_ADDED,
+        /** An ignore rule was removed. */
+        IGNORE_RULE_REMOVED
+    }
+
+    /** The sequence number of the change in the change log. */
+    private final long sequence;
+
+    /** The type of change. */
+    private final Type type;
+
+    /** The name of the application. */
+    private final String applicationName;
+
+    /**
+     * The message after the change, or before it if removed. Null for
+     * changes to ignore rules.
+     */
+    private final CondensedStatusMessage message;
+
+    /** The added or removed ignore rule. Null for other changes. */
+    private final IgnoreRule ignoreRule;
+
+    /**
+     * Initialise a change to a message.
+     *
+     * @param sequence The sequence number.
+     * @param type The type of change.
+     * @param applicationName The name of the application.
+     * @param message The message after the change, or before it if removed.
+     */
+    public StatusChange(long sequence, Type type, String applicationName,
+                        CondensedStatusMessage message) {
+        this(sequence, type, applicationName, message, null);
+    }
+
+    /**
+     * Initialise a change adding an ignore rule.
+     *
+     * @param sequence The sequence number.
+     * @param ignoreRule The added ignore rule.
+     */
+    public StatusChange(long sequence, IgnoreRule ignoreRule) {
+        this(sequence, Type.IGNORE_RULE_ADDED, ignoreRule);
+    }
+
+    /**
+     * Initialise a change adding or removing an ignore rule.
+     *
+     * @param sequence The sequence number.
+     * @param type {@link Type#IGNORE_RULE_ADDED} or
+     * {@link Type#IGNORE_RULE_REMOVED}.
+     * @param ignoreRule The added or removed ignore rule.
+     */
+    public StatusChange(long sequence, Type type, IgnoreRule ignoreRule) {
+        this(sequence, type, ignoreRule.getApplicationName(), null,
+             ignoreRule);
+    }
+
+    /**
+     * Initialise a change.
+     *
+     * @param sequence The sequence number.
+     * @param type The type of change.
+     * @param applicationName The name of the application.
+     * @param message The changed message, or null.
+     * @param ignoreRule The added or removed ignore rule, or null.
+     */
+    private StatusChange(long sequence, Type type, String applicationName,
+                         CondensedStatusMessage message,
+                         IgnoreRule ignoreRule) {
+        this.sequence = sequence;
+        this.type = type;
+        this.applicationName = applicationName;
+        this.message = message;
+        this.ignoreRule = ignoreRule;
+    }
+
+    /**
+     * Get the sequence number of the change. Sequence numbers increase by
+     * one for every change in the change log.
+     *
+     * @return The sequence number.
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * Get the type of change.
+     *
+     * @return The type.
+     */
+    public Type getType() {
+        return type;
+    }
+
+    /**
+     * Get the name of the application whose status changed, or the
+     * application an added or removed ignore rule applies to.
+     *
+     * @return The application name, or {@link IgnoreRule#ALL_APPLICATIONS}
+     * for an ignore rule applying to all applications.
+     */
+    public String getApplicationName() {
+        return applicationName;
+    }
+
+    /**
+     * Get the changed message.
+     *
+     * @return The message after the change, or before it if removed. Null
+     * for changes to ignore rules.
+     */
+    public CondensedStatusMessage getMessage() {
+        return message;
+    }
+
+    /**
+     * Get the added or removed ignore rule.
+     *
+     * @return The ignore rule. Null for changes to messages.
+     */
+    public IgnoreRule getIgnoreRule() {
+        return ignoreRule;
+    }
+
+    /**
+     * Get a copy of this change with another sequence number.
+     *
+     * @param sequence The sequence number.
+     * @return The copy.
+     */
+    StatusChange withSequence(long sequence) {
+        return new StatusChange(sequence, type, applicationName, message,
+                                ignoreRule);
+    }
+
+    /**
+     * Find the changes between two status maps. Statuses that are the same
+     * instance in both maps are not compared, and log messages are not
+     * compared if the two statuses share them. The changes found have
+     * sequence number 0.
+     *
+     * @param oldStatusMap The old status map.
+     * @param newStatusMap The new status map.
+     * @param changes List to add the changes to.
+     */
+    static void diff(Map<String, CondensedStatus> oldStatusMap,
+                     Map<String, CondensedStatus> newStatusMap,
+                     List<StatusChange> changes) {
+        for (CondensedStatus newStatus : newStatusMap.values()) {
+            CondensedStatus oldStatus = oldStatusMap.get(newStatus.getName());
+            if (oldStatus != newStatus) {
+                diff(oldStatus, newStatus, changes);
+            }
+        }
+        for (CondensedStatus oldStatus : oldStatusMap.values()) {
+            if (!newStatusMap.containsKey(oldStatus.getName())) {
+                diff(oldStatus, null, changes);
+            }
+        }
+    }
+
+    /**
+     * Find the changes between two statuses of the same application.
+     *
+     * @param oldStatus The old status, or null if none.
+     * @param newStatus The new status, or null if none.
+     * @param changes List to add the changes to.
+     */
+    private static void diff(CondensedStatus oldStatus,
+                             CondensedStatus newStatus,
+                             List<StatusChange> changes) {
+        boolean compareLog = oldStatus == null || newStatus == null
+                || !oldStatus.sharesLogMessages(newStatus);
+        if (newStatus != null) {
+            Collection<CondensedStatusMessage> newMessages = compareLog
+                    ? newStatus.getMessages()
+                    : newStatus.getRealtimeMessages();
+            for (CondensedStatusMessage message : newMessages) {
+                CondensedStatusMessage oldMessage = oldStatus == null ? null
+                        : oldStatus.getMessage(message.getKey());
+                Type type = compare(oldMessage, message);
+                if (type != null) {
+                    changes.add(new StatusChange(0L, type,
+                                                 newStatus.getName(),
+                                                 message));
+                }
+            }
+        }
+        if (oldStatus != null) {
+            Collection<CondensedStatusMessage> oldMessages = compareLog
+                    ? oldStatus.getMessages()
+                    : oldStatus.getRealtimeMessages();
+            for (CondensedStatusMessage message : oldMessages) {
+                if (newStatus == null
+                        || newStatus.getMessage(message.getKey()) == null) {
+                    changes.add(new StatusChange(0L, Type.REMOVED,
+                                                 oldStatus.getName(),
+                                                 message));
+                }
+            }
+        }
+    }
+
+    /**
+     * Compare a message to the message with the same text before.
+     *
+     * @param oldMessage The old message, or null if none.
+     * @param newMessage The new message.
+     * @return The type of change, or null if not changed, or only the times
+     * of a realtime message changed.
+     */
+    private static Type compare(CondensedStatusMessage oldMessage,
+                                CondensedStatusMessage newMessage) {
+        if (oldMessage == null) {
+            return Type.ADDED;
+        }
+        if (oldMessage == newMessage) {
+            return null;
+        }
+        if (oldMessage.getSeverity() != newMessage.getSeverity()) {
+            if (CondensedStatusMessage.maxSeverity(
+                    oldMessage.getSeverity(), newMessage.getSeverity())
+                    == newMessage.getSeverity()) {
+                return Type.ESCALATED;
+            }
+            return Type.UPDATED;
+        }
+        if (oldMessage.isLogMessage() != newMessage.isLogMessage()
+                || oldMessage.getNumber() != newMessage.getNumber()) {
+            return Type.UPDATED;
+        }
+        if (oldMessage.getFirstTime() != newMessage.getFirstTime()
+                || oldMessage.getLastTime() != newMessage.getLastTime()) {
+            return newMessage.isLogMessage() ? Type.UPDATED : null;
+        }
+        return null;
+    }
+
+    @Override
+    public String toString() {
+        return sequence + " " + type + " " + applicationName + ": "
+                + (message == null ? ignoreRule.getPattern()
+                : message.getMessage());
+    }
+}
@@ -0,0 +1,214 @@
+/*
+ * $Id$
+ * $Revision$
+ * $Date$
+ * $Author$
+ *
+ * The DOMS project.
+ * Copyright (C) 2007-2010  The State and University Library
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package dk.statsbiblioteket.doms.surveillance.surveyor;
+
+import dk.statsbiblioteket.util.qa.QAInfo;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A bounded log of status changes, for pushing changes to clients.
+ *
+ * Changes are numbered with sequence numbers starting from 1 and increasing
+ * by one. Only the newest changes are retained; a client asking for changes
+ * since a sequence number no longer retained must read the whole status
+ * again. Clients can wait for new changes with
+ * {@link #awaitChangesSince(long, long)}.
+ *
+ * The epoch identifies the surveyor instance, so clients can tell when
+ * sequence numbers have restarted. When the surveyor is stopped, the log is
+ * closed, which releases all waiting clients.
+ *
+ * This class is thread safe.
+ */
+@QAInfo(author = "agent",
+        reviewers = "",
+        level = QAInfo.Level.NORMAL,
+        state = QAInfo.State.QA_NEEDED)
+public class StatusChangeLog {
+    /** The epoch of the surveyor instance. */
+    private final long epoch;
+
+    /** Ring buffer of retained changes. */
+    private StatusChange[] changes;
+
+    /** Sequence number of the next change. */
+    private long nextSequence = 1L;
+
+    /** Sequence number of the oldest retained change. */
+    private long firstSequence = 1L;
+
+    /** Whether the log is closed. */
+    private boolean closed;
+
+    /**
+     * Initialise an empty log.
+     *
+     * @param epoch The epoch of the surveyor instance.
+     * @param capacity The maximum number of changes retained.
+     */
+    public StatusChangeLog(long epoch, int capacity) {
+        this.epoch = epoch;
+        this.changes = new StatusChange[capacity];
+    }
+
+    /**
+     * Get the epoch of the surveyor instance.
+     *
+     * @return The epoch.
+     */
+    public long getEpoch() {
+        return epoch;
+    }
+
+    /**
+     * Get the sequence number of the newest change.
+     *
+     * @return The sequence number, or 0 if there are no changes.
+     */
+    public synchronized long getLatestSequence() {
+        return nextSequence - 1;
+    }
+
+    /**
+     * Change the maximum number of changes retained. The newest changes are
+     * kept.
+     *
+     * @param capacity The maximum number of changes retained.
+     */
+    public synchronized void setCapacity(int capacity) {
+        if (capacity == changes.length) {
+            return;
+        }
+        StatusChange[] resized = new StatusChange[capacity];
+        long first = Math.max(firstSequence, nextSequence - capacity);
+        for (long sequence = first; sequence < nextSequence; sequence++) {
+            resized[(int) (sequence % capacity)] = get(sequence);
+        }
+        changes = resized;
+        firstSequence = first;
+    }
+
+    /**
+     * Append changes to the log, numbering them, and wake up clients
+     * waiting for changes.
+     *
+     * @param newChanges The changes. The sequence numbers are ignored.
+     * @return The sequence number of the newest change.
+     */
+    public synchronized long append(List<StatusChange> newChanges) {
+        if (newChanges.isEmpty()) {
+            return nextSequence - 1;
+        }
+        for (StatusChange change : newChanges) {
+            changes[(int) (nextSequence % changes.length)]
+                    = change.withSequence(nextSequence);
+            nextSequence++;
+        }
+        firstSequence = Math.max(firstSequence,
+                                 nextSequence - changes.length);
+        notifyAll();
+        return nextSequence - 1;
+    }
+
+    /**
+     * Get the changes after a given sequence number.
+     *
+     * @param sequence The sequence number of the last change seen, or 0 for
+     * all changes.
+     * @return The changes after the given sequence number, oldest first. Null
+     * if some of these changes are no longer retained, or the sequence number
+     * is newer than the newest change, in which case the client must read the
+     * whole status again.
+     */
+    public synchronized List<StatusChange> getChangesSince(long sequence) {
+        if (sequence < firstSequence - 1 || sequence >= nextSequence) {
+            return null;
+        }
+        if (sequence == nextSequence - 1) {
+            return Collections.emptyList();
+        }
+        List<StatusChange> result = new ArrayList<StatusChange>(
+                (int) (nextSequence - 1 - sequence));
+        for (long next = sequence + 1; next < nextSequence; next++) {
+            result.add(get(next));
+        }
+        return result;
+    }
+
+    /**
+     * Get the changes after a given sequence number, waiting for some if
+     * there are none yet. Does not wait if the log is closed.
+     *
+     * @param sequence The sequence number of the last change seen.
+     * @param timeout The maximum number of milliseconds to wait.
+     * @return As {@link #getChangesSince(long)}. Empty if no changes arrived
+     * before the timeout or the log was closed.
+     * @throws InterruptedException If interrupted while waiting.
+     */
+    public synchronized List<StatusChange> awaitChangesSince(long sequence,
+                                                             long timeout)
+            throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+        long remaining = timeout;
+        while (!closed && sequence == nextSequence - 1 && remaining > 0) {
+            wait(remaining);
+            remaining = deadline - System.currentTimeMillis();
+        }
+        return getChangesSince(sequence);
+    }
+
+    /**
+     * Close the log, waking up all clients waiting for changes. Changes
+     * already in the log can still be read.
+     */
+    public synchronized void close() {
+        closed = true;
+        notifyAll();
+    }
+
+    /**
+     * Whether the log is closed, because the surveyor is stopped.
+     *
+     * @return True if the log is closed.
+     */
+    public synchronized boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Get a retained change.
+     *
+     * @param sequence The sequence number of the change.
+     * @return The change.
+     */
+    private StatusChange get(long sequence) {
+        return changes[(int) (sequence % changes.length)];
+    }
+}
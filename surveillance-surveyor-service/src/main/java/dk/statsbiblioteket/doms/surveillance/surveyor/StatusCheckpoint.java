@@ -0,0 +1,307 @@
+/*
+ * $Id$
+ * $Revision$
+ * $Date$
+ * $Author$
+ *
+ * The DOMS project.
+ * Copyright (C) 2007-2010  The State and University Library
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package dk.statsbiblioteket.doms.surveillance.surveyor;
+
+import dk.statsbiblioteket.doms.domsutil.surveyable.Severity;
+import dk.statsbiblioteket.util.qa.QAInfo;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * A file holding a checkpoint of the surveyor state: the status map and the
+ * time of the newest message received from each status URL. This lets a
+ * restarted surveyor continue where it left off.
+ *
+ * The file starts with a magic header, the length of the contents (int) and
+ * a CRC32 checksum of the contents (int). The contents are
+ * <code>time written (long), number of URLs (int), for each URL: URL
+ * (string), time of newest message (long), number of statuses (int), for
+ * each status: name (string), number of messages (int), for each message:
+ * message (string), severity name (string), log message (byte), first time
+ * (long), last time (long), number (int)</code>, where strings are written
+ * as length (int) and UTF-8.
+ *
+ * A checkpoint is written to a new file next to the old one, synced, and
+ * renamed over the old one, so a crash never leaves a partial checkpoint.
+ * A checkpoint is read by memory mapping the file; a file with a wrong
+ * checksum is ignored.
+ *
+ * This class is thread safe.
+ */
+@QAInfo(author = "agent",
+        reviewers = "",
+        level = QAInfo.Level.NORMAL,
+        state = QAInfo.State.QA_NEEDED)
+public class StatusCheckpoint {
+    /** Magic header identifying the file format. */
+    private static final byte[] MAGIC
+            = {'D', 'O', 'M', 'S', 'C', 'K', 'P', '1'};
+
+    /** Size of the header: magic, length and checksum. */
+    private static final int HEADER_SIZE = MAGIC.length + 8;
+
+    /** The character set used for strings. */
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /** Logger for this class. */
+    private static Log log = LogFactory.getLog(StatusCheckpoint.class);
+
+    /** The checkpoint file. */
+    private final File file;
+
+    /**
+     * Initialise a checkpoint. Nothing is read or written.
+     *
+     * @param file The checkpoint file.
+     */
+    public StatusCheckpoint(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Get the checkpoint file.
+     *
+     * @return The file.
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Write a checkpoint, replacing any previous one.
+     *
+     * @param statusMap The status map.
+     * @param newestStatusTimes Map from status URL to time of the newest
+     * message received from it.
+     * @throws IOException On trouble writing the file. The previous
+     * checkpoint is left in place.
+     */
+    public synchronized void write(Map<String, CondensedStatus> statusMap,
+                                   Map<String, Long> newestStatusTimes)
+            throws IOException {
+        log.trace("Enter write()");
+        File temporary = new File(file.getPath() + ".tmp");
+        FileOutputStream fileStream = new FileOutputStream(temporary);
+        try {
+            fileStream.write(MAGIC);
+            fileStream.write(new byte[HEADER_SIZE - MAGIC.length]);
+            CheckedOutputStream checked = new CheckedOutputStream(
+                    new BufferedOutputStream(fileStream), new CRC32());
+            DataOutputStream out = new DataOutputStream(checked);
+            out.writeLong(System.currentTimeMillis());
+            out.writeInt(newestStatusTimes.size());
+            for (Map.Entry<String, Long> entry
+                    : newestStatusTimes.entrySet()) {
+                writeString(out, entry.getKey());
+                out.writeLong(entry.getValue());
+            }
+            out.writeInt(statusMap.size());
+            for (CondensedStatus status : statusMap.values()) {
+                writeString(out, status.getName());
+                out.writeInt(status.getMessages().size());
+                for (CondensedStatusMessage message : status.getMessages()) {
+                    writeString(out, message.getMessage());
+                    writeString(out, message.getSeverity().name());
+                    out.writeByte(message.isLogMessage() ? 1 : 0);
+                    out.writeLong(message.getFirstTime());
+                    out.writeLong(message.getLastTime());
+                    out.writeInt(message.getNumber());
+                }
+            }
+            out.flush();
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE - MAGIC.length);
+            header.putInt(out.size());
+            header.putInt((int) checked.getChecksum().getValue());
+            header.flip();
+            fileStream.getChannel().write(header, MAGIC.length);
+            fileStream.getFD().sync();
+        } finally {
+            fileStream.close();
+        }
+        if (!temporary.renameTo(file)) {
+            // Some platforms cannot rename over an existing file
+            if (!file.delete() || !temporary.renameTo(file)) {
+                throw new IOException("Unable to rename '" + temporary
+                        + "' to '" + file + "'");
+            }
+        }
+        log.debug("Wrote checkpoint of " + statusMap.size()
+                + " statuses to '" + file + "'");
+    }
+
+    /**
+     * Read the checkpoint.
+     *
+     * @param newestStatusTimes Map to fill with the time of the newest
+     * message received from each status URL.
+     * @return The status map, or null if there is no valid checkpoint.
+     */
+    public synchronized Map<String, CondensedStatus> read(
+            Map<String, Long> newestStatusTimes) {
+        log.trace("Enter read()");
+        if (!file.isFile() || file.length() < HEADER_SIZE) {
+            return null;
+        }
+        try {
+            RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+            try {
+                FileChannel channel = randomAccessFile.getChannel();
+                MappedByteBuffer buffer = channel.map(
+                        FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                byte[] magic = new byte[MAGIC.length];
+                buffer.get(magic);
+                int length = buffer.getInt();
+                int checksum = buffer.getInt();
+                if (!Arrays.equals(magic, MAGIC) || length < 0
+                        || length != buffer.remaining()
+                        || checksum(buffer.duplicate()) != checksum) {
+                    log.warn("Ignoring invalid checkpoint '" + file + "'");
+                    return null;
+                }
+                return read(buffer, newestStatusTimes);
+            } finally {
+                randomAccessFile.close();
+            }
+        } catch (IOException e) {
+            log.warn("Unable to read checkpoint '" + file + "'", e);
+        } catch (RuntimeException e) {
+            //Malformed contents with a valid checksum
+            log.warn("Unable to parse checkpoint '" + file + "'", e);
+        }
+        return null;
+    }
+
+    /**
+     * Parse the contents of a checkpoint.
+     *
+     * @param buffer The contents.
+     * @param newestStatusTimes Map to fill with the time of the newest
+     * message received from each status URL.
+     * @return The status map.
+     * @throws BufferUnderflowException If the contents are truncated.
+     * @throws IllegalArgumentException If a severity is unknown.
+     */
+    private Map<String, CondensedStatus> read(
+            ByteBuffer buffer, Map<String, Long> newestStatusTimes) {
+        long time = buffer.getLong();
+        int urls = buffer.getInt();
+        Map<String, Long> times = new HashMap<String, Long>();
+        for (int i = 0; i < urls; i++) {
+            String url = readString(buffer);
+            times.put(url, buffer.getLong());
+        }
+        int statuses = buffer.getInt();
+        Map<String, CondensedStatus> statusMap
+                = new HashMap<String, CondensedStatus>();
+        for (int i = 0; i < statuses; i++) {
+            CondensedStatus status = new CondensedStatus(readString(buffer));
+            int messages = buffer.getInt();
+            for (int j = 0; j < messages; j++) {
+                MessageKey key = MessageKey.intern(readString(buffer));
+                Severity severity = Severity.valueOf(readString(buffer));
+                boolean logMessage = buffer.get() != 0;
+                long firstTime = buffer.getLong();
+                long lastTime = buffer.getLong();
+                int number = buffer.getInt();
+                status.addMessage(new CondensedStatusMessage(
+                        key, severity, firstTime, lastTime, logMessage,
+                        number));
+            }
+            statusMap.put(status.getName(), status);
+        }
+        newestStatusTimes.putAll(times);
+        log.info("Read checkpoint of " + statusMap.size() + " statuses from '"
+                + file + "', written at " + new Date(time));
+        return statusMap;
+    }
+
+    /**
+     * Write a string as length and UTF-8.
+     *
+     * @param out The stream to write to.
+     * @param string The string.
+     * @throws IOException On trouble writing.
+     */
+    private static void writeString(DataOutputStream out, String string)
+            throws IOException {
+        byte[] bytes = string.getBytes(UTF8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Read a string written as length and UTF-8.
+     *
+     * @param buffer The buffer to read from.
+     * @return The string.
+     * @throws BufferUnderflowException If the string is truncated.
+     */
+    private static String readString(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0 || length > buffer.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, UTF8);
+    }
+
+    /**
+     * Compute the CRC32 checksum of the remaining bytes of a buffer.
+     *
+     * @param buffer The buffer.
+     * @return The checksum.
+     */
+    private static int checksum(ByteBuffer buffer) {
+        CRC32 crc = new CRC32();
+        byte[] chunk = new byte[8192];
+        while (buffer.hasRemaining()) {
+            int count = Math.min(chunk.length, buffer.remaining());
+            buffer.get(chunk, 0, count);
+            crc.update(chunk, 0, count);
+        }
+        return (int) crc.getValue();
+    }
+}
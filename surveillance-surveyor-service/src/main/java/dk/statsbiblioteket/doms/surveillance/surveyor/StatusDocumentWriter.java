@@ -0,0 +1,429 @@
+/*
+ * $Id$
+ * $Revision$
+ * $Date$
+ * $Author$
+ *
+ * The DOMS project.
+ * Copyright (C) 2007-2010  The State and University Library
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package dk.statsbiblioteket.doms.surveillance.surveyor;
+
+import dk.statsbiblioteket.util.qa.QAInfo;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Collection;
+
+/**
+ * Writes condensed statuses as JSON or XML. The documents are written
+ * directly to a writer, without building an intermediate tree.
+ *
+ * The JSON document has the form
+ * <pre>
+ * {"epoch":..., "version":..., "sequence":..., "time":...,
+ *  "applications":[{"name":"...", "severity":"RED",
+ *    "messages":[{"message":"...", "severity":"RED", "logMessage":true,
+ *                 "firstTime":..., "lastTime":..., "number":...}]}]}
+ * </pre>
+ * The XML document has the same structure:
+ * <pre>
+ * &lt;status epoch="..." version="..." sequence="..." time="..."&gt;
+ *   &lt;application name="..." severity="RED"&gt;
+ *     &lt;message severity="RED" logMessage="true" firstTime="..."
+ *              lastTime="..." number="..."&gt;...&lt;/message&gt;
+ *   &lt;/application&gt;
+ * &lt;/status&gt;
+ * </pre>
+ * Times are milliseconds since epoch. The time of the document is the time
+ * the version was published, not the time of the latest poll, so the
+ * document only changes with the version and the times of realtime
+ * messages.
+ */
+@QAInfo(author = "agent",
+        reviewers = "",
+        level = QAInfo.Level.NORMAL,
+        state = QAInfo.State.QA_NEEDED)
+public class StatusDocumentWriter {
+    /** Hexadecimal digits for escapes. */
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    /** Utility class, do not instantiate. */
+    private StatusDocumentWriter() {
+    }
+
+    /**
+     * Write statuses as JSON.
+     *
+     * @param snapshot The snapshot the statuses are from.
+     * @param statuses The statuses to write.
+     * @param out The writer to write to. Not flushed or closed.
+     * @throws IOException On trouble writing.
+     */
+    public static void writeJson(StatusSnapshot snapshot,
+                                 Collection<CondensedStatus> statuses,
+                                 Writer out) throws IOException {
+        out.write("{\"epoch\":");
+        out.write(Long.toString(snapshot.getEpoch()));
+        out.write(",\"version\":");
+        out.write(Long.toString(snapshot.getVersion()));
+        out.write(",\"sequence\":");
+        out.write(Long.toString(snapshot.getSequence()));
+        out.write(",\"time\":");
+        out.write(Long.toString(snapshot.getTime()));
+        out.write(",\"applications\":[");
+        boolean first = true;
+        for (CondensedStatus status : statuses) {
+            if (!first) {
+                out.write(',');
+            }
+            first = false;
+            writeJson(status, out);
+        }
+        out.write("]}");
+    }
+
+    /**
+     * Write one status as a JSON object.
+     *
+     * @param status The status.
+     * @param out The writer to write to.
+     * @throws IOException On trouble writing.
+     */
+    public static void writeJson(CondensedStatus status, Writer out)
+            throws IOException {
+        out.write("{\"name\":");
+        writeJsonString(status.getName(), out);
+        out.write(",\"severity\":\"");
+        out.write(status.getSeverity().toString());
+        out.write("\",\"messages\":[");
+        boolean first = true;
+        for (CondensedStatusMessage message : status.getMessages()) {
+            if (!first) {
+                out.write(',');
+            }
+            first = false;
+            writeJson(message, out);
+        }
+        out.write("]}");
+    }
+
+    /**
+     * Write one message as a JSON object.
+     *
+     * @param message The message.
+     * @param out The writer to write to.
+     * @throws IOException On trouble writing.
+     */
+    public static void writeJson(CondensedStatusMessage message, Writer out)
+            throws IOException {
+        out.write("{\"message\":");
+        writeJsonString(message.getMessage(), out);
+        out.write(",\"severity\":\"");
+        out.write(message.getSeverity().toString());
+        out.write("\",\"logMessage\":");
+        out.write(Boolean.toString(message.isLogMessage()));
+        out.write(",\"firstTime\":");
+        out.write(Long.toString(message.getFirstTime()));
+        out.write(",\"lastTime\":");
+        out.write(Long.toString(message.getLastTime()));
+        out.write(",\"number\":");
+        out.write(Integer.toString(message.getNumber()));
+        out.write('}');
+    }
+
+    /**
+     * Write changes as JSON, in the form
+     * <code>{"epoch":..., "sequence":..., "resync":false,
+     * "changes":[...]}</code>, where sequence is the sequence number of the
+     * newest change, and each change is written as by
+     * {@link #writeJson(StatusChange, Writer)}.
+     *
+     * @param changeLog The change log the changes are from.
+     * @param sequence The sequence number of the newest change.
+     * @param changes The changes, or null if the client must read the whole
+     * status again.
+     * @param out The writer to write to. Not flushed or closed.
+     * @throws IOException On trouble writing.
+     */
+    public static void writeJson(StatusChangeLog changeLog, long sequence,
+                                 Collection<StatusChange> changes,
+                                 Writer out) throws IOException {
+        out.write("{\"epoch\":");
+        out.write(Long.toString(changeLog.getEpoch()));
+        out.write(",\"sequence\":");
+        out.write(Long.toString(sequence));
+        out.write(",\"resync\":");
+        out.write(Boolean.toString(changes == null));
+        out.write(",\"changes\":[");
+        if (changes != null) {
+            boolean first = true;
+            for (StatusChange change : changes) {
+                if (!first) {
+                    out.write(',');
+                }
+                first = false;
+                writeJson(change, out);
+            }
+        }
+        out.write("]}");
+    }
+
+    /**
+     * Write a change as a JSON object of the form
+     * <code>{"sequence":..., "type":"ADDED", "application":"...",
+     * "message":{...}}</code>, where the message is written as by
+     * {@link #writeJson(CondensedStatusMessage, Writer)}. For added and
+     * removed ignore rules, the message is replaced by
+     * <code>"rule":{"type":"GLOB", "pattern":"..."}</code>.
+     *
+     * @param change The change.
+     * @param out The writer to write to.
+     * @throws IOException On trouble writing.
+     */
+    public static void writeJson(StatusChange change, Writer out)
+            throws IOException {
+        out.write("{\"sequence\":");
+        out.write(Long.toString(change.getSequence()));
+        out.write(",\"type\":\"");
+        out.write(change.getType().toString());
+        out.write("\",\"application\":");
+        writeJsonString(change.getApplicationName(), out);
+        if (change.getIgnoreRule() != null) {
+            out.write(",\"rule\":{\"type\":\"");
+            out.write(change.getIgnoreRule().getType().toString());
+            out.write("\",\"pattern\":");
+            writeJsonString(change.getIgnoreRule().getPattern(), out);
+            out.write('}');
+        } else {
+            out.write(",\"message\":");
+            writeJson(change.getMessage(), out);
+        }
+        out.write('}');
+    }
+
+    /**
+     * Write statuses as XML.
+     *
+     * @param snapshot The snapshot the statuses are from.
+     * @param statuses The statuses to write.
+     * @param out The writer to write to. Not flushed or closed. The
+     * document is declared as UTF-8.
+     * @throws IOException On trouble writing.
+     */
+    public static void writeXml(StatusSnapshot snapshot,
+                                Collection<CondensedStatus> statuses,
+                                Writer out) throws IOException {
+        out.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+        out.write("<status epoch=\"");
+        out.write(Long.toString(snapshot.getEpoch()));
+        out.write("\" version=\"");
+        out.write(Long.toString(snapshot.getVersion()));
+        out.write("\" sequence=\"");
+        out.write(Long.toString(snapshot.getSequence()));
+        out.write("\" time=\"");
+        out.write(Long.toString(snapshot.getTime()));
+        out.write("\">\n");
+        for (CondensedStatus status : statuses) {
+            out.write("<application name=\"");
+            writeXmlText(status.getName(), out);
+            out.write("\" severity=\"");
+            out.write(status.getSeverity().toString());
+            out.write("\">\n");
+            for (CondensedStatusMessage message : status.getMessages()) {
+                writeXml(message, out);
+            }
+            out.write("</application>\n");
+        }
+        out.write("</status>\n");
+    }
+
+    /**
+     * Write changes as XML, in the form
+     * <pre>
+     * &lt;changes epoch="..." sequence="..." resync="false"&gt;
+     *   &lt;change sequence="..." type="ADDED" application="..."&gt;
+     *     &lt;message ...&gt;...&lt;/message&gt;
+     *   &lt;/change&gt;
+     *   &lt;change sequence="..." type="IGNORE_RULE_ADDED" ...&gt;
+     *     &lt;rule type="GLOB"&gt;...&lt;/rule&gt;
+     *   &lt;/change&gt;
+     * &lt;/changes&gt;
+     * </pre>
+     * where messages are written as in the status document.
+     *
+     * @param changeLog The change log the changes are from.
+     * @param sequence The sequence number of the newest change.
+     * @param changes The changes, or null if the client must read the whole
+     * status again.
+     * @param out The writer to write to. Not flushed or closed. The
+     * document is declared as UTF-8.
+     * @throws IOException On trouble writing.
+     */
+    public static void writeXml(StatusChangeLog changeLog, long sequence,
+                                Collection<StatusChange> changes,
+                                Writer out) throws IOException {
+        out.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+        out.write("<changes epoch=\"");
+        out.write(Long.toString(changeLog.getEpoch()));
+        out.write("\" sequence=\"");
+        out.write(Long.toString(sequence));
+        out.write("\" resync=\"");
+        out.write(Boolean.toString(changes == null));
+        out.write("\">\n");
+        if (changes != null) {
+            for (StatusChange change : changes) {
+                out.write("<change sequence=\"");
+                out.write(Long.toString(change.getSequence()));
+                out.write("\" type=\"");
+                out.write(change.getType().toString());
+                out.write("\" application=\"");
+                writeXmlText(change.getApplicationName(), out);
+                out.write("\">\n");
+                if (change.getIgnoreRule() != null) {
+                    out.write("<rule type=\"");
+                    out.write(change.getIgnoreRule().getType().toString());
+                    out.write("\">");
+                    writeXmlText(change.getIgnoreRule().getPattern(), out);
+                    out.write("</rule>\n");
+                } else {
+                    writeXml(change.getMessage(), out);
+                }
+                out.write("</change>\n");
+            }
+        }
+        out.write("</changes>\n");
+    }
+
+    /**
+     * Write one message as an XML element.
+     *
+     * @param message The message.
+     * @param out The writer to write to.
+     * @throws IOException On trouble writing.
+     */
+    private static void writeXml(CondensedStatusMessage message, Writer out)
+            throws IOException {
+        out.write("<message severity=\"");
+        out.write(message.getSeverity().toString());
+        out.write("\" logMessage=\"");
+        out.write(Boolean.toString(message.isLogMessage()));
+        out.write("\" firstTime=\"");
+        out.write(Long.toString(message.getFirstTime()));
+        out.write("\" lastTime=\"");
+        out.write(Long.toString(message.getLastTime()));
+        out.write("\" number=\"");
+        out.write(Integer.toString(message.getNumber()));
+        out.write("\">");
+        writeXmlText(message.getMessage(), out);
+        out.write("</message>\n");
+    }
+
+    /**
+     * Write a string as a quoted JSON string.
+     *
+     * @param string The string.
+     * @param out The writer to write to.
+     * @throws IOException On trouble writing.
+     */
+    public static void writeJsonString(String string, Writer out)
+            throws IOException {
+        out.write('"');
+        int start = 0;
+        for (int i = 0; i < string.length(); i++) {
+            char c = string.charAt(i);
+            if (c >= 0x20 && c != '"' && c != '\\'
+                    && c != '\u2028' && c != '\u2029') {
+                continue;
+            }
+            out.write(string, start, i - start);
+            start = i + 1;
+            switch (c) {
+                case '"':
+                    out.write("\\\"");
+                    break;
+                case '\\':
+                    out.write("\\\\");
+                    break;
+                case '\n':
+                    out.write("\\n");
+                    break;
+                case '\r':
+                    out.write("\\r");
+                    break;
+                case '\t':
+                    out.write("\\t");
+                    break;
+                default:
+                    out.write("\\u");
+                    out.write(HEX[(c >> 12) & 0xf]);
+                    out.write(HEX[(c >> 8) & 0xf]);
+                    out.write(HEX[(c >> 4) & 0xf]);
+                    out.write(HEX[c & 0xf]);
+            }
+        }
+        out.write(string, start, string.length() - start);
+        out.write('"');
+    }
+
+    /**
+     * Write a string as XML text or attribute value. Characters not allowed
+     * in XML are replaced by the replacement character.
+     *
+     * @param string The string.
+     * @param out The writer to write to.
+     * @throws IOException On trouble writing.
+     */
+    public static void writeXmlText(String string, Writer out)
+            throws IOException {
+        int start = 0;
+        for (int i = 0; i < string.length(); i++) {
+            char c = string.charAt(i);
+            String replacement;
+            switch (c) {
+                case '<':
+                    replacement = "&lt;";
+                    break;
+                case '>':
+                    replacement = "&gt;";
+                    break;
+                case '&':
+                    replacement = "&amp;";
+                    break;
+                case '"':
+                    replacement = "&quot;";
+                    break;
+                case '\n':
+                case '\r':
+                case '\t':
+                    continue;
+                default:
+                    if (c >= 0x20 && c != '\ufffe' && c != '\uffff') {
+                        continue;
+                    }
+                    replacement = "\ufffd";
+            }
+            out.write(string, start, i - start);
+            out.write(replacement);
+            start = i + 1;
+        }
+        out.write(string, start, string.length() - start);
+    }
+}
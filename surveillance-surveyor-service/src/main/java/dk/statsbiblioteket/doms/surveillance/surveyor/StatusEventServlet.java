@@ -0,0 +1,256 @@
+/*
+ * $Id$
+ * $Revision$
+ * $Date$
+ * $Author$
+ *
+ * The DOMS project.
+ * Copyright (C) 2007-2010  The State and University Library
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package dk.statsbiblioteket.doms.surveillance.surveyor;
+
+import dk.statsbiblioteket.sbutil.webservices.configuration.ConfigCollection;
+import dk.statsbiblioteket.util.qa.QAInfo;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.List;
+
+/**
+ * Servlet pushing status changes to clients as server-sent events.
+ *
+ * Each change in the {@link StatusChangeLog} is sent as an event of type
+ * <code>change</code>, with the change as JSON as written by
+ * {@link StatusDocumentWriter#writeJson(StatusChange, java.io.Writer)}.
+ * The event id identifies the change, so a reconnecting client sending
+ * <code>Last-Event-ID</code> (or the parameter <code>lastEventId</code>)
+ * gets the changes it missed. A new client only gets changes from the time
+ * it connects, and should read the whole status from the status API first.
+ *
+ * If the changes a client missed are no longer retained, or the surveyor
+ * has been restarted, an event of type <code>resync</code> is sent, and the
+ * client must read the whole status again.
+ *
+ * The parameter <code>application</code> restricts the events to changes
+ * for one application.
+ *
+ * A comment line is sent as heartbeat when nothing has been sent for the
+ * number of milliseconds given by
+ * <code>dk.statsbiblioteket.doms.surveillance.surveyor.eventHeartbeatInterval</code>
+ * (default is 15000), also when only changes that are not sent have
+ * arrived. The connection is closed when the client goes away or the
+ * surveyor is stopped or replaced. Each connected client holds a request
+ * thread.
+ */
+@QAInfo(author = "agent",
+        reviewers = "",
+        level = QAInfo.Level.NORMAL,
+        state = QAInfo.State.QA_NEEDED)
+public class StatusEventServlet extends HttpServlet {
+    /** Parameter for milliseconds between heartbeats. */
+    public static final String EVENTHEARTBEATINTERVAL_CONFIGURATION_PARAMETER
+            = "dk.statsbiblioteket.doms.surveillance.surveyor"
+            + ".eventHeartbeatInterval";
+
+    /** Default configuration for milliseconds between heartbeats. */
+    private static final long DEFAULT_HEARTBEAT_INTERVAL = 15000L;
+
+    /** Milliseconds clients should wait before reconnecting. */
+    private static final long RECONNECT_DELAY = 5000L;
+
+    /** Logger for this class. */
+    private static Log log = LogFactory.getLog(StatusEventServlet.class);
+
+    /**
+     * Stream status changes to the client until it goes away.
+     *
+     * @param request The request.
+     * @param response The response.
+     * @throws IOException On trouble writing the response.
+     */
+    @Override
+    protected void doGet(HttpServletRequest request,
+                         HttpServletResponse response) throws IOException {
+        log.trace("Enter doGet()");
+        long heartbeatInterval = getHeartbeatInterval();
+        String applicationName = request.getParameter("application");
+        String lastEventId = request.getHeader("Last-Event-ID");
+        if (lastEventId == null) {
+            lastEventId = request.getParameter("lastEventId");
+        }
+        StatusChangeLog changeLog
+                = SurveyorFactory.getSurveyor().getChangeLog();
+
+        response.setContentType("text/event-stream");
+        response.setCharacterEncoding("UTF-8");
+        response.setHeader("Cache-Control", "no-cache");
+        PrintWriter out = response.getWriter();
+        out.write("retry: " + RECONNECT_DELAY + "\n\n");
+
+        long sequence;
+        if (lastEventId == null) {
+            sequence = changeLog.getLatestSequence();
+        } else {
+            sequence = parseEventId(lastEventId, changeLog);
+            if (sequence < 0) {
+                sequence = writeResync(out, changeLog);
+            }
+        }
+        out.flush();
+        long lastWrite = System.currentTimeMillis();
+
+        try {
+            //Stop when the surveyor is stopped or replaced; the client will
+            //reconnect. The surveyor must not be looked up here, since that
+            //would create a new one while the web application is stopping.
+            while (!out.checkError() && !changeLog.isClosed()
+                    && SurveyorFactory.isCurrent(changeLog)) {
+                List<StatusChange> changes = changeLog.awaitChangesSince(
+                        sequence, Math.max(1L, lastWrite + heartbeatInterval
+                        - System.currentTimeMillis()));
+                boolean written = false;
+                if (changes == null) {
+                    sequence = writeResync(out, changeLog);
+                    written = true;
+                } else {
+                    for (StatusChange change : changes) {
+                        if (applicationName == null || applicationName
+                                .equals(change.getApplicationName())) {
+                            writeChange(out, changeLog, change);
+                            written = true;
+                        }
+                        sequence = change.getSequence();
+                    }
+                }
+                long now = System.currentTimeMillis();
+                if (!written && now - lastWrite >= heartbeatInterval) {
+                    out.write(": heartbeat\n\n");
+                    written = true;
+                }
+                if (written) {
+                    lastWrite = now;
+                    out.flush();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        log.debug("Event stream closed");
+    }
+
+    /**
+     * Write a change event.
+     *
+     * @param out The writer to write to.
+     * @param changeLog The change log the change is from.
+     * @param change The change.
+     * @throws IOException On trouble writing.
+     */
+    private static void writeChange(PrintWriter out,
+                                    StatusChangeLog changeLog,
+                                    StatusChange change) throws IOException {
+        out.write("event: change\nid: ");
+        out.write(formatEventId(changeLog, change.getSequence()));
+        out.write("\ndata: ");
+        StatusDocumentWriter.writeJson(change, out);
+        out.write("\n\n");
+    }
+
+    /**
+     * Write a resync event, telling the client to read the whole status.
+     *
+     * @param out The writer to write to.
+     * @param changeLog The change log.
+     * @return The sequence number to continue from.
+     */
+    private static long writeResync(PrintWriter out,
+                                     StatusChangeLog changeLog) {
+        long sequence = changeLog.getLatestSequence();
+        out.write("event: resync\nid: ");
+        out.write(formatEventId(changeLog, sequence));
+        out.write("\ndata: {\"epoch\":" + changeLog.getEpoch()
+                + ",\"sequence\":" + sequence + "}\n\n");
+        return sequence;
+    }
+
+    /**
+     * Format an event id from the epoch of the change log and a sequence
+     * number.
+     *
+     * @param changeLog The change log.
+     * @param sequence The sequence number.
+     * @return The event id.
+     */
+    static String formatEventId(StatusChangeLog changeLog, long sequence) {
+        return Long.toString(changeLog.getEpoch(), Character.MAX_RADIX) + "-"
+                + Long.toString(sequence, Character.MAX_RADIX);
+    }
+
+    /**
+     * Parse an event id.
+     *
+     * @param eventId The event id.
+     * @param changeLog The change log.
+     * @return The sequence number, or -1 if the event id is malformed or from
+     * another epoch.
+     */
+    static long parseEventId(String eventId, StatusChangeLog changeLog) {
+        int separator = eventId.indexOf('-');
+        try {
+            if (separator > 0 && Long.parseLong(
+                    eventId.substring(0, separator), Character.MAX_RADIX)
+                    == changeLog.getEpoch()) {
+                return Long.parseLong(eventId.substring(separator + 1),
+                                      Character.MAX_RADIX);
+            }
+        } catch (NumberFormatException e) {
+            log.debug("Malformed event id '" + eventId + "'", e);
+        }
+        return -1;
+    }
+
+    /**
+     * Read the heartbeat interval from configuration.
+     *
+     * @return Milliseconds between heartbeats.
+     */
+    private static long getHeartbeatInterval() {
+        String value = ConfigCollection.getProperties().getProperty(
+                EVENTHEARTBEATINTERVAL_CONFIGURATION_PARAMETER);
+        if (value != null && value.trim().length() > 0) {
+            try {
+                long interval = Long.parseLong(value.trim());
+                if (interval > 0) {
+                    return interval;
+                }
+            } catch (NumberFormatException e) {
+                log.debug("Malformed heartbeat interval '" + value + "'", e);
+            }
+            log.warn("Configuration for heartbeat interval '" + value
+                    + "' is not a positive number. Falling back to default.");
+        }
+        return DEFAULT_HEARTBEAT_INTERVAL;
+    }
+}
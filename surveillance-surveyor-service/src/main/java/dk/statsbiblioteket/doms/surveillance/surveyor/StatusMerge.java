@@ -0,0 +1,244 @@
+/*
+ * $Id$
+ * $Revision$
+ * $Date$
+ * $Author$
+ *
+ * The DOMS project.
+ * Copyright (C) 2007-2010  The State and University Library
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package dk.statsbiblioteket.doms.surveillance.surveyor;
+
+import dk.statsbiblioteket.doms.domsutil.surveyable.Status;
+import dk.statsbiblioteket.doms.domsutil.surveyable.StatusMessage;
+import dk.statsbiblioteket.util.qa.QAInfo;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The merge of the results of a poll into a new status map.
+ *
+ * The merge starts from the log messages of the old status map, adds the
+ * statuses returned by the queries, and evicts log messages over the
+ * limits. Condensed statuses from the old status map are shared with the
+ * published status, so they are copied before they are changed; statuses
+ * that are not changed stay shared.
+ *
+ * This class is not thread safe. A merge is used by a single thread, and
+ * its result must not be modified after it is published.
+ */
+@QAInfo(author = "agent",
+        reviewers = "",
+        level = QAInfo.Level.NORMAL,
+        state = QAInfo.State.QA_NEEDED)
+class StatusMerge {
+    /** Logger for this class. */
+    private static Log log = LogFactory.getLog(StatusMerge.class);
+
+    /** The ignore rules filtering messages. */
+    private final IgnoreMatcher ignoreMatcher;
+
+    /** Metrics recording filtered and evicted messages. */
+    private final SurveyorMetrics metrics;
+
+    /** The result, mapping from status name to status. */
+    private final Map<String, CondensedStatus> result
+            = new HashMap<String, CondensedStatus>();
+
+    /**
+     * Names of the statuses in the result that have been copied, and may be
+     * changed.
+     */
+    private final Set<String> changed = new HashSet<String>();
+
+    /**
+     * Initialise an empty merge.
+     *
+     * @param ignoreMatcher The ignore rules filtering messages.
+     * @param metrics Metrics recording filtered and evicted messages.
+     */
+    StatusMerge(IgnoreMatcher ignoreMatcher, SurveyorMetrics metrics) {
+        this.ignoreMatcher = ignoreMatcher;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Get the merged status map.
+     *
+     * @return The status map, mapping from status name to status.
+     */
+    Map<String, CondensedStatus> getResult() {
+        return result;
+    }
+
+    /**
+     * Insert into the result any non-ignored log messages from the currently
+     * known status. Realtime messages are not kept, since they are replaced by
+     * the result of the poll. Statuses without realtime messages are kept
+     * as they are, unless the ignore rules have changed so their log
+     * messages must be filtered again.
+     *
+     * @param oldStatusMap The currently known status map.
+     * @param filterIgnored Whether to filter log messages by the ignore
+     * rules.
+     */
+    void keepLogMessages(Map<String, CondensedStatus> oldStatusMap,
+                         boolean filterIgnored) {
+        log.trace("Enter keepLogMessages()");
+        for (CondensedStatus oldStatus : oldStatusMap.values()) {
+            String name = oldStatus.getName();
+            List<MessageKey> ignored = Collections.emptyList();
+            if (filterIgnored) {
+                ignored = findIgnoredLogMessages(oldStatus, ignoreMatcher);
+                metrics.recordFiltered(ignored.size());
+            }
+            if (oldStatus.hasRealtimeMessages() || !ignored.isEmpty()) {
+                CondensedStatus newStatus = new CondensedStatus(oldStatus);
+                newStatus.removeRealtimeMessages();
+                for (MessageKey key : ignored) {
+                    newStatus.removeLogMessage(key);
+                }
+                result.put(name, newStatus);
+                changed.add(name);
+            } else {
+                result.put(name, oldStatus);
+            }
+        }
+    }
+
+    /**
+     * Update the result with the messages of a status, except messages
+     * matching the ignore rules.
+     *
+     * @param resultStatus The status to add.
+     */
+    void addStatus(Status resultStatus) {
+        String name = resultStatus.getName();
+        //Add condensed status to result if not already there
+        CondensedStatus status = result.get(name);
+        if (status == null) {
+            status = new CondensedStatus(name);
+            result.put(name, status);
+            changed.add(name);
+        }
+        //Filter status by ignore rules
+        boolean filter = ignoreMatcher.appliesTo(name);
+        for (StatusMessage message : resultStatus.getMessages()) {
+            if (!filter
+                    || !ignoreMatcher.matches(name, message.getMessage())) {
+                if (!changed.contains(name)) {
+                    status = new CondensedStatus(status);
+                    result.put(name, status);
+                    changed.add(name);
+                }
+                status.addMessage(message);
+            } else {
+                metrics.recordFiltered(1);
+            }
+        }
+    }
+
+    /**
+     * Evict log messages from the statuses in the result, so no status
+     * has more log messages than the limit per application, and all statuses
+     * together have no more log messages than the global limit. The global
+     * limit is enforced by finding the largest number of log messages per
+     * status that keeps the total within the limit, and evicting from the
+     * statuses with more messages than that.
+     *
+     * @param maxMessagesPerApplication The limit per application.
+     * @param maxMessages The global limit.
+     */
+    void limitLogMessages(int maxMessagesPerApplication, int maxMessages) {
+        int largest = 0;
+        long total = 0;
+        for (CondensedStatus status : result.values()) {
+            int count = Math.min(status.getLogMessageCount(),
+                                 maxMessagesPerApplication);
+            largest = Math.max(largest, count);
+            total += count;
+        }
+        int limit = maxMessagesPerApplication;
+        if (total > maxMessages) {
+            //Binary search for largest per status limit within global limit
+            int low = 1;
+            int high = largest;
+            while (low < high) {
+                int middle = (low + high + 1) / 2;
+                long sum = 0;
+                for (CondensedStatus status : result.values()) {
+                    sum += Math.min(status.getLogMessageCount(), middle);
+                }
+                if (sum <= maxMessages) {
+                    low = middle;
+                } else {
+                    high = middle - 1;
+                }
+            }
+            limit = Math.min(limit, low);
+        }
+        long now = System.currentTimeMillis();
+        for (Map.Entry<String, CondensedStatus> entry : result.entrySet()) {
+            CondensedStatus status = entry.getValue();
+            if (status.getLogMessageCount() > limit) {
+                if (!changed.contains(entry.getKey())) {
+                    status = new CondensedStatus(status);
+                    entry.setValue(status);
+                    changed.add(entry.getKey());
+                }
+                int evicted = status.evictLogMessages(limit, now);
+                metrics.recordEvicted(evicted);
+                log.debug("Evicted " + evicted + " log messages from '"
+                        + entry.getKey() + "'");
+            }
+        }
+    }
+
+    /**
+     * Find the log messages of a status matching the ignore rules.
+     *
+     * @param status The status.
+     * @param ignoreMatcher The ignore rules.
+     * @return The keys of the matching log messages. Never null.
+     */
+    static List<MessageKey> findIgnoredLogMessages(
+            CondensedStatus status, IgnoreMatcher ignoreMatcher) {
+        String name = status.getName();
+        if (!ignoreMatcher.appliesTo(name)) {
+            return Collections.emptyList();
+        }
+        List<MessageKey> ignored = new ArrayList<MessageKey>();
+        for (CondensedStatusMessage message : status.getMessages()) {
+            if (message.isLogMessage()
+                    && ignoreMatcher.matches(name, message.getMessage())) {
+                ignored.add(message.getKey());
+            }
+        }
+        return ignored;
+    }
+}
@@ -0,0 +1,293 @@
+/*
+ * $Id$
+ * $Revision$
+ * $Date$
+ * $Author$
+ *
+ * The DOMS project.
+ * Copyright (C) 2007-2010  The State and University Library
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package dk.statsbiblioteket.doms.surveillance.surveyor;
+
+import dk.statsbiblioteket.util.qa.QAInfo;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.PathParam;
+import javax.ws.rs.Produces;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.CacheControl;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Request;
+import javax.ws.rs.core.Response;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * REST resource exposing the condensed status map of the surveyor as JSON or
+ * XML, in the format described in {@link StatusDocumentWriter}.
+ *
+ * <code>status</code> returns the status of all applications,
+ * <code>status/{application}</code> the status of one application, and
+ * <code>status/{application}/messages/{id}</code> the full text of one
+ * message, identified as by {@link DashboardPage#getId}.
+ *
+ * Responses carry a weak entity tag identifying the version of the status
+ * and the format, and must be revalidated. The tag is weak since polls that
+ * only refresh the times of realtime messages keep the version. Since the
+ * format is chosen from the <code>Accept</code> header, responses vary on
+ * it. A request with a matching <code>If-None-Match</code> header gets
+ * <code>304 Not Modified</code> without the status being serialized. The
+ * document for all applications is serialized once per version and format.
+ */
+@QAInfo(author = "agent",
+        reviewers = "",
+        level = QAInfo.Level.NORMAL,
+        state = QAInfo.State.QA_NEEDED)
+@Path("/status")
+public class StatusResource {
+    /** Logger for this class. */
+    private static Log log = LogFactory.getLog(StatusResource.class);
+
+    /** Cache control requiring revalidation of responses. */
+    private static final CacheControl REVALIDATE = new CacheControl();
+
+    static {
+        REVALIDATE.setNoCache(true);
+    }
+
+    /** The latest JSON document for all applications. */
+    private static final AtomicReference<Document> jsonDocument
+            = new AtomicReference<Document>();
+
+    /** The latest XML document for all applications. */
+    private static final AtomicReference<Document> xmlDocument
+            = new AtomicReference<Document>();
+
+    /** A serialized document, with the tag of the snapshot it is from. */
+    private static final class Document {
+        /** The snapshot tag. */
+        private final String tag;
+
+        /** The document as UTF-8. */
+        private final byte[] body;
+
+        /**
+         * Initialise a document.
+         *
+         * @param tag The snapshot tag.
+         * @param body The document as UTF-8.
+         */
+        private Document(String tag, byte[] body) {
+            this.tag = tag;
+            this.body = body;
+        }
+    }
+
+    /**
+     * Get the status of all applications as JSON.
+     *
+     * @param request The request, for evaluating preconditions.
+     * @return The response.
+     */
+    @GET
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response getStatusAsJson(@Context Request request) {
+        log.trace("Enter getStatusAsJson()");
+        return getStatus(request, null, true);
+    }
+
+    /**
+     * Get the status of all applications as XML.
+     *
+     * @param request The request, for evaluating preconditions.
+     * @return The response.
+     */
+    @GET
+    @Produces({MediaType.APPLICATION_XML, MediaType.TEXT_XML})
+    public Response getStatusAsXml(@Context Request request) {
+        log.trace("Enter getStatusAsXml()");
+        return getStatus(request, null, false);
+    }
+
+    /**
+     * Get the status of one application as JSON.
+     *
+     * @param applicationName The application name.
+     * @param request The request, for evaluating preconditions.
+     * @return The response.
+     */
+    @GET
+    @Path("{application}")
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response getApplicationStatusAsJson(
+            @PathParam("application") String applicationName,
+            @Context Request request) {
+        log.trace("Enter getApplicationStatusAsJson('" + applicationName
+                + "')");
+        return getStatus(request, applicationName, true);
+    }
+
+    /**
+     * Get the status of one application as XML.
+     *
+     * @param applicationName The application name.
+     * @param request The request, for evaluating preconditions.
+     * @return The response.
+     */
+    @GET
+    @Path("{application}")
+    @Produces({MediaType.APPLICATION_XML, MediaType.TEXT_XML})
+    public Response getApplicationStatusAsXml(
+            @PathParam("application") String applicationName,
+            @Context Request request) {
+        log.trace("Enter getApplicationStatusAsXml('" + applicationName
+                + "')");
+        return getStatus(request, applicationName, false);
+    }
+
+    /**
+     * Get the full text of one message.
+     *
+     * @param applicationName The application name.
+     * @param id The message id.
+     * @return The message text, or 404 if not found.
+     */
+    @GET
+    @Path("{application}/messages/{id}")
+    @Produces(MediaType.TEXT_PLAIN)
+    public Response getMessage(
+            @PathParam("application") String applicationName,
+            @PathParam("id") String id) {
+        log.trace("Enter getMessage('" + applicationName + "', '" + id
+                + "')");
+        CondensedStatusMessage message = DashboardPage.findMessage(
+                getSurveyor().getStatusMap().get(
+                        applicationName), id);
+        if (message == null) {
+            throw new WebApplicationException(Response.Status.NOT_FOUND);
+        }
+        return Response.ok(message.getMessage(),
+                           MediaType.TEXT_PLAIN + ";charset=UTF-8").build();
+    }
+
+    /**
+     * Get the surveyor whose status is exposed.
+     *
+     * @return The surveyor singleton instance.
+     */
+    Surveyor getSurveyor() {
+        return SurveyorFactory.getSurveyor();
+    }
+
+    /**
+     * Get the status of all or one application.
+     *
+     * @param request The request, for evaluating preconditions.
+     * @param applicationName The application name, or null for all
+     * applications.
+     * @param json True for JSON, false for XML.
+     * @return The response: 304 if the tag matches, 404 if the application
+     * is unknown, and the document otherwise.
+     */
+    private Response getStatus(Request request, String applicationName,
+                               boolean json) {
+        StatusSnapshot snapshot
+                = getSurveyor().getStatusSnapshot();
+        EntityTag tag = new EntityTag(snapshot.getTag()
+                + (json ? "-json" : "-xml"), true);
+        Response.ResponseBuilder notModified
+                = request.evaluatePreconditions(tag);
+        if (notModified != null) {
+            return notModified.cacheControl(REVALIDATE)
+                    .header("Vary", "Accept").build();
+        }
+        byte[] body;
+        if (applicationName == null) {
+            body = getDocument(snapshot, json);
+        } else {
+            CondensedStatus status
+                    = snapshot.getStatusMap().get(applicationName);
+            if (status == null) {
+                throw new WebApplicationException(
+                        Response.Status.NOT_FOUND);
+            }
+            body = serialize(snapshot, Collections.singleton(status), json);
+        }
+        return Response.ok(body, json ? MediaType.APPLICATION_JSON_TYPE
+                : MediaType.APPLICATION_XML_TYPE).tag(tag)
+                .cacheControl(REVALIDATE).header("Vary", "Accept").build();
+    }
+
+    /**
+     * Get the document for all applications, serializing it only if the
+     * cached document is from another snapshot.
+     *
+     * @param snapshot The snapshot.
+     * @param json True for JSON, false for XML.
+     * @return The document as UTF-8.
+     */
+    private static byte[] getDocument(StatusSnapshot snapshot, boolean json) {
+        AtomicReference<Document> cache = json ? jsonDocument : xmlDocument;
+        Document document = cache.get();
+        if (document == null || !document.tag.equals(snapshot.getTag())) {
+            document = new Document(snapshot.getTag(), serialize(
+                    snapshot, snapshot.getStatusMap().values(), json));
+            cache.set(document);
+        }
+        return document.body;
+    }
+
+    /**
+     * Serialize statuses.
+     *
+     * @param snapshot The snapshot the statuses are from.
+     * @param statuses The statuses.
+     * @param json True for JSON, false for XML.
+     * @return The document as UTF-8.
+     */
+    private static byte[] serialize(StatusSnapshot snapshot,
+                                    Collection<CondensedStatus> statuses,
+                                    boolean json) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            Writer out = new OutputStreamWriter(bytes, "UTF-8");
+            if (json) {
+                StatusDocumentWriter.writeJson(snapshot, statuses, out);
+            } else {
+                StatusDocumentWriter.writeXml(snapshot, statuses, out);
+            }
+            out.close();
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            //Cannot happen when writing to memory
+            throw new Error("Unable to write to memory", e);
+        }
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * $Id$
+ * $Revision$
+ * $Date$
+ * $Author$
+ *
+ * The DOMS project.
+ * Copyright (C) 2007-2010  The State and University Library
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package dk.statsbiblioteket.doms.surveillance.surveyor;
+
+import dk.statsbiblioteket.util.qa.QAInfo;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * A published state of the surveyor: the status map, with a version
+ * identifying it.
+ *
+ * Versions increase by one for every published state that differs in more
+ * than the times of realtime messages. The epoch identifies the surveyor
+ * instance, so versions from before a restart are not confused with new
+ * ones. Two snapshots with the same epoch and version have the same status
+ * map, except perhaps for the times of realtime messages.
+ *
+ * The sequence number is that of the newest change in the
+ * {@link StatusChangeLog} reflected in the version. A client can mirror the
+ * state by reading a snapshot, and then applying the changes after its
+ * sequence number. The change log has no changes for realtime messages that
+ * only got new times, so the mirrored times of realtime messages are those
+ * of the snapshot.
+ *
+ * Instances are immutable and thread safe.
+ */
+@QAInfo(author = "agent",
+        reviewers = "",
+        level = QAInfo.Level.NORMAL,
+        state = QAInfo.State.QA_NEEDED)
+public final class StatusSnapshot {
+    /** The epoch of the surveyor instance. */
+    private final long epoch;
+
+    /** The version of the state. */
+    private final long version;
+
+    /** The sequence number of the newest change in the state. */
+    private final long sequence;
+
+    /** The time the version was published. */
+    private final long time;
+
+    /** The status map. Unmodifiable. */
+    private final Map<String, CondensedStatus> statusMap;
+
+    /**
+     * Initialise a snapshot. The map and the statuses in it must never be
+     * modified after this.
+     *
+     * @param epoch The epoch of the surveyor instance.
+     * @param version The version of the state.
+     * @param sequence The sequence number of the newest change in the state.
+     * @param time The time the version was published.
+     * @param statusMap The status map, from application name to status.
+     */
+    public StatusSnapshot(long epoch, long version, long sequence, long time,
+                          Map<String, CondensedStatus> statusMap) {
+        this.epoch = epoch;
+        this.version = version;
+        this.sequence = sequence;
+        this.time = time;
+        this.statusMap = Collections.unmodifiableMap(statusMap);
+    }
+
+    /**
+     * Get the epoch of the surveyor instance that published the snapshot.
+     *
+     * @return The epoch.
+     */
+    public long getEpoch() {
+        return epoch;
+    }
+
+    /**
+     * Get the version of the state.
+     *
+     * @return The version.
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * Get the sequence number of the newest change in the change log that is
+     * reflected in the state.
+     *
+     * @return The sequence number, or 0 if none.
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * Get the time the version was published. This is not changed by polls
+     * that only refresh the times of realtime messages.
+     *
+     * @return The time in milliseconds since epoch.
+     */
+    public long getTime() {
+        return time;
+    }
+
+    /**
+     * Get the status map.
+     *
+     * @return Unmodifiable map from application name to status. Never null.
+     */
+    public Map<String, CondensedStatus> getStatusMap() {
+        return statusMap;
+    }
+
+    /**
+     * Get an entity tag identifying the version, for HTTP caching. As the
+     * times of realtime messages may differ between snapshots with the same
+     * tag, it should be used as a weak tag.
+     *
+     * @return The epoch and version, as an opaque string.
+     */
+    public String getTag() {
+        return Long.toString(epoch, Character.MAX_RADIX) + "-"
+                + Long.toString(version, Character.MAX_RADIX);
+    }
+}
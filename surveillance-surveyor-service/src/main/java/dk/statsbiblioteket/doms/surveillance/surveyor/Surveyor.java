@@ -28,6 +28,7 @@ package dk.statsbiblioteket.doms.surveillance.surveyor;
 
 import dk.statsbiblioteket.util.qa.QAInfo;
 
+import java.util.List;
 import java.util.Map;
 
 /** Interface for getting status messages. */
@@ -41,10 +42,34 @@ public interface Surveyor {
      * Get the current status.
      *
      * @return Current status, described in a map from name to condensed system
-     *         status. Never null.
+     *         status. The map is a snapshot that is not modified after being
+     *         returned. Never null.
      */
     Map<String, CondensedStatus> getStatusMap();
 
+    /**
+     * Get the current status with a version identifying it. The status map
+     * of the snapshot is the map returned by {@link #getStatusMap()}.
+     *
+     * @return Current status snapshot. Never null.
+     */
+    StatusSnapshot getStatusSnapshot();
+
+    /**
+     * Get the log of changes to the status, for following changes without
+     * reading the whole status.
+     *
+     * @return The change log. Never null.
+     */
+    StatusChangeLog getChangeLog();
+
+    /**
+     * Get the metrics of the surveyor.
+     *
+     * @return The metrics. Never null.
+     */
+    SurveyorMetrics getMetrics();
+
     /**
      * Mark a message as handled, thus removing it from the list of currently
      * unhandled log messages.
@@ -61,4 +86,31 @@ public interface Surveyor {
      * @param message         The message never to show again. Never null.
      */
     void notAgain(String applicationName, String message);
+
+    /**
+     * Add a rule for messages that should never be shown again. Known log
+     * messages matching the rule are removed.
+     *
+     * @param rule The rule. Never null.
+     * @throws IllegalArgumentException If the rule is too broad, as
+     * defined by {@link IgnoreRule#isTooBroad()}.
+     */
+    void addIgnoreRule(IgnoreRule rule);
+
+    /**
+     * Remove a rule for messages that should never be shown again. Messages
+     * matching the rule are shown again when they occur again; messages
+     * already ignored are not restored.
+     *
+     * @param rule The rule. Never null.
+     */
+    void removeIgnoreRule(IgnoreRule rule);
+
+    /**
+     * Get the rules for messages that should never be shown again.
+     *
+     * @return The rules, in the order they were added. The list is a
+     * snapshot that is not modified after being returned. Never null.
+     */
+    List<IgnoreRule> getIgnoreRules();
 }
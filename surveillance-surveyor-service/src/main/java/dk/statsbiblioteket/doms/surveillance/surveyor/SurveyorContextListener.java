@@ -0,0 +1,75 @@
+/*
+ * $Id$
+ * $Revision$
+ * $Date$
+ * $Author$
+ *
+ * The DOMS project.
+ * Copyright (C) 2007-2010  The State and University Library
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package dk.statsbiblioteket.doms.surveillance.surveyor;
+
+import dk.statsbiblioteket.util.qa.QAInfo;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import javax.servlet.ServletContextEvent;
+import javax.servlet.ServletContextListener;
+
+/**
+ * Context listener that starts the surveyor when the web application is
+ * started, so the background poll of the surveyed services starts before the
+ * first page view, and stops it again when the web application is stopped.
+ * Must be registered after the ConfigContextListener, since the surveyor
+ * reads its configuration from the config collection.
+ */
+@QAInfo(author = "agent",
+        reviewers = "",
+        level = QAInfo.Level.NORMAL,
+        state = QAInfo.State.QA_NEEDED)
+public class SurveyorContextListener implements ServletContextListener {
+    /** The logger for this class. */
+    private static Log log = LogFactory.getLog(SurveyorContextListener.class);
+
+    /**
+     * Start the surveyor singleton.
+     *
+     * @param servletContextEvent Ignored.
+     */
+    public void contextInitialized(ServletContextEvent servletContextEvent) {
+        log.trace("Enter contextInitialized()");
+        try {
+            SurveyorFactory.getSurveyor();
+        } catch (SurveyorInstantiationException e) {
+            // The surveyor will be attempted instantiated again on first use
+            log.error("Unable to start surveyor", e);
+        }
+    }
+
+    /**
+     * Stop the surveyor singleton.
+     *
+     * @param servletContextEvent Ignored.
+     */
+    public void contextDestroyed(ServletContextEvent servletContextEvent) {
+        log.trace("Enter contextDestroyed()");
+        SurveyorFactory.shutdown();
+    }
+}
@@ -32,7 +32,9 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.log4j.xml.DOMConfigurator;
 
+import java.io.Closeable;
 import java.io.File;
+import java.io.IOException;
 
 /** Factory for getting the surveyor singleton.
  * The choice of singleton is defined by configuration parameter
@@ -107,6 +109,7 @@ public class SurveyorFactory {
         }
         if ((surveyor == null)
                 || !surveyor.getClass().getName().equals(implementation)) {
+            shutdown();
             log.info("Initializing surveyor class '" + implementation + "'");
             try {
                 Class surveyorClass = Class.forName(implementation);
@@ -119,4 +122,34 @@ public class SurveyorFactory {
         }
         return surveyor;
     }
+
+    /**
+     * Check whether a change log belongs to the current surveyor singleton
+     * instance. Unlike {@link #getSurveyor()}, this never creates a surveyor.
+     * This method is synchronized.
+     *
+     * @param changeLog The change log.
+     * @return True if there is a surveyor instance, and the change log is
+     * its change log.
+     */
+    public static synchronized boolean isCurrent(StatusChangeLog changeLog) {
+        return surveyor != null && surveyor.getChangeLog() == changeLog;
+    }
+
+    /**
+     * Stop the surveyor singleton instance, if any. If the surveyor is
+     * {@link Closeable}, it is closed. The next call to {@link #getSurveyor()}
+     * will produce a new instance. This method is synchronized.
+     */
+    public static synchronized void shutdown() {
+        log.trace("Enter shutdown");
+        if (surveyor instanceof Closeable) {
+            try {
+                ((Closeable) surveyor).close();
+            } catch (IOException e) {
+                log.warn("Unable to close surveyor", e);
+            }
+        }
+        surveyor = null;
+    }
 }
@@ -0,0 +1,453 @@
+/*
+ * $Id$
+ * $Revision$
+ * $Date$
+ * $Author$
+ *
+ * The DOMS project.
+ * Copyright (C) 2007-2010  The State and University Library
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package dk.statsbiblioteket.doms.surveillance.surveyor;
+
+import dk.statsbiblioteket.util.qa.QAInfo;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Metrics of a surveyor: durations of polls, merges and queries of each
+ * status URL, and counts of messages flowing through the surveyor.
+ *
+ * Recording a metric only updates atomic counters, and never takes a lock.
+ * The metrics are written in the Prometheus text exposition format by
+ * {@link #write(StatusSnapshot, Writer)}, which also computes gauges of the
+ * status map from a snapshot.
+ *
+ * This class is thread safe.
+ */
+@QAInfo(author = "agent",
+        reviewers = "",
+        level = QAInfo.Level.NORMAL,
+        state = QAInfo.State.QA_NEEDED)
+public class SurveyorMetrics {
+    /** Protocol label of REST status URLs. */
+    public static final String PROTOCOL_REST = "rest";
+
+    /** Protocol label of SOAP status URLs. */
+    public static final String PROTOCOL_SOAP = "soap";
+
+    /** Upper bounds of the histogram buckets in seconds. */
+    private static final double[] BUCKETS = {
+            0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60};
+
+    /** Estimated bytes of a condensed status message object. */
+    private static final long MESSAGE_BYTES = 40;
+
+    /** Estimated bytes of a message key with its string, excluding text. */
+    private static final long KEY_BYTES = 80;
+
+    /** Estimated bytes of a map entry referring to a message. */
+    private static final long ENTRY_BYTES = 48;
+
+    /** Estimated bytes of a condensed status with its maps. */
+    private static final long STATUS_BYTES = 200;
+
+    /**
+     * A histogram of durations with fixed buckets.
+     */
+    public static class Histogram {
+        /** Number of observations in each bucket, and above all buckets. */
+        private final AtomicLongArray counts
+                = new AtomicLongArray(BUCKETS.length + 1);
+
+        /** Sum of observations in nanoseconds. */
+        private final AtomicLong sum = new AtomicLong();
+
+        /**
+         * Record a duration.
+         *
+         * @param nanos The duration in nanoseconds.
+         */
+        public void observe(long nanos) {
+            double seconds = nanos / 1e9;
+            int bucket = 0;
+            while (bucket < BUCKETS.length && seconds > BUCKETS[bucket]) {
+                bucket++;
+            }
+            counts.incrementAndGet(bucket);
+            sum.addAndGet(nanos);
+        }
+
+        /**
+         * Get the number of recorded durations.
+         *
+         * @return The number of durations.
+         */
+        public long getCount() {
+            long count = 0;
+            for (int i = 0; i < counts.length(); i++) {
+                count += counts.get(i);
+            }
+            return count;
+        }
+
+        /**
+         * Write the histogram in Prometheus text format.
+         *
+         * @param name The metric name.
+         * @param labels The labels, formatted as <code>a="b",c="d"</code>,
+         * or the empty string.
+         * @param out The writer to write to.
+         * @throws IOException On trouble writing.
+         */
+        private void write(String name, String labels, Writer out)
+                throws IOException {
+            String prefix = labels.length() == 0 ? "" : labels + ",";
+            long cumulative = 0;
+            for (int i = 0; i < BUCKETS.length; i++) {
+                cumulative += counts.get(i);
+                out.write(name + "_bucket{" + prefix + "le=\"" + BUCKETS[i]
+                        + "\"} " + cumulative + "\n");
+            }
+            cumulative += counts.get(BUCKETS.length);
+            out.write(name + "_bucket{" + prefix + "le=\"+Inf\"} "
+                    + cumulative + "\n");
+            String braces = labels.length() == 0 ? "" : "{" + labels + "}";
+            out.write(name + "_sum" + braces + " " + sum.get() / 1e9 + "\n");
+            out.write(name + "_count" + braces + " " + cumulative + "\n");
+        }
+    }
+
+    /**
+     * Metrics of a single status URL.
+     */
+    public static class Endpoint {
+        /** The protocol of the status URL. */
+        private final String protocol;
+
+        /** Durations of queries. */
+        private final Histogram queryDuration = new Histogram();
+
+        /** Number of failed queries. */
+        private final AtomicLong failures = new AtomicLong();
+
+        /** Current poll interval in milliseconds. */
+        private volatile long pollInterval;
+
+        /** Whether the circuit breaker currently refuses queries. */
+        private volatile boolean circuitOpen;
+
+        /**
+         * Initialise metrics of a status URL.
+         *
+         * @param protocol The protocol of the status URL.
+         */
+        private Endpoint(String protocol) {
+            this.protocol = protocol;
+        }
+
+        /**
+         * Record the duration of a query.
+         *
+         * @param nanos The duration in nanoseconds.
+         */
+        public void recordQuery(long nanos) {
+            queryDuration.observe(nanos);
+        }
+
+        /**
+         * Record a failed query.
+         */
+        public void recordFailure() {
+            failures.incrementAndGet();
+        }
+
+        /**
+         * Record the state of the schedule and circuit breaker.
+         *
+         * @param pollInterval The current poll interval in milliseconds.
+         * @param circuitOpen Whether the circuit breaker refuses queries.
+         */
+        public void recordState(long pollInterval, boolean circuitOpen) {
+            this.pollInterval = pollInterval;
+            this.circuitOpen = circuitOpen;
+        }
+    }
+
+    /** Metrics of each status URL. */
+    private final ConcurrentMap<String, Endpoint> endpoints
+            = new ConcurrentHashMap<String, Endpoint>();
+
+    /** Durations of polls. */
+    private final Histogram pollDuration = new Histogram();
+
+    /** Durations of merging poll results into the status. */
+    private final Histogram mergeDuration = new Histogram();
+
+    /** Number of messages received from status URLs. */
+    private final AtomicLong messagesIngested = new AtomicLong();
+
+    /** Number of messages dropped by ignore rules. */
+    private final AtomicLong messagesFiltered = new AtomicLong();
+
+    /** Number of log messages evicted by the limits. */
+    private final AtomicLong messagesEvicted = new AtomicLong();
+
+    /** Heap footprint estimated for the status map last written. */
+    private volatile long footprint;
+
+    /** Version of the status map the footprint was estimated for. */
+    private volatile long footprintVersion = -1;
+
+    /**
+     * Get the metrics of a status URL, creating them if necessary.
+     *
+     * @param statusUrl The status URL.
+     * @param protocol The protocol of the status URL, used when the metrics
+     * are created.
+     * @return The metrics of the status URL. Never null.
+     */
+    public Endpoint getEndpoint(String statusUrl, String protocol) {
+        Endpoint endpoint = endpoints.get(statusUrl);
+        if (endpoint == null) {
+            endpoints.putIfAbsent(statusUrl, new Endpoint(protocol));
+            endpoint = endpoints.get(statusUrl);
+        }
+        return endpoint;
+    }
+
+    /**
+     * Forget the metrics of status URLs no longer surveyed.
+     *
+     * @param statusUrls The status URLs to keep metrics of.
+     */
+    public void retainEndpoints(Collection<String> statusUrls) {
+        endpoints.keySet().retainAll(statusUrls);
+    }
+
+    /**
+     * Record the duration of a poll.
+     *
+     * @param nanos The duration in nanoseconds.
+     */
+    public void recordPoll(long nanos) {
+        pollDuration.observe(nanos);
+    }
+
+    /**
+     * Record the duration of merging poll results into the status.
+     *
+     * @param nanos The duration in nanoseconds.
+     */
+    public void recordMerge(long nanos) {
+        mergeDuration.observe(nanos);
+    }
+
+    /**
+     * Record messages received from a status URL.
+     *
+     * @param count The number of messages.
+     */
+    public void recordIngested(int count) {
+        messagesIngested.addAndGet(count);
+    }
+
+    /**
+     * Record messages dropped by ignore rules.
+     *
+     * @param count The number of messages.
+     */
+    public void recordFiltered(int count) {
+        messagesFiltered.addAndGet(count);
+    }
+
+    /**
+     * Record log messages evicted by the limits.
+     *
+     * @param count The number of messages.
+     */
+    public void recordEvicted(int count) {
+        messagesEvicted.addAndGet(count);
+    }
+
+    /**
+     * Write the metrics in Prometheus text exposition format, version 0.0.4.
+     *
+     * @param snapshot The current status, used for gauges of the status map.
+     * @param out The writer to write to.
+     * @throws IOException On trouble writing.
+     */
+    public void write(StatusSnapshot snapshot, Writer out)
+            throws IOException {
+        writeHeader("surveyor_poll_duration_seconds", "histogram",
+                    "Duration of polls of the due status URLs.", out);
+        pollDuration.write("surveyor_poll_duration_seconds", "", out);
+        writeHeader("surveyor_merge_duration_seconds", "histogram",
+                    "Duration of merging poll results into the status.", out);
+        mergeDuration.write("surveyor_merge_duration_seconds", "", out);
+
+        Map<String, Endpoint> sorted
+                = new TreeMap<String, Endpoint>(endpoints);
+        writeHeader("surveyor_query_duration_seconds", "histogram",
+                    "Duration of queries of a status URL.", out);
+        for (Map.Entry<String, Endpoint> entry : sorted.entrySet()) {
+            entry.getValue().queryDuration.write(
+                    "surveyor_query_duration_seconds",
+                    getLabels(entry.getKey(), entry.getValue()), out);
+        }
+        writeHeader("surveyor_query_failures_total", "counter",
+                    "Failed queries of a status URL.", out);
+        for (Map.Entry<String, Endpoint> entry : sorted.entrySet()) {
+            out.write("surveyor_query_failures_total{"
+                    + getLabels(entry.getKey(), entry.getValue()) + "} "
+                    + entry.getValue().failures.get() + "\n");
+        }
+        writeHeader("surveyor_poll_interval_seconds", "gauge",
+                    "Current interval between queries of a status URL.", out);
+        for (Map.Entry<String, Endpoint> entry : sorted.entrySet()) {
+            out.write("surveyor_poll_interval_seconds{"
+                    + getLabels(entry.getKey(), entry.getValue()) + "} "
+                    + entry.getValue().pollInterval / 1e3 + "\n");
+        }
+        writeHeader("surveyor_circuit_open", "gauge",
+                    "Whether queries of a status URL are suspended.", out);
+        for (Map.Entry<String, Endpoint> entry : sorted.entrySet()) {
+            out.write("surveyor_circuit_open{"
+                    + getLabels(entry.getKey(), entry.getValue()) + "} "
+                    + (entry.getValue().circuitOpen ? 1 : 0) + "\n");
+        }
+
+        writeHeader("surveyor_messages_ingested_total", "counter",
+                    "Messages received from status URLs.", out);
+        out.write("surveyor_messages_ingested_total "
+                + messagesIngested.get() + "\n");
+        writeHeader("surveyor_messages_filtered_total", "counter",
+                    "Messages dropped by ignore rules.", out);
+        out.write("surveyor_messages_filtered_total "
+                + messagesFiltered.get() + "\n");
+        writeHeader("surveyor_messages_evicted_total", "counter",
+                    "Log messages evicted by the limits.", out);
+        out.write("surveyor_messages_evicted_total "
+                + messagesEvicted.get() + "\n");
+
+        long messages = 0;
+        long logMessages = 0;
+        for (CondensedStatus status : snapshot.getStatusMap().values()) {
+            messages += status.getMessages().size();
+            logMessages += status.getLogMessageCount();
+        }
+        writeHeader("surveyor_messages_retained", "gauge",
+                    "Messages in the current status.", out);
+        out.write("surveyor_messages_retained{kind=\"log\"} " + logMessages
+                + "\n");
+        out.write("surveyor_messages_retained{kind=\"realtime\"} "
+                + (messages - logMessages) + "\n");
+        writeHeader("surveyor_applications", "gauge",
+                    "Applications in the current status.", out);
+        out.write("surveyor_applications " + snapshot.getStatusMap().size()
+                + "\n");
+        writeHeader("surveyor_status_model_bytes", "gauge",
+                    "Estimated heap footprint of the current status.", out);
+        out.write("surveyor_status_model_bytes " + getFootprint(snapshot)
+                + "\n");
+        writeHeader("surveyor_status_version", "gauge",
+                    "Version of the current status.", out);
+        out.write("surveyor_status_version " + snapshot.getVersion() + "\n");
+        writeHeader("surveyor_change_sequence", "gauge",
+                    "Sequence number of the latest status change.", out);
+        out.write("surveyor_change_sequence " + snapshot.getSequence()
+                + "\n");
+    }
+
+    /**
+     * Get the estimated heap footprint of a status map. Messages shared
+     * between applications are counted once. The estimate is remembered
+     * for the version of the snapshot.
+     *
+     * @param snapshot The status snapshot.
+     * @return The estimated number of bytes.
+     */
+    private long getFootprint(StatusSnapshot snapshot) {
+        if (footprintVersion == snapshot.getVersion()) {
+            return footprint;
+        }
+        Set<MessageKey> keys = new HashSet<MessageKey>();
+        long bytes = 0;
+        for (CondensedStatus status : snapshot.getStatusMap().values()) {
+            bytes += STATUS_BYTES + 2L * status.getName().length();
+            for (CondensedStatusMessage message : status.getMessages()) {
+                bytes += MESSAGE_BYTES + ENTRY_BYTES;
+                if (keys.add(message.getKey())) {
+                    bytes += KEY_BYTES + 2L * message.getMessage().length();
+                }
+            }
+        }
+        footprint = bytes;
+        footprintVersion = snapshot.getVersion();
+        return bytes;
+    }
+
+    /**
+     * Write the help and type lines of a metric.
+     *
+     * @param name The metric name.
+     * @param type The metric type.
+     * @param help The help text.
+     * @param out The writer to write to.
+     * @throws IOException On trouble writing.
+     */
+    private static void writeHeader(String name, String type, String help,
+                                    Writer out) throws IOException {
+        out.write("# HELP " + name + " " + help + "\n");
+        out.write("# TYPE " + name + " " + type + "\n");
+    }
+
+    /**
+     * Get the labels of a status URL.
+     *
+     * @param statusUrl The status URL.
+     * @param endpoint The metrics of the status URL.
+     * @return The labels, formatted for the Prometheus text format.
+     */
+    private static String getLabels(String statusUrl, Endpoint endpoint) {
+        return "protocol=\"" + endpoint.protocol + "\",url=\""
+                + escapeLabel(statusUrl) + "\"";
+    }
+
+    /**
+     * Escape a label value for the Prometheus text format.
+     *
+     * @param value The label value.
+     * @return The escaped value.
+     */
+    static String escapeLabel(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"")
+                .replace("\n", "\\n");
+    }
+}
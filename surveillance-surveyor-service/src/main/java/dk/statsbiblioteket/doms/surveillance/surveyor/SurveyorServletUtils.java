@@ -48,10 +48,21 @@ public class SurveyorServletUtils {
     /** The logger for this class. */
     private static Log log = LogFactory.getLog(SurveyorServletUtils.class);
 
+    /**
+     * Request attribute with the reason an ignore rule was not added, if
+     * it was rejected.
+     */
+    public static final String IGNORE_ERROR_ATTRIBUTE = "ignoreerror";
+
     /**
      * Handle actions given a servlet request on a surveyor.
-     * Will handle requests to mark a log message as handled, and requests
-     * never to show a given message again.
+     * Will handle requests to mark a log message as handled, requests
+     * never to show a given message again, and requests to add or remove a
+     * rule for messages never to show again. Messages are identified by the
+     * id given by {@link DashboardPage#getId}. A rule to add must name its
+     * application, or {@link IgnoreRule#ALL_APPLICATIONS} explicitly; if the
+     * rule is rejected, the reason is set as the request attribute
+     * {@link #IGNORE_ERROR_ATTRIBUTE}.
      * @param request The request containing the parameters.
      * @param surveyor The surveyor to call the actions on.
      */
@@ -67,19 +78,75 @@ public class SurveyorServletUtils {
             throw new Error("UTF-8 unsupported by JVM", e);
         }
 
+        String pattern = request.getParameter("ignorepattern");
+        if (pattern != null && pattern.length() > 0) {
+            String type = request.getParameter("ignoretype");
+            String ruleApplicationName
+                    = request.getParameter("ignoreapplication");
+            if (ruleApplicationName == null
+                    || ruleApplicationName.length() == 0) {
+                request.setAttribute(IGNORE_ERROR_ATTRIBUTE,
+                                     "Choose the application the rule"
+                                     + " applies to");
+            } else {
+                try {
+                    surveyor.addIgnoreRule(new IgnoreRule(
+                            IgnoreRule.Type.valueOf(type),
+                            ruleApplicationName, pattern));
+                } catch (RuntimeException e) {
+                    //Invalid type or pattern, or too broad rule
+                    log.warn("Unable to add ignore rule of type '" + type
+                            + "' for '" + ruleApplicationName + "': '"
+                            + pattern + "'", e);
+                    request.setAttribute(IGNORE_ERROR_ATTRIBUTE,
+                                         "Rule not added: " + e.getMessage());
+                }
+            }
+        }
+
+        String removePattern = request.getParameter("removeignorepattern");
+        if (removePattern != null) {
+            String type = request.getParameter("removeignoretype");
+            String ruleApplicationName
+                    = request.getParameter("removeignoreapplication");
+            try {
+                surveyor.removeIgnoreRule(new IgnoreRule(
+                        IgnoreRule.Type.valueOf(type), ruleApplicationName,
+                        removePattern));
+            } catch (RuntimeException e) {
+                //Invalid type or pattern
+                log.warn("Unable to remove ignore rule of type '" + type
+                        + "' for '" + ruleApplicationName + "': '"
+                        + removePattern + "'", e);
+            }
+        }
+
         applicationName = request.getParameter("applicationname");
         if (applicationName != null) {
+            CondensedStatus status
+                    = surveyor.getStatusMap().get(applicationName);
             Map<String, String[]> parameters = request.getParameterMap();
             for (String key : parameters.keySet()) {
                 if (key.startsWith("handle:") && Arrays.equals(
                         new String[]{"Handled"}, parameters.get(key))) {
-                    surveyor.markHandled(
-                            applicationName, key.substring("handle:".length()));
+                    CondensedStatusMessage message = DashboardPage.findMessage(
+                            status, key.substring("handle:".length()));
+                    if (message != null) {
+                        surveyor.markHandled(
+                                applicationName, message.getMessage());
+                    }
                 }
             }
-            if (request.getParameter("notagain") != null) {
-                surveyor.notAgain(
-                        applicationName, request.getParameter("notagain"));
+            String[] notAgainIds = request.getParameterValues("notagain");
+            if (notAgainIds != null) {
+                for (String id : notAgainIds) {
+                    CondensedStatusMessage message
+                            = DashboardPage.findMessage(status, id);
+                    if (message != null) {
+                        surveyor.notAgain(
+                                applicationName, message.getMessage());
+                    }
+                }
             }
         }
     }
@@ -27,29 +27,50 @@
 
 package dk.statsbiblioteket.doms.surveillance.surveyor;
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
+import java.io.Closeable;
 import java.io.File;
-import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.io.PrintWriter;
+import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import javax.xml.namespace.QName;
+import javax.xml.ws.BindingProvider;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+
 import com.sun.jersey.api.client.Client;
+import com.sun.jersey.api.client.config.ClientConfig;
+import com.sun.jersey.client.apache4.ApacheHttpClient4;
+import com.sun.jersey.client.apache4.config.ApacheHttpClient4Config;
+import com.sun.jersey.client.apache4.config.DefaultApacheHttpClient4Config;
 
 import dk.statsbiblioteket.doms.domsutil.surveyable.Severity;
 import dk.statsbiblioteket.doms.domsutil.surveyable.Status;
@@ -68,17 +89,103 @@ import dk.statsbiblioteket.util.qa.QAInfo;
  * <code>dk.statsbiblioteket.doms.surveillance.surveyor.soapUrls</code>
  * defining list of REST status URLs to monitor (default is empty), and
  * <code>dk.statsbiblioteket.doms.surveillance.surveyor.ignoredMessagesFile</code>
- * defining the file used to persist list of ignored messages (default is
- * "ignored.txt").
+ * defining the file used to persist the ignore rules (default is
+ * "ignored.txt", see {@link IgnoredMessageStore} for the format), and
+ * <code>dk.statsbiblioteket.doms.surveillance.surveyor.pollInterval</code>
+ * defining the initial number of milliseconds between two queries of a
+ * status URL (default is 60000), and
+ * <code>dk.statsbiblioteket.doms.surveillance.surveyor.minPollInterval</code>
+ * and
+ * <code>dk.statsbiblioteket.doms.surveillance.surveyor.maxPollInterval</code>
+ * defining the bounds of the milliseconds between two queries of a status
+ * URL (defaults are 10000 and 600000), and
+ * <code>dk.statsbiblioteket.doms.surveillance.surveyor.pollThreads</code>
+ * defining the maximum number of status URLs queried concurrently (default
+ * is 10), and
+ * <code>dk.statsbiblioteket.doms.surveillance.surveyor.connectTimeout</code>
+ * and <code>dk.statsbiblioteket.doms.surveillance.surveyor.readTimeout</code>
+ * defining the milliseconds to wait for connecting to and reading from a
+ * status URL (defaults are 10000 and 30000), and
+ * <code>dk.statsbiblioteket.doms.surveillance.surveyor.pollTimeout</code>
+ * defining the maximum milliseconds a poll waits for all status URLs to
+ * answer (default is 60000), and
+ * <code>dk.statsbiblioteket.doms.surveillance.surveyor.maxConnections</code>
+ * and
+ * <code>dk.statsbiblioteket.doms.surveillance.surveyor.maxConnectionsPerHost</code>
+ * defining the size of the pool of persistent HTTP connections used for
+ * REST status URLs in total and per host (defaults are 100 and 10), and
+ * <code>dk.statsbiblioteket.doms.surveillance.surveyor.soapWsdl</code>
+ * defining a WSDL for the SOAP status URLs, given as a resource on the
+ * class path or a URL. If given, this WSDL is used for all SOAP status URLs,
+ * and only the endpoint address is taken from the SOAP status URL. Default
+ * is to read the WSDL from each SOAP status URL.
+ *
+ * A SOAP port is created once for each SOAP status URL, and reused until
+ * a query fails or the configuration changes.
+ *
+ * The number of log messages kept is limited by
+ * <code>dk.statsbiblioteket.doms.surveillance.surveyor.maxMessagesPerApplication</code>
+ * for each application (default is 1000), and by
+ * <code>dk.statsbiblioteket.doms.surveillance.surveyor.maxMessages</code>
+ * for all applications together (default is 20000). When a limit is
+ * exceeded, log messages are evicted, see
+ * {@link CondensedStatus#evictLogMessages(int, long)}. The global limit is
+ * shared evenly between the applications with most log messages.
+ *
+ * Changes to the status are recorded in a {@link StatusChangeLog}, retaining
+ * the number of changes given by
+ * <code>dk.statsbiblioteket.doms.surveillance.surveyor.changeLogSize</code>
+ * (default is 10000).
+ *
+ * Each status URL has a {@link CircuitBreaker}. After
+ * <code>dk.statsbiblioteket.doms.surveillance.surveyor.circuitFailureThreshold</code>
+ * consecutive failed queries (default is 3), the status URL is not queried
+ * for
+ * <code>dk.statsbiblioteket.doms.surveillance.surveyor.circuitInitialBackoff</code>
+ * milliseconds (default is 60000), after which a single query probes it.
+ * Each failed probe doubles the backoff, up to
+ * <code>dk.statsbiblioteket.doms.surveillance.surveyor.circuitMaxBackoff</code>
+ * milliseconds (default is 3600000). While a status URL is not queried, the
+ * status reporting its last failure is kept.
+ *
+ * Durations of polls, merges and queries, and counts of messages, are
+ * recorded in {@link SurveyorMetrics}.
  *
- * This class is synchronized on all public methods.
+ * The status map and the time of the newest message from each status URL
+ * are checkpointed to the file given by
+ * <code>dk.statsbiblioteket.doms.surveillance.surveyor.checkpointFile</code>
+ * (default is "checkpoint.bin", see {@link StatusCheckpoint} for the
+ * format) every
+ * <code>dk.statsbiblioteket.doms.surveillance.surveyor.checkpointInterval</code>
+ * milliseconds (default is 300000), and when the surveyor is closed. On
+ * startup, the checkpoint is restored, so unhandled log messages survive a
+ * restart, and the surveyed services are only asked for messages newer than
+ * the ones already received.
+ *
+ * The status URLs are polled by a background thread, and the result of the
+ * latest poll is kept as the current status. Each status URL has its own
+ * poll interval, adapted to how it behaves, see {@link PollScheduler}: it is
+ * shortened for status URLs reporting RED or new log messages, and
+ * lengthened for quiet status URLs reporting GREEN. Each poll queries the
+ * status URLs that are due, and keeps the realtime messages last reported
+ * by the others. The due status URLs are queried
+ * concurrently, and status URLs not answering within the poll timeout are
+ * reported as failing. Reading the status never causes
+ * any communication with the surveyed services. The configuration is reread
+ * before each poll.
+ *
+ * The current status is published as an immutable snapshot. Reading it
+ * never blocks. Changes to the status, by polls or by marking messages as
+ * handled, are synchronized; they build a new snapshot from the current one
+ * and publish it. The lock is never held while communicating with surveyed
+ * services.
  */
 @QAInfo(author = "kfc",
         reviewers = "jrg",
         comment = "Needs review on diff from revision 265",
         level = QAInfo.Level.NORMAL,
         state = QAInfo.State.QA_NEEDED)
-public class WebServiceSurveyor implements Surveyor {
+public class WebServiceSurveyor implements Surveyor, Closeable {
     /** The package prefix for parameter names. */
     private static final String CONFIGURATION_PACKAGE_NAME
             = "dk.statsbiblioteket.doms.surveillance.surveyor";
@@ -95,12 +202,101 @@ public class WebServiceSurveyor implements Surveyor {
     public static final String IGNOREFILE_CONFIGURATION_PARAMETER
             = CONFIGURATION_PACKAGE_NAME + ".ignoredMessagesFile";
 
+    /** Parameter for initial milliseconds between queries of a URL. */
+    public static final String POLLINTERVAL_CONFIGURATION_PARAMETER
+            = CONFIGURATION_PACKAGE_NAME + ".pollInterval";
+
+    /** Parameter for minimum milliseconds between queries of a URL. */
+    public static final String MINPOLLINTERVAL_CONFIGURATION_PARAMETER
+            = CONFIGURATION_PACKAGE_NAME + ".minPollInterval";
+
+    /** Parameter for maximum milliseconds between queries of a URL. */
+    public static final String MAXPOLLINTERVAL_CONFIGURATION_PARAMETER
+            = CONFIGURATION_PACKAGE_NAME + ".maxPollInterval";
+
+    /** Parameter for number of status URLs queried concurrently. */
+    public static final String POLLTHREADS_CONFIGURATION_PARAMETER
+            = CONFIGURATION_PACKAGE_NAME + ".pollThreads";
+
+    /** Parameter for milliseconds to wait for connecting to a status URL. */
+    public static final String CONNECTTIMEOUT_CONFIGURATION_PARAMETER
+            = CONFIGURATION_PACKAGE_NAME + ".connectTimeout";
+
+    /** Parameter for milliseconds to wait for reading from a status URL. */
+    public static final String READTIMEOUT_CONFIGURATION_PARAMETER
+            = CONFIGURATION_PACKAGE_NAME + ".readTimeout";
+
+    /** Parameter for milliseconds a poll waits for all status URLs. */
+    public static final String POLLTIMEOUT_CONFIGURATION_PARAMETER
+            = CONFIGURATION_PACKAGE_NAME + ".pollTimeout";
+
+    /** Parameter for maximum number of pooled REST connections. */
+    public static final String MAXCONNECTIONS_CONFIGURATION_PARAMETER
+            = CONFIGURATION_PACKAGE_NAME + ".maxConnections";
+
+    /** Parameter for maximum number of pooled REST connections per host. */
+    public static final String MAXCONNECTIONSPERHOST_CONFIGURATION_PARAMETER
+            = CONFIGURATION_PACKAGE_NAME + ".maxConnectionsPerHost";
+
+    /** Parameter for WSDL used for all SOAP URLs. */
+    public static final String SOAPWSDL_CONFIGURATION_PARAMETER
+            = CONFIGURATION_PACKAGE_NAME + ".soapWsdl";
+
+    /** Parameter for maximum number of log messages per application. */
+    public static final String MAXMESSAGESPERAPPLICATION_CONFIGURATION_PARAMETER
+            = CONFIGURATION_PACKAGE_NAME + ".maxMessagesPerApplication";
+
+    /** Parameter for maximum number of log messages in total. */
+    public static final String MAXMESSAGES_CONFIGURATION_PARAMETER
+            = CONFIGURATION_PACKAGE_NAME + ".maxMessages";
+
+    /** Parameter for number of changes retained in the change log. */
+    public static final String CHANGELOGSIZE_CONFIGURATION_PARAMETER
+            = CONFIGURATION_PACKAGE_NAME + ".changeLogSize";
+
+    /** Parameter for number of consecutive failures opening a circuit. */
+    public static final String CIRCUITFAILURETHRESHOLD_CONFIGURATION_PARAMETER
+            = CONFIGURATION_PACKAGE_NAME + ".circuitFailureThreshold";
+
+    /** Parameter for milliseconds of the first backoff of a circuit. */
+    public static final String CIRCUITINITIALBACKOFF_CONFIGURATION_PARAMETER
+            = CONFIGURATION_PACKAGE_NAME + ".circuitInitialBackoff";
+
+    /** Parameter for maximum milliseconds of backoff of a circuit. */
+    public static final String CIRCUITMAXBACKOFF_CONFIGURATION_PARAMETER
+            = CONFIGURATION_PACKAGE_NAME + ".circuitMaxBackoff";
+
+    /** Parameter for file with checkpoint of the status. */
+    public static final String CHECKPOINTFILE_CONFIGURATION_PARAMETER
+            = CONFIGURATION_PACKAGE_NAME + ".checkpointFile";
+
+    /** Parameter for milliseconds between checkpoints of the status. */
+    public static final String CHECKPOINTINTERVAL_CONFIGURATION_PARAMETER
+            = CONFIGURATION_PACKAGE_NAME + ".checkpointInterval";
+
+    /** Configuration overriding the web application configuration. */
+    private final Properties configuration;
+
+    /** Epoch of this surveyor, identifying the versions it publishes. */
+    private final long epoch = System.currentTimeMillis();
+
     /**
      * Currently stored state, for keeping log messages until handled. Maps
-     * from application name to status for that application.
+     * from application name to status for that application. The map and the
+     * statuses in it are never modified once published; a modified copy is
+     * published instead.
      */
-    private Map<String, CondensedStatus> currentStatus
-            = new HashMap<String, CondensedStatus>();
+    private final AtomicReference<StatusSnapshot> currentStatus
+            = new AtomicReference<StatusSnapshot>(new StatusSnapshot(
+            epoch, 0L, 0L, epoch,
+            Collections.<String, CondensedStatus>emptyMap()));
+
+    /** Metrics of polls and messages. */
+    private final SurveyorMetrics metrics = new SurveyorMetrics();
+
+    /** Log of changes to the published state. */
+    private final StatusChangeLog changeLog
+            = new StatusChangeLog(epoch, DEFAULT_CHANGE_LOG_SIZE);
 
     /** Newest message time from last time we queried a given URL. */
     private Map<String, Long> newestStatusTime = new HashMap<String, Long>();
@@ -111,29 +307,267 @@ public class WebServiceSurveyor implements Surveyor {
     /** List of SOAP URLs to query. */
     private List<String> soapStatusUrls = new ArrayList<String>();
 
+    /** Rules for messages to ignore, in the order they were added. */
+    private Set<IgnoreRule> ignoreRules = new LinkedHashSet<IgnoreRule>();
+
+    /** The ignore rules compiled for matching. */
+    private IgnoreMatcher ignoreMatcher = IgnoreMatcher.EMPTY;
+
+    /**
+     * Whether the ignore rules have been reread since last poll, so known log
+     * messages must be filtered again.
+     */
+    private boolean ignoreRulesChanged;
+
+    /** Store persisting ignored messages. Null until configured. */
+    private IgnoredMessageStore ignoredMessageStore;
+
+    /** Circuit breaker for each status URL. */
+    private final Map<String, CircuitBreaker> circuitBreakers
+            = new HashMap<String, CircuitBreaker>();
+
+    /**
+     * Realtime messages of the last status reported by each status URL, or
+     * the status reporting its last failure. Kept in the status map while
+     * the status URL is not queried.
+     */
+    private final Map<String, Status> realtimeStatuses
+            = new HashMap<String, Status>();
+
+    /** Number of consecutive failures opening a circuit. */
+    private int circuitFailureThreshold = DEFAULT_CIRCUIT_FAILURE_THRESHOLD;
+
+    /** Milliseconds of the first backoff of a circuit. */
+    private long circuitInitialBackoff = DEFAULT_CIRCUIT_INITIAL_BACKOFF;
+
+    /** Maximum milliseconds of backoff of a circuit. */
+    private long circuitMaxBackoff = DEFAULT_CIRCUIT_MAX_BACKOFF;
+
+    /** The checkpoint of the status. */
+    private StatusCheckpoint checkpoint;
+
+    /** Milliseconds between checkpoints of the status. */
+    private long checkpointInterval = DEFAULT_CHECKPOINT_INTERVAL;
+
+    /** Time of the last checkpoint. Only used by the poll thread. */
+    private long lastCheckpointTime = System.currentTimeMillis();
+
+    /** Initial milliseconds between queries of a status URL. */
+    private long pollInterval = DEFAULT_POLL_INTERVAL;
+
+    /** Minimum milliseconds between queries of a status URL. */
+    private long minPollInterval = DEFAULT_MIN_POLL_INTERVAL;
+
+    /** Maximum milliseconds between queries of a status URL. */
+    private long maxPollInterval = DEFAULT_MAX_POLL_INTERVAL;
+
+    /** Schedule of queries of the status URLs. */
+    private final PollScheduler pollScheduler = new PollScheduler(
+            DEFAULT_POLL_INTERVAL, DEFAULT_MIN_POLL_INTERVAL,
+            DEFAULT_MAX_POLL_INTERVAL);
+
+    /** Milliseconds to wait for connecting to a status URL. */
+    private long connectTimeout = DEFAULT_CONNECT_TIMEOUT;
+
+    /** Milliseconds to wait for reading from a status URL. */
+    private long readTimeout = DEFAULT_READ_TIMEOUT;
+
+    /** Milliseconds a poll waits for all status URLs to answer. */
+    private long pollTimeout = DEFAULT_POLL_TIMEOUT;
+
+    /** Maximum number of pooled REST connections. */
+    private int maxConnections = DEFAULT_MAX_CONNECTIONS;
+
+    /** Maximum number of pooled REST connections per host. */
+    private int maxConnectionsPerHost = DEFAULT_MAX_CONNECTIONS_PER_HOST;
+
+    /**
+     * The client used for all REST status queries. This is thread safe, and
+     * keeps a pool of persistent connections. Recreated only when the
+     * configuration of it changes.
+     */
+    private Client restClient;
+
+    /** The connection pool of the REST client. */
+    private ThreadSafeClientConnManager restConnectionManager;
+
+    /** Maximum number of log messages kept per application. */
+    private int maxMessagesPerApplication
+            = DEFAULT_MAX_MESSAGES_PER_APPLICATION;
+
+    /** Maximum number of log messages kept in total. */
+    private int maxMessages = DEFAULT_MAX_MESSAGES;
+
+    /** Location of WSDL used for all SOAP URLs. Null means none. */
+    private String soapWsdl;
+
+    /**
+     * The SOAP service made from the configured WSDL. Null if no WSDL is
+     * configured, or if the service is not yet created.
+     */
+    private SurveyableService soapService;
+
     /**
-     * Map of messages to ignore. Map from application name to set of ignored
-     * messages.
+     * Cache of SOAP ports. Maps from SOAP status URL to the port used for
+     * querying that URL. A port is removed from the cache when a query using
+     * it fails, and the cache is cleared on configuration changes.
      */
-    private Map<String, Set<String>> ignoredMessages
-            = new HashMap<String, Set<String>>();
+    private final ConcurrentMap<String, Surveyable> soapPorts
+            = new ConcurrentHashMap<String, Surveyable>();
 
-    /** File containing ignored strings */
-    private File ignoredMessagesFile = new File(DEFAULT_IGNORED_MESSAGES_PATH);
+    /** Executor running the background polls. Polls never overlap. */
+    private final ScheduledExecutorService pollExecutor
+            = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "SurveyorPoller");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    /**
+     * Executor running the queries of status URLs during a poll. The number
+     * of threads is adjusted to the configuration.
+     */
+    private final ThreadPoolExecutor queryExecutor = new ThreadPoolExecutor(
+            DEFAULT_POLL_THREADS, DEFAULT_POLL_THREADS, 60L, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+        private final AtomicInteger threadNumber = new AtomicInteger();
+
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "SurveyorQuery-"
+                    + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
 
     /** Logger for this class. */
     private final Log log = LogFactory.getLog(WebServiceSurveyor.class);
 
     /** Default configuration for ignored messages file. */
     private static final String DEFAULT_IGNORED_MESSAGES_PATH = "ignored.txt";
+
+    /** Default configuration for initial milliseconds between queries. */
+    private static final long DEFAULT_POLL_INTERVAL = 60000L;
+
+    /** Default configuration for minimum milliseconds between queries. */
+    private static final long DEFAULT_MIN_POLL_INTERVAL = 10000L;
+
+    /** Default configuration for maximum milliseconds between queries. */
+    private static final long DEFAULT_MAX_POLL_INTERVAL = 600000L;
+
+    /** Default configuration for number of concurrent queries. */
+    private static final int DEFAULT_POLL_THREADS = 10;
+
+    /** Default configuration for connect timeout in milliseconds. */
+    private static final long DEFAULT_CONNECT_TIMEOUT = 10000L;
+
+    /** Default configuration for read timeout in milliseconds. */
+    private static final long DEFAULT_READ_TIMEOUT = 30000L;
+
+    /** Default configuration for poll timeout in milliseconds. */
+    private static final long DEFAULT_POLL_TIMEOUT = 60000L;
+
+    /** Default configuration for maximum number of pooled connections. */
+    private static final int DEFAULT_MAX_CONNECTIONS = 100;
+
+    /** Default configuration for maximum pooled connections per host. */
+    private static final int DEFAULT_MAX_CONNECTIONS_PER_HOST = 10;
+
+    /** Default configuration for maximum log messages per application. */
+    private static final int DEFAULT_MAX_MESSAGES_PER_APPLICATION = 1000;
+
+    /** Default configuration for maximum log messages in total. */
+    private static final int DEFAULT_MAX_MESSAGES = 20000;
+
+    /** Default configuration for number of changes in the change log. */
+    private static final int DEFAULT_CHANGE_LOG_SIZE = 10000;
+
+    /** Default configuration for failures opening a circuit. */
+    private static final int DEFAULT_CIRCUIT_FAILURE_THRESHOLD = 3;
+
+    /** Default configuration for first backoff of a circuit. */
+    private static final long DEFAULT_CIRCUIT_INITIAL_BACKOFF = 60000L;
+
+    /** Default configuration for maximum backoff of a circuit. */
+    private static final long DEFAULT_CIRCUIT_MAX_BACKOFF = 3600000L;
+
+    /** Default configuration for checkpoint file. */
+    private static final String DEFAULT_CHECKPOINT_PATH = "checkpoint.bin";
+
+    /** Default configuration for milliseconds between checkpoints. */
+    private static final long DEFAULT_CHECKPOINT_INTERVAL = 300000L;
+
+    /** JAX-WS RI request context property for connect timeout. */
+    private static final String SOAP_CONNECT_TIMEOUT_PROPERTY
+            = "com.sun.xml.ws.connect.timeout";
+
+    /** JAX-WS RI request context property for read timeout. */
+    private static final String SOAP_REQUEST_TIMEOUT_PROPERTY
+            = "com.sun.xml.ws.request.timeout";
+
+    /** JDK internal JAX-WS request context property for connect timeout. */
+    private static final String SOAP_INTERNAL_CONNECT_TIMEOUT_PROPERTY
+            = "com.sun.xml.internal.ws.connect.timeout";
+
+    /** JDK internal JAX-WS request context property for read timeout. */
+    private static final String SOAP_INTERNAL_REQUEST_TIMEOUT_PROPERTY
+            = "com.sun.xml.internal.ws.request.timeout";
+
     private static final QName SERVICE_QNAME = new QName(
             "http://surveyable.domsutil.doms.statsbiblioteket.dk/",
             "SurveyableService");
 
-    /** Initialise this surveyor. */
+    /**
+     * Initialise this surveyor, restore the checkpointed status, and start
+     * polling the status URLs in the background. The first poll is started
+     * immediately.
+     */
     public WebServiceSurveyor() {
+        this(null);
+    }
+
+    /**
+     * Initialise this surveyor with the given configuration instead of the
+     * configuration of the web application, restore the checkpointed status,
+     * and start polling the status URLs in the background. This allows
+     * running the surveyor outside a servlet container, e.g. in load tests.
+     *
+     * @param configuration The configuration, with the parameters described
+     * in the class documentation, or null for the configuration of the web
+     * application.
+     */
+    WebServiceSurveyor(Properties configuration) {
+        this.configuration = configuration;
         log.info("Starting surveyor");
+        queryExecutor.allowCoreThreadTimeOut(true);
         readConfiguration();
+        restoreCheckpoint();
+        pollExecutor.execute(new Runnable() {
+            public void run() {
+                poll();
+            }
+        });
+    }
+
+    /**
+     * Stop polling the status URLs, and checkpoint the status. The current
+     * status is still available after this, but will no longer be updated.
+     * The change log is closed, releasing clients waiting for changes.
+     */
+    public void close() {
+        log.info("Stopping surveyor");
+        changeLog.close();
+        pollExecutor.shutdownNow();
+        queryExecutor.shutdownNow();
+        writeCheckpoint();
+        synchronized (this) {
+            destroyRestClient();
+            if (ignoredMessageStore != null) {
+                ignoredMessageStore.close();
+            }
+        }
     }
 
     /**
@@ -145,22 +579,46 @@ public class WebServiceSurveyor implements Surveyor {
      * @see #REST_URLS_CONFIGURATION_PARAMETER
      * @see #SOAP_URLS_CONFIGURATION_PARAMETER
      * @see #IGNOREFILE_CONFIGURATION_PARAMETER
+     * @see #POLLINTERVAL_CONFIGURATION_PARAMETER
+     * @see #MINPOLLINTERVAL_CONFIGURATION_PARAMETER
+     * @see #MAXPOLLINTERVAL_CONFIGURATION_PARAMETER
+     * @see #POLLTHREADS_CONFIGURATION_PARAMETER
+     * @see #CONNECTTIMEOUT_CONFIGURATION_PARAMETER
+     * @see #READTIMEOUT_CONFIGURATION_PARAMETER
+     * @see #POLLTIMEOUT_CONFIGURATION_PARAMETER
+     * @see #MAXCONNECTIONS_CONFIGURATION_PARAMETER
+     * @see #MAXCONNECTIONSPERHOST_CONFIGURATION_PARAMETER
+     * @see #SOAPWSDL_CONFIGURATION_PARAMETER
+     * @see #MAXMESSAGESPERAPPLICATION_CONFIGURATION_PARAMETER
+     * @see #MAXMESSAGES_CONFIGURATION_PARAMETER
+     * @see #CHANGELOGSIZE_CONFIGURATION_PARAMETER
+     * @see #CIRCUITFAILURETHRESHOLD_CONFIGURATION_PARAMETER
+     * @see #CIRCUITINITIALBACKOFF_CONFIGURATION_PARAMETER
+     * @see #CIRCUITMAXBACKOFF_CONFIGURATION_PARAMETER
+     * @see #CHECKPOINTFILE_CONFIGURATION_PARAMETER
+     * @see #CHECKPOINTINTERVAL_CONFIGURATION_PARAMETER
      */
     private synchronized void readConfiguration() {
         log.trace("Enter readConfiguration()");
 
         //Read configuration
         String restUrlParameter
-                = ConfigCollection.getProperties().getProperty(
+                = getConfiguration().getProperty(
                 REST_URLS_CONFIGURATION_PARAMETER);
         String soapUrlParameter
-                = ConfigCollection.getProperties().getProperty(
+                = getConfiguration().getProperty(
                 SOAP_URLS_CONFIGURATION_PARAMETER);
-        String ignoredMessagesPath = ConfigCollection.getProperties()
+        String ignoredMessagesPath = getConfiguration()
                 .getProperty(IGNOREFILE_CONFIGURATION_PARAMETER);
+        String soapWsdl = getConfiguration()
+                .getProperty(SOAPWSDL_CONFIGURATION_PARAMETER);
+        String checkpointPath = getConfiguration()
+                .getProperty(CHECKPOINTFILE_CONFIGURATION_PARAMETER);
         List<String> restStatusUrls;
         List<String> soapStatusUrls;
         File ignoredMessagesFile;
+        boolean restClientChanged = (restClient == null);
+        boolean soapPortsChanged = false;
 
         //Initialize REST status urls
         if (restUrlParameter == null || restUrlParameter.equals("")) {
@@ -190,6 +648,22 @@ public class WebServiceSurveyor implements Surveyor {
             log.info("Setting list of surveyed SOAP status URLs to '"
                     + soapStatusUrls + "'");
             this.soapStatusUrls = soapStatusUrls;
+            soapPortsChanged = true;
+        }
+
+        //Initialize WSDL for SOAP status urls
+        if (soapWsdl != null && soapWsdl.trim().equals("")) {
+            soapWsdl = null;
+        } else if (soapWsdl != null) {
+            soapWsdl = soapWsdl.trim();
+        }
+        if (soapWsdl == null ? this.soapWsdl != null
+                : !soapWsdl.equals(this.soapWsdl)) {
+            log.info("Setting WSDL for SOAP status URLs to '" + soapWsdl
+                    + "'");
+            this.soapWsdl = soapWsdl;
+            this.soapService = null;
+            soapPortsChanged = true;
         }
 
         //Initialize file with list of ignored messages.
@@ -206,14 +680,256 @@ public class WebServiceSurveyor implements Surveyor {
             ignoredMessagesPath = DEFAULT_IGNORED_MESSAGES_PATH;
             ignoredMessagesFile = new File(ignoredMessagesPath);
         }
-        if (!this.ignoredMessagesFile.equals(ignoredMessagesFile)) {
+        if (ignoredMessageStore == null
+                || !ignoredMessageStore.getFile().equals(ignoredMessagesFile)) {
             log.info("Setting file with list of ignored messages to '"
                     + ignoredMessagesFile + "'");
-            this.ignoredMessagesFile = ignoredMessagesFile;
-            readIgnoredMessagesFromFile();
+            readIgnoredMessagesFromFile(ignoredMessagesFile);
+        }
+
+        //Initialize poll intervals
+        long pollInterval = readPositiveNumber(
+                POLLINTERVAL_CONFIGURATION_PARAMETER, DEFAULT_POLL_INTERVAL);
+        long minPollInterval = readPositiveNumber(
+                MINPOLLINTERVAL_CONFIGURATION_PARAMETER,
+                DEFAULT_MIN_POLL_INTERVAL);
+        long maxPollInterval = readPositiveNumber(
+                MAXPOLLINTERVAL_CONFIGURATION_PARAMETER,
+                DEFAULT_MAX_POLL_INTERVAL);
+        if (pollInterval != this.pollInterval
+                || minPollInterval != this.minPollInterval
+                || maxPollInterval != this.maxPollInterval) {
+            log.info("Setting poll interval to " + pollInterval
+                    + " ms, adapted between " + minPollInterval + " and "
+                    + maxPollInterval + " ms");
+            this.pollInterval = pollInterval;
+            this.minPollInterval = minPollInterval;
+            this.maxPollInterval = maxPollInterval;
+            pollScheduler.setIntervals(pollInterval, minPollInterval,
+                                       maxPollInterval);
+        }
+
+        //Initialize number of concurrent queries
+        int pollThreads = (int) readPositiveNumber(
+                POLLTHREADS_CONFIGURATION_PARAMETER, DEFAULT_POLL_THREADS);
+        if (pollThreads != queryExecutor.getMaximumPoolSize()) {
+            log.info("Setting number of concurrent queries to "
+                    + pollThreads);
+            if (pollThreads > queryExecutor.getMaximumPoolSize()) {
+                queryExecutor.setMaximumPoolSize(pollThreads);
+                queryExecutor.setCorePoolSize(pollThreads);
+            } else {
+                queryExecutor.setCorePoolSize(pollThreads);
+                queryExecutor.setMaximumPoolSize(pollThreads);
+            }
+        }
+
+        //Initialize timeouts
+        long connectTimeout = readPositiveNumber(
+                CONNECTTIMEOUT_CONFIGURATION_PARAMETER,
+                DEFAULT_CONNECT_TIMEOUT);
+        if (connectTimeout != this.connectTimeout) {
+            log.info("Setting connect timeout to " + connectTimeout + " ms");
+            this.connectTimeout = connectTimeout;
+            restClientChanged = true;
+            soapPortsChanged = true;
+        }
+        long readTimeout = readPositiveNumber(
+                READTIMEOUT_CONFIGURATION_PARAMETER, DEFAULT_READ_TIMEOUT);
+        if (readTimeout != this.readTimeout) {
+            log.info("Setting read timeout to " + readTimeout + " ms");
+            this.readTimeout = readTimeout;
+            restClientChanged = true;
+            soapPortsChanged = true;
+        }
+        long pollTimeout = readPositiveNumber(
+                POLLTIMEOUT_CONFIGURATION_PARAMETER, DEFAULT_POLL_TIMEOUT);
+        if (pollTimeout != this.pollTimeout) {
+            log.info("Setting poll timeout to " + pollTimeout + " ms");
+            this.pollTimeout = pollTimeout;
+        }
+
+        //Initialize REST client connection pool
+        int maxConnections = (int) readPositiveNumber(
+                MAXCONNECTIONS_CONFIGURATION_PARAMETER,
+                DEFAULT_MAX_CONNECTIONS);
+        if (maxConnections != this.maxConnections) {
+            log.info("Setting maximum number of pooled connections to "
+                    + maxConnections);
+            this.maxConnections = maxConnections;
+            restClientChanged = true;
+        }
+        int maxConnectionsPerHost = (int) readPositiveNumber(
+                MAXCONNECTIONSPERHOST_CONFIGURATION_PARAMETER,
+                DEFAULT_MAX_CONNECTIONS_PER_HOST);
+        if (maxConnectionsPerHost != this.maxConnectionsPerHost) {
+            log.info("Setting maximum number of pooled connections per host to "
+                    + maxConnectionsPerHost);
+            this.maxConnectionsPerHost = maxConnectionsPerHost;
+            restClientChanged = true;
+        }
+        if (restClientChanged) {
+            createRestClient();
+        }
+
+        //Initialize limits on number of log messages
+        int maxMessagesPerApplication = (int) readPositiveNumber(
+                MAXMESSAGESPERAPPLICATION_CONFIGURATION_PARAMETER,
+                DEFAULT_MAX_MESSAGES_PER_APPLICATION);
+        if (maxMessagesPerApplication != this.maxMessagesPerApplication) {
+            log.info("Setting maximum number of log messages per application"
+                    + " to " + maxMessagesPerApplication);
+            this.maxMessagesPerApplication = maxMessagesPerApplication;
+        }
+        int maxMessages = (int) readPositiveNumber(
+                MAXMESSAGES_CONFIGURATION_PARAMETER, DEFAULT_MAX_MESSAGES);
+        if (maxMessages != this.maxMessages) {
+            log.info("Setting maximum number of log messages to "
+                    + maxMessages);
+            this.maxMessages = maxMessages;
+        }
+        changeLog.setCapacity((int) readPositiveNumber(
+                CHANGELOGSIZE_CONFIGURATION_PARAMETER,
+                DEFAULT_CHANGE_LOG_SIZE));
+
+        //Initialize circuit breakers
+        int circuitFailureThreshold = (int) readPositiveNumber(
+                CIRCUITFAILURETHRESHOLD_CONFIGURATION_PARAMETER,
+                DEFAULT_CIRCUIT_FAILURE_THRESHOLD);
+        long circuitInitialBackoff = readPositiveNumber(
+                CIRCUITINITIALBACKOFF_CONFIGURATION_PARAMETER,
+                DEFAULT_CIRCUIT_INITIAL_BACKOFF);
+        long circuitMaxBackoff = readPositiveNumber(
+                CIRCUITMAXBACKOFF_CONFIGURATION_PARAMETER,
+                DEFAULT_CIRCUIT_MAX_BACKOFF);
+        if (circuitFailureThreshold != this.circuitFailureThreshold
+                || circuitInitialBackoff != this.circuitInitialBackoff
+                || circuitMaxBackoff != this.circuitMaxBackoff) {
+            log.info("Setting circuit breakers to open after "
+                    + circuitFailureThreshold + " failures, with backoff "
+                    + circuitInitialBackoff + " to " + circuitMaxBackoff
+                    + " ms");
+            this.circuitFailureThreshold = circuitFailureThreshold;
+            this.circuitInitialBackoff = circuitInitialBackoff;
+            this.circuitMaxBackoff = circuitMaxBackoff;
+            circuitBreakers.clear();
+        }
+        Set<String> statusUrls = new HashSet<String>(this.restStatusUrls);
+        statusUrls.addAll(this.soapStatusUrls);
+        circuitBreakers.keySet().retainAll(statusUrls);
+        realtimeStatuses.keySet().retainAll(statusUrls);
+        pollScheduler.retainAll(statusUrls);
+        metrics.retainEndpoints(statusUrls);
+
+        //Initialize checkpoint file
+        if (checkpointPath == null || checkpointPath.trim().equals("")) {
+            checkpointPath = DEFAULT_CHECKPOINT_PATH;
+        }
+        File checkpointFile = new File(checkpointPath.trim());
+        if (!checkpointFile.getAbsoluteFile().getParentFile().isDirectory()
+                || (checkpointFile.exists() && !checkpointFile.isFile())) {
+            log.warn("Configuration for checkpoint file '" + checkpointPath
+                    + "' does not denote a valid file."
+                    + " Falling back to default.");
+            checkpointFile = new File(DEFAULT_CHECKPOINT_PATH);
+        }
+        if (checkpoint == null
+                || !checkpoint.getFile().equals(checkpointFile)) {
+            log.info("Setting checkpoint file to '" + checkpointFile + "'");
+            checkpoint = new StatusCheckpoint(checkpointFile);
+        }
+        long checkpointInterval = readPositiveNumber(
+                CHECKPOINTINTERVAL_CONFIGURATION_PARAMETER,
+                DEFAULT_CHECKPOINT_INTERVAL);
+        if (checkpointInterval != this.checkpointInterval) {
+            log.info("Setting checkpoint interval to " + checkpointInterval
+                    + " ms");
+            this.checkpointInterval = checkpointInterval;
+        }
+        if (soapPortsChanged) {
+            soapPorts.clear();
         }
     }
 
+    /**
+     * Create the client used for REST status queries from the current
+     * configuration, replacing and destroying any existing client.
+     * The client keeps a pool of persistent connections, so connections to
+     * the same host are reused between queries and between polls.
+     */
+    private synchronized void createRestClient() {
+        log.trace("Enter createRestClient()");
+        ThreadSafeClientConnManager connectionManager
+                = new ThreadSafeClientConnManager();
+        connectionManager.setMaxTotal(maxConnections);
+        connectionManager.setDefaultMaxPerRoute(maxConnectionsPerHost);
+        ClientConfig config = new DefaultApacheHttpClient4Config();
+        config.getProperties().put(
+                ApacheHttpClient4Config.PROPERTY_CONNECTION_MANAGER,
+                connectionManager);
+        Client client = ApacheHttpClient4.create(config);
+        client.setConnectTimeout((int) connectTimeout);
+        client.setReadTimeout((int) readTimeout);
+
+        destroyRestClient();
+        restClient = client;
+        restConnectionManager = connectionManager;
+    }
+
+    /**
+     * Destroy the client used for REST status queries, if any, closing all
+     * pooled connections.
+     */
+    private synchronized void destroyRestClient() {
+        if (restClient != null) {
+            log.trace("Destroying REST client");
+            restClient.destroy();
+            restConnectionManager.shutdown();
+            restClient = null;
+            restConnectionManager = null;
+        }
+    }
+
+    /**
+     * Get the configuration.
+     *
+     * @return The configuration given on construction, or the configuration
+     * of the web application if none was given.
+     */
+    private Properties getConfiguration() {
+        if (configuration != null) {
+            return configuration;
+        }
+        return ConfigCollection.getProperties();
+    }
+
+    /**
+     * Read a configuration value giving a positive number, typically of
+     * milliseconds.
+     *
+     * @param parameterName Name of the parameter.
+     * @param defaultValue The value to use if the parameter is not set or is
+     * not a positive number.
+     * @return The configured value, or the default value.
+     */
+    private long readPositiveNumber(String parameterName, long defaultValue) {
+        String value = getConfiguration().getProperty(parameterName);
+        if (value == null || value.trim().equals("")) {
+            return defaultValue;
+        }
+        try {
+            long number = Long.parseLong(value.trim());
+            if (number > 0) {
+                return number;
+            }
+        } catch (NumberFormatException e) {
+            // Fall through to warning below
+        }
+        log.warn("Configuration for '" + parameterName + "' value '" + value
+                + "' is not a positive number. Falling back to default.");
+        return defaultValue;
+    }
+
     /**
      * Mark a message as handled, thus removing it from the list of currently
      * unhandled log messages.
@@ -225,11 +941,18 @@ public class WebServiceSurveyor implements Surveyor {
                                          String message) {
         log.trace("Enter markHandled('" + applicationName + "', '" + message
                 + "')");
-        CondensedStatus status = currentStatus.get(applicationName);
+        Map<String, CondensedStatus> oldStatusMap
+                = currentStatus.get().getStatusMap();
+        CondensedStatus status = oldStatusMap.get(applicationName);
         if (status != null) {
             log.debug("Log message ('" + applicationName + "', '" + message
                     + "') marked as handled");
+            status = new CondensedStatus(status);
             status.removeLogMessage(message);
+            Map<String, CondensedStatus> statusMap
+                    = new HashMap<String, CondensedStatus>(oldStatusMap);
+            statusMap.put(applicationName, status);
+            publishStatus(statusMap);
         }
     }
 
@@ -242,92 +965,543 @@ public class WebServiceSurveyor implements Surveyor {
     public synchronized void notAgain(String applicationName, String message) {
         log.debug("Log message ('" + applicationName + "', '" + message
                 + "') will never be shown again");
-        Set<String> ignored = ignoredMessages.get(applicationName);
-        if (ignored == null) {
-            ignored = new HashSet<String>();
-            ignoredMessages.put(applicationName, ignored);
+        addRule(new IgnoreRule(IgnoreRule.Type.EXACT, applicationName,
+                               message));
+    }
+
+    /**
+     * Add a rule for messages never to show again. Known log messages
+     * matching the rule are removed at once.
+     *
+     * @param rule The rule.
+     * @throws IllegalArgumentException If the rule is too broad, as
+     * defined by {@link IgnoreRule#isTooBroad()}.
+     */
+    public synchronized void addIgnoreRule(IgnoreRule rule) {
+        if (rule.isTooBroad()) {
+            throw new IllegalArgumentException("Ignore rule '" + rule
+                    + "' would hide every message");
+        }
+        addRule(rule);
+    }
+
+    /**
+     * Remove a rule for messages never to show again. Messages matching the
+     * rule are kept from the next poll; messages already ignored are not
+     * restored.
+     *
+     * @param rule The rule.
+     */
+    public synchronized void removeIgnoreRule(IgnoreRule rule) {
+        if (!ignoreRules.remove(rule)) {
+            return;
+        }
+        log.debug("Removing ignore rule '" + rule + "'");
+        ignoreMatcher = new IgnoreMatcher(ignoreRules);
+        ignoredMessageStore.remove(rule);
+        changeLog.append(Collections.singletonList(new StatusChange(
+                0L, StatusChange.Type.IGNORE_RULE_REMOVED, rule)));
+    }
+
+    /**
+     * Get the rules for messages never to show again.
+     *
+     * @return The rules, in the order they were added. A copy.
+     */
+    public synchronized List<IgnoreRule> getIgnoreRules() {
+        return Collections.unmodifiableList(
+                new ArrayList<IgnoreRule>(ignoreRules));
+    }
+
+    /**
+     * Add a rule for messages never to show again, and remove known log
+     * messages matching it.
+     *
+     * @param rule The rule.
+     */
+    private synchronized void addRule(IgnoreRule rule) {
+        if (!ignoreRules.add(rule)) {
+            return;
+        }
+        log.debug("Adding ignore rule '" + rule + "'");
+        ignoreMatcher = new IgnoreMatcher(ignoreRules);
+        ignoredMessageStore.add(rule);
+        changeLog.append(Collections.singletonList(
+                new StatusChange(0L, rule)));
+        Map<String, CondensedStatus> result = null;
+        Map<String, CondensedStatus> oldStatusMap
+                = currentStatus.get().getStatusMap();
+        for (CondensedStatus status : oldStatusMap.values()) {
+            List<MessageKey> ignored
+                    = StatusMerge.findIgnoredLogMessages(status, ignoreMatcher);
+            metrics.recordFiltered(ignored.size());
+            if (!ignored.isEmpty()) {
+                if (result == null) {
+                    result = new HashMap<String, CondensedStatus>(
+                            oldStatusMap);
+                }
+                CondensedStatus newStatus = new CondensedStatus(status);
+                for (MessageKey key : ignored) {
+                    newStatus.removeLogMessage(key);
+                }
+                result.put(status.getName(), newStatus);
+            }
+        }
+        if (result != null) {
+            publishStatus(result);
         }
-        ignored.add(message);
-        markHandled(applicationName, message);
-        appendIgnoredMessageToFile(applicationName, message);
     }
 
     /**
-     * Get a list of statuses by querying some REST urls, and merging them with
-     * previously known unhandled log messages.
+     * Get the statuses found by the latest poll of the REST and SOAP URLs,
+     * merged with previously known unhandled log messages. This never
+     * communicates with the surveyed services.
+     *
+     * This method does not block, and the returned map is an immutable
+     * snapshot.
      *
-     * @return A map of statuses from application name to status.
+     * @return A map of statuses from application name to status. Never null.
      */
-    public synchronized Map<String, CondensedStatus> getStatusMap() {
+    public Map<String, CondensedStatus> getStatusMap() {
         log.trace("Enter getStatusMap()");
-        Map<String, CondensedStatus> result
-                = new HashMap<String, CondensedStatus>();
-        Client c;
-        //Keep only non-ignored log messages
-        updateResultFromOldStatus(result);
-        //Query REST-URLS for more messages
-        c = Client.create();
-        for (String statusUrl : restStatusUrls) {
-            //Find time of newest currently known log message from that URL
-            Long newest = newestStatusTime.get(statusUrl);
-            if (newest == null) {
-                newest = 0L;
+        return currentStatus.get().getStatusMap();
+    }
+
+    /**
+     * Get the statuses as returned by {@link #getStatusMap()}, with the
+     * version identifying them.
+     *
+     * This method does not block.
+     *
+     * @return The current snapshot. Never null.
+     */
+    public StatusSnapshot getStatusSnapshot() {
+        log.trace("Enter getStatusSnapshot()");
+        return currentStatus.get();
+    }
+
+    /**
+     * Get the log of changes to the status.
+     *
+     * @return The change log. Never null.
+     */
+    public StatusChangeLog getChangeLog() {
+        return changeLog;
+    }
+
+    /**
+     * Get the metrics of polls and messages.
+     *
+     * @return The metrics. Never null.
+     */
+    public SurveyorMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Publish a new status map as the current status, and record the changes
+     * from the previous status in the change log. The version is only
+     * increased if something other than the times of realtime messages
+     * changed, so a poll that only finds the same realtime messages again
+     * does not invalidate the tags clients hold. The map and the statuses in
+     * it must not be modified after this. Must be called while holding the
+     * lock of this surveyor.
+     *
+     * @param statusMap The new status map.
+     */
+    private void publishStatus(Map<String, CondensedStatus> statusMap) {
+        StatusSnapshot oldSnapshot = currentStatus.get();
+        List<StatusChange> changes = new ArrayList<StatusChange>();
+        StatusChange.diff(oldSnapshot.getStatusMap(), statusMap, changes);
+        long sequence = changeLog.append(changes);
+        if (!changes.isEmpty() || !oldSnapshot.getStatusMap().keySet().equals(
+                statusMap.keySet())) {
+            currentStatus.set(new StatusSnapshot(
+                    epoch, oldSnapshot.getVersion() + 1, sequence,
+                    System.currentTimeMillis(), statusMap));
+        } else {
+            currentStatus.set(new StatusSnapshot(
+                    epoch, oldSnapshot.getVersion(), oldSnapshot.getSequence(),
+                    oldSnapshot.getTime(), statusMap));
+        }
+    }
+
+    /**
+     * Do one poll, and schedule the next one when the next status URL is
+     * due. This method is the fault barrier of the background poll, so a
+     * failing poll never stops the polling.
+     */
+    private void poll() {
+        try {
+            pollStatus();
+            if (System.currentTimeMillis() - lastCheckpointTime
+                    >= checkpointInterval) {
+                writeCheckpoint();
+            }
+        } catch (Exception e) {
+            log.error("Unexpected trouble polling status URLs", e);
+        } finally {
+            if (!pollExecutor.isShutdown()) {
+                pollExecutor.schedule(new Runnable() {
+                    public void run() {
+                        poll();
+                    }
+                }, getPollDelay(), TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    /**
+     * Get the milliseconds until the next status URL is due. This is never
+     * less than the granularity of the schedule, and never more than the
+     * maximum poll interval, so configuration changes are picked up.
+     *
+     * @return The milliseconds to wait before the next poll.
+     */
+    private synchronized long getPollDelay() {
+        long now = System.currentTimeMillis();
+        long delay = pollScheduler.getNextPollTime(now) - now;
+        return Math.max(PollScheduler.GRANULARITY,
+                        Math.min(maxPollInterval, delay));
+    }
+
+    /**
+     * Restore the status and the time of the newest message from each
+     * status URL from the checkpoint, if there is one. Restored log messages
+     * matching ignore rules are removed by the first poll.
+     */
+    private synchronized void restoreCheckpoint() {
+        log.trace("Enter restoreCheckpoint()");
+        Map<String, Long> newestStatusTime = new HashMap<String, Long>();
+        Map<String, CondensedStatus> statusMap
+                = checkpoint.read(newestStatusTime);
+        if (statusMap != null) {
+            this.newestStatusTime.putAll(newestStatusTime);
+            publishStatus(statusMap);
+        }
+    }
+
+    /**
+     * Write a checkpoint of the current status and of the time of the
+     * newest message from each status URL. The lock of this surveyor is only
+     * held while copying the times, not while writing the file. Failures are
+     * logged, and the previous checkpoint is kept.
+     */
+    private void writeCheckpoint() {
+        log.trace("Enter writeCheckpoint()");
+        StatusCheckpoint checkpoint;
+        StatusSnapshot snapshot;
+        Map<String, Long> newestStatusTime;
+        synchronized (this) {
+            checkpoint = this.checkpoint;
+            snapshot = currentStatus.get();
+            newestStatusTime = new HashMap<String, Long>(this.newestStatusTime);
+        }
+        lastCheckpointTime = System.currentTimeMillis();
+        try {
+            checkpoint.write(snapshot.getStatusMap(), newestStatusTime);
+        } catch (IOException e) {
+            log.warn("Unable to write checkpoint '" + checkpoint.getFile()
+                    + "'", e);
+        }
+    }
+
+    /**
+     * Query all due REST and SOAP URLs for status, and merge the results with
+     * previously known unhandled log messages and the realtime messages last
+     * reported by status URLs that are not due into a new current status.
+     * The services are queried concurrently without holding the lock of this
+     * surveyor; the lock is only taken while merging the results. Services
+     * that have not answered when the poll timeout is reached are reported as
+     * failing.
+     */
+    private void pollStatus() {
+        log.trace("Enter pollStatus()");
+        long pollStart = System.nanoTime();
+        readConfiguration();
+        List<String> statusUrls = new ArrayList<String>();
+        List<SurveyorMetrics.Endpoint> endpointMetrics
+                = new ArrayList<SurveyorMetrics.Endpoint>();
+        List<Long> queryDates = new ArrayList<Long>();
+        List<Callable<Status>> queries = new ArrayList<Callable<Status>>();
+        List<String> skippedUrls = new ArrayList<String>();
+        long now = System.currentTimeMillis();
+        final Client c;
+
+        //Prepare queries of REST-URLS for more messages
+        synchronized (this) {
+            c = restClient;
+            //Connections idle since before last poll are probably closed
+            restConnectionManager.closeIdleConnections(
+                    pollInterval + pollTimeout, TimeUnit.MILLISECONDS);
+        }
+        for (final String statusUrl : restStatusUrls) {
+            if (!isQueryDue(statusUrl, now)) {
+                skippedUrls.add(statusUrl);
+                continue;
             }
-            //Get status from REST
-            Status restStatus = getStatusFromRest(c, statusUrl, newest);
-            //Update result with status
-            updateResultWithStatus(result, statusUrl, newest, restStatus);
+            //Find time of newest currently known log message from that URL
+            final Long newest = getNewestStatusTime(statusUrl);
+            final SurveyorMetrics.Endpoint endpoint = metrics.getEndpoint(
+                    statusUrl, SurveyorMetrics.PROTOCOL_REST);
+            statusUrls.add(statusUrl);
+            queryDates.add(newest);
+            endpointMetrics.add(endpoint);
+            queries.add(new Callable<Status>() {
+                public Status call() {
+                    //Get status from REST
+                    long start = System.nanoTime();
+                    try {
+                        return getStatusFromRest(c, statusUrl, newest);
+                    } finally {
+                        endpoint.recordQuery(System.nanoTime() - start);
+                    }
+                }
+            });
         }
 
-        //Query SOAP-URLS for more messages
-        for (String statusUrl : soapStatusUrls) {
+        //Prepare queries of SOAP-URLS for more messages
+        for (final String statusUrl : soapStatusUrls) {
+            if (!isQueryDue(statusUrl, now)) {
+                skippedUrls.add(statusUrl);
+                continue;
+            }
             //Find time of newest currently known log message from that URL
-            Long newest = newestStatusTime.get(statusUrl);
-            if (newest == null) {
-                newest = 0L;
+            final Long newest = getNewestStatusTime(statusUrl);
+            final SurveyorMetrics.Endpoint endpoint = metrics.getEndpoint(
+                    statusUrl, SurveyorMetrics.PROTOCOL_SOAP);
+            statusUrls.add(statusUrl);
+            queryDates.add(newest);
+            endpointMetrics.add(endpoint);
+            queries.add(new Callable<Status>() {
+                public Status call() {
+                    //Get status from SOAP
+                    long start = System.nanoTime();
+                    try {
+                        return getStatusFromSoap(statusUrl, newest);
+                    } finally {
+                        endpoint.recordQuery(System.nanoTime() - start);
+                    }
+                }
+            });
+        }
+
+        //Run all queries concurrently, waiting at most the poll timeout
+        List<Future<Status>> futures;
+        try {
+            futures = queryExecutor.invokeAll(queries, pollTimeout,
+                                              TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            log.debug("Interrupted while polling status URLs");
+            abandonQueries(statusUrls);
+            Thread.currentThread().interrupt();
+            return;
+        } catch (RejectedExecutionException e) {
+            log.debug("Unable to run queries of status URLs", e);
+            abandonQueries(statusUrls);
+            return;
+        }
+        List<Status> statuses = new ArrayList<Status>();
+        for (int i = 0; i < futures.size(); i++) {
+            Status status = getQueryResult(futures.get(i), statusUrls.get(i),
+                                           queryDates.get(i));
+            recordQueryResult(statusUrls.get(i), queryDates.get(i), status,
+                              endpointMetrics.get(i));
+            statuses.add(status);
+        }
+
+        synchronized (this) {
+            long mergeStart = System.nanoTime();
+            StatusMerge merge = new StatusMerge(ignoreMatcher, metrics);
+            //Keep only non-ignored log messages
+            merge.keepLogMessages(currentStatus.get().getStatusMap(),
+                                  ignoreRulesChanged);
+            ignoreRulesChanged = false;
+            //Update result with statuses
+            for (int i = 0; i < statuses.size(); i++) {
+                merge.addStatus(statuses.get(i));
+                updateNewestStatusTime(statusUrls.get(i), queryDates.get(i),
+                                       statuses.get(i));
+            }
+            //Keep realtime messages of status URLs not queried
+            for (String statusUrl : skippedUrls) {
+                Status realtimeStatus = realtimeStatuses.get(statusUrl);
+                if (realtimeStatus != null) {
+                    merge.addStatus(realtimeStatus);
+                }
             }
-            //Get status from SOAP
-            Status soapStatus = getStatusFromSoap(statusUrl, newest);
-            //Update result with status
-            updateResultWithStatus(result, statusUrl, newest, soapStatus);
+            //Evict log messages over the limits
+            merge.limitLogMessages(maxMessagesPerApplication, maxMessages);
+            //Remember result
+            publishStatus(merge.getResult());
+            metrics.recordMerge(System.nanoTime() - mergeStart);
         }
+        metrics.recordPoll(System.nanoTime() - pollStart);
+        log.trace("Exit pollStatus()");
+    }
 
-        //Remember result
-        currentStatus = result;
-        log.trace("Exit getStatusMap()");
-        return result;
+    /**
+     * Check whether a status URL should be queried. It should if it is due
+     * according to the poll schedule, and its circuit breaker allows it. If
+     * the circuit breaker refuses, the status URL is not due again before
+     * the circuit breaker allows a probe.
+     *
+     * @param statusUrl The status URL.
+     * @param now The current time.
+     * @return Whether the status URL should be queried.
+     */
+    private synchronized boolean isQueryDue(String statusUrl, long now) {
+        if (!pollScheduler.isDue(statusUrl, now)) {
+            return false;
+        }
+        CircuitBreaker breaker = circuitBreakers.get(statusUrl);
+        if (breaker == null) {
+            breaker = new CircuitBreaker(circuitFailureThreshold,
+                                         circuitInitialBackoff,
+                                         circuitMaxBackoff);
+            circuitBreakers.put(statusUrl, breaker);
+        }
+        if (breaker.allowRequest(now)) {
+            return true;
+        }
+        pollScheduler.postpone(statusUrl, breaker.getRetryTime());
+        log.debug("Not querying status URL '" + statusUrl
+                + "' with open circuit before "
+                + new Date(breaker.getRetryTime()));
+        return false;
+    }
+
+    /**
+     * Record queries that were allowed by {@link #isQueryDue(String, long)}
+     * but never got a result, as failures with their circuit breakers. A
+     * circuit breaker made half open for the query would otherwise never
+     * allow another query.
+     *
+     * @param statusUrls The status URLs of the abandoned queries.
+     */
+    private synchronized void abandonQueries(List<String> statusUrls) {
+        long now = System.currentTimeMillis();
+        for (String statusUrl : statusUrls) {
+            CircuitBreaker breaker = circuitBreakers.get(statusUrl);
+            if (breaker != null) {
+                breaker.recordFailure(now);
+            }
+        }
     }
 
     /**
-     * Update the status result map with information from a status query.
-     * Also updates the map of newest status timestamps.
+     * Record the result of a query of a status URL with its circuit
+     * breaker and in the poll schedule, and remember its realtime messages.
+     *
+     * @param statusUrl The status URL.
+     * @param queryDate The query date.
+     * @param status The status returned by the query.
+     * @param endpoint The metrics of the status URL.
+     */
+    private synchronized void recordQueryResult(
+            String statusUrl, Long queryDate, Status status,
+            SurveyorMetrics.Endpoint endpoint) {
+        Status realtimeStatus = new Status();
+        realtimeStatus.setName(status.getName());
+        Severity severity = Severity.GREEN;
+        boolean newMessages = false;
+        for (StatusMessage message : status.getMessages()) {
+            severity = CondensedStatusMessage.maxSeverity(
+                    severity, message.getSeverity());
+            if (!message.isLogMessage()) {
+                realtimeStatus.getMessages().add(message);
+            } else if (queryDate < message.getTime()) {
+                newMessages = true;
+            }
+        }
+        realtimeStatuses.put(statusUrl, realtimeStatus);
+        pollScheduler.recordQuery(statusUrl, System.currentTimeMillis(),
+                                  severity, newMessages);
+        metrics.recordIngested(status.getMessages().size());
+        CircuitBreaker breaker = circuitBreakers.get(statusUrl);
+        if (status instanceof FailureStatus) {
+            endpoint.recordFailure();
+            if (breaker != null) {
+                breaker.recordFailure(System.currentTimeMillis());
+                if (breaker.getState() == CircuitBreaker.State.OPEN) {
+                    log.info("Circuit for status URL '" + statusUrl
+                            + "' open after " + breaker.getFailures()
+                            + " failures, next query at "
+                            + new Date(breaker.getRetryTime()));
+                }
+            }
+        } else {
+            if (breaker != null) {
+                if (breaker.getState() != CircuitBreaker.State.CLOSED) {
+                    log.info("Circuit for status URL '" + statusUrl
+                            + "' closed");
+                }
+                breaker.recordSuccess();
+            }
+        }
+        endpoint.recordState(
+                pollScheduler.getInterval(statusUrl),
+                breaker != null
+                        && breaker.getState() == CircuitBreaker.State.OPEN);
+    }
+
+    /**
+     * Get the result of a query of a status URL, which has either completed
+     * or been cancelled because of the poll timeout.
+     *
+     * @param future The future of the completed or cancelled query.
+     * @param statusUrl The status URL that was queried.
+     * @param timestamp The query date, used as timestamp for error messages.
+     * @return The status returned by the query, or a status reporting the
+     * error if the query did not complete. Never null.
+     */
+    private Status getQueryResult(Future<Status> future, String statusUrl,
+                                  Long timestamp) {
+        if (future.isCancelled()) {
+            log.debug("Status URL '" + statusUrl + "' did not answer within "
+                    + pollTimeout + " ms");
+            return createFailureStatus(
+                    statusUrl, timestamp,
+                    "No answer within " + pollTimeout + " ms");
+        }
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            // Cannot happen, the future is done
+            Thread.currentThread().interrupt();
+            return createFailureStatus(statusUrl, timestamp, e.toString());
+        } catch (ExecutionException e) {
+            log.debug("Unexpected trouble querying status URL '" + statusUrl
+                    + "'", e.getCause());
+            return createFailureStatus(statusUrl, timestamp,
+                                       e.getCause().toString());
+        }
+    }
+
+    /**
+     * Get the time of the newest message received from a given URL.
+     *
+     * @param statusUrl The URL.
+     * @return The time of the newest message, or 0 if none known.
+     */
+    private synchronized Long getNewestStatusTime(String statusUrl) {
+        Long newest = newestStatusTime.get(statusUrl);
+        if (newest == null) {
+            newest = 0L;
+        }
+        return newest;
+    }
+
+    /**
+     * Update the map of newest status timestamps with the messages from a
+     * status query.
      *
-     * @param resultToUpdate The map to update
      * @param queryStatusUrl The query URL
      * @param queryDate The query date
      * @param resultStatus The query results
      */
-    private void updateResultWithStatus(
-            Map<String, CondensedStatus> resultToUpdate, String queryStatusUrl,
-            Long queryDate, Status resultStatus) {
-        log.trace("updateResultWithStatus(" + resultToUpdate + ", '"
-                + queryStatusUrl + "', " + queryDate + ", " + resultStatus
-                + ")");
-        //Add condensed status to result if not already there
-        CondensedStatus status = resultToUpdate.get(resultStatus.getName());
-        if (status == null) {
-            status = new CondensedStatus(resultStatus.getName());
-            resultToUpdate.put(resultStatus.getName(), status);
-        }
-        //Filter status by list of ignored messages
-        Set<String> ignored = ignoredMessages.get(resultStatus.getName());
-        for (StatusMessage message : resultStatus.getMessages()) {
-            if (ignored == null
-                    || !ignored.contains(message.getMessage())) {
-                status.addMessage(message);
-            }
-        }
-        //Remember the newest time of messages
+    private void updateNewestStatusTime(String queryStatusUrl, Long queryDate,
+                                        Status resultStatus) {
         for (StatusMessage message : resultStatus.getMessages()) {
             if (queryDate < message.getTime()) {
                 newestStatusTime.put(queryStatusUrl, message.getTime());
@@ -368,41 +1542,24 @@ public class WebServiceSurveyor implements Surveyor {
             log.debug("REST status query for URL '" + queryUrl + "'");
             restStatus = restClient.resource(queryUrl).get(Status.class);
         } catch (Exception e) {
-            Status status = new Status();
-            StatusMessage statusMessage = new StatusMessage();
-
             log.debug(
                     "Cannot get status for REST status URL '" + queryUrl + "'",
                     e);
             //On exceptions, create a status with information about trouble
-            if (currentStatus.get(statusUrl) != null) {
-                status.setName(currentStatus.get(statusUrl).getName());
-            } else {
-                status.setName(statusUrl);
-            }
-
-            statusMessage.setMessage("Unable to communicate with service: "
-                    + e.getMessage());
-            statusMessage.setSeverity(Severity.RED);
-            statusMessage.setTime(timestamp);
-            statusMessage.setLogMessage(false);
-
-            status.getMessages().addAll(Arrays.asList(statusMessage));
-
-            restStatus = status;
+            restStatus = createFailureStatus(statusUrl, timestamp,
+                                             e.getMessage());
         }
         return restStatus;
     }
 
     /**
-     * Get status from a REST URL.
-     * This method serves as fault barrier for REST calls. All exceptions are
-     * caught and turned into a status message.
+     * Get status from a SOAP URL.
+     * This method serves as fault barrier for SOAP calls. All exceptions are
+     * caught and turned into a status message. On exceptions, the cached SOAP
+     * port for the URL is discarded.
      *
-     * @param statusUrl  The URL to query for status. Any occurence of "{date}"
-     *                   will be replaced with the given timestamp, to allow
-     *                   querying only for messages after a given time.
-     * @param timestamp  Date to insert in URL in place of "{date}". Also used
+     * @param statusUrl  The URL to query for status.
+     * @param timestamp  Date to query for messages since. Also used
      *                   as timestamp for error messages.
      * @return The status returned from the query URL, or a status reporting the
      *         error in any other case. Never null.
@@ -414,144 +1571,174 @@ public class WebServiceSurveyor implements Surveyor {
 
         //Query SOAP
         try {
-            SurveyableService surveyableService = new SurveyableService(
-                    new URL(statusUrl), SERVICE_QNAME);
-            Surveyable surveyable = surveyableService.getSurveyable();
+            Surveyable surveyable = getSoapPort(statusUrl);
             log.debug("SOAP status query for URL '" + statusUrl + "'");
             soapStatus = surveyable.getStatusSince(timestamp);
         } catch (Exception e) {
-            Status status = new Status();
-            StatusMessage statusMessage = new StatusMessage();
-
             log.debug(
                     "Cannot get status for SOAP status URL '" + statusUrl + "'",
                     e);
+            soapPorts.remove(statusUrl);
             //On exceptions, create a status with information about trouble
-            if (currentStatus.get(statusUrl) != null) {
-                status.setName(currentStatus.get(statusUrl).getName());
-            } else {
-                status.setName(statusUrl);
-            }
-
-            statusMessage.setMessage("Unable to communicate with service: "
-                    + e.getMessage());
-            statusMessage.setSeverity(Severity.RED);
-            statusMessage.setTime(timestamp);
-            statusMessage.setLogMessage(false);
-
-            status.getMessages().addAll(Arrays.asList(statusMessage));
-
-            soapStatus = status;
+            soapStatus = createFailureStatus(statusUrl, timestamp,
+                                             e.getMessage());
         }
         return soapStatus;
     }
 
     /**
-     * Insert into the given map any non-ignored log messages from the currently
-     * known status.
+     * Get the SOAP port for querying a SOAP status URL. The port is taken
+     * from the cache if present; otherwise it is created and cached.
+     * If a WSDL is configured, the port is created from that, with the
+     * endpoint address set from the status URL. Otherwise the port is created
+     * from the WSDL read from the status URL.
      *
-     * @param result The map to update with the current non-ignored log
-     *               messages. The map maps from status name to condensed status
-     *               of that name.
+     * @param statusUrl The SOAP status URL.
+     * @return The SOAP port for the URL. Never null.
+     * @throws MalformedURLException if the URL or the configured WSDL
+     * location is not a valid URL.
      */
-    private void updateResultFromOldStatus(
-            Map<String, CondensedStatus> result) {
-        log.trace("Enter updateResultFromOldStatus('" + result + "')");
-        if (currentStatus == null) {
-            return;
+    private Surveyable getSoapPort(String statusUrl)
+            throws MalformedURLException {
+        Surveyable surveyable = soapPorts.get(statusUrl);
+        if (surveyable != null) {
+            return surveyable;
         }
-        for (CondensedStatus oldStatus : currentStatus.values()) {
-            CondensedStatus newStatus = new CondensedStatus(
-                    oldStatus.getName());
-            Set<String> ignored = ignoredMessages.get(oldStatus.getName());
-            for (CondensedStatusMessage statusMessage : oldStatus
-                    .getMessages()) {
-                if (statusMessage.isLogMessage()) {
-                    if (ignored == null || !ignored
-                            .contains(statusMessage.getMessage())) {
-                        newStatus.addMessage(statusMessage);
-                    }
-                }
-            }
-            result.put(newStatus.getName(), newStatus);
+        log.debug("Creating SOAP port for URL '" + statusUrl + "'");
+        SurveyableService service = getSoapService();
+        if (service != null) {
+            surveyable = service.getSurveyable();
+            ((BindingProvider) surveyable).getRequestContext().put(
+                    BindingProvider.ENDPOINT_ADDRESS_PROPERTY,
+                    getSoapEndpointAddress(statusUrl));
+        } else {
+            surveyable = new SurveyableService(
+                    new URL(statusUrl), SERVICE_QNAME).getSurveyable();
         }
+        setSoapTimeouts(surveyable);
+        soapPorts.put(statusUrl, surveyable);
+        return surveyable;
     }
 
     /**
-     * Initialise the map of ignored messages from backing file. The file
-     * contains the map of ignored messages in the line-based format
-     * <code>applicationname;message</code>
-     * Newlines are replaced with \n.
+     * Get the SOAP service made from the configured WSDL, creating it if
+     * necessary. The WSDL location is first looked up as a resource on the
+     * class path, and otherwise used as a URL.
+     *
+     * @return The SOAP service, or null if no WSDL is configured.
+     * @throws MalformedURLException if the configured WSDL location is
+     * neither a resource nor a valid URL.
      */
-    private void readIgnoredMessagesFromFile() {
-        log.trace("ReadIgnoredMessagesFromFile()");
-        ignoredMessages.clear();
-        if (!ignoredMessagesFile.isFile()) {
-            return;
+    private synchronized SurveyableService getSoapService()
+            throws MalformedURLException {
+        if (soapWsdl == null) {
+            return null;
         }
-        BufferedReader fr = null;
-        String s;
-        try {
-            try {
-                fr = new BufferedReader(
-                        new FileReader(ignoredMessagesFile));
-                s = fr.readLine();
-                while (s != null) {
-                    s = fr.readLine();
-                    if (!s.trim().isEmpty() && s.indexOf(';') > 0) {
-                        String key = s.substring(0, s.indexOf(';'));
-                        String value = s.substring(s.indexOf(';') + 1);
-                        Set<String> values = ignoredMessages.get(key);
-                        value = value.replaceAll("\\\\n", "\n");
-                        if (values == null) {
-                            values = new HashSet<String>();
-                            ignoredMessages.put(key, values);
-                        }
-                        values.add(value);
-                    } else {
-                        log.warn("Read malformed line '" + s + "' from file '"
-                                + ignoredMessagesFile + "'");
-                    }
-                }
-            } finally {
-                if (fr != null) {
-                    fr.close();
-                }
+        if (soapService == null) {
+            URL wsdlUrl = Thread.currentThread().getContextClassLoader()
+                    .getResource(soapWsdl);
+            if (wsdlUrl == null) {
+                wsdlUrl = new URL(soapWsdl);
             }
-        } catch (IOException e) {
-            log.warn("Unable to read from file of ignored messages."
-                    + "Ignoring rest of file.", e);
+            log.debug("Creating SOAP service from WSDL '" + wsdlUrl + "'");
+            soapService = new SurveyableService(wsdlUrl, SERVICE_QNAME);
         }
+        return soapService;
     }
 
     /**
-     * Append an ignored message to backing file. The format is
-     * <code>applicationname;message</code>
-     * Newlines are replaced with \n.
-     * @param applicationName Application name.
-     * @param message Message.
+     * Get the endpoint address of a SOAP status URL, which is the URL with
+     * any "?wsdl" query removed.
+     *
+     * @param statusUrl The SOAP status URL.
+     * @return The endpoint address.
      */
-    private void appendIgnoredMessageToFile(String applicationName,
-                                            String message) {
-        log.trace(
-                "Enter AppendIgnoredMessageToFile('" + applicationName + "', '"
-                        + message + "')");
-        try {
-            PrintWriter pw = null;
-            try {
-                //Open the file for appending
-                pw = new PrintWriter(new BufferedWriter(
-                        new FileWriter(ignoredMessagesFile, true)));
-                pw.println(applicationName + ";" + message
-                        .replaceAll("\n", "\\\\n"));
-            } finally {
-                if (pw != null) {
-                    pw.close();
-                }
-            }
-        } catch (IOException e) {
-            log.warn("Unable to write ignored message to file of ignored"
-                    + " messages", e);
+    private String getSoapEndpointAddress(String statusUrl) {
+        String address = statusUrl.trim();
+        if (address.toLowerCase().endsWith("?wsdl")) {
+            address = address.substring(0, address.length() - "?wsdl".length());
+        }
+        return address;
+    }
+
+    /**
+     * Set the configured connect and read timeouts on a SOAP port. Both the
+     * properties of the JAX-WS reference implementation and of the JDK
+     * internal JAX-WS implementation are set.
+     *
+     * @param port The SOAP port.
+     */
+    private void setSoapTimeouts(Object port) {
+        if (port instanceof BindingProvider) {
+            Map<String, Object> requestContext
+                    = ((BindingProvider) port).getRequestContext();
+            requestContext.put(SOAP_CONNECT_TIMEOUT_PROPERTY,
+                               (int) connectTimeout);
+            requestContext.put(SOAP_REQUEST_TIMEOUT_PROPERTY,
+                               (int) readTimeout);
+            requestContext.put(SOAP_INTERNAL_CONNECT_TIMEOUT_PROPERTY,
+                               (int) connectTimeout);
+            requestContext.put(SOAP_INTERNAL_REQUEST_TIMEOUT_PROPERTY,
+                               (int) readTimeout);
+        }
+    }
+
+    /**
+     * Create a status reporting trouble communicating with a status URL.
+     *
+     * @param statusUrl The status URL. Used as name of the status, unless a
+     *                  status of that name is known.
+     * @param timestamp Timestamp for the error message.
+     * @param reason    Description of the trouble.
+     * @return A status with a single RED realtime message. Never null.
+     */
+    private Status createFailureStatus(String statusUrl, Long timestamp,
+                                       String reason) {
+        Status status = new FailureStatus();
+        StatusMessage statusMessage = new StatusMessage();
+
+        CondensedStatus knownStatus
+                = currentStatus.get().getStatusMap().get(statusUrl);
+        if (knownStatus != null) {
+            status.setName(knownStatus.getName());
+        } else {
+            status.setName(statusUrl);
         }
+
+        statusMessage.setMessage("Unable to communicate with service: "
+                + reason);
+        statusMessage.setSeverity(Severity.RED);
+        statusMessage.setTime(timestamp);
+        statusMessage.setLogMessage(false);
+
+        status.getMessages().addAll(Arrays.asList(statusMessage));
+        return status;
+    }
+
+    /**
+     * Initialise the ignore rules from backing file, closing the store of
+     * any previous file.
+     *
+     * @param ignoredMessagesFile The file of ignored messages.
+     * @see IgnoredMessageStore
+     */
+    private void readIgnoredMessagesFromFile(File ignoredMessagesFile) {
+        log.trace("Enter readIgnoredMessagesFromFile('" + ignoredMessagesFile
+                + "')");
+        if (ignoredMessageStore != null) {
+            ignoredMessageStore.close();
+        }
+        ignoredMessageStore = new IgnoredMessageStore(ignoredMessagesFile);
+        ignoreRules = ignoredMessageStore.load();
+        ignoreMatcher = new IgnoreMatcher(ignoreRules);
+        ignoreRulesChanged = true;
+    }
+
+    /**
+     * A status reporting trouble communicating with a status URL, as created
+     * by {@link #createFailureStatus(String, Long, String)}. Distinguishes a
+     * failed query from a service reporting its own trouble.
+     */
+    private static class FailureStatus extends Status {
     }
 }
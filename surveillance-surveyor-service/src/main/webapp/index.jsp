@@ -29,19 +29,67 @@ PUBLIC "-//W3C//DTD XHTML 1.0 Transitional//EN"
   ~ under the License.
   --%>
 <%@ page
-        import="dk.statsbiblioteket.doms.surveillance.surveyor.CondensedStatus,
+        import="dk.statsbiblioteket.doms.domsutil.surveyable.Severity,
                 dk.statsbiblioteket.doms.surveillance.surveyor.CondensedStatusMessage,
+                dk.statsbiblioteket.doms.surveillance.surveyor.DashboardPage,
+                dk.statsbiblioteket.doms.surveillance.surveyor.IgnoreRule,
                 dk.statsbiblioteket.doms.surveillance.surveyor.Surveyor,
                 dk.statsbiblioteket.doms.surveillance.surveyor.SurveyorFactory,
                 dk.statsbiblioteket.doms.surveillance.surveyor.SurveyorServletUtils,
-                java.net.URLEncoder,
-                java.util.Date, java.util.Map" pageEncoding="UTF-8" %>
+                java.util.Date,
+                java.util.List" pageEncoding="UTF-8"
+        buffer="16kb" autoFlush="true" %>
 <html xmlns="http://www.w3.org/1999/xhtml" xml:lang="en" lang="en">
 <head>
     <title>Surveillance</title>
 </head>
 <body>
 <h1>DOMS Surveillance</h1>
+<%
+    // Note: The fault barrier in this case is the Tomcat 500 error page.
+    // Initialize surveyor with configuration from servlet
+    Surveyor surveyor = SurveyorFactory.getSurveyor();
+
+    // Read and handle request parameters
+    SurveyorServletUtils.handlePostedParameters(request, surveyor);
+
+    // Select the page of messages to present
+    DashboardPage dashboard = new DashboardPage(
+            request, surveyor.getStatusMap());
+%>
+<p>
+    Show:
+    <%
+        for (Severity severity : new Severity[]{
+                Severity.GREEN, Severity.YELLOW, Severity.RED}) {
+            if (severity == dashboard.getSeverity()) {
+    %>
+    <strong><%= severity %> and worse</strong>
+    <%
+            } else {
+    %>
+    <a href="<%= DashboardPage.escape(dashboard.getSeverityQuery(severity)) %>"><%= severity %>
+        and worse</a>
+    <%
+            }
+        }
+    %>
+    |
+    <%= dashboard.getMessageCount() %> messages, page
+    <%= dashboard.getPage() + 1 %> of <%= dashboard.getPageCount() %>
+    <%
+        if (dashboard.getPage() > 0) {
+    %>
+    <a href="<%= DashboardPage.escape(dashboard.getPageQuery(dashboard.getPage() - 1)) %>">Previous</a>
+    <%
+        }
+        if (dashboard.getPage() + 1 < dashboard.getPageCount()) {
+    %>
+    <a href="<%= DashboardPage.escape(dashboard.getPageQuery(dashboard.getPage() + 1)) %>">Next</a>
+    <%
+        }
+    %>
+</p>
 <table>
     <thead>
     <tr>
@@ -53,36 +101,45 @@ PUBLIC "-//W3C//DTD XHTML 1.0 Transitional//EN"
     </thead>
     <tbody>
     <%
-        // Note: The fault barrier in this case is the Tomcat 500 error page.
-        // Initialize surveyor with configuration from servlet
-        Surveyor surveyor = SurveyorFactory.getSurveyor();
-
-        // Read and handle request parameters
-        SurveyorServletUtils.handlePostedParameters(request, surveyor);
-
-        // Get and present status
-        Map<String, CondensedStatus> statusMap = surveyor.getStatusMap();
         // For each application being surveyed
-        for (CondensedStatus status : statusMap.values()) {
+        for (DashboardPage.Application application
+                : dashboard.getApplications()) {
+            String name = application.getStatus().getName();
     %>
     <form action="" method="post">
         <input type="hidden" name="applicationname"
-               value="<%= URLEncoder.encode(status.getName(), "UTF-8")%>"/>
+               value="<%= DashboardPage.escape(name) %>"/>
         <tr>
-            <td colspan="4" style="background-color: #AAAAAA"><strong><%= status
-                    .getName() %>
-            </strong></td>
+            <td colspan="4" style="background-color: #AAAAAA"><img
+                    src="<%= request.getContextPath() + "/" + application.getStatus().getSeverity().toString().toLowerCase() %>.jpg"
+                    alt="<%= application.getStatus().getSeverity() %>"/>
+                <strong><%= DashboardPage.escape(name) %></strong>
+                (<%= application.getCount(Severity.RED) %> red,
+                <%= application.getCount(Severity.YELLOW) %> yellow,
+                <%= application.getCount(Severity.GREEN) %> green)
+                <a href="<%= DashboardPage.escape(dashboard.getToggleQuery(name)) %>"><%= dashboard.isCollapsed(name) ? "Expand" : "Collapse" %></a>
+            </td>
         </tr>
         <%
-            // For all messages registered for the given application
-            for (CondensedStatusMessage statusMessage : status.getMessages()) {
+            // For the messages of the application on this page
+            for (CondensedStatusMessage statusMessage
+                    : application.getMessages()) {
+                String id = DashboardPage.getId(statusMessage);
         %>
         <tr>
             <td><img
                     src="<%= request.getContextPath() + "/" + statusMessage.getSeverity().toString().toLowerCase() %>.jpg"
                     alt="<%= statusMessage.getSeverity() %>"/>
             </td>
-            <td><%= statusMessage.getMessage() %>
+            <td><%= DashboardPage.getPreview(statusMessage) %>
+                <%
+                    if (DashboardPage.isTruncated(statusMessage)) {
+                %>
+                ... <a href="<%= DashboardPage.escape(request.getContextPath() + DashboardPage.getMessagePath(name, statusMessage)) %>"
+                       target="_blank">Full message</a>
+                <%
+                    }
+                %>
             </td>
             <td style="background-color: #888888">
                 <%
@@ -103,11 +160,11 @@ PUBLIC "-//W3C//DTD XHTML 1.0 Transitional//EN"
                 if (statusMessage.isLogMessage()) {
             %>
             <td><input type="submit"
-                       name="handle:<%= statusMessage.getMessage().replaceAll("\\\"", "&quot;") %>"
+                       name="handle:<%= id %>"
                        value="Handled"/><br/>
                 <input type="checkbox"
                        name="notagain"
-                       value="<%= statusMessage.getMessage().replaceAll("\\\"", "&quot;") %>"/>
+                       value="<%= id %>"/>
                 Don't show again
             </td>
             <%
@@ -118,6 +175,79 @@ PUBLIC "-//W3C//DTD XHTML 1.0 Transitional//EN"
             }
         %>
     </form>
+    <%
+            // Send each application to the browser as soon as it is ready
+            out.flush();
+        }
+    %>
+    </tbody>
+</table>
+<h2>Ignore messages</h2>
+<%
+    Object ignoreError = request.getAttribute(
+            SurveyorServletUtils.IGNORE_ERROR_ATTRIBUTE);
+    if (ignoreError != null) {
+%>
+<p><strong><%= DashboardPage.escape(ignoreError.toString()) %></strong></p>
+<%
+    }
+%>
+<form action="" method="post">
+    <select name="ignoretype">
+        <option value="EXACT">Exact</option>
+        <option value="PREFIX">Prefix</option>
+        <option value="GLOB" selected="selected">Glob (* and ?)</option>
+        <option value="REGEX">Regular expression</option>
+    </select>
+    <select name="ignoreapplication">
+        <option value="" selected="selected">Choose application</option>
+        <option value="*">All applications</option>
+        <%
+            for (DashboardPage.Application application
+                    : dashboard.getApplications()) {
+                String name = application.getStatus().getName();
+        %>
+        <option value="<%= DashboardPage.escape(name) %>"><%= DashboardPage.escape(name) %>
+        </option>
+        <%
+            }
+        %>
+    </select>
+    <input type="text" name="ignorepattern" size="60"/>
+    <input type="submit" value="Don't show again"/>
+</form>
+<table>
+    <thead>
+    <tr>
+        <th>Type</th>
+        <th>Application</th>
+        <th>Pattern</th>
+        <th>Remove</th>
+    </tr>
+    </thead>
+    <tbody>
+    <%
+        // For each ignore rule, newest first
+        List<IgnoreRule> ignoreRules = surveyor.getIgnoreRules();
+        for (int i = ignoreRules.size() - 1; i >= 0; i--) {
+            IgnoreRule rule = ignoreRules.get(i);
+    %>
+    <tr>
+        <td><%= rule.getType() %></td>
+        <td><%= rule.isGlobal() ? "All applications" : DashboardPage.escape(rule.getApplicationName()) %></td>
+        <td><%= DashboardPage.escape(rule.getPattern()) %></td>
+        <td>
+            <form action="" method="post">
+                <input type="hidden" name="removeignoretype"
+                       value="<%= rule.getType() %>"/>
+                <input type="hidden" name="removeignoreapplication"
+                       value="<%= DashboardPage.escape(rule.getApplicationName()) %>"/>
+                <input type="hidden" name="removeignorepattern"
+                       value="<%= DashboardPage.escape(rule.getPattern()) %>"/>
+                <input type="submit" value="Remove"/>
+            </form>
+        </td>
+    </tr>
     <%
         }
     %>
@@ -0,0 +1,175 @@
+/*
+ * $Id$
+ * $Revision$
+ * $Date$
+ * $Author$
+ *
+ * The DOMS project.
+ * Copyright (C) 2007-2010  The State and University Library
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package dk.statsbiblioteket.doms.surveillance.surveyor;
+
+import dk.statsbiblioteket.util.qa.QAInfo;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests of the state machine of {@link CircuitBreaker}.
+ */
+@QAInfo(author = "agent",
+        reviewers = "",
+        level = QAInfo.Level.NORMAL,
+        state = QAInfo.State.QA_NEEDED)
+public class CircuitBreakerTest {
+    /** Failures that open the circuit. */
+    private static final int THRESHOLD = 3;
+
+    /** Milliseconds of the first backoff. */
+    private static final long INITIAL_BACKOFF = 1000L;
+
+    /** Maximum milliseconds of a backoff. */
+    private static final long MAX_BACKOFF = 5000L;
+
+    /** A start time. */
+    private static final long START = 1000000L;
+
+    /**
+     * Test that the circuit opens at the failure threshold, refuses queries
+     * until the retry time, and closes when the probe succeeds.
+     */
+    @Test
+    public void testOpenHalfOpenClosed() {
+        CircuitBreaker breaker = new CircuitBreaker(THRESHOLD,
+                                                    INITIAL_BACKOFF,
+                                                    MAX_BACKOFF);
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        for (int i = 1; i < THRESHOLD; i++) {
+            assertTrue(breaker.allowRequest(START));
+            breaker.recordFailure(START);
+            assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+            assertEquals(i, breaker.getFailures());
+        }
+        breaker.recordFailure(START);
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        assertBackoff(INITIAL_BACKOFF, START, breaker.getRetryTime());
+
+        long retryTime = breaker.getRetryTime();
+        assertFalse(breaker.allowRequest(retryTime - 1));
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        assertTrue(breaker.allowRequest(retryTime));
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+
+        breaker.recordSuccess();
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        assertEquals(0, breaker.getFailures());
+        assertTrue(breaker.allowRequest(retryTime));
+    }
+
+    /**
+     * Test that a failed probe opens the circuit again, with the backoff
+     * doubling up to the maximum, and that a success starts over from the
+     * initial backoff.
+     */
+    @Test
+    public void testBackoffDoublesUpToMax() {
+        CircuitBreaker breaker = new CircuitBreaker(1, INITIAL_BACKOFF,
+                                                    MAX_BACKOFF);
+        long now = START;
+        breaker.recordFailure(now);
+        assertBackoff(INITIAL_BACKOFF, now, breaker.getRetryTime());
+
+        long[] expected = {2000L, 4000L, MAX_BACKOFF, MAX_BACKOFF};
+        for (long backoff : expected) {
+            now = breaker.getRetryTime();
+            assertTrue(breaker.allowRequest(now));
+            assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+            breaker.recordFailure(now);
+            assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+            assertBackoff(backoff, now, breaker.getRetryTime());
+        }
+
+        now = breaker.getRetryTime();
+        assertTrue(breaker.allowRequest(now));
+        breaker.recordSuccess();
+        breaker.recordFailure(now);
+        assertBackoff(INITIAL_BACKOFF, now, breaker.getRetryTime());
+    }
+
+    /**
+     * Test that only one probe is allowed while the circuit is half open.
+     */
+    @Test
+    public void testSingleProbeWhileHalfOpen() {
+        CircuitBreaker breaker = new CircuitBreaker(1, INITIAL_BACKOFF,
+                                                    MAX_BACKOFF);
+        breaker.recordFailure(START);
+        long retryTime = breaker.getRetryTime();
+        assertTrue(breaker.allowRequest(retryTime));
+        assertFalse(breaker.allowRequest(retryTime));
+        assertFalse(breaker.allowRequest(retryTime + MAX_BACKOFF));
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+    }
+
+    /**
+     * Test that failures of queries that were allowed before the circuit
+     * opened neither reopen the circuit nor move the retry time.
+     */
+    @Test
+    public void testFailureWhileOpenChangesNothing() {
+        CircuitBreaker breaker = new CircuitBreaker(1, INITIAL_BACKOFF,
+                                                    MAX_BACKOFF);
+        breaker.recordFailure(START);
+        long retryTime = breaker.getRetryTime();
+        breaker.recordFailure(START + 1);
+        breaker.recordFailure(retryTime - 1);
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        assertEquals(retryTime, breaker.getRetryTime());
+        assertFalse(breaker.allowRequest(retryTime - 1));
+        assertTrue(breaker.allowRequest(retryTime));
+    }
+
+    /**
+     * Test that invalid thresholds and backoffs are rejected.
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidThreshold() {
+        new CircuitBreaker(0, INITIAL_BACKOFF, MAX_BACKOFF);
+    }
+
+    /**
+     * Assert that a retry time is the given backoff after a failure,
+     * shortened by at most half by jitter.
+     *
+     * @param backoff The expected backoff before jitter.
+     * @param failureTime The time of the failure.
+     * @param retryTime The retry time of the circuit.
+     */
+    private static void assertBackoff(long backoff, long failureTime,
+                                      long retryTime) {
+        long delay = retryTime - failureTime;
+        assertTrue("Backoff " + delay + " should be at most " + backoff,
+                   delay <= backoff);
+        assertTrue("Backoff " + delay + " should be at least half of "
+                           + backoff, delay >= backoff - backoff / 2);
+    }
+}
@@ -0,0 +1,230 @@
+/*
+ * $Id$
+ * $Revision$
+ * $Date$
+ * $Author$
+ *
+ * The DOMS project.
+ * Copyright (C) 2007-2010  The State and University Library
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package dk.statsbiblioteket.doms.surveillance.surveyor;
+
+import dk.statsbiblioteket.util.qa.QAInfo;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests of {@link IgnoreRule}, in particular that the literals used by
+ * {@link IgnoreMatcher} to skip rules never make it skip a rule that would
+ * match, that rules matching everything are found, and that matching a
+ * regular expression is bounded.
+ */
+@QAInfo(author = "agent",
+        reviewers = "",
+        level = QAInfo.Level.NORMAL,
+        state = QAInfo.State.QA_NEEDED)
+public class IgnoreRuleTest {
+    /** Regular expressions, each followed by messages it matches. */
+    private static final String[][] MATCHING_MESSAGES = {
+            {"Connection to .* failed", "Connection to db failed",
+                    "Connection to db\n\tretried failed"},
+            {"a.b", "a\nb", "axb"},
+            {"colou?r", "color", "colour"},
+            {"ab{0,2}c", "ac", "abbc"},
+            {"ab*c|x", "ac", "x"},
+            {"(foo|bar)baz", "barbaz"},
+            {"a\\.b\\+", "a.b+"},
+            {"a[]b]c", "a]c", "abc"},
+            {"a[^\\]x]c", "a-c"},
+            {"a\\tb", "a\tb"},
+            {"a\\x41b", "aAb"},
+            {"a\\x{41}b", "aAb"},
+            {"a\\u0041b", "aAb"},
+            {"a\\0101b", "aAb"},
+            {"x\\cAy", "x\u0001y"},
+            {"\\p{Upper}x", "Ax"},
+            {"\\pLx", "Ax"},
+            {"(a)\\1b", "aab"},
+            {"(?<n>a)\\k<n>b", "aab"},
+            {"a\\d{2}b", "a12b"},
+            {"^a+$", "a", "aaa"},
+            {"(?i)abc", "ABC"},
+            {"a\\Qb*\\Ec", "ab*c"}
+    };
+
+    /** Regular expressions matched against random messages. */
+    private static final String[] RANDOM_REGEXES = {
+            "a+b", "ab?a", "a.b", "a\\x41", "\\u0041b", "(a)\\1b", "a[b-]a",
+            "a\\Qb\\E", "\\0101a", "\\cAa", "-\\p{Upper}", "a(b|A)*-",
+            "a\\nb", "ab{2}", "\\d?a-", ".*A.*b"
+    };
+
+    /** Characters of random messages. */
+    private static final String ALPHABET = "abA-\n\u0001";
+
+    /** Regular expressions and globs match across newlines alike. */
+    @Test
+    public void testRegexAndGlobMatchNewlines() {
+        String message = "java.io.IOException: Disk full\n\tat Foo.bar()";
+        assertTrue(new IgnoreRule(IgnoreRule.Type.REGEX, "app",
+                                  ".*Exception.*").matches(message));
+        assertTrue(new IgnoreRule(IgnoreRule.Type.GLOB, "app",
+                                  "*Exception*").matches(message));
+    }
+
+    /** Rules matching the empty message or everything are too broad. */
+    @Test
+    public void testTooBroad() {
+        assertTooBroad(IgnoreRule.Type.EXACT, "", true);
+        assertTooBroad(IgnoreRule.Type.PREFIX, "", true);
+        assertTooBroad(IgnoreRule.Type.GLOB, "*", true);
+        assertTooBroad(IgnoreRule.Type.GLOB, "?*", true);
+        assertTooBroad(IgnoreRule.Type.REGEX, ".*", true);
+        assertTooBroad(IgnoreRule.Type.REGEX, ".+", true);
+        assertTooBroad(IgnoreRule.Type.REGEX, "(?s)[\\s\\S]+", true);
+        assertTooBroad(IgnoreRule.Type.EXACT, "x", false);
+        assertTooBroad(IgnoreRule.Type.PREFIX, "Connection", false);
+        assertTooBroad(IgnoreRule.Type.GLOB, "*Exception*", false);
+        assertTooBroad(IgnoreRule.Type.REGEX, ".*Exception.*", false);
+    }
+
+    /** A regular expression backtracking catastrophically is given up. */
+    @Test
+    public void testCatastrophicBacktrackingIsBounded() {
+        IgnoreRule rule = new IgnoreRule(IgnoreRule.Type.REGEX, "app",
+                                         "(a+)+b");
+        StringBuilder message = new StringBuilder();
+        for (int i = 0; i < 40; i++) {
+            message.append('a');
+        }
+        long start = System.nanoTime();
+        assertFalse(rule.matches(message.toString()));
+        assertTrue("Matching took too long",
+                   System.nanoTime() - start < 5000000000L);
+        assertTrue(rule.matches(message.append('b').toString()));
+    }
+
+    /** The literals found in regular expressions. */
+    @Test
+    public void testRegexRequiredLiterals() {
+        assertLiterals("Connection to .* failed", "Connection to ",
+                       " failed");
+        assertLiterals("colou?r", "colo", "r");
+        assertLiterals("a\\x41b", "a", "b");
+        assertLiterals("a\\u0041b", "a", "b");
+        assertLiterals("(a)\\12b", "b");
+        assertLiterals("a\\.b", "a.b");
+        assertLiterals("ab*c|x");
+        assertLiterals("(?i)abc");
+    }
+
+    /** Messages known to match are never rejected by the literals. */
+    @Test
+    public void testRequiredLiteralsOfMatchingMessages() {
+        for (String[] regexAndMessages : MATCHING_MESSAGES) {
+            IgnoreRule rule = new IgnoreRule(IgnoreRule.Type.REGEX, "app",
+                                             regexAndMessages[0]);
+            for (int i = 1; i < regexAndMessages.length; i++) {
+                assertTrue("'" + rule.getPattern() + "' should match '"
+                        + regexAndMessages[i] + "'",
+                           rule.matches(regexAndMessages[i]));
+                assertNotRejected(rule, regexAndMessages[i]);
+            }
+        }
+    }
+
+    /** Random messages matching a rule are never rejected by the literals. */
+    @Test
+    public void testRequiredLiteralsOfRandomMessages() {
+        Random random = new Random(42L);
+        for (String regex : RANDOM_REGEXES) {
+            IgnoreRule rule = new IgnoreRule(IgnoreRule.Type.REGEX, "app",
+                                             regex);
+            int matched = 0;
+            for (int i = 0; i < 20000; i++) {
+                char[] message = new char[1 + random.nextInt(6)];
+                for (int j = 0; j < message.length; j++) {
+                    message[j] = ALPHABET.charAt(
+                            random.nextInt(ALPHABET.length()));
+                }
+                String text = new String(message);
+                if (rule.matches(text)) {
+                    matched++;
+                    assertNotRejected(rule, text);
+                }
+            }
+            assertTrue("No random message matched '" + regex + "'",
+                       matched > 0);
+        }
+    }
+
+    /**
+     * Assert whether a rule is too broad.
+     *
+     * @param type The type of the rule.
+     * @param pattern The pattern of the rule.
+     * @param tooBroad Whether the rule should be too broad.
+     */
+    private static void assertTooBroad(IgnoreRule.Type type, String pattern,
+                                       boolean tooBroad) {
+        assertTrue(type + " '" + pattern + "' too broad should be "
+                + tooBroad, new IgnoreRule(type, "app", pattern)
+                .isTooBroad() == tooBroad);
+    }
+
+    /**
+     * Assert that a rule has the given required literals.
+     *
+     * @param regex The regular expression of the rule.
+     * @param literals The expected literals.
+     */
+    private static void assertLiterals(String regex, String... literals) {
+        assertArrayEquals("Literals of '" + regex + "'", literals,
+                          new IgnoreRule(IgnoreRule.Type.REGEX, "app", regex)
+                                  .getRequiredLiterals());
+    }
+
+    /**
+     * Assert that a message matching a rule contains all required literals
+     * of the rule, and is matched by a matcher of the rule.
+     *
+     * @param rule The rule.
+     * @param message A message matching the rule.
+     */
+    private static void assertNotRejected(IgnoreRule rule, String message) {
+        for (String literal : rule.getRequiredLiterals()) {
+            assertTrue("'" + message + "' matches '" + rule.getPattern()
+                    + "' but lacks literal '" + literal + "' of "
+                    + Arrays.toString(rule.getRequiredLiterals()),
+                       message.contains(literal));
+        }
+        assertTrue("Matcher rejects '" + message + "' matching '"
+                + rule.getPattern() + "'",
+                   new IgnoreMatcher(Collections.singleton(rule))
+                           .matches("app", message));
+    }
+}
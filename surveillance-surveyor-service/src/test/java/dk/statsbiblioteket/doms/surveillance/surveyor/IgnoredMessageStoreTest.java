@@ -0,0 +1,268 @@
+/*
+ * $Id$
+ * $Revision$
+ * $Date$
+ * $Author$
+ *
+ * The DOMS project.
+ * Copyright (C) 2007-2010  The State and University Library
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package dk.statsbiblioteket.doms.surveillance.surveyor;
+
+import dk.statsbiblioteket.util.qa.QAInfo;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests of {@link IgnoredMessageStore}: reading back what was written,
+ * recovering from a damaged tail, converting the old format, and
+ * compacting.
+ */
+@QAInfo(author = "agent",
+        reviewers = "",
+        level = QAInfo.Level.NORMAL,
+        state = QAInfo.State.QA_NEEDED)
+public class IgnoredMessageStoreTest {
+    /** A rule of each type. */
+    private static final IgnoreRule[] RULES = {
+            new IgnoreRule(IgnoreRule.Type.EXACT, "app",
+                           "Disk full\n\tat Foo.bar() \u00e6\u00f8\u00e5"),
+            new IgnoreRule(IgnoreRule.Type.PREFIX, "app", "Connection"),
+            new IgnoreRule(IgnoreRule.Type.GLOB, IgnoreRule.ALL_APPLICATIONS,
+                           "*timed out*"),
+            new IgnoreRule(IgnoreRule.Type.REGEX, "other", "Retry \\d+ .*")
+    };
+
+    /** The file of the store. */
+    private File file;
+
+    /**
+     * Create a name for a file that does not exist.
+     *
+     * @throws IOException On trouble creating a temporary file.
+     */
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("ignored", ".log");
+        assertTrue(file.delete());
+    }
+
+    /** Delete the file, and the temporary file of compaction. */
+    @After
+    public void tearDown() {
+        file.delete();
+        new File(file.getPath() + ".tmp").delete();
+    }
+
+    /** Rules of all types are read back in the order they were added. */
+    @Test
+    public void testRoundTrip() {
+        IgnoredMessageStore store = new IgnoredMessageStore(file);
+        assertEquals(0, store.load().size());
+        for (IgnoreRule rule : RULES) {
+            store.add(rule);
+        }
+        store.add(RULES[0]);
+        store.close();
+        assertEquals(Arrays.asList(RULES), load());
+    }
+
+    /** Removed rules are not read back, and rules can be added again. */
+    @Test
+    public void testRemove() {
+        IgnoredMessageStore store = new IgnoredMessageStore(file);
+        store.load();
+        for (IgnoreRule rule : RULES) {
+            store.add(rule);
+        }
+        store.remove(RULES[1]);
+        store.remove(RULES[2]);
+        store.flush();
+        store.add(RULES[1]);
+        store.close();
+        assertEquals(Arrays.asList(RULES[0], RULES[3], RULES[1]), load());
+    }
+
+    /**
+     * A record cut off at the end of the file is dropped, the file is
+     * truncated to the last good record, and rules can still be added.
+     *
+     * @throws IOException On trouble with the file.
+     */
+    @Test
+    public void testTruncatedTail() throws IOException {
+        long goodLength = writeTwoRules();
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        try {
+            randomAccessFile.setLength(randomAccessFile.length() - 3);
+        } finally {
+            randomAccessFile.close();
+        }
+        assertRecoversTo(goodLength);
+    }
+
+    /**
+     * A record with a wrong checksum is dropped, the file is truncated to
+     * the last good record, and rules can still be added.
+     *
+     * @throws IOException On trouble with the file.
+     */
+    @Test
+    public void testBadChecksum() throws IOException {
+        long goodLength = writeTwoRules();
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        try {
+            //The checksum follows the length of the record
+            randomAccessFile.seek(goodLength + 4);
+            int b = randomAccessFile.read();
+            randomAccessFile.seek(goodLength + 4);
+            randomAccessFile.write(b ^ 0x01);
+        } finally {
+            randomAccessFile.close();
+        }
+        assertRecoversTo(goodLength);
+    }
+
+    /**
+     * A file in the old line-based format is read, including its first
+     * line, and converted to the new format.
+     *
+     * @throws IOException On trouble with the file.
+     */
+    @Test
+    public void testLegacyConversion() throws IOException {
+        Writer out = new OutputStreamWriter(new FileOutputStream(file),
+                                            Charset.defaultCharset());
+        try {
+            out.write("app;First message\n");
+            out.write("\n");
+            out.write("malformed line\n");
+            out.write("other;Two\\nlines\n");
+        } finally {
+            out.close();
+        }
+        List<IgnoreRule> expected = Arrays.asList(
+                new IgnoreRule(IgnoreRule.Type.EXACT, "app", "First message"),
+                new IgnoreRule(IgnoreRule.Type.EXACT, "other",
+                               "Two\nlines"));
+        assertEquals(expected, load());
+        byte[] header = new byte[8];
+        FileInputStream in = new FileInputStream(file);
+        try {
+            assertEquals(header.length, in.read(header));
+        } finally {
+            in.close();
+        }
+        assertEquals("DOMSIGN1", new String(header, "US-ASCII"));
+        assertEquals(expected, load());
+    }
+
+    /**
+     * The file is compacted once removed rules and tombstones reach the
+     * minimum number of superfluous records, and not before.
+     */
+    @Test
+    public void testCompaction() {
+        IgnoredMessageStore store = new IgnoredMessageStore(file);
+        store.load();
+        store.add(RULES[0]);
+        store.flush();
+        long compactLength = file.length();
+        for (int i = 0;
+             i < IgnoredMessageStore.COMPACT_MIN_DUPLICATES / 2 - 1; i++) {
+            store.add(RULES[1]);
+            store.flush();
+            store.remove(RULES[1]);
+            store.flush();
+        }
+        assertTrue("Compacted too early", file.length() > compactLength);
+        store.add(RULES[1]);
+        store.flush();
+        store.remove(RULES[1]);
+        store.flush();
+        assertEquals(compactLength, file.length());
+        store.add(RULES[2]);
+        store.close();
+        assertEquals(Arrays.asList(RULES[0], RULES[2]), load());
+    }
+
+    /**
+     * Write two rules to a new store.
+     *
+     * @return The length of the file after the first rule.
+     */
+    private long writeTwoRules() {
+        IgnoredMessageStore store = new IgnoredMessageStore(file);
+        store.load();
+        store.add(RULES[0]);
+        store.flush();
+        long length = file.length();
+        store.add(RULES[1]);
+        store.close();
+        assertTrue(file.length() > length);
+        return length;
+    }
+
+    /**
+     * Assert that loading the damaged file gives the first rule, truncates
+     * the file, and that a rule can then be added.
+     *
+     * @param goodLength The length of the file up to the damaged record.
+     */
+    private void assertRecoversTo(long goodLength) {
+        IgnoredMessageStore store = new IgnoredMessageStore(file);
+        assertEquals(Arrays.asList(RULES[0]),
+                     new ArrayList<IgnoreRule>(store.load()));
+        assertEquals(goodLength, file.length());
+        store.add(RULES[2]);
+        store.close();
+        assertEquals(Arrays.asList(RULES[0], RULES[2]), load());
+    }
+
+    /**
+     * Load the rules with a new store, and close it.
+     *
+     * @return The rules, in the order they were added.
+     */
+    private List<IgnoreRule> load() {
+        IgnoredMessageStore store = new IgnoredMessageStore(file);
+        try {
+            return new ArrayList<IgnoreRule>(store.load());
+        } finally {
+            store.close();
+        }
+    }
+}
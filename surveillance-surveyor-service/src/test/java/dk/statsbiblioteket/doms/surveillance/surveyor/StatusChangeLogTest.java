@@ -0,0 +1,203 @@
+/*
+ * $Id$
+ * $Revision$
+ * $Date$
+ * $Author$
+ *
+ * The DOMS project.
+ * Copyright (C) 2007-2010  The State and University Library
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package dk.statsbiblioteket.doms.surveillance.surveyor;
+
+import dk.statsbiblioteket.util.qa.QAInfo;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests of {@link StatusChangeLog}: which sequence numbers can be resumed
+ * from, as the ring buffer wraps and is resized.
+ */
+@QAInfo(author = "agent",
+        reviewers = "",
+        level = QAInfo.Level.NORMAL,
+        state = QAInfo.State.QA_NEEDED)
+public class StatusChangeLogTest {
+    /** Epoch of the logs. */
+    private static final long EPOCH = 42L;
+
+    /** Capacity of the logs. */
+    private static final int CAPACITY = 4;
+
+    /**
+     * Test reading an empty log.
+     */
+    @Test
+    public void testEmpty() {
+        StatusChangeLog log = new StatusChangeLog(EPOCH, CAPACITY);
+        assertEquals(EPOCH, log.getEpoch());
+        assertEquals(0L, log.getLatestSequence());
+        assertEquals(Collections.<StatusChange>emptyList(),
+                     log.getChangesSince(0L));
+        assertNull(log.getChangesSince(1L));
+        assertNull(log.getChangesSince(-1L));
+    }
+
+    /**
+     * Test that sequence 0 gives all changes before the buffer wraps.
+     */
+    @Test
+    public void testSequenceZero() {
+        StatusChangeLog log = new StatusChangeLog(EPOCH, CAPACITY);
+        assertEquals(3L, log.append(changes(1, 3)));
+        assertChanges(log, 0L, 1, 3);
+        assertChanges(log, 2L, 3, 3);
+
+        log.append(changes(4, 5));
+        assertNull(log.getChangesSince(0L));
+    }
+
+    /**
+     * Test resuming at the edges of the retained changes after the buffer
+     * has wrapped: just before the oldest retained change is valid, one
+     * further back is not.
+     */
+    @Test
+    public void testOldestRetained() {
+        StatusChangeLog log = new StatusChangeLog(EPOCH, CAPACITY);
+        log.append(changes(1, 10));
+        assertEquals(10L, log.getLatestSequence());
+        assertChanges(log, 6L, 7, 10);
+        assertNull(log.getChangesSince(5L));
+        assertEquals(Collections.<StatusChange>emptyList(),
+                     log.getChangesSince(10L));
+    }
+
+    /**
+     * Test that a sequence number newer than the latest change, e.g. from
+     * before a restart, requires reading the whole status again.
+     */
+    @Test
+    public void testNewerThanLatest() {
+        StatusChangeLog log = new StatusChangeLog(EPOCH, CAPACITY);
+        log.append(changes(1, 2));
+        assertNull(log.getChangesSince(3L));
+        assertNull(log.getChangesSince(Long.MAX_VALUE));
+    }
+
+    /**
+     * Test shrinking the capacity while the buffer has wrapped.
+     */
+    @Test
+    public void testShrinkWhileWrapped() {
+        StatusChangeLog log = new StatusChangeLog(EPOCH, CAPACITY);
+        log.append(changes(1, 10));
+        log.setCapacity(CAPACITY - 1);
+        assertChanges(log, 7L, 8, 10);
+        assertNull(log.getChangesSince(6L));
+
+        log.append(changes(11, 12));
+        assertChanges(log, 9L, 10, 12);
+        assertNull(log.getChangesSince(8L));
+    }
+
+    /**
+     * Test growing the capacity while the buffer has wrapped. Changes
+     * dropped before growing stay dropped.
+     */
+    @Test
+    public void testGrowWhileWrapped() {
+        StatusChangeLog log = new StatusChangeLog(EPOCH, CAPACITY);
+        log.append(changes(1, 10));
+        log.setCapacity(2 * CAPACITY);
+        assertChanges(log, 6L, 7, 10);
+        assertNull(log.getChangesSince(5L));
+        assertNull(log.getChangesSince(2L));
+
+        log.append(changes(11, 15));
+        assertChanges(log, 7L, 8, 15);
+        assertNull(log.getChangesSince(6L));
+    }
+
+    /**
+     * Test that waiting returns at once when there are changes or the log
+     * is closed, and returns nothing when the timeout passes.
+     *
+     * @throws InterruptedException If interrupted while waiting.
+     */
+    @Test
+    public void testAwait() throws InterruptedException {
+        StatusChangeLog log = new StatusChangeLog(EPOCH, CAPACITY);
+        log.append(changes(1, 2));
+        assertEquals(1, log.awaitChangesSince(1L, 10000L).size());
+        assertTrue(log.awaitChangesSince(2L, 10L).isEmpty());
+
+        log.close();
+        assertTrue(log.isClosed());
+        long start = System.currentTimeMillis();
+        assertTrue(log.awaitChangesSince(2L, 10000L).isEmpty());
+        assertTrue(System.currentTimeMillis() - start < 5000L);
+    }
+
+    /**
+     * Make changes for the applications numbered in a range.
+     *
+     * @param first The first number.
+     * @param last The last number, inclusive.
+     * @return A change for each number, oldest first.
+     */
+    private static List<StatusChange> changes(int first, int last) {
+        List<StatusChange> result = new ArrayList<StatusChange>();
+        for (int i = first; i <= last; i++) {
+            result.add(new StatusChange(0L, StatusChange.Type.REMOVED,
+                                        "application" + i, null));
+        }
+        return result;
+    }
+
+    /**
+     * Assert that the changes after a sequence number are those numbered in
+     * a range, each with its own number as sequence number.
+     *
+     * @param log The log.
+     * @param sequence The sequence number of the last change seen.
+     * @param first The number of the first expected change.
+     * @param last The number of the last expected change, inclusive.
+     */
+    private static void assertChanges(StatusChangeLog log, long sequence,
+                                      int first, int last) {
+        List<StatusChange> result = log.getChangesSince(sequence);
+        assertNotNull("Changes since " + sequence + " should be retained",
+                      result);
+        assertEquals(last - first + 1, result.size());
+        for (int i = first; i <= last; i++) {
+            StatusChange change = result.get(i - first);
+            assertEquals((long) i, change.getSequence());
+            assertEquals("application" + i, change.getApplicationName());
+        }
+    }
+}
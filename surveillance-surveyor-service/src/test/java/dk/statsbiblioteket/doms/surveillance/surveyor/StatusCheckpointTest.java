@@ -0,0 +1,256 @@
+/*
+ * $Id$
+ * $Revision$
+ * $Date$
+ * $Author$
+ *
+ * The DOMS project.
+ * Copyright (C) 2007-2010  The State and University Library
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package dk.statsbiblioteket.doms.surveillance.surveyor;
+
+import dk.statsbiblioteket.doms.domsutil.surveyable.Severity;
+import dk.statsbiblioteket.util.qa.QAInfo;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests of {@link StatusCheckpoint}: reading back what was written, and
+ * rejecting damaged checkpoints as a whole.
+ */
+@QAInfo(author = "agent",
+        reviewers = "",
+        level = QAInfo.Level.NORMAL,
+        state = QAInfo.State.QA_NEEDED)
+public class StatusCheckpointTest {
+    /** Offset of the length in the header, after the magic. */
+    private static final int LENGTH_OFFSET = 8;
+
+    /** Size of the header: magic, length and checksum. */
+    private static final int HEADER_SIZE = 16;
+
+    /** The checkpoint file. */
+    private File file;
+
+    /**
+     * Create a name for a file that does not exist.
+     *
+     * @throws IOException On trouble creating a temporary file.
+     */
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("checkpoint", ".bin");
+        assertTrue(file.delete());
+    }
+
+    /** Delete the file. */
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    /** A missing checkpoint is read as none. */
+    @Test
+    public void testMissing() {
+        Map<String, Long> times = new HashMap<String, Long>();
+        assertNull(new StatusCheckpoint(file).read(times));
+        assertTrue(times.isEmpty());
+    }
+
+    /**
+     * Statuses and times are read back, including multi-byte text.
+     *
+     * @throws IOException On trouble with the file.
+     */
+    @Test
+    public void testRoundTrip() throws IOException {
+        Map<String, CondensedStatus> statusMap = createStatusMap();
+        Map<String, Long> times = createTimes();
+        new StatusCheckpoint(file).write(statusMap, times);
+
+        Map<String, Long> readTimes = new HashMap<String, Long>();
+        Map<String, CondensedStatus> readStatusMap
+                = new StatusCheckpoint(file).read(readTimes);
+        assertNotNull(readStatusMap);
+        assertEquals(times, readTimes);
+        assertEquals(statusMap.keySet(), readStatusMap.keySet());
+        for (CondensedStatus status : statusMap.values()) {
+            CondensedStatus readStatus = readStatusMap.get(status.getName());
+            assertEquals(status.getMessages().size(),
+                         readStatus.getMessages().size());
+            for (CondensedStatusMessage message : status.getMessages()) {
+                CondensedStatusMessage readMessage
+                        = readStatus.getMessage(message.getKey());
+                assertNotNull(message.getMessage(), readMessage);
+                assertEquals(message.getMessage(), readMessage.getMessage());
+                assertEquals(message.getSeverity(),
+                             readMessage.getSeverity());
+                assertEquals(message.isLogMessage(),
+                             readMessage.isLogMessage());
+                assertEquals(message.getFirstTime(),
+                             readMessage.getFirstTime());
+                assertEquals(message.getLastTime(),
+                             readMessage.getLastTime());
+                assertEquals(message.getNumber(), readMessage.getNumber());
+            }
+        }
+    }
+
+    /**
+     * A checkpoint with a changed byte fails the checksum.
+     *
+     * @throws IOException On trouble with the file.
+     */
+    @Test
+    public void testBadChecksum() throws IOException {
+        writeCheckpoint();
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        try {
+            long position = randomAccessFile.length() - 5;
+            randomAccessFile.seek(position);
+            int b = randomAccessFile.read();
+            randomAccessFile.seek(position);
+            randomAccessFile.write(b ^ 0x01);
+        } finally {
+            randomAccessFile.close();
+        }
+        assertInvalid();
+    }
+
+    /**
+     * A checkpoint longer or shorter than its header says is rejected.
+     *
+     * @throws IOException On trouble with the file.
+     */
+    @Test
+    public void testWrongLength() throws IOException {
+        writeCheckpoint();
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        try {
+            randomAccessFile.setLength(randomAccessFile.length() + 1);
+        } finally {
+            randomAccessFile.close();
+        }
+        assertInvalid();
+
+        writeCheckpoint();
+        randomAccessFile = new RandomAccessFile(file, "rw");
+        try {
+            randomAccessFile.setLength(randomAccessFile.length() - 1);
+        } finally {
+            randomAccessFile.close();
+        }
+        assertInvalid();
+    }
+
+    /**
+     * Truncated contents are rejected as a whole, also when the header has
+     * been made to match them.
+     *
+     * @throws IOException On trouble with the file.
+     */
+    @Test
+    public void testTruncatedContents() throws IOException {
+        writeCheckpoint();
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        try {
+            randomAccessFile.setLength(randomAccessFile.length() - 20);
+            byte[] contents
+                    = new byte[(int) randomAccessFile.length() - HEADER_SIZE];
+            randomAccessFile.seek(HEADER_SIZE);
+            randomAccessFile.readFully(contents);
+            CRC32 crc = new CRC32();
+            crc.update(contents);
+            randomAccessFile.seek(LENGTH_OFFSET);
+            randomAccessFile.writeInt(contents.length);
+            randomAccessFile.writeInt((int) crc.getValue());
+        } finally {
+            randomAccessFile.close();
+        }
+        assertInvalid();
+    }
+
+    /**
+     * Write a checkpoint of the test statuses.
+     *
+     * @throws IOException On trouble writing.
+     */
+    private void writeCheckpoint() throws IOException {
+        new StatusCheckpoint(file).write(createStatusMap(), createTimes());
+    }
+
+    /** Assert that the checkpoint is read as none, and no times are read. */
+    private void assertInvalid() {
+        Map<String, Long> times = new HashMap<String, Long>();
+        assertNull(new StatusCheckpoint(file).read(times));
+        assertTrue("Times read from invalid checkpoint", times.isEmpty());
+    }
+
+    /**
+     * Create statuses with log and realtime messages, some with multi-byte
+     * UTF-8 text.
+     *
+     * @return The status map.
+     */
+    private static Map<String, CondensedStatus> createStatusMap() {
+        Map<String, CondensedStatus> statusMap
+                = new HashMap<String, CondensedStatus>();
+        CondensedStatus status = new CondensedStatus("Fedora");
+        status.addMessage(new CondensedStatusMessage(
+                MessageKey.intern("Disk full\n\tat Foo.bar()"), Severity.RED,
+                1000L, 5000L, true, 3));
+        status.addMessage(new CondensedStatusMessage(
+                MessageKey.intern("Up and running"), Severity.GREEN,
+                6000L, 6000L, false, 1));
+        statusMap.put(status.getName(), status);
+        status = new CondensedStatus("S\u00f8gning \u00e6\u00f8\u00e5");
+        status.addMessage(new CondensedStatusMessage(
+                MessageKey.intern("Fejl i s\u00f8gning \u20ac \ud83d\ude00"),
+                Severity.YELLOW, 2000L, 2000L, true, 1));
+        statusMap.put(status.getName(), status);
+        statusMap.put("Empty", new CondensedStatus("Empty"));
+        return statusMap;
+    }
+
+    /**
+     * Create times of the newest messages of some status URLs.
+     *
+     * @return Map from status URL to time.
+     */
+    private static Map<String, Long> createTimes() {
+        Map<String, Long> times = new HashMap<String, Long>();
+        times.put("http://localhost/rest/status?date={date}", 5000L);
+        times.put("http://localhost/s\u00f8g/status?date={date}", 2000L);
+        return times;
+    }
+}